@@ -0,0 +1,75 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares evaluating an expression over many rows one row at a time against sequential and parallel batch evaluation
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+	
+	private static final int ROWS = 100_000;
+	
+	private CompiledExpression expression;
+	private double[][] columns;
+	private double[] out;
+	
+	@Setup
+	public void setup() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("price", "qty", "tax");
+		expression = Crunch.compileExpression("price * qty * (1 + tax) - abs(price - 10) / 2", env);
+		columns = new double[3][ROWS];
+		for (int i = 0; i < ROWS; i++) {
+			columns[0][i] = i % 100;
+			columns[1][i] = i % 7;
+			columns[2][i] = 0.2;
+		}
+		out = new double[ROWS];
+	}
+	
+	@Benchmark
+	public double[] rowByRow() {
+		double[] row = new double[3];
+		for (int i = 0; i < ROWS; i++) {
+			row[0] = columns[0][i];
+			row[1] = columns[1][i];
+			row[2] = columns[2][i];
+			out[i] = expression.evaluate(row);
+		}
+		return out;
+	}
+	
+	@Benchmark
+	public double[] batch() {
+		expression.evaluateBatch(columns, out, 0, ROWS);
+		return out;
+	}
+	
+	@Benchmark
+	public double[] parallelBatch() {
+		expression.evaluateBatchParallel(columns, out, 0, ROWS);
+		return out;
+	}
+	
+}
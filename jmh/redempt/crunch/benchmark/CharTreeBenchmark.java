@@ -0,0 +1,64 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.ExpressionParser;
+import redempt.crunch.data.CharTree;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.token.Token;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures longest-match lookups of leading operators, as done by the parser for every term, with and without a
+ * large namespace of registered functions
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharTreeBenchmark {
+	
+	@Param({"sin", "sinh", "customFunction", "missing"})
+	public String name;
+	
+	@Param({"0", "4000"})
+	public int namespaceSize;
+	
+	private CharTree<Token> tree;
+	private ExpressionParser parser;
+	
+	@Setup
+	public void setup() throws ReflectiveOperationException {
+		ExpressionEnv env = new ExpressionEnv();
+		env.addFunction("customFunction", 1, d -> d[0]);
+		for (int i = 0; i < namespaceSize; i++) {
+			env.addFunction("custom" + i, x -> x);
+		}
+		tree = env.getLeadingOperators();
+		// The parser constructor is package-private, since parsers are normally only created by Crunch
+		Constructor<ExpressionParser> constructor = ExpressionParser.class.getDeclaredConstructor(String.class, ExpressionEnv.class);
+		constructor.setAccessible(true);
+		parser = constructor.newInstance(name + "(1)", env);
+	}
+	
+	@Benchmark
+	public Token getWith() {
+		parser.setCursor(0);
+		return tree.getWith(parser);
+	}
+	
+}
@@ -0,0 +1,53 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of setting up an ExpressionEnv, from scratch or by deriving from a frozen one
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+	
+	private final ExpressionEnv shared = new ExpressionEnv()
+			.setVariableNames("x", "y")
+			.addFunction("max", 2, d -> Math.max(d[0], d[1]))
+			.freeze();
+	
+	@Benchmark
+	public ExpressionEnv construct() {
+		return new ExpressionEnv();
+	}
+	
+	@Benchmark
+	public ExpressionEnv constructWithAdditions() {
+		return new ExpressionEnv()
+				.setVariableNames("x", "y")
+				.addLazyVariable("tick", () -> 1)
+				.addFunction("max", 2, d -> Math.max(d[0], d[1]));
+	}
+	
+	@Benchmark
+	public ExpressionEnv deriveWithAdditions() {
+		return shared.derive()
+				.addLazyVariable("tick", () -> 1)
+				.addLazyVariable("tock", () -> 2);
+	}
+	
+}
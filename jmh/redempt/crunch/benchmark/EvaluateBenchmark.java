@@ -0,0 +1,116 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.optimizer.Optimization;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures evaluation of expressions whose root is each kind of node the parser produces
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluateBenchmark {
+	
+	public double x = 3.5;
+	public double y = 12;
+	
+	private CompiledExpression binaryOperation;
+	private CompiledExpression unaryOperation;
+	private CompiledExpression functionCall;
+	private CompiledExpression fixedArityCall;
+	private CompiledExpression lazyVariable;
+	private CompiledExpression mixed;
+	private CompiledExpression mixedBytecode;
+	private CompiledExpression mixedLinear;
+	private CompiledExpression power;
+	private CompiledExpression powerReduced;
+	
+	@Setup
+	public void setup() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x", "y");
+		env.addFunction("max", 2, d -> Math.max(d[0], d[1]));
+		env.addFunction("fmax", Math::max);
+		env.addLazyVariable("z", () -> 0.5);
+		binaryOperation = Crunch.compileExpression("x * y", env);
+		unaryOperation = Crunch.compileExpression("sin(x)", env);
+		functionCall = Crunch.compileExpression("max(x, y)", env);
+		fixedArityCall = Crunch.compileExpression("fmax(x, y)", env);
+		lazyVariable = Crunch.compileExpression("z", env);
+		mixed = Crunch.compileExpression("(10 * x) + 5 / 2 - max(x, y) * sin(y) + z", env);
+		mixedBytecode = mixed.toBytecode();
+		mixedLinear = mixed.toLinearProgram();
+		power = Crunch.compileExpression("x^2 + y^0.5 + x^3", env);
+		env.enableOptimizations(Optimization.STRENGTH_REDUCTION);
+		powerReduced = Crunch.compileExpression("x^2 + y^0.5 + x^3", env);
+	}
+	
+	@Benchmark
+	public double binaryOperation() {
+		return binaryOperation.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double unaryOperation() {
+		return unaryOperation.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double functionCall() {
+		return functionCall.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double fixedArityCall() {
+		return fixedArityCall.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double lazyVariable() {
+		return lazyVariable.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double mixed() {
+		return mixed.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double mixedBytecode() {
+		return mixedBytecode.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double mixedLinear() {
+		return mixedLinear.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double power() {
+		return power.evaluate(x, y);
+	}
+	
+	@Benchmark
+	public double powerReduced() {
+		return powerReduced.evaluate(x, y);
+	}
+	
+}
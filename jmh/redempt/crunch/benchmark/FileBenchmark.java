@@ -0,0 +1,86 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.batch.RecordLayout;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares evaluating an expression over a file of packed doubles by reading it onto the heap and evaluating row by
+ * row, against streaming it through memory-mapped chunks with {@link CompiledExpression#evaluateFile}
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+	
+	private static final int RECORDS = 4_000_000;
+	private static final int FIELDS = 3;
+	
+	private CompiledExpression expression;
+	private Path in;
+	private Path out;
+	
+	@Setup
+	public void setup() throws IOException {
+		expression = Crunch.compileExpression("$1 * $2 * (1 + $3) - abs($1 - 10) / 2");
+		ByteBuffer data = ByteBuffer.allocate(RECORDS * FIELDS * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < RECORDS; i++) {
+			data.putDouble(i % 100).putDouble(i % 7).putDouble(0.2);
+		}
+		in = Files.createTempFile("crunch", ".in");
+		out = Files.createTempFile("crunch", ".out");
+		Files.write(in, data.array());
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(in);
+		Files.deleteIfExists(out);
+	}
+	
+	@Benchmark
+	public double[] heapRowByRow() throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(in)).order(ByteOrder.LITTLE_ENDIAN);
+		double[] results = new double[RECORDS];
+		double[] row = new double[FIELDS];
+		for (int i = 0; i < RECORDS; i++) {
+			for (int j = 0; j < FIELDS; j++) {
+				row[j] = data.getDouble();
+			}
+			results[i] = expression.evaluate(row);
+		}
+		ByteBuffer output = ByteBuffer.allocate(RECORDS * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		output.asDoubleBuffer().put(results);
+		Files.write(out, output.array());
+		return results;
+	}
+	
+	@Benchmark
+	public Path mapped() throws IOException {
+		expression.evaluateFile(in, RecordLayout.packed(FIELDS), out);
+		return out;
+	}
+	
+}
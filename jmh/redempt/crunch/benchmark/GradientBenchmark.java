@@ -0,0 +1,77 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.gradient.Gradient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares computing the gradient of an expression with 20 variables by finite differences, which evaluates the
+ * expression once per variable plus once more, with computing it in one pass with a {@link Gradient}
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GradientBenchmark {
+	
+	private static final int VARIABLES = 20;
+	private static final double STEP = 1e-7;
+	
+	private CompiledExpression expression;
+	private Gradient gradient;
+	private double[] values;
+	private double[] partials;
+	
+	@Setup
+	public void setup() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 1; i <= VARIABLES; i++) {
+			if (i > 1) {
+				builder.append(" + ");
+			}
+			int next = i % VARIABLES + 1;
+			builder.append("sin($").append(i).append(") * $").append(next).append("^2 + sqrt(1 + $").append(i).append(" * $").append(i).append(")");
+		}
+		expression = Crunch.compileExpression(builder.toString());
+		gradient = expression.gradient();
+		values = new double[VARIABLES];
+		for (int i = 0; i < VARIABLES; i++) {
+			values[i] = i / 10.0;
+		}
+		partials = new double[VARIABLES];
+	}
+	
+	@Benchmark
+	public double[] finiteDifferences() {
+		double base = expression.evaluate(values);
+		for (int i = 0; i < VARIABLES; i++) {
+			double value = values[i];
+			values[i] = value + STEP;
+			partials[i] = (expression.evaluate(values) - base) / STEP;
+			values[i] = value;
+		}
+		return partials;
+	}
+	
+	@Benchmark
+	public double[] gradient() {
+		gradient.evaluate(values, partials);
+		return partials;
+	}
+	
+}
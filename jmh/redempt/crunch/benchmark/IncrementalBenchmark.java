@@ -0,0 +1,73 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.incremental.IncrementalEvaluator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares evaluating an expression with 40 variables from scratch with evaluating it incrementally, when only one
+ * variable changes between evaluations
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncrementalBenchmark {
+	
+	private static final int VARIABLES = 40;
+	
+	private CompiledExpression tree;
+	private CompiledExpression bytecode;
+	private IncrementalEvaluator incremental;
+	private double[] values;
+	private int step;
+	
+	@Setup
+	public void setup() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 1; i <= VARIABLES; i++) {
+			if (i > 1) {
+				builder.append(" + ");
+			}
+			builder.append("sin($").append(i).append(") * cos($").append(i).append(" / 2) ^ 2 + sqrt(abs($").append(i).append(" - ").append(i).append("))");
+		}
+		tree = Crunch.compileExpression(builder.toString());
+		bytecode = tree.toBytecode();
+		incremental = new IncrementalEvaluator(tree);
+		values = new double[VARIABLES];
+	}
+	
+	@Benchmark
+	public double tree() {
+		values[step++ % VARIABLES] = step;
+		return tree.evaluate(values);
+	}
+	
+	@Benchmark
+	public double bytecode() {
+		values[step++ % VARIABLES] = step;
+		return bytecode.evaluate(values);
+	}
+	
+	@Benchmark
+	public double incremental() {
+		incremental.set(step++ % VARIABLES, step);
+		return incremental.evaluate();
+	}
+	
+}
@@ -0,0 +1,42 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.data.FastNumberParsing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parsing double literals with {@link FastNumberParsing} against the JDK parser
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumberParsingBenchmark {
+	
+	@Param({"42", "3.25", "0.1234567890123", "6.02214076E23", "3.141592653589793238462643383279"})
+	public String literal;
+	
+	@Benchmark
+	public double fast() {
+		return FastNumberParsing.parseDouble(literal);
+	}
+	
+	@Benchmark
+	public double jdk() {
+		return Double.parseDouble(literal);
+	}
+	
+}
@@ -0,0 +1,82 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing and compilation of expressions of increasing size
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+	
+	private static final String SHORT = "3*5";
+	private static final String MEDIUM = "6.5*7.8^2.3 + (3.5^3+7/2)^3 -(5*4/(2-3))*4 + max(x, y) * sin(x / 2) - abs(y - 0.25)";
+	private static final String LARGE_TERM = "(x * 2.5 + max(y, 3) - sin(x / 4)) + ";
+	private static final int MEGABYTE = 1 << 20;
+	private static final int NESTING = 10000;
+	
+	@Param({"short", "medium", "megabyte", "nested"})
+	public String size;
+	
+	private String input;
+	private ExpressionEnv env;
+	
+	@Setup
+	public void setup() {
+		env = new ExpressionEnv();
+		env.setVariableNames("x", "y");
+		env.addFunction("max", 2, d -> Math.max(d[0], d[1]));
+		switch (size) {
+			case "short":
+				input = SHORT;
+				break;
+			case "medium":
+				input = MEDIUM;
+				break;
+			case "nested": {
+				StringBuilder builder = new StringBuilder();
+				for (int i = 0; i < NESTING; i++) {
+					builder.append(i % 2 == 0 ? "sin(x + " : "(y * ");
+				}
+				builder.append('1');
+				for (int i = 0; i < NESTING; i++) {
+					builder.append(')');
+				}
+				input = builder.toString();
+				break;
+			}
+			default:
+				StringBuilder builder = new StringBuilder(MEGABYTE + LARGE_TERM.length());
+				while (builder.length() < MEGABYTE) {
+					builder.append(LARGE_TERM);
+				}
+				input = builder.append('1').toString();
+		}
+	}
+	
+	@Benchmark
+	public CompiledExpression parse() {
+		return Crunch.compileExpression(input, env);
+	}
+	
+}
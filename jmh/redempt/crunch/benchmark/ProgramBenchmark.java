@@ -0,0 +1,82 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.CompiledProgram;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares evaluating 300 formulas over the same 60 variables one at a time with evaluating them as a single program,
+ * where the formulas share many of their subexpressions
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgramBenchmark {
+	
+	private static final int VARIABLES = 60;
+	private static final int FORMULAS = 300;
+	
+	private CompiledExpression[] expressions;
+	private CompiledProgram program;
+	private double[] values;
+	private double[] out;
+	
+	@Setup
+	public void setup() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.addLazyVariable("time", System::nanoTime);
+		Random random = new Random(0);
+		List<String> formulas = new ArrayList<>();
+		for (int i = 0; i < FORMULAS; i++) {
+			int a = random.nextInt(VARIABLES) + 1;
+			int b = random.nextInt(VARIABLES) + 1;
+			int c = random.nextInt(VARIABLES) + 1;
+			formulas.add("sqrt($" + a + "^2 + $" + b + "^2) * sin($" + c + ") + ($" + a + " - $" + c + ") / (1 + time % 7)");
+		}
+		expressions = new CompiledExpression[FORMULAS];
+		for (int i = 0; i < FORMULAS; i++) {
+			expressions[i] = Crunch.compileExpression(formulas.get(i), env);
+		}
+		program = Crunch.compileProgram(formulas, env);
+		values = new double[VARIABLES];
+		for (int i = 0; i < VARIABLES; i++) {
+			values[i] = random.nextDouble();
+		}
+		out = new double[FORMULAS];
+	}
+	
+	@Benchmark
+	public double[] separate() {
+		for (int i = 0; i < FORMULAS; i++) {
+			out[i] = expressions[i].evaluate(values);
+		}
+		return out;
+	}
+	
+	@Benchmark
+	public double[] program() {
+		program.evaluate(values, out);
+		return out;
+	}
+	
+}
@@ -0,0 +1,77 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.optimizer.Optimization;
+import redempt.crunch.serial.ExpressionSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares loading a catalog of formulas by compiling their source with reading them from a serialized catalog
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+	
+	private static final int FORMULAS = 10_000;
+	
+	private List<String> formulas;
+	private ExpressionEnv env;
+	private ByteBuffer catalog;
+	
+	@Setup
+	public void setup() throws IOException {
+		env = new ExpressionEnv();
+		env.setVariableNames("x", "y", "z");
+		env.addFunction("max", Math::max);
+		env.enableOptimizations(Optimization.SIMPLIFY, Optimization.STRENGTH_REDUCTION, Optimization.COMMON_SUBEXPRESSIONS);
+		env.freeze();
+		Random random = new Random(0);
+		formulas = new ArrayList<>(FORMULAS);
+		for (int i = 0; i < FORMULAS; i++) {
+			formulas.add("max(x * " + random.nextInt(100) + ", y) + sin(z / " + (random.nextInt(8) + 1)
+					+ ") - (x + 0.5) ^ 2 * " + random.nextInt(10) + " + (x + 0.5) ^ 3");
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ExpressionSerializer.writeAll(compile(), out);
+		catalog = ByteBuffer.wrap(out.toByteArray());
+	}
+	
+	@Benchmark
+	public List<CompiledExpression> compile() {
+		List<CompiledExpression> compiled = new ArrayList<>(formulas.size());
+		for (String formula : formulas) {
+			compiled.add(Crunch.compileExpression(formula, env));
+		}
+		return compiled;
+	}
+	
+	@Benchmark
+	public List<CompiledExpression> deserialize() {
+		return ExpressionSerializer.readAll(catalog.duplicate(), env);
+	}
+	
+}
@@ -0,0 +1,80 @@
+package redempt.crunch.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Crunch;
+import redempt.crunch.FloatExpression;
+import redempt.crunch.LongExpression;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares batch evaluation of the same expression over double, float and long columns
+ * @author Redempt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypedBenchmark {
+	
+	private static final int ROWS = 100_000;
+	private static final String EXPRESSION = "$1 * $2 + abs($1 - 50) / 2";
+	
+	private CompiledExpression doubleExpression;
+	private FloatExpression floatExpression;
+	private LongExpression longExpression;
+	private double[][] doubleColumns;
+	private float[][] floatColumns;
+	private long[][] longColumns;
+	private double[] doubleOut;
+	private float[] floatOut;
+	private long[] longOut;
+	
+	@Setup
+	public void setup() {
+		doubleExpression = Crunch.compileExpression(EXPRESSION);
+		floatExpression = Crunch.compileFloatExpression(EXPRESSION);
+		longExpression = Crunch.compileLongExpression(EXPRESSION);
+		doubleColumns = new double[2][ROWS];
+		floatColumns = new float[2][ROWS];
+		longColumns = new long[2][ROWS];
+		for (int i = 0; i < ROWS; i++) {
+			doubleColumns[0][i] = floatColumns[0][i] = longColumns[0][i] = i % 100;
+			doubleColumns[1][i] = floatColumns[1][i] = longColumns[1][i] = i % 7;
+		}
+		doubleOut = new double[ROWS];
+		floatOut = new float[ROWS];
+		longOut = new long[ROWS];
+	}
+	
+	@Benchmark
+	public double[] doubleBatch() {
+		doubleExpression.evaluateBatch(doubleColumns, doubleOut, 0, ROWS);
+		return doubleOut;
+	}
+	
+	@Benchmark
+	public float[] floatBatch() {
+		floatExpression.evaluateBatch(floatColumns, floatOut, 0, ROWS);
+		return floatOut;
+	}
+	
+	@Benchmark
+	public long[] longBatch() {
+		longExpression.evaluateBatch(longColumns, longOut, 0, ROWS);
+		return longOut;
+	}
+	
+}
@@ -0,0 +1,87 @@
+package redempt.crunch;
+
+import redempt.crunch.exceptions.ExpressionCompilationException;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.token.LiteralValue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compiles many expressions in parallel. Expressions are split into chunks, and each chunk is parsed with its own
+ * reusable scratch state, while literals and variables are interned across the whole batch.
+ * @author Redempt
+ */
+final class BulkCompiler {
+	
+	/**
+	 * The number of expressions below which a chunk is compiled on a single thread
+	 */
+	static final int CHUNK_SIZE = 256;
+	
+	private BulkCompiler() {
+		// Prevent instantiation
+	}
+	
+	static CompilationResults compile(String[] expressions, ExpressionEnv env, ForkJoinPool pool) {
+		CompiledExpression[] compiled = new CompiledExpression[expressions.length];
+		ExpressionCompilationException[] failures = new ExpressionCompilationException[expressions.length];
+		CompileTask task = new CompileTask(expressions, env, compiled, failures, 0, expressions.length,
+				new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+		if (expressions.length <= CHUNK_SIZE) {
+			task.compute();
+		} else {
+			pool.invoke(task);
+		}
+		return new CompilationResults(compiled, failures);
+	}
+	
+	private static class CompileTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final String[] expressions;
+		private final ExpressionEnv env;
+		private final CompiledExpression[] compiled;
+		private final ExpressionCompilationException[] failures;
+		private final int from;
+		private final int to;
+		private final Map<Double, LiteralValue> literals;
+		private final Map<Integer, Variable> variables;
+		
+		private CompileTask(String[] expressions, ExpressionEnv env, CompiledExpression[] compiled,
+		                    ExpressionCompilationException[] failures, int from, int to,
+		                    Map<Double, LiteralValue> literals, Map<Integer, Variable> variables) {
+			this.expressions = expressions;
+			this.env = env;
+			this.compiled = compiled;
+			this.failures = failures;
+			this.from = from;
+			this.to = to;
+			this.literals = literals;
+			this.variables = variables;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from > CHUNK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new CompileTask(expressions, env, compiled, failures, from, mid, literals, variables),
+						new CompileTask(expressions, env, compiled, failures, mid, to, literals, variables));
+				return;
+			}
+			ParseContext context = new ParseContext(literals, variables);
+			for (int i = from; i < to; i++) {
+				try {
+					compiled[i] = new ExpressionParser(expressions[i], env, context).parse();
+				} catch (ExpressionCompilationException e) {
+					failures[i] = e;
+				}
+			}
+		}
+		
+	}
+	
+}
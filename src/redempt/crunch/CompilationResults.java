@@ -0,0 +1,94 @@
+package redempt.crunch;
+
+import redempt.crunch.exceptions.ExpressionCompilationException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The outcome of compiling many expressions at once with {@link Crunch#compileAll(java.util.Collection, redempt.crunch.functional.ExpressionEnv)}.
+ * Results are indexed in the iteration order of the compiled collection, and an expression which failed to compile
+ * has a failure in place of its CompiledExpression.
+ * @author Redempt
+ */
+public class CompilationResults {
+	
+	private final CompiledExpression[] expressions;
+	private final ExpressionCompilationException[] failures;
+	private final int failureCount;
+	
+	CompilationResults(CompiledExpression[] expressions, ExpressionCompilationException[] failures) {
+		this.expressions = expressions;
+		this.failures = failures;
+		int count = 0;
+		for (ExpressionCompilationException failure : failures) {
+			if (failure != null) {
+				count++;
+			}
+		}
+		failureCount = count;
+	}
+	
+	/**
+	 * @return The number of expressions which were compiled, including failed ones
+	 */
+	public int size() {
+		return expressions.length;
+	}
+	
+	/**
+	 * Gets a compiled expression
+	 * @param index The index of the expression in the compiled collection
+	 * @return The CompiledExpression, or null if the expression failed to compile
+	 */
+	public CompiledExpression get(int index) {
+		return expressions[index];
+	}
+	
+	/**
+	 * Gets the reason an expression failed to compile
+	 * @param index The index of the expression in the compiled collection
+	 * @return The exception thrown while compiling the expression, or null if it compiled successfully
+	 */
+	public ExpressionCompilationException getFailure(int index) {
+		return failures[index];
+	}
+	
+	/**
+	 * @return Whether any expression failed to compile
+	 */
+	public boolean hasFailures() {
+		return failureCount != 0;
+	}
+	
+	/**
+	 * @return The number of expressions which failed to compile
+	 */
+	public int getFailureCount() {
+		return failureCount;
+	}
+	
+	/**
+	 * @return An unmodifiable list of all compiled expressions in order, with null in place of failed expressions
+	 */
+	public List<CompiledExpression> getExpressions() {
+		return Collections.unmodifiableList(Arrays.asList(expressions));
+	}
+	
+	/**
+	 * @return The failures keyed by the index of the expression which failed, in ascending order
+	 */
+	public Map<Integer, ExpressionCompilationException> getFailures() {
+		Map<Integer, ExpressionCompilationException> map = new TreeMap<>();
+		for (int i = 0; i < failures.length; i++) {
+			if (failures[i] != null) {
+				map.put(i, failures[i]);
+			}
+		}
+		return map;
+	}
+	
+}
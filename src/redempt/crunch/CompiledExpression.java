@@ -1,31 +1,102 @@
 package redempt.crunch;
 
+import redempt.crunch.batch.BatchEvaluator;
+import redempt.crunch.batch.FileEvaluator;
+import redempt.crunch.batch.LazySampling;
+import redempt.crunch.batch.RecordLayout;
+import redempt.crunch.bytecode.BytecodeCompiler;
 import redempt.crunch.exceptions.ExpressionEvaluationException;
-import redempt.crunch.token.BinaryOperation;
-import redempt.crunch.token.TokenType;
+import redempt.crunch.gradient.Gradient;
+import redempt.crunch.linear.LinearCompiler;
+import redempt.crunch.linear.LinearProgram;
+import redempt.crunch.optimizer.CompileReport;
+import redempt.crunch.optimizer.PostOrder;
 import redempt.crunch.token.Value;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * An expression which has been compiled with {@link Crunch#compileExpression(String)} and can be evaluated with {@link CompiledExpression#evaluate(double...)}
+ * <p>
+ * A single CompiledExpression can be evaluated from many threads at once without locking. Scratch storage, like the
+ * arguments of function calls, is borrowed for the duration of one call and handed back afterwards, so a call only
+ * allocates when another thread is already using the same storage.
  * @author Redempt
  */
 public class CompiledExpression {
 	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	/**
+	 * The height above which an expression is evaluated by a {@link LinearProgram} rather than by walking its tree,
+	 * since walking the tree needs stack space proportional to its height
+	 */
+	static final int MAX_RECURSIVE_HEIGHT = 256;
+	
 	protected double[] variableValues;
 	private int variableCount;
 	private Value value;
+	private Value evaluator;
+	private final AtomicReference<double[]> spareFrame = new AtomicReference<>();
+	private final AtomicReference<BatchEvaluator> spareBatchEvaluator = new AtomicReference<>();
+	private boolean flat;
+	private CompileReport report = CompileReport.EMPTY;
 	
     protected CompiledExpression() {}
 
+	/**
+	 * Creates a CompiledExpression from a Value tree. Trees too tall to walk recursively are evaluated by a
+	 * {@link LinearProgram}, like those compiled from expressions.
+	 * @param value The Value to evaluate
+	 * @param variableCount The number of variables used by the Value
+	 */
 	public CompiledExpression(Value value, int variableCount) {
         initialize(value, variableCount);
+		if (PostOrder.height(value, MAX_RECURSIVE_HEIGHT + 1) > MAX_RECURSIVE_HEIGHT) {
+			flatten();
+		}
     }
 
     protected void initialize(Value value, int variableCount) {
         this.value = value;
+		this.evaluator = value;
 		this.variableCount = variableCount;
     }
 	
+	/**
+	 * Evaluates this expression with a LinearProgram, which runs in constant stack space however tall the tree is
+	 */
+	void flatten() {
+		evaluator = LinearCompiler.compile(value);
+		flat = true;
+	}
+	
+	/**
+	 * Checks whether this expression is too tall to walk recursively, so that it is evaluated by a {@link LinearProgram}
+	 * instead of its tree. Batch and file evaluation then evaluate the program row by row, and features which walk the
+	 * tree, like {@link #gradient()} and {@link #toBytecode()}, are not available.
+	 * @return Whether this expression is evaluated by a LinearProgram because of its height
+	 */
+	public boolean isFlat() {
+		return flat;
+	}
+	
+	protected void setCompileReport(CompileReport report) {
+		this.report = report;
+	}
+	
+	/**
+	 * Gets the rewrites the optimizations enabled on the {@link redempt.crunch.functional.ExpressionEnv} made while
+	 * compiling this expression
+	 * @return The CompileReport for this expression, which is empty if no optimizations were enabled
+	 */
+	public CompileReport getCompileReport() {
+		return report;
+	}
+	
 	protected void setVariableValues(double[] values) {
 		checkArgCount(values.length);
 		variableValues = values;
@@ -54,8 +125,8 @@ public class CompiledExpression {
 	 * @return The resulting value
 	 */
 	public double evaluate(double... values) {
-		setVariableValues(values);
-		return value.getValue(this.variableValues);
+		checkArgCount(values.length);
+		return evaluator.getValue(values);
 	}
 	
 	/**
@@ -64,7 +135,7 @@ public class CompiledExpression {
 	 */
 	public double evaluate() {
 		checkArgCount(0);
-		return value.getValue(this.variableValues);
+		return evaluator.getValue(variableValues == null ? NO_VARIABLES : variableValues);
 	}
 	
 	/**
@@ -74,11 +145,11 @@ public class CompiledExpression {
 	 */
 	public double evaluate(double first) {
 		checkArgCount(1);
-		if (variableValues == null) {
-			variableValues = new double[1];
-		}
-		variableValues[0] = first;
-		return value.getValue(this.variableValues);
+		double[] frame = borrowFrame();
+		frame[0] = first;
+		double result = evaluator.getValue(frame);
+		spareFrame.lazySet(frame);
+		return result;
 	}
 	
 	/**
@@ -89,12 +160,116 @@ public class CompiledExpression {
 	 */
 	public double evaluate(double first, double second) {
 		checkArgCount(2);
-		if (variableValues == null) {
-			variableValues = new double[2];
+		double[] frame = borrowFrame();
+		frame[0] = first;
+		frame[1] = second;
+		double result = evaluator.getValue(frame);
+		spareFrame.lazySet(frame);
+		return result;
+	}
+	
+	/**
+	 * Evaluates this CompiledExpression for a range of rows of columnar data, sampling lazy variables for every row.
+	 * Rather than walking the expression once per row, each operation is applied to a whole block of rows at a time.
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of variable i + 1 for that row
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 */
+	public void evaluateBatch(double[][] columns, double[] out, int from, int to) {
+		evaluateBatch(columns, out, from, to, LazySampling.PER_ROW);
+	}
+	
+	/**
+	 * Evaluates this CompiledExpression for a range of rows of columnar data.
+	 * Rather than walking the expression once per row, each operation is applied to a whole block of rows at a time.
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of variable i + 1 for that row
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 * @param sampling Whether lazy variables should be sampled once for the whole batch or once for every row
+	 */
+	public void evaluateBatch(double[][] columns, double[] out, int from, int to, LazySampling sampling) {
+		// Borrow the spare evaluator, or create one if another call is already using it
+		BatchEvaluator batchEvaluator = spareBatchEvaluator.getAndSet(null);
+		if (batchEvaluator == null) {
+			batchEvaluator = new BatchEvaluator(batchValue(), variableCount);
 		}
-		variableValues[0] = first;
-		variableValues[1] = second;
-		return value.getValue(this.variableValues);
+		batchEvaluator.evaluate(columns, out, from, to, sampling);
+		spareBatchEvaluator.lazySet(batchEvaluator);
+	}
+	
+	/**
+	 * Evaluates this CompiledExpression for a range of rows of columnar data, splitting the rows into chunks which are
+	 * evaluated in parallel on the common {@link ForkJoinPool}. Lazy variables are sampled for every row, and ranges of
+	 * up to {@link BatchEvaluator#DEFAULT_PARALLEL_THRESHOLD} rows are evaluated on the calling thread.
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of variable i + 1 for that row
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 */
+	public void evaluateBatchParallel(double[][] columns, double[] out, int from, int to) {
+		evaluateBatchParallel(columns, out, from, to, LazySampling.PER_ROW, ForkJoinPool.commonPool(), BatchEvaluator.DEFAULT_PARALLEL_THRESHOLD);
+	}
+	
+	/**
+	 * Evaluates this CompiledExpression for a range of rows of columnar data, splitting the rows into chunks which are
+	 * evaluated in parallel. Every chunk is evaluated with its own scratch buffers.
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of variable i + 1 for that row
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 * @param sampling Whether lazy variables should be sampled once for the whole batch or once for every row
+	 * @param pool The pool to evaluate chunks on
+	 * @param threshold The largest number of rows evaluated as a single chunk. Ranges up to this size are evaluated on
+	 *                  the calling thread.
+	 */
+	public void evaluateBatchParallel(double[][] columns, double[] out, int from, int to, LazySampling sampling, ForkJoinPool pool, int threshold) {
+		BatchEvaluator.evaluateParallel(batchValue(), variableCount, columns, out, from, to, sampling, pool, threshold);
+	}
+	
+	/**
+	 * Evaluates this CompiledExpression for every record of a binary file, in parallel on the common
+	 * {@link ForkJoinPool}. The files are memory-mapped a chunk at a time instead of being read onto the heap, so files
+	 * of any size can be evaluated with bounded heap usage. Lazy variables are sampled for every record.
+	 * @param in The file to read records from, whose size must be a multiple of the record size
+	 * @param layout Where the value of each variable is found in a record
+	 * @param out The file to write results to, as one double per record in the byte order of the layout. It is created
+	 *            or replaced, and may be partially written if evaluation fails.
+	 * @throws IOException If either file cannot be read, written or mapped
+	 */
+	public void evaluateFile(Path in, RecordLayout layout, Path out) throws IOException {
+		evaluateFile(in, layout, out, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Evaluates this CompiledExpression for every record of a binary file, in parallel on the given pool. Every chunk
+	 * is evaluated with its own scratch buffers.
+	 * @param in The file to read records from, whose size must be a multiple of the record size
+	 * @param layout Where the value of each variable is found in a record
+	 * @param out The file to write results to, as one double per record in the byte order of the layout. It is created
+	 *            or replaced, and may be partially written if evaluation fails.
+	 * @param pool The pool to evaluate chunks on
+	 * @throws IOException If either file cannot be read, written or mapped
+	 */
+	public void evaluateFile(Path in, RecordLayout layout, Path out, ForkJoinPool pool) throws IOException {
+		FileEvaluator.evaluate(batchValue(), variableCount, in, layout, out, pool, FileEvaluator.DEFAULT_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Gets the Value batch evaluation should use, which is the program for trees too tall to walk recursively
+	 */
+	private Value batchValue() {
+		return flat ? evaluator : value;
+	}
+	
+	/**
+	 * Borrows the spare frame for the one- and two-argument overloads, or allocates one if another call is already
+	 * using it
+	 */
+	private double[] borrowFrame() {
+		double[] frame = spareFrame.getAndSet(null);
+		return frame == null ? new double[2] : frame;
 	}
 	
 	private void checkArgCount(int args) {
@@ -104,10 +279,65 @@ public class CompiledExpression {
 	}
 	
 	/**
+	 * Compiles this expression to JVM bytecode. The returned CompiledExpression evaluates a single generated method
+	 * instead of walking the Value tree, which lets the JIT inline the whole expression. It produces the same results
+	 * and still exposes the original tree through {@link CompiledExpression#getValue()}.
+	 * @return A CompiledExpression backed by a generated class
+	 * @throws IllegalStateException If this expression is too tall to walk recursively, as reported by {@link #isFlat()}
+	 */
+	public CompiledExpression toBytecode() {
+		if (flat) {
+			throw new IllegalStateException("Expression is too deep to compile to bytecode, use toLinearProgram instead");
+		}
+		return copy(value, BytecodeCompiler.compile(value));
+	}
+	
+	/**
+	 * Compiles this expression to a flat {@link LinearProgram}: an array of opcodes evaluated by a single interpreter
+	 * loop, without recursion or a virtual call per node. Unlike {@link #toBytecode()}, this does not define any classes
+	 * at runtime. It produces the same results and still exposes the original tree through
+	 * {@link CompiledExpression#getValue()}.
+	 * @return A CompiledExpression backed by a LinearProgram
+	 */
+	public CompiledExpression toLinearProgram() {
+		return copy(value, LinearCompiler.compile(value));
+	}
+	
+	/**
+	 * Creates a {@link Gradient} for this expression, which computes its partial derivative with respect to every
+	 * variable at once, at a small constant multiple of the cost of one evaluation
+	 * @return A Gradient for this expression
+	 * @throws IllegalStateException If this expression calls a function without a registered derivative, uses rand, or
+	 *                               is too tall to walk recursively
+	 */
+	public Gradient gradient() {
+		return new Gradient(this);
+	}
+	
+	/**
+	 * Creates a deep copy of this CompiledExpression which shares no mutable state with it. Copies are not needed to
+	 * evaluate an expression from several threads at once.
 	 * @return A clone of this CompiledExpression
 	 */
 	public CompiledExpression clone() {
-		return new CompiledExpression(value, variableCount);
+		if (flat) {
+			// The tree is too tall to copy recursively, and is never evaluated since the program is used instead
+			return copy(value, evaluator.getClone());
+		}
+		Value clone = value.getClone();
+		return copy(clone, evaluator == value ? clone : evaluator.getClone());
+	}
+	
+	/**
+	 * Creates a CompiledExpression with the same variables, report and height as this one
+	 */
+	private CompiledExpression copy(Value value, Value evaluator) {
+		CompiledExpression copy = new CompiledExpression();
+		copy.initialize(value, variableCount);
+		copy.evaluator = evaluator;
+		copy.flat = flat;
+		copy.report = report;
+		return copy;
 	}
 	
 	/**
@@ -115,7 +345,7 @@ public class CompiledExpression {
 	 * @return A String representation of this CompiledExpression
 	 */
 	public String toString() {
-		return value.toString();
+		return flat ? PostOrder.print(value) : value.toString();
 	}
 	
 }
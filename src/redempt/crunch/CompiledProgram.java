@@ -0,0 +1,173 @@
+package redempt.crunch;
+
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.linear.LinearCompiler;
+import redempt.crunch.optimizer.CommonSubexpressionEliminator;
+import redempt.crunch.optimizer.LazyMemoizer;
+import redempt.crunch.optimizer.Optimization;
+import redempt.crunch.optimizer.Optimizer;
+import redempt.crunch.token.Value;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Many expressions over the same variables which have been compiled together with
+ * {@link Crunch#compileProgram(List, ExpressionEnv)}, and are evaluated together for one set of variable values.
+ * Pure subexpressions which appear more than once, in one expression or across several, are computed only once per
+ * evaluation, and every lazy variable is sampled at most once per evaluation however many expressions use it.
+ * <p>
+ * Each evaluation writes variables, shared subexpressions and memoized samples into a frame borrowed for the duration
+ * of the call, so like a {@link CompiledExpression}, one program can be evaluated from many threads at once.
+ * @author Redempt
+ */
+public class CompiledProgram {
+	
+	static CompiledProgram compile(List<String> expressions, ExpressionEnv env) {
+		EnumSet<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+		optimizations.addAll(env.getOptimizations());
+		// Subexpressions are shared across the whole program below rather than within each expression
+		optimizations.remove(Optimization.COMMON_SUBEXPRESSIONS);
+		Value[] outputs = new Value[expressions.size()];
+		int variableCount = env.getVariableCount();
+		ParseContext context = new ParseContext(new HashMap<>(), new HashMap<>());
+		int height = 0;
+		int i = 0;
+		for (String expression : expressions) {
+			ExpressionParser parser = new ExpressionParser(expression, env, context);
+			Value value = parser.parseValue();
+			if (!optimizations.isEmpty()) {
+				value = Optimizer.optimize(value, parser.getVariableCount(), optimizations);
+			}
+			outputs[i++] = value;
+			variableCount = Math.max(variableCount, parser.getVariableCount());
+			height = Math.max(height, parser.getHeight());
+		}
+		Value[] definitions = CommonSubexpressionEliminator.eliminateAll(outputs, variableCount);
+		int memoizedCount = LazyMemoizer.memoizeAll(outputs, variableCount + definitions.length);
+		if (height > CompiledExpression.MAX_RECURSIVE_HEIGHT) {
+			// Sharing only replaces subtrees, so no output or definition is taller than the tallest expression parsed
+			flatten(outputs);
+			flatten(definitions);
+		}
+		return new CompiledProgram(outputs, definitions, variableCount, memoizedCount);
+	}
+	
+	/**
+	 * Replaces each Value with a LinearProgram, which evaluates in constant stack space however tall the tree is
+	 */
+	private static void flatten(Value[] values) {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = LinearCompiler.compile(values[i]);
+		}
+	}
+	
+	private final Value[] outputs;
+	private final Value[] definitions;
+	private final int variableCount;
+	private final int memoizedCount;
+	private final int frameSize;
+	private final AtomicReference<double[]> spare = new AtomicReference<>();
+	
+	private CompiledProgram(Value[] outputs, Value[] definitions, int variableCount, int memoizedCount) {
+		this.outputs = outputs;
+		this.definitions = definitions;
+		this.variableCount = variableCount;
+		this.memoizedCount = memoizedCount;
+		frameSize = variableCount + definitions.length + memoizedCount * 2;
+	}
+	
+	/**
+	 * Evaluates every expression in this program, writing their results into an array
+	 * @param values The values for variables used in the expressions, in order starting with 1
+	 * @param out The array to write results into, at the same index as the expression they belong to
+	 */
+	public void evaluate(double[] values, double[] out) {
+		if (values.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values - expected " + variableCount + ", got " + values.length);
+		}
+		if (out.length < outputs.length) {
+			throw new ExpressionEvaluationException("Output array too small - expected " + outputs.length + ", got " + out.length);
+		}
+		// Borrow the spare frame, or allocate one if another call is already using it
+		double[] frame = spare.getAndSet(null);
+		if (frame == null) {
+			frame = new double[frameSize];
+		} else if (memoizedCount != 0) {
+			Arrays.fill(frame, variableCount + definitions.length, frameSize, 0);
+		}
+		System.arraycopy(values, 0, frame, 0, variableCount);
+		for (int i = 0; i < definitions.length; i++) {
+			frame[variableCount + i] = definitions[i].getValue(frame);
+		}
+		for (int i = 0; i < outputs.length; i++) {
+			out[i] = outputs[i].getValue(frame);
+		}
+		spare.lazySet(frame);
+	}
+	
+	/**
+	 * Evaluates every expression in this program
+	 * @param values The values for variables used in the expressions, in order starting with 1
+	 * @return The results, at the same index as the expression they belong to
+	 */
+	public double[] evaluate(double... values) {
+		double[] out = new double[outputs.length];
+		evaluate(values, out);
+		return out;
+	}
+	
+	/**
+	 * @return The number of expressions in this program, which is also the number of results of each evaluation
+	 */
+	public int getOutputCount() {
+		return outputs.length;
+	}
+	
+	/**
+	 * Gets the highest index of variables used in any expression in this program. Any call to
+	 * {@link CompiledProgram#evaluate(double[], double[])} must pass at least this many values.
+	 * @return The number of variables used in this program
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+	
+	/**
+	 * @return The number of subexpressions computed once per evaluation and shared between the uses of each
+	 */
+	public int getSharedCount() {
+		return definitions.length;
+	}
+	
+	/**
+	 * Gets the internal Value representation of one expression, which may contain references to shared subexpressions.
+	 * This is essentially reflection into the program. Proceed at your own risk.
+	 * @param index The index of the expression
+	 * @return The Value of the expression
+	 */
+	public Value getValue(int index) {
+		return outputs[index];
+	}
+	
+	/**
+	 * Creates a deep copy of this CompiledProgram which shares no mutable state with it
+	 * @return A clone of this CompiledProgram
+	 */
+	public CompiledProgram clone() {
+		Value[] outputs = new Value[this.outputs.length];
+		for (int i = 0; i < outputs.length; i++) {
+			outputs[i] = this.outputs[i].getClone();
+		}
+		Value[] definitions = new Value[this.definitions.length];
+		for (int i = 0; i < definitions.length; i++) {
+			definitions[i] = this.definitions[i].getClone();
+		}
+		return new CompiledProgram(outputs, definitions, variableCount, memoizedCount);
+	}
+	
+}
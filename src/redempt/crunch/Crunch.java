@@ -3,6 +3,10 @@ package redempt.crunch;
 import redempt.crunch.functional.ExpressionEnv;
 import redempt.crunch.token.BinaryOperator;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * Public API methods for compiling expressions
  * @author Redempt
@@ -13,7 +17,7 @@ public final class Crunch {
 		// Prevent instantiation
 	}
 
-	private static final ExpressionEnv DEFAULT_EVALUATION_ENVIRONMENT = new ExpressionEnv();
+	private static final ExpressionEnv DEFAULT_EVALUATION_ENVIRONMENT = ExpressionEnv.base();
 	
 	/**
 	 * Compiles a mathematical expression into a CompiledExpression. Variables must be integers starting at 1 prefixed
@@ -38,6 +42,115 @@ public final class Crunch {
 		return new ExpressionParser(expression, env).parse();
 	}
 	
+	/**
+	 * Compiles many expressions at once, in parallel on the common {@link ForkJoinPool}. Parser scratch state is reused
+	 * between expressions on the same worker, and identical literals and variables are shared between all of the
+	 * compiled expressions. An expression which fails to compile does not stop the others from being compiled.
+	 * The environment must not be modified while the expressions are being compiled.
+	 * @param expressions The expressions to compile
+	 * @param env The environment providing custom functions that can be used in the expressions
+	 * @return The compiled expressions and failures, in the iteration order of the collection
+	 */
+	public static CompilationResults compileAll(Collection<String> expressions, ExpressionEnv env) {
+		return compileAll(expressions, env, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Compiles many expressions at once, in parallel on the given pool. Parser scratch state is reused between
+	 * expressions on the same worker, and identical literals and variables are shared between all of the compiled
+	 * expressions. An expression which fails to compile does not stop the others from being compiled.
+	 * The environment must not be modified while the expressions are being compiled.
+	 * @param expressions The expressions to compile
+	 * @param env The environment providing custom functions that can be used in the expressions
+	 * @param pool The pool to compile on
+	 * @return The compiled expressions and failures, in the iteration order of the collection
+	 */
+	public static CompilationResults compileAll(Collection<String> expressions, ExpressionEnv env, ForkJoinPool pool) {
+		if (expressions == null) {
+			throw new IllegalArgumentException("Expressions cannot be null");
+		}
+		if (env == null) {
+			throw new IllegalArgumentException("Environment cannot be null");
+		}
+		if (pool == null) {
+			throw new IllegalArgumentException("Pool cannot be null");
+		}
+		return BulkCompiler.compile(expressions.toArray(new String[0]), env, pool);
+	}
+	
+	/**
+	 * Compiles many expressions over the same variables into a single program, which evaluates all of them for one set
+	 * of variable values. Pure subexpressions shared by any of the expressions are computed only once per evaluation,
+	 * and each lazy variable is sampled at most once per evaluation.
+	 * @param expressions The expressions to compile
+	 * @param env The environment providing custom functions that can be used in the expressions
+	 * @return The compiled program, whose results are in the order of the expressions
+	 */
+	public static CompiledProgram compileProgram(List<String> expressions, ExpressionEnv env) {
+		if (expressions == null) {
+			throw new IllegalArgumentException("Expressions cannot be null");
+		}
+		if (env == null) {
+			throw new IllegalArgumentException("Environment cannot be null");
+		}
+		return CompiledProgram.compile(expressions, env);
+	}
+	
+	/**
+	 * Compiles a mathematical expression to be evaluated with float arithmetic instead of double
+	 * @param expression The expression to compile
+	 * @return The compiled expression
+	 */
+	public static FloatExpression compileFloatExpression(String expression) {
+		return compileFloatExpression(expression, DEFAULT_EVALUATION_ENVIRONMENT);
+	}
+	
+	/**
+	 * Compiles a mathematical expression to be evaluated with float arithmetic instead of double. Optimizations
+	 * enabled on the environment are not applied, since they assume double arithmetic.
+	 * @param expression The expression to compile
+	 * @param env The environment providing custom functions that can be used in the expression
+	 * @return The compiled expression
+	 */
+	public static FloatExpression compileFloatExpression(String expression, ExpressionEnv env) {
+		return FloatExpression.compile(expression, env);
+	}
+	
+	/**
+	 * Compiles a mathematical expression to be evaluated with long arithmetic instead of double. See
+	 * {@link LongExpression} for how each operation behaves on integers.
+	 * @param expression The expression to compile
+	 * @return The compiled expression
+	 */
+	public static LongExpression compileLongExpression(String expression) {
+		return compileLongExpression(expression, DEFAULT_EVALUATION_ENVIRONMENT);
+	}
+	
+	/**
+	 * Compiles a mathematical expression to be evaluated with long arithmetic instead of double. See
+	 * {@link LongExpression} for how each operation behaves on integers. Optimizations enabled on the environment are
+	 * not applied, since they assume double arithmetic.
+	 * @param expression The expression to compile
+	 * @param env The environment providing custom functions that can be used in the expression
+	 * @return The compiled expression
+	 * @throws redempt.crunch.exceptions.ExpressionCompilationException If the expression is invalid or uses a constant
+	 *                                                                   which is not an integer
+	 */
+	public static LongExpression compileLongExpression(String expression, ExpressionEnv env) {
+		return LongExpression.compile(expression, env);
+	}
+	
+	/**
+	 * Creates a bounded cache of compiled expressions for an environment. Compiling the same expression text through the
+	 * cache repeatedly only parses it once, as long as it has not been evicted and the environment has not changed.
+	 * @param env The environment expressions will be compiled with
+	 * @param maxSize The maximum number of expressions to keep cached
+	 * @return The cache
+	 */
+	public static ExpressionCache cached(ExpressionEnv env, int maxSize) {
+		return new ExpressionCache(env, maxSize);
+	}
+	
 	/**
 	 * Compiles and evaluates an expression once. This is only for if you need a one-off evaluation of an expression
 	 * which will not be evaluated again. If the expression will be evaluated multiple times, use {@link Crunch#compileExpression(String)}
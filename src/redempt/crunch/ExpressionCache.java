@@ -0,0 +1,153 @@
+package redempt.crunch;
+
+import redempt.crunch.exceptions.ExpressionCompilationException;
+import redempt.crunch.functional.ExpressionEnv;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of CompiledExpressions for a single {@link ExpressionEnv}, keyed by expression text. Created with
+ * {@link Crunch#cached(ExpressionEnv, int)}. Entries are evicted in least-recently-used order once the maximum size is
+ * reached (per segment, for large caches), and entries compiled before functions, lazy variables or variable names
+ * were added to the environment are recompiled the next time they are requested.
+ * <p>
+ * The cache is split into independently locked segments, so it can be used from many threads at once. Every call to
+ * {@link ExpressionCache#compile(String)} for the same text returns the same cached expression, which can be evaluated
+ * from many threads at once like any other CompiledExpression.
+ * @author Redempt
+ */
+public class ExpressionCache {
+	
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_CAPACITY = 64;
+	
+	private final ExpressionEnv env;
+	private final Segment[] segments;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	ExpressionCache(ExpressionEnv env, int maxSize) {
+		if (env == null) {
+			throw new IllegalArgumentException("Environment cannot be null");
+		}
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be positive");
+		}
+		this.env = env;
+		int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_CAPACITY));
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+		}
+	}
+	
+	/**
+	 * Compiles an expression with this cache's environment, reusing a previous compilation of the same text if possible
+	 * @param expression The expression to compile
+	 * @return The cached CompiledExpression, which may be shared with other callers
+	 */
+	public CompiledExpression compile(String expression) {
+		if (expression == null) {
+			throw new ExpressionCompilationException(null, "Expression is null");
+		}
+		int version = env.getVersion();
+		Segment segment = segments[(expression.hashCode() & Integer.MAX_VALUE) % segments.length];
+		CacheEntry entry;
+		synchronized (segment) {
+			entry = segment.get(expression);
+		}
+		if (entry != null && entry.version == version) {
+			hits.increment();
+			return entry.expression;
+		}
+		misses.increment();
+		CompiledExpression compiled = Crunch.compileExpression(expression, env);
+		synchronized (segment) {
+			segment.put(expression, new CacheEntry(compiled, version));
+		}
+		return compiled;
+	}
+	
+	/**
+	 * @return The number of calls to {@link ExpressionCache#compile(String)} which reused a cached expression
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	/**
+	 * @return The number of calls to {@link ExpressionCache#compile(String)} which had to compile the expression
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	/**
+	 * @return The number of entries removed to keep the cache within its maximum size
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	
+	/**
+	 * @return The number of expressions currently cached
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Removes all cached expressions
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+	
+	private static class CacheEntry {
+		
+		private final CompiledExpression expression;
+		private final int version;
+		
+		public CacheEntry(CompiledExpression expression, int version) {
+			this.expression = expression;
+			this.version = version;
+		}
+		
+	}
+	
+	private class Segment extends LinkedHashMap<String, CacheEntry> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int capacity;
+		
+		public Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+			if (size() > capacity) {
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+		
+	}
+	
+}
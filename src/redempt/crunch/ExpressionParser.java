@@ -2,11 +2,17 @@ package redempt.crunch;
 
 import redempt.crunch.data.FastNumberParsing;
 import redempt.crunch.exceptions.ExpressionCompilationException;
-import redempt.crunch.functional.ArgumentList;
 import redempt.crunch.functional.ExpressionEnv;
 import redempt.crunch.functional.Function;
 import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.optimizer.CompileReport;
+import redempt.crunch.optimizer.LazyMemoizer;
+import redempt.crunch.optimizer.Optimizer;
 import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.DecimalLiteral;
+import redempt.crunch.token.IntegerLiteral;
+import redempt.crunch.token.LazyVariable;
 import redempt.crunch.token.LiteralValue;
 import redempt.crunch.token.Token;
 import redempt.crunch.token.TokenType;
@@ -14,16 +20,37 @@ import redempt.crunch.token.UnaryOperation;
 import redempt.crunch.token.UnaryOperator;
 import redempt.crunch.token.Value;
 
+import java.util.Arrays;
+
 public class ExpressionParser {
 
+    private static final double[] NO_VARIABLES = new double[0];
+    private static final Value[] NO_ARGUMENTS = new Value[0];
+
     private final String input;
     private final ExpressionEnv environment;
+    private final ParseContext context;
     private final CompiledExpression expression = new CompiledExpression();
 
+    private final int maxDepth;
+    private final int maxNodes;
+
     private int maxVarIndex;
     private int cursor = 0;
+    private boolean memoized;
+    private boolean folding = true;
+
+    private Frame[] frames = new Frame[8];
+    private int depth;
+    private int nesting;
+    private int nodes;
+    private int height;
 
     ExpressionParser(String input, ExpressionEnv env) {
+        this(input, env, null);
+    }
+
+    ExpressionParser(String input, ExpressionEnv env, ParseContext context) {
         if (input == null) {
             throw new ExpressionCompilationException(null, "Expression is null");
         }
@@ -31,8 +58,11 @@ public class ExpressionParser {
             throw new ExpressionCompilationException(null, "Environment is null");
         }
         maxVarIndex = env.getVariableCount() - 1;
+        maxDepth = env.getMaxDepth();
+        maxNodes = env.getMaxNodeCount();
         this.input = input;
         this.environment = env;
+        this.context = context;
     }
 
     public char peek() {
@@ -80,39 +110,193 @@ public class ExpressionParser {
         return true;
     }
 
+    /**
+     * Parses an expression without recursing. Constructs whose operands are still being parsed are kept on an explicit
+     * stack of frames, and each finished value is handed to the frame on top of the stack, which either continues
+     * parsing its next operand or completes and hands its own value to the frame below it.
+     */
     private Value parseExpression() {
+        beginExpression();
+        Value value = parseTerm();
+        while (true) {
+            Frame frame = frames[depth - 1];
+            switch (frame.kind) {
+                case Frame.EXPRESSION:
+                    if (frame.phase == Frame.TERMS) {
+                        if (addTerm(frame, value)) {
+                            value = parseTerm();
+                            continue;
+                        }
+                        value = finishTerms(frame);
+                        if (!isAtEnd() && peek() == '?') {
+                            advanceCursor();
+                            whitespace();
+                            countNode();
+                            enterNesting();
+                            frame.phase = Frame.IF_TRUE;
+                            frame.condition = value;
+                            frame.height = height;
+                            beginExpression();
+                            value = parseTerm();
+                            continue;
+                        }
+                        endExpression(frame);
+                        break;
+                    }
+                    if (frame.phase == Frame.IF_TRUE) {
+                        frame.ifTrue = value;
+                        frame.height = Math.max(frame.height, height);
+                        whitespace();
+                        expectChar(':');
+                        whitespace();
+                        frame.phase = Frame.IF_FALSE;
+                        beginExpression();
+                        value = parseTerm();
+                        continue;
+                    }
+                    nesting--;
+                    if (frame.condition.getType() == TokenType.LITERAL_VALUE) {
+                        value = frame.condition.getValue(NO_VARIABLES) == 1 ? frame.ifTrue : value;
+                    } else {
+                        value = new Conditional(frame.condition, frame.ifTrue, value);
+                    }
+                    height = Math.max(frame.height, height) + 1;
+                    endExpression(frame);
+                    break;
+                case Frame.UNARY: {
+                    nesting--;
+                    UnaryOperator operator = frame.operator;
+                    if (folding && operator.isPure() && value.getType() == TokenType.LITERAL_VALUE) {
+                        value = literal(operator.getOperation().applyAsDouble(value.getValue(NO_VARIABLES)));
+                        height = 1;
+                    } else {
+                        value = UnaryOperation.of(operator, value);
+                        height++;
+                    }
+                    break;
+                }
+                case Frame.FUNCTION:
+                    frame.arguments[frame.index++] = value;
+                    frame.height = Math.max(frame.height, height);
+                    whitespace();
+                    if (frame.index < frame.arguments.length) {
+                        expectChar(',');
+                        whitespace();
+                        beginExpression();
+                        value = parseTerm();
+                        continue;
+                    }
+                    expectChar(')');
+                    nesting--;
+                    value = FunctionCall.of(frame.function, frame.arguments);
+                    height = frame.height + 1;
+                    break;
+            }
+            frames[--depth].clear();
+            if (depth == 0) {
+                return value;
+            }
+        }
+    }
+
+    private Frame beginExpression() {
         if (isAtEnd()) {
             error("Expected expression");
         }
-        Value first = parseTerm();
-        if (isAtEnd() || peek() == ')' || peek() == ',') {
-            return first;
-        }
-        ShuntingYard tokens = new ShuntingYard();
-        tokens.addValue(first);
-        while (whitespace() && !isAtEnd() && peek() != ')' && peek() != ',') {
-            BinaryOperator token = environment.getBinaryOperators().getWith(this);
-            if (token == null) {
-                error("Expected binary operator");
-            }
-            tokens.addOperator(token);
-            whitespace();
-            tokens.addValue(parseTerm());
+        return pushFrame(Frame.EXPRESSION);
+    }
+
+    private void endExpression(Frame frame) {
+        if (frame.nested) {
+            expectChar(')');
+            nesting--;
         }
-        return tokens.finish();
     }
 
-    private Value parseNestedExpression() {
-        expectChar('(');
+    /**
+     * Adds a term to an expression, then reads the binary operator after it if there is one
+     * @return Whether there is another term to parse in the expression
+     */
+    private boolean addTerm(Frame frame, Value term) {
+        frame.height = Math.max(frame.height, height);
+        if (frame.yard == null) {
+            frame.first = term;
+        } else {
+            frame.yard.addValue(term);
+        }
         whitespace();
-        Value expression = parseExpression();
-        expectChar(')');
-        return expression;
+        if (isAtEnd() || isExpressionEnd()) {
+            return false;
+        }
+        BinaryOperator token = environment.getBinaryOperators().getWith(this);
+        if (token == null) {
+            error("Expected binary operator");
+        }
+        countNode();
+        if (frame.yard == null) {
+            frame.yard = context == null ? new ShuntingYard() : context.acquireYard();
+            frame.yard.setFolding(folding);
+            frame.yard.addValue(frame.first);
+        }
+        frame.yard.addOperator(token);
+        frame.operators++;
+        whitespace();
+        return true;
+    }
+
+    private Value finishTerms(Frame frame) {
+        if (frame.yard == null) {
+            height = frame.height;
+            return frame.first;
+        }
+        Value value = frame.yard.finish();
+        if (context != null) {
+            context.releaseYard();
+        }
+        // Each operator adds at most one level above the tallest term
+        height = frame.height + frame.operators;
+        return value;
+    }
+
+    private boolean isExpressionEnd() {
+        char c = peek();
+        return c == ')' || c == ',' || c == '?' || c == ':';
+    }
+
+    private Frame pushFrame(int kind) {
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        Frame frame = frames[depth];
+        if (frame == null) {
+            frame = new Frame();
+            frames[depth] = frame;
+        }
+        depth++;
+        frame.kind = kind;
+        frame.phase = Frame.TERMS;
+        frame.nested = false;
+        frame.operators = 0;
+        frame.height = 0;
+        frame.index = 0;
+        return frame;
+    }
+
+    private void enterNesting() {
+        if (++nesting > maxDepth) {
+            error("Expression is nested too deeply - the maximum depth is " + maxDepth);
+        }
+    }
+
+    private void countNode() {
+        if (++nodes > maxNodes) {
+            error("Expression is too large - the maximum node count is " + maxNodes);
+        }
     }
 
     private Value parseAnonymousVariable() {
         expectChar('$');
-        double value = parseLiteral().getValue(new double[0]);
+        double value = parseNumber(false);
         if (value % 1 != 0) {
             error("Decimal variable indices are not allowed");
         }
@@ -121,43 +305,142 @@ public class ExpressionParser {
         }
         int index = (int) value - 1;
         maxVarIndex = Math.max(index, maxVarIndex);
-        return new Variable(index);
+        return context == null ? new Variable(index) : context.variable(index);
     }
 
+    /**
+     * Parses a term. Terms which begin a nested expression, like parentheses, unary operators and function calls, push
+     * a frame and continue with the first term of the nested expression, so the term returned is always a leaf.
+     */
     private Value parseTerm() {
-        switch (peek()) {
-            case '0':
-            case '1':
-            case '2':
-            case '3':
-            case '4':
-            case '5':
-            case '6':
-            case '7':
-            case '8':
-            case '9':
-            case '.':
-                return parseLiteral();
-            case '(':
-                return parseNestedExpression();
-            case '$':
-                return parseAnonymousVariable();
-            default:
-                break; // Ignore
-        }
-
-        Token leadingOperator = environment.getLeadingOperators().getWith(this);
-        if (leadingOperator != null) {
-            return parseLeadingOperation(leadingOperator);
-        }
-        Value term = environment.getValues().getWith(this);
-        if (term == null) {
-            error("Expected value");
-        }
-        return term;
+        while (true) {
+            if (isAtEnd()) {
+                error("Expected value");
+            }
+            switch (peek()) {
+                case '0':
+                case '1':
+                case '2':
+                case '3':
+                case '4':
+                case '5':
+                case '6':
+                case '7':
+                case '8':
+                case '9':
+                case '.':
+                    countNode();
+                    height = 1;
+                    return parseLiteral();
+                case '(':
+                    advanceCursor();
+                    whitespace();
+                    enterNesting();
+                    beginExpression().nested = true;
+                    continue;
+                case '$':
+                    countNode();
+                    height = 1;
+                    return parseAnonymousVariable();
+                default:
+                    break; // Ignore
+            }
+
+            Token leadingOperator = environment.getLeadingOperators().getWith(this);
+            if (leadingOperator != null) {
+                countNode();
+                whitespace();
+                switch (leadingOperator.getType()) {
+                    case UNARY_OPERATOR:
+                        if (!folding && leadingOperator == UnaryOperator.NEGATE) {
+                            // Negative integer literals are parsed whole, so that the most negative long can be written
+                            LiteralValue integer = parseInteger(true);
+                            if (integer != null) {
+                                height = 1;
+                                return integer;
+                            }
+                        }
+                        enterNesting();
+                        pushFrame(Frame.UNARY).operator = (UnaryOperator) leadingOperator;
+                        continue;
+                    case FUNCTION: {
+                        Function function = (Function) leadingOperator;
+                        expectChar('(');
+                        whitespace();
+                        if (function.getArgCount() == 0) {
+                            expectChar(')');
+                            height = 1;
+                            return FunctionCall.of(function, NO_ARGUMENTS);
+                        }
+                        enterNesting();
+                        Frame frame = pushFrame(Frame.FUNCTION);
+                        frame.function = function;
+                        frame.arguments = new Value[function.getArgCount()];
+                        beginExpression();
+                        continue;
+                    }
+                    default:
+                        error("Expected leading operation");
+                }
+            }
+            Value term = environment.getValues().getWith(this);
+            if (term == null) {
+                error("Expected value");
+            }
+            if (term.getType() == TokenType.LAZY_VARIABLE && ((LazyVariable) term).isMemoized()) {
+                memoized = true;
+            }
+            countNode();
+            height = 1;
+            return term;
+        }
     }
 
     private LiteralValue parseLiteral() {
+        if (!folding) {
+            LiteralValue integer = parseInteger(false);
+            if (integer != null) {
+                return integer;
+            }
+            // Decimals keep their text too, since rounding them to a double first can change the nearest float
+            int start = cursor;
+            double value = parseNumber(true);
+            return new DecimalLiteral(value, input.substring(start, cursor));
+        }
+        return literal(parseNumber(true));
+    }
+
+    /**
+     * Parses a literal with no decimal point or exponent as an exact long, since arithmetic other than double
+     * precision can represent integers which doubles can't.
+     * @param negative Whether the literal follows a negation
+     * @return The literal, or null if the number at the cursor is not an integer literal
+     */
+    private LiteralValue parseInteger(boolean negative) {
+        int start = cursor;
+        int end = start;
+        int length = input.length();
+        while (end < length && Character.isDigit(input.charAt(end))) {
+            end++;
+        }
+        if (end == start || (end < length && input.charAt(end) == '.') || exponentEnd(end) != end) {
+            return null;
+        }
+        String digits = input.substring(start, end);
+        try {
+            long integer = Long.parseLong(negative ? "-" + digits : digits);
+            cursor = end;
+            return new IntegerLiteral(integer);
+        } catch (NumberFormatException e) {
+            error("Integer literal out of range");
+            return null;
+        }
+    }
+
+    private double parseNumber(boolean allowExponent) {
+        if (isAtEnd()) {
+            error("Expected number");
+        }
         int start = cursor;
         char c;
         while (Character.isDigit(c = peek()) || c == '.') {
@@ -166,58 +449,152 @@ public class ExpressionParser {
                 break;
             }
         }
-        return new LiteralValue(FastNumberParsing.parseDouble(input, start, cursor));
-    }
-
-    private Value parseLeadingOperation(Token token) {
-        whitespace();
-        switch (token.getType()) {
-            case UNARY_OPERATOR:
-                UnaryOperator op = (UnaryOperator) token;
-                Value term = parseTerm();
-                if (op.isPure() && term.getType() == TokenType.LITERAL_VALUE) {
-                    return new LiteralValue(op.getOperation().applyAsDouble(term.getValue(new double[0])));
-                }
-                return new UnaryOperation(op, term);
-            case FUNCTION:
-                Function function = (Function) token;
-                ArgumentList args = parseArgumentList(function.getArgCount());
-                return new FunctionCall(function, args.getArguments());
+        if (allowExponent) {
+            cursor = exponentEnd(cursor);
+        }
+        try {
+            return FastNumberParsing.parseDouble(input, start, cursor);
+        } catch (NumberFormatException e) {
+            cursor = start;
+            error("Invalid number");
+            return 0;
         }
-        error("Expected leading operation");
-        return null;
     }
 
-    private ArgumentList parseArgumentList(int args) {
-        expectChar('(');
-        whitespace();
-        Value[] values = new Value[args];
-        if (args == 0) {
-            expectChar(')');
-            return new ArgumentList(new Value[0]);
+    /**
+     * Finds the end of an integer exponent like {@code E-3} directly following a number, so that it can be parsed as
+     * part of the literal. Anything else after the E, like a variable or a decimal, is left to the scientific notation
+     * operator.
+     * @param index The index just after the digits of the number
+     * @return The index after the exponent, or the given index if there is no literal exponent
+     */
+    private int exponentEnd(int index) {
+        int length = input.length();
+        if (index >= length || input.charAt(index) != 'E') {
+            return index;
         }
-        values[0] = parseExpression();
-        whitespace();
-        for (int i = 1; i < args; i++) {
-            expectChar(',');
-            whitespace();
-            values[i] = parseExpression();
-            whitespace();
+        int i = index + 1;
+        if (i < length && (input.charAt(i) == '-' || input.charAt(i) == '+')) {
+            i++;
         }
+        int digits = i;
+        while (i < length && input.charAt(i) >= '0' && input.charAt(i) <= '9') {
+            i++;
+        }
+        if (i == digits || (i < length && input.charAt(i) == '.')) {
+            return index;
+        }
+        return i;
+    }
 
-        expectChar(')');
-        return new ArgumentList(values);
+    private LiteralValue literal(double value) {
+        return context == null ? new LiteralValue(value) : context.literal(value);
     }
 
-    public CompiledExpression parse() {
+    /**
+     * Parses the input into a Value tree without running any optimizations
+     * @return The parsed tree
+     */
+    Value parseValue() {
+        if (context != null) {
+            context.reset();
+        }
+        depth = 0;
+        nesting = 0;
+        nodes = 0;
         whitespace();
         Value value = parseExpression();
         whitespace();
         if (!isAtEnd()) {
             error("Dangling term");
         }
+        return value;
+    }
+
+    /**
+     * @return The number of variables used by the input parsed so far, which is at least the environment's variable count
+     */
+    int getVariableCount() {
+        return maxVarIndex + 1;
+    }
+
+    /**
+     * @return An upper bound on the height of the last tree parsed
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Parses the input for evaluation with arithmetic other than double precision. Operations on literals are kept in
+     * the tree rather than being computed with double arithmetic, and the optimizations enabled on the environment are
+     * not run, since they assume double arithmetic too.
+     * @return The parsed tree
+     */
+    Value parseUnfolded() {
+        folding = false;
+        Value value = parseValue();
+        if (memoized) {
+            value = LazyMemoizer.memoize(value, maxVarIndex + 1);
+        }
+        return value;
+    }
+
+    public CompiledExpression parse() {
+        Value value = parseValue();
+        CompileReport report = CompileReport.EMPTY;
+        if (!environment.getOptimizations().isEmpty()) {
+            report = new CompileReport();
+            value = Optimizer.optimize(value, maxVarIndex + 1, environment.getOptimizations(), report);
+        }
+        if (memoized) {
+            value = LazyMemoizer.memoize(value, maxVarIndex + 1);
+        }
         expression.initialize(value, maxVarIndex + 1);
+        expression.setCompileReport(report);
+        if (height > CompiledExpression.MAX_RECURSIVE_HEIGHT) {
+            expression.flatten();
+        }
         return expression;
     }
 
+    /**
+     * A construct whose parsing is suspended while one of its operands is parsed
+     */
+    private static final class Frame {
+
+        static final int EXPRESSION = 0;
+        static final int UNARY = 1;
+        static final int FUNCTION = 2;
+
+        static final int TERMS = 0;
+        static final int IF_TRUE = 1;
+        static final int IF_FALSE = 2;
+
+        int kind;
+        int phase;
+        boolean nested;
+        int height;
+        ShuntingYard yard;
+        Value first;
+        int operators;
+        Value condition;
+        Value ifTrue;
+        UnaryOperator operator;
+        Function function;
+        Value[] arguments;
+        int index;
+
+        void clear() {
+            yard = null;
+            first = null;
+            condition = null;
+            ifTrue = null;
+            operator = null;
+            function = null;
+            arguments = null;
+        }
+
+    }
+
 }
\ No newline at end of file
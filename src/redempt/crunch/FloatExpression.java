@@ -0,0 +1,103 @@
+package redempt.crunch;
+
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.linear.FloatProgram;
+import redempt.crunch.linear.LinearCompiler;
+import redempt.crunch.token.Value;
+
+/**
+ * An expression compiled with {@link Crunch#compileFloatExpression(String, ExpressionEnv)} to be evaluated with float
+ * arithmetic rather than double. Every operation, including operations on literals, is rounded to float as it is
+ * computed, so results match Java code doing the same arithmetic on floats. Functions and lazy variables are called
+ * with double arguments and their results are narrowed to float.
+ * <p>
+ * Evaluation reuses the float operand stack and registers of the underlying {@link FloatProgram}, so the threading
+ * rules of {@link FloatProgram} apply.
+ * @author Redempt
+ */
+public class FloatExpression {
+	
+	static FloatExpression compile(String expression, ExpressionEnv env) {
+		ExpressionParser parser = new ExpressionParser(expression, env);
+		Value value = parser.parseUnfolded();
+		return new FloatExpression(LinearCompiler.compileFloat(value), Math.max(env.getVariableCount(), parser.getVariableCount()));
+	}
+	
+	private final FloatProgram program;
+	private final int variableCount;
+	
+	private FloatExpression(FloatProgram program, int variableCount) {
+		this.program = program;
+		this.variableCount = variableCount;
+	}
+	
+	/**
+	 * Evaluates this FloatExpression and returns its value
+	 * @param values The values for variables used in this expression, in order starting with 1
+	 * @return The resulting value
+	 */
+	public float evaluate(float... values) {
+		if (values.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values - expected " + variableCount + ", got " + values.length);
+		}
+		return program.evaluate(values);
+	}
+	
+	/**
+	 * Evaluates this FloatExpression for a range of rows of columnar data, sampling lazy variables for every row.
+	 * Expressions without conditionals, boolean operators, functions or lazy variables are evaluated a block of rows
+	 * at a time, applying each operation to the whole block in a tight loop.
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of variable i + 1 for that row
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 */
+	public void evaluateBatch(float[][] columns, float[] out, int from, int to) {
+		if (from < 0 || from > to || to > out.length) {
+			throw new IllegalArgumentException("Invalid row range " + from + " to " + to + " for output of length " + out.length);
+		}
+		if (columns.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable columns - expected " + variableCount + ", got " + columns.length);
+		}
+		for (int i = 0; i < variableCount; i++) {
+			if (columns[i].length < to) {
+				throw new ExpressionEvaluationException("Variable column " + (i + 1) + " has only " + columns[i].length + " rows");
+			}
+		}
+		program.evaluateBatch(columns, out, from, to);
+	}
+	
+	/**
+	 * Gets the highest index of variables used in this expression. Any call to {@link FloatExpression#evaluate(float...)}
+	 * must pass at least this many values.
+	 * @return The number of variables used in this expression
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+	
+	/**
+	 * Gets the internal Value representation of this expression. Operations on literals are not folded into
+	 * single literals in it, since that would compute them with double arithmetic.
+	 * This is essentially reflection into the expression. Proceed at your own risk.
+	 * @return The Value of this expression
+	 */
+	public Value getValue() {
+		return program.getSource();
+	}
+	
+	/**
+	 * Creates a copy of this FloatExpression which can be evaluated on another thread at the same time as this one
+	 * @return A clone of this FloatExpression
+	 */
+	public FloatExpression clone() {
+		return new FloatExpression(program.getClone(), variableCount);
+	}
+	
+	@Override
+	public String toString() {
+		return program.toString();
+	}
+	
+}
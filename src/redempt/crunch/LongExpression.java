@@ -0,0 +1,113 @@
+package redempt.crunch;
+
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.linear.LongProgram;
+import redempt.crunch.linear.LinearCompiler;
+import redempt.crunch.token.Value;
+
+/**
+ * An expression compiled with {@link Crunch#compileLongExpression(String, ExpressionEnv)} to be evaluated with long
+ * arithmetic rather than double, so that integers beyond 2^53 are exact. Addition, subtraction, multiplication,
+ * negation, absolute values and powers fail on overflow instead of wrapping or losing precision. Division truncates
+ * toward zero and {@code %} takes the sign of the dividend, like Java's operators, and a negative power is the
+ * reciprocal truncated toward zero. Dividing or taking a modulus by zero fails. Comparisons and boolean operators
+ * give 1 or 0, and round, floor and ceil leave values unchanged. Other math operations, functions and lazy variables
+ * are computed with doubles and truncated toward zero like a cast to long.
+ * <p>
+ * Literals must be integers. Literals written without a decimal point or exponent are exact across the whole range of
+ * long, while others are parsed as doubles and must be within 2^53. Constants which are not integers, like
+ * {@code pi}, cannot be used.
+ * <p>
+ * Evaluation reuses the long operand stack and registers of the underlying {@link LongProgram}; see
+ * {@link LongProgram} before sharing one between threads.
+ * @author Redempt
+ */
+public class LongExpression {
+	
+	static LongExpression compile(String expression, ExpressionEnv env) {
+		ExpressionParser parser = new ExpressionParser(expression, env);
+		Value value = parser.parseUnfolded();
+		return new LongExpression(LinearCompiler.compileLong(value), Math.max(env.getVariableCount(), parser.getVariableCount()));
+	}
+	
+	private final LongProgram program;
+	private final int variableCount;
+	
+	private LongExpression(LongProgram program, int variableCount) {
+		this.program = program;
+		this.variableCount = variableCount;
+	}
+	
+	/**
+	 * Evaluates this LongExpression and returns its value
+	 * @param values The values for variables used in this expression, in order starting with 1
+	 * @return The resulting value
+	 * @throws ExpressionEvaluationException If an operation overflows, or divides or takes a modulus by zero
+	 */
+	public long evaluate(long... values) {
+		if (values.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values - expected " + variableCount + ", got " + values.length);
+		}
+		return program.evaluate(values);
+	}
+	
+	/**
+	 * Evaluates this LongExpression for a range of rows of columnar data, sampling lazy variables for every row.
+	 * Expressions without conditionals, boolean operators, functions or lazy variables are evaluated a block of rows
+	 * at a time, applying each operation to the whole block in a tight loop.
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of variable i + 1 for that row
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 * @throws ExpressionEvaluationException If an operation overflows, or divides or takes a modulus by zero, in which
+	 *                                       case some of the rows may have been written
+	 */
+	public void evaluateBatch(long[][] columns, long[] out, int from, int to) {
+		if (from < 0 || from > to || to > out.length) {
+			throw new IllegalArgumentException("Invalid row range " + from + " to " + to + " for output of length " + out.length);
+		}
+		if (columns.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable columns - expected " + variableCount + ", got " + columns.length);
+		}
+		for (int i = 0; i < variableCount; i++) {
+			if (columns[i].length < to) {
+				throw new ExpressionEvaluationException("Variable column " + (i + 1) + " has only " + columns[i].length + " rows");
+			}
+		}
+		program.evaluateBatch(columns, out, from, to);
+	}
+	
+	/**
+	 * Gets the highest index of variables used in this expression. Any call to {@link LongExpression#evaluate(long...)}
+	 * must pass at least this many values.
+	 * @return The number of variables used in this expression
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+	
+	/**
+	 * Gets the internal Value representation of this expression. Operations on literals are not folded into
+	 * single literals in it, since that would compute them with double arithmetic.
+	 * This is essentially reflection into the expression. Proceed at your own risk.
+	 * @return The Value of this expression
+	 */
+	public Value getValue() {
+		return program.getSource();
+	}
+	
+	/**
+	 * Creates a copy of this LongExpression which can be evaluated on another thread at the same time as this one
+	 * @return A clone of this LongExpression
+	 */
+	public LongExpression clone() {
+		return new LongExpression(program.getClone(), variableCount);
+	}
+	
+	@Override
+	public String toString() {
+		return program.toString();
+	}
+	
+}
@@ -0,0 +1,83 @@
+package redempt.crunch;
+
+import redempt.crunch.token.LiteralValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scratch state reused by the parsers of one worker in a bulk compilation, along with the leaf nodes interned across
+ * the whole batch. Literals and variables are immutable, so expressions can share a single instance of each.
+ * @author Redempt
+ */
+final class ParseContext {
+	
+	private final Map<Double, LiteralValue> literals;
+	private final Map<Integer, Variable> variables;
+	private final List<ShuntingYard> yards = new ArrayList<>();
+	private int depth;
+	
+	/**
+	 * Creates a ParseContext
+	 * @param literals The map to intern literals in, which may be shared with other contexts
+	 * @param variables The map to intern variables in, which may be shared with other contexts
+	 */
+	ParseContext(Map<Double, LiteralValue> literals, Map<Integer, Variable> variables) {
+		this.literals = literals;
+		this.variables = variables;
+	}
+	
+	/**
+	 * Prepares this context for parsing another expression, discarding state left behind by a failed parse
+	 */
+	void reset() {
+		depth = 0;
+	}
+	
+	/**
+	 * @return An empty ShuntingYard for the next level of nesting
+	 */
+	ShuntingYard acquireYard() {
+		if (depth == yards.size()) {
+			yards.add(new ShuntingYard(this));
+		}
+		ShuntingYard yard = yards.get(depth++);
+		yard.reset();
+		return yard;
+	}
+	
+	/**
+	 * Returns the ShuntingYard for the innermost level of nesting once it has been finished
+	 */
+	void releaseYard() {
+		depth--;
+	}
+	
+	LiteralValue literal(double value) {
+		Double key = value;
+		LiteralValue literal = literals.get(key);
+		if (literal == null) {
+			literal = new LiteralValue(value);
+			LiteralValue existing = literals.putIfAbsent(key, literal);
+			if (existing != null) {
+				literal = existing;
+			}
+		}
+		return literal;
+	}
+	
+	Variable variable(int index) {
+		Integer key = index;
+		Variable variable = variables.get(key);
+		if (variable == null) {
+			variable = new Variable(index);
+			Variable existing = variables.putIfAbsent(key, variable);
+			if (existing != null) {
+				variable = existing;
+			}
+		}
+		return variable;
+	}
+	
+}
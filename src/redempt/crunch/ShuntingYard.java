@@ -7,8 +7,35 @@ import java.util.Deque;
 
 public class ShuntingYard {
 
+    private static final double[] NO_VARIABLES = new double[0];
+
     private final Deque<BinaryOperator> operators = new ArrayDeque<>();
     private final Deque<Value> stack = new ArrayDeque<>();
+    private final ParseContext context;
+    private boolean folding = true;
+
+    public ShuntingYard() {
+        this(null);
+    }
+
+    ShuntingYard(ParseContext context) {
+        this.context = context;
+    }
+
+    void reset() {
+        operators.clear();
+        stack.clear();
+        folding = true;
+    }
+
+    /**
+     * Sets whether operations on two literals are computed while parsing, which is only correct when the expression
+     * will be evaluated with double arithmetic
+     * @param folding Whether to fold operations on literals
+     */
+    void setFolding(boolean folding) {
+        this.folding = folding;
+    }
 
     public void addOperator(BinaryOperator operator) {
         while (!operators.isEmpty() && operator.getPriority() <= operators.getLast().getPriority()) {
@@ -25,10 +52,13 @@ public class ShuntingYard {
         BinaryOperator op = operators.removeLast();
         Value right = stack.removeLast();
         Value left = stack.removeLast();
-        if (right.getType() == TokenType.LITERAL_VALUE && left.getType() == TokenType.LITERAL_VALUE) {
-            stack.add(new LiteralValue(op.getOperation().applyAsDouble(left.getValue(new double[0]), right.getValue(new double[0]))));
+        if (folding && right.getType() == TokenType.LITERAL_VALUE && left.getType() == TokenType.LITERAL_VALUE) {
+            double value = op.getOperation().applyAsDouble(left.getValue(NO_VARIABLES), right.getValue(NO_VARIABLES));
+            stack.add(context == null ? new LiteralValue(value) : context.literal(value));
+        } else if (op.isLogical()) {
+            stack.add(new LogicalOperation(op, left, right));
         } else {
-            stack.add(new BinaryOperation(op, left, right));
+            stack.add(BinaryOperation.of(op, left, right));
         }
     }
 
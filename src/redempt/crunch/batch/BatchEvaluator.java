@@ -0,0 +1,601 @@
+package redempt.crunch.batch;
+
+import redempt.crunch.Variable;
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.linear.LinearProgram;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.MemoizedVariable;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Evaluates a Value tree over many rows of columnar data at once. Instead of walking the tree once per row, each node
+ * is visited once per block of rows and processes the whole block in a tight loop over temporary arrays.
+ * A {@link LinearProgram} is instead evaluated one row at a time, so that trees too tall to walk recursively can still
+ * be evaluated in batches. Instances hold scratch buffers and are not thread-safe.
+ * @author Redempt
+ */
+public class BatchEvaluator {
+	
+	/**
+	 * The number of rows processed by each pass over the tree
+	 */
+	public static final int BLOCK_SIZE = 256;
+	/**
+	 * The default number of rows below which parallel evaluation stays on the calling thread
+	 */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 16384;
+	
+	/**
+	 * Evaluates a Value for a range of rows, splitting the range into chunks which are evaluated in parallel.
+	 * Each chunk is evaluated with its own scratch buffers. When sampling per batch, each lazy variable is sampled the
+	 * first time any chunk needs it, and that sample is shared by every chunk.
+	 * @param value The Value to evaluate
+	 * @param variableCount The number of variables used by the Value
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of the variable with index i
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 * @param sampling How often lazy variables should be sampled
+	 * @param pool The pool to run chunks on
+	 * @param threshold The largest number of rows which will be evaluated as a single chunk
+	 */
+	public static void evaluateParallel(Value value, int variableCount, double[][] columns, double[] out, int from, int to,
+	                                    LazySampling sampling, ForkJoinPool pool, int threshold) {
+		if (threshold < 1) {
+			throw new IllegalArgumentException("Threshold must be positive");
+		}
+		// Lazy variables in branches no row takes are never sampled, just like in sequential evaluation
+		Map<Value, Double> samples = sampling == LazySampling.PER_BATCH ? new ConcurrentHashMap<>() : null;
+		if (to - from <= threshold) {
+			new BatchEvaluator(value, variableCount).evaluate(columns, out, from, to, sampling, samples);
+			return;
+		}
+		pool.invoke(new ChunkTask(value, variableCount, columns, out, from, to, sampling, samples, threshold));
+	}
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	private final Value value;
+	private final LinearProgram program;
+	private final int variableCount;
+	private final Deque<double[]> buffers = new ArrayDeque<>();
+	private Map<Value, Double> lazySamples;
+	private final Map<Integer, double[]> sharedBlocks = new HashMap<>();
+	private double[][] argumentArrays = new double[0][];
+	private double[] rowValues;
+	
+	private double[][] columns;
+	private LazySampling sampling;
+	private int start;
+	private int length;
+	private int[] selection;
+	
+	/**
+	 * Creates a BatchEvaluator
+	 * @param value The Value to evaluate
+	 * @param variableCount The number of variables used by the Value
+	 */
+	public BatchEvaluator(Value value, int variableCount) {
+		this.value = value;
+		this.program = value instanceof LinearProgram ? (LinearProgram) value : null;
+		this.variableCount = variableCount;
+	}
+	
+	/**
+	 * Evaluates the Value for a range of rows
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of the variable with index i
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 * @param sampling How often lazy variables should be sampled
+	 */
+	public void evaluate(double[][] columns, double[] out, int from, int to, LazySampling sampling) {
+		evaluate(columns, out, from, to, sampling, null);
+	}
+	
+	private void evaluate(double[][] columns, double[] out, int from, int to, LazySampling sampling, Map<Value, Double> samples) {
+		if (from < 0 || from > to || to > out.length) {
+			throw new IllegalArgumentException("Invalid row range " + from + " to " + to + " for output of length " + out.length);
+		}
+		if (columns.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable columns - expected " + variableCount + ", got " + columns.length);
+		}
+		for (int i = 0; i < variableCount; i++) {
+			if (columns[i].length < to) {
+				throw new ExpressionEvaluationException("Variable column " + (i + 1) + " has only " + columns[i].length + " rows");
+			}
+		}
+		this.columns = columns;
+		this.sampling = sampling;
+		lazySamples = samples == null ? new IdentityHashMap<>() : samples;
+		// Programs are evaluated one row at a time, since their trees may be too tall to walk recursively
+		LinearProgram program = this.program != null && sampling == LazySampling.PER_BATCH ? this.program.sampleLazyVariables(lazySamples) : this.program;
+		try {
+			for (start = from; start < to; start += BLOCK_SIZE) {
+				length = Math.min(BLOCK_SIZE, to - start);
+				double[] result = program == null ? evaluate(value) : evaluateRows(program);
+				System.arraycopy(result, 0, out, start, length);
+				release(result);
+			}
+		} finally {
+			this.columns = null;
+		}
+	}
+	
+	private double[] evaluate(Value value) {
+		switch (value.getType()) {
+			case LITERAL_VALUE: {
+				double[] buffer = acquire();
+				Arrays.fill(buffer, 0, length, value.getValue(NO_VARIABLES));
+				return buffer;
+			}
+			case VARIABLE:
+				return gather(columns[((Variable) value).getIndex()], start);
+			case BINARY_OPERATION:
+				return evaluateBinaryOperation((BinaryOperation) value);
+			case UNARY_OPERATION:
+				return evaluateUnaryOperation((UnaryOperation) value);
+			case FUNCTION_CALL:
+				return evaluateFunctionCall((FunctionCall) value);
+			case LAZY_VARIABLE:
+				return evaluateLazyVariable(value);
+			case LOGICAL_OPERATION:
+				return evaluateLogicalOperation((LogicalOperation) value);
+			case CONDITIONAL:
+				return evaluateConditional((Conditional) value);
+			case INTEGER_POWER:
+				return evaluateIntegerPower((IntegerPower) value);
+			case SHARED_SCOPE:
+				return evaluateSharedScope((SharedScope) value);
+			case SHARED_VALUE:
+				return evaluateSharedValue((SharedValue) value);
+			case MEMOIZED_VARIABLE:
+				return evaluateMemoizedVariable((MemoizedVariable) value);
+			default:
+				return evaluateRows(value);
+		}
+	}
+	
+	private double[] evaluateBinaryOperation(BinaryOperation operation) {
+		BinaryOperator operator = operation.getOperator();
+		Value[] operands = operation.getValues();
+		if (operands[1].getType() == TokenType.LITERAL_VALUE) {
+			double[] first = evaluate(operands[0]);
+			applyScalarRight(operator, first, operands[1].getValue(NO_VARIABLES));
+			return first;
+		}
+		if (operands[0].getType() == TokenType.LITERAL_VALUE) {
+			double[] second = evaluate(operands[1]);
+			applyScalarLeft(operator, operands[0].getValue(NO_VARIABLES), second);
+			return second;
+		}
+		double[] first = evaluate(operands[0]);
+		double[] second = evaluate(operands[1]);
+		apply(operator, first, second);
+		release(second);
+		return first;
+	}
+	
+	private void apply(BinaryOperator operator, double[] first, double[] second) {
+		int length = this.length;
+		switch (operator) {
+			case ADD:
+				for (int i = 0; i < length; i++) {
+					first[i] += second[i];
+				}
+				return;
+			case SUBTRACT:
+				for (int i = 0; i < length; i++) {
+					first[i] -= second[i];
+				}
+				return;
+			case MULTIPLY:
+				for (int i = 0; i < length; i++) {
+					first[i] *= second[i];
+				}
+				return;
+			case DIVIDE:
+				for (int i = 0; i < length; i++) {
+					first[i] /= second[i];
+				}
+				return;
+			case MODULUS:
+				for (int i = 0; i < length; i++) {
+					first[i] %= second[i];
+				}
+				return;
+			case EXPONENT:
+				for (int i = 0; i < length; i++) {
+					first[i] = Math.pow(first[i], second[i]);
+				}
+				return;
+			default:
+				DoubleBinaryOperator operation = operator.getOperation();
+				for (int i = 0; i < length; i++) {
+					first[i] = operation.applyAsDouble(first[i], second[i]);
+				}
+		}
+	}
+	
+	private void applyScalarRight(BinaryOperator operator, double[] first, double second) {
+		int length = this.length;
+		switch (operator) {
+			case ADD:
+				for (int i = 0; i < length; i++) {
+					first[i] += second;
+				}
+				return;
+			case SUBTRACT:
+				for (int i = 0; i < length; i++) {
+					first[i] -= second;
+				}
+				return;
+			case MULTIPLY:
+				for (int i = 0; i < length; i++) {
+					first[i] *= second;
+				}
+				return;
+			case DIVIDE:
+				for (int i = 0; i < length; i++) {
+					first[i] /= second;
+				}
+				return;
+			case EXPONENT:
+				for (int i = 0; i < length; i++) {
+					first[i] = Math.pow(first[i], second);
+				}
+				return;
+			default:
+				DoubleBinaryOperator operation = operator.getOperation();
+				for (int i = 0; i < length; i++) {
+					first[i] = operation.applyAsDouble(first[i], second);
+				}
+		}
+	}
+	
+	private void applyScalarLeft(BinaryOperator operator, double first, double[] second) {
+		int length = this.length;
+		switch (operator) {
+			case ADD:
+				for (int i = 0; i < length; i++) {
+					second[i] = first + second[i];
+				}
+				return;
+			case SUBTRACT:
+				for (int i = 0; i < length; i++) {
+					second[i] = first - second[i];
+				}
+				return;
+			case MULTIPLY:
+				for (int i = 0; i < length; i++) {
+					second[i] = first * second[i];
+				}
+				return;
+			case DIVIDE:
+				for (int i = 0; i < length; i++) {
+					second[i] = first / second[i];
+				}
+				return;
+			default:
+				DoubleBinaryOperator operation = operator.getOperation();
+				for (int i = 0; i < length; i++) {
+					second[i] = operation.applyAsDouble(first, second[i]);
+				}
+		}
+	}
+	
+	private double[] evaluateUnaryOperation(UnaryOperation operation) {
+		UnaryOperator operator = operation.getOperator();
+		double[] values = evaluate(operation.getChild());
+		int length = this.length;
+		switch (operator) {
+			case NEGATE:
+				for (int i = 0; i < length; i++) {
+					values[i] = -values[i];
+				}
+				return values;
+			case ABS:
+				for (int i = 0; i < length; i++) {
+					values[i] = Math.abs(values[i]);
+				}
+				return values;
+			case SQRT:
+				for (int i = 0; i < length; i++) {
+					values[i] = Math.sqrt(values[i]);
+				}
+				return values;
+			default:
+				DoubleUnaryOperator unary = operator.getOperation();
+				for (int i = 0; i < length; i++) {
+					values[i] = unary.applyAsDouble(values[i]);
+				}
+				return values;
+		}
+	}
+	
+	private double[] evaluateFunctionCall(FunctionCall call) {
+		Function function = call.getFunction();
+		Value[] arguments = call.getArguments();
+		double[][] blocks = new double[arguments.length][];
+		for (int i = 0; i < arguments.length; i++) {
+			blocks[i] = evaluate(arguments[i]);
+		}
+		double[] numbers = argumentArray(arguments.length);
+		double[] result = arguments.length == 0 ? acquire() : blocks[0];
+		for (int row = 0; row < length; row++) {
+			for (int i = 0; i < blocks.length; i++) {
+				numbers[i] = blocks[i][row];
+			}
+			result[row] = function.call(numbers);
+		}
+		for (int i = 1; i < blocks.length; i++) {
+			release(blocks[i]);
+		}
+		return result;
+	}
+	
+	private double[] evaluateSharedScope(SharedScope scope) {
+		Value[] definitions = scope.getDefinitions();
+		for (int i = 0; i < definitions.length; i++) {
+			sharedBlocks.put(scope.getVariableCount() + i, evaluate(definitions[i]));
+		}
+		int firstMemoized = scope.getVariableCount() + definitions.length;
+		for (int i = 0; i < scope.getMemoizedCount() * 2; i += 2) {
+			// The slot after each memoized value holds a block of flags marking which rows have been sampled
+			double[] flags = acquire();
+			Arrays.fill(flags, 0, length, 0);
+			sharedBlocks.put(firstMemoized + i, acquire());
+			sharedBlocks.put(firstMemoized + i + 1, flags);
+		}
+		double[] result = evaluate(scope.getChild());
+		for (int i = 0; i < definitions.length + scope.getMemoizedCount() * 2; i++) {
+			release(sharedBlocks.remove(scope.getVariableCount() + i));
+		}
+		return result;
+	}
+	
+	private double[] evaluateSharedValue(SharedValue value) {
+		double[] shared = sharedBlocks.get(value.getIndex());
+		return shared == null ? gather(columns[value.getIndex()], start) : gather(shared, 0);
+	}
+	
+	private double[] evaluateMemoizedVariable(MemoizedVariable value) {
+		double[] values = sharedBlocks.get(value.getIndex());
+		if (values == null || sampling == LazySampling.PER_BATCH) {
+			return evaluateLazyVariable(value.getVariable());
+		}
+		double[] flags = sharedBlocks.get(value.getIndex() + 1);
+		double[] buffer = acquire();
+		for (int i = 0; i < length; i++) {
+			int row = selection == null ? i : selection[i];
+			if (flags[row] == 0) {
+				values[row] = value.getVariable().getValue(NO_VARIABLES);
+				flags[row] = 1;
+			}
+			buffer[i] = values[row];
+		}
+		return buffer;
+	}
+	
+	private double[] evaluateIntegerPower(IntegerPower power) {
+		double[] values = evaluate(power.getBase());
+		int exponent = power.getExponent();
+		if (exponent == 2) {
+			for (int i = 0; i < length; i++) {
+				values[i] *= values[i];
+			}
+			return values;
+		}
+		for (int i = 0; i < length; i++) {
+			values[i] = IntegerPower.pow(values[i], exponent);
+		}
+		return values;
+	}
+	
+	private double[] evaluateLogicalOperation(LogicalOperation operation) {
+		Value[] operands = operation.getValues();
+		double[] result = evaluate(operands[0]);
+		// Rows where the first operand does not decide the result, which are the only rows the second is evaluated for
+		int[] undecided = new int[length];
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			if ((result[i] == 1) == operation.isAnd()) {
+				undecided[count++] = i;
+			} else {
+				result[i] = operation.isAnd() ? 0 : 1;
+			}
+		}
+		if (count == 0) {
+			return result;
+		}
+		double[] second = evaluateSelected(operands[1], undecided, count);
+		for (int i = 0; i < count; i++) {
+			result[undecided[i]] = second[i] == 1 ? 1 : 0;
+		}
+		release(second);
+		return result;
+	}
+	
+	private double[] evaluateConditional(Conditional conditional) {
+		double[] condition = evaluate(conditional.getCondition());
+		int[] trueRows = new int[length];
+		int[] falseRows = new int[length];
+		int trueCount = 0;
+		int falseCount = 0;
+		for (int i = 0; i < length; i++) {
+			if (condition[i] == 1) {
+				trueRows[trueCount++] = i;
+			} else {
+				falseRows[falseCount++] = i;
+			}
+		}
+		if (falseCount == 0 || trueCount == 0) {
+			release(condition);
+			return evaluate(falseCount == 0 ? conditional.getIfTrue() : conditional.getIfFalse());
+		}
+		double[] ifTrue = evaluateSelected(conditional.getIfTrue(), trueRows, trueCount);
+		double[] ifFalse = evaluateSelected(conditional.getIfFalse(), falseRows, falseCount);
+		for (int i = 0; i < trueCount; i++) {
+			condition[trueRows[i]] = ifTrue[i];
+		}
+		for (int i = 0; i < falseCount; i++) {
+			condition[falseRows[i]] = ifFalse[i];
+		}
+		release(ifTrue);
+		release(ifFalse);
+		return condition;
+	}
+	
+	/**
+	 * Evaluates a Value for only some of the rows in the current block, packed into the start of the returned buffer
+	 * @param value The Value to evaluate
+	 * @param rows The positions of the rows to evaluate within the current block, in ascending order
+	 * @param count The number of rows to evaluate
+	 */
+	private double[] evaluateSelected(Value value, int[] rows, int count) {
+		int[] previousSelection = selection;
+		int previousLength = length;
+		int[] offsets = new int[count];
+		for (int i = 0; i < count; i++) {
+			offsets[i] = previousSelection == null ? rows[i] : previousSelection[rows[i]];
+		}
+		selection = offsets;
+		length = count;
+		try {
+			return evaluate(value);
+		} finally {
+			selection = previousSelection;
+			length = previousLength;
+		}
+	}
+	
+	/**
+	 * Copies the values of the rows being evaluated into a new buffer
+	 * @param source The array to copy from
+	 * @param offset The index in the source of the first row of the current block
+	 */
+	private double[] gather(double[] source, int offset) {
+		double[] buffer = acquire();
+		if (selection == null) {
+			System.arraycopy(source, offset, buffer, 0, length);
+			return buffer;
+		}
+		for (int i = 0; i < length; i++) {
+			buffer[i] = source[offset + selection[i]];
+		}
+		return buffer;
+	}
+	
+	private double[] evaluateLazyVariable(Value value) {
+		double[] buffer = acquire();
+		if (sampling == LazySampling.PER_ROW) {
+			for (int i = 0; i < length; i++) {
+				buffer[i] = value.getValue(NO_VARIABLES);
+			}
+			return buffer;
+		}
+		Arrays.fill(buffer, 0, length, lazySamples.computeIfAbsent(value, v -> v.getValue(NO_VARIABLES)));
+		return buffer;
+	}
+	
+	/**
+	 * Evaluates a node this class has no block implementation for, one row at a time
+	 */
+	private double[] evaluateRows(Value value) {
+		double[] buffer = acquire();
+		if (rowValues == null) {
+			rowValues = new double[variableCount];
+		}
+		for (int i = 0; i < length; i++) {
+			int row = start + (selection == null ? i : selection[i]);
+			for (int variable = 0; variable < variableCount; variable++) {
+				rowValues[variable] = columns[variable][row];
+			}
+			buffer[i] = value.getValue(rowValues);
+		}
+		return buffer;
+	}
+	
+	private double[] argumentArray(int arity) {
+		if (arity >= argumentArrays.length) {
+			argumentArrays = Arrays.copyOf(argumentArrays, arity + 1);
+		}
+		if (argumentArrays[arity] == null) {
+			argumentArrays[arity] = new double[arity];
+		}
+		return argumentArrays[arity];
+	}
+	
+	private double[] acquire() {
+		double[] buffer = buffers.poll();
+		return buffer == null ? new double[BLOCK_SIZE] : buffer;
+	}
+	
+	private void release(double[] buffer) {
+		buffers.push(buffer);
+	}
+	
+	private static class ChunkTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Value value;
+		private final int variableCount;
+		private final double[][] columns;
+		private final double[] out;
+		private final int from;
+		private final int to;
+		private final LazySampling sampling;
+		private final Map<Value, Double> samples;
+		private final int threshold;
+		
+		public ChunkTask(Value value, int variableCount, double[][] columns, double[] out, int from, int to,
+		                 LazySampling sampling, Map<Value, Double> samples, int threshold) {
+			this.value = value;
+			this.variableCount = variableCount;
+			this.columns = columns;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+			this.sampling = sampling;
+			this.samples = samples;
+			this.threshold = threshold;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				new BatchEvaluator(value, variableCount).evaluate(columns, out, from, to, sampling, samples);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ChunkTask(value, variableCount, columns, out, from, middle, sampling, samples, threshold),
+					new ChunkTask(value, variableCount, columns, out, middle, to, sampling, samples, threshold));
+		}
+		
+	}
+	
+}
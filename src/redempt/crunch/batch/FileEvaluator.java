@@ -0,0 +1,151 @@
+package redempt.crunch.batch;
+
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.token.Value;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a Value for every record of a binary file, writing one double per record to an output file. Both files are
+ * memory-mapped a chunk at a time rather than read onto the heap, and chunks are evaluated in parallel with a
+ * {@link BatchEvaluator} each, so heap usage depends only on the number of variables and not on the size of the files.
+ * @author Redempt
+ */
+public final class FileEvaluator {
+	
+	/**
+	 * The default number of bytes of input mapped and evaluated by each task
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 26;
+	
+	private FileEvaluator() {}
+	
+	/**
+	 * Evaluates a Value for every record of a file. Results are written to the output file as doubles packed back to
+	 * back in the byte order of the layout, so the result for each record is at the same index as the record. The output
+	 * file is created or replaced.
+	 * @param value The Value to evaluate
+	 * @param variableCount The number of variables used by the Value
+	 * @param in The file to read records from
+	 * @param layout The layout of each record
+	 * @param out The file to write results to
+	 * @param pool The pool to evaluate chunks on
+	 * @param chunkSize The largest number of bytes of input evaluated by a single task
+	 * @throws IOException If either file cannot be read, written or mapped
+	 */
+	public static void evaluate(Value value, int variableCount, Path in, RecordLayout layout, Path out,
+	                            ForkJoinPool pool, int chunkSize) throws IOException {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		if (layout.getFieldCount() < variableCount) {
+			throw new ExpressionEvaluationException("Too few fields in record layout - expected " + variableCount + ", got " + layout.getFieldCount());
+		}
+		if (Files.exists(out) && Files.isSameFile(in, out)) {
+			throw new IllegalArgumentException("Input and output cannot be the same file");
+		}
+		// Validate the input before the output is opened, so that a bad input leaves an existing output untouched
+		long size = Files.size(in);
+		int recordSize = layout.getRecordSize();
+		if (size % recordSize != 0) {
+			throw new ExpressionEvaluationException("Input size " + size + " is not a multiple of the record size " + recordSize);
+		}
+		long records = size / recordSize;
+		if (records == 0) {
+			Files.write(out, new byte[0]);
+			return;
+		}
+		try (FileChannel input = FileChannel.open(in, StandardOpenOption.READ);
+		     FileChannel output = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// Extend the output to its full size up front, so that chunks can be mapped into it from any thread
+			output.write(ByteBuffer.allocate(1), records * Double.BYTES - 1);
+			// A single mapping is limited to Integer.MAX_VALUE bytes, of input or of output
+			int chunkRecords = Math.max(1, Math.min(chunkSize / recordSize, Integer.MAX_VALUE / Math.max(recordSize, Double.BYTES)));
+			pool.invoke(new FileTask(value, variableCount, layout, input, output, 0, records, chunkRecords));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	private static void evaluateChunk(Value value, int variableCount, RecordLayout layout, FileChannel input,
+	                                  FileChannel output, long from, int count) throws IOException {
+		int recordSize = layout.getRecordSize();
+		MappedByteBuffer records = input.map(MapMode.READ_ONLY, from * recordSize, (long) count * recordSize);
+		records.order(layout.getByteOrder());
+		MappedByteBuffer mappedResults = output.map(MapMode.READ_WRITE, from * Double.BYTES, (long) count * Double.BYTES);
+		mappedResults.order(layout.getByteOrder());
+		DoubleBuffer results = mappedResults.asDoubleBuffer();
+		
+		BatchEvaluator evaluator = new BatchEvaluator(value, variableCount);
+		int blockSize = BatchEvaluator.BLOCK_SIZE;
+		double[][] columns = new double[variableCount][blockSize];
+		double[] block = new double[blockSize];
+		for (int start = 0; start < count; start += blockSize) {
+			int length = Math.min(blockSize, count - start);
+			for (int i = 0; i < variableCount; i++) {
+				double[] column = columns[i];
+				int position = start * recordSize + layout.getOffset(i);
+				for (int row = 0; row < length; row++, position += recordSize) {
+					column[row] = records.getDouble(position);
+				}
+			}
+			evaluator.evaluate(columns, block, 0, length, LazySampling.PER_ROW);
+			results.put(block, 0, length);
+		}
+	}
+	
+	private static class FileTask extends RecursiveAction {
+	
+		private static final long serialVersionUID = 1L;
+		
+		private final Value value;
+		private final int variableCount;
+		private final RecordLayout layout;
+		private final FileChannel input;
+		private final FileChannel output;
+		private final long from;
+		private final long to;
+		private final int chunkRecords;
+		
+		public FileTask(Value value, int variableCount, RecordLayout layout, FileChannel input, FileChannel output,
+		                long from, long to, int chunkRecords) {
+			this.value = value;
+			this.variableCount = variableCount;
+			this.layout = layout;
+			this.input = input;
+			this.output = output;
+			this.from = from;
+			this.to = to;
+			this.chunkRecords = chunkRecords;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= chunkRecords) {
+				try {
+					evaluateChunk(value, variableCount, layout, input, output, from, (int) (to - from));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return;
+			}
+			long middle = (from + to) >>> 1;
+			invokeAll(new FileTask(value, variableCount, layout, input, output, from, middle, chunkRecords),
+					new FileTask(value, variableCount, layout, input, output, middle, to, chunkRecords));
+		}
+	
+	}
+	
+}
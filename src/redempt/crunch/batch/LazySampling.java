@@ -0,0 +1,18 @@
+package redempt.crunch.batch;
+
+/**
+ * Controls how often lazy variables are sampled when evaluating an expression over many rows at once
+ * @author Redempt
+ */
+public enum LazySampling {
+	
+	/**
+	 * Each lazy variable is sampled once per batch, and the same value is used for every row
+	 */
+	PER_BATCH,
+	/**
+	 * Lazy variables are sampled for every row, exactly as if the expression were evaluated row by row
+	 */
+	PER_ROW
+	
+}
@@ -0,0 +1,97 @@
+package redempt.crunch.batch;
+
+import java.nio.ByteOrder;
+
+/**
+ * Describes where the variable values of an expression are found in each fixed-size record of a binary file. Each
+ * variable is a double at a byte offset within the record, and records follow one another with no gaps.
+ * @author Redempt
+ */
+public final class RecordLayout {
+	
+	/**
+	 * Creates a layout for records of little-endian doubles packed back to back, one per variable in order
+	 * @param fieldCount The number of doubles in each record
+	 * @return The layout
+	 */
+	public static RecordLayout packed(int fieldCount) {
+		if (fieldCount < 1) {
+			throw new IllegalArgumentException("Field count must be positive");
+		}
+		int[] offsets = new int[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			offsets[i] = i * Double.BYTES;
+		}
+		return of(fieldCount * Double.BYTES, offsets);
+	}
+	
+	/**
+	 * Creates a layout for records of little-endian doubles at arbitrary offsets, which may leave space for other data
+	 * @param recordSize The size of each record in bytes
+	 * @param offsets The byte offset within the record of each variable's value, where $1 is at index 0
+	 * @return The layout
+	 */
+	public static RecordLayout of(int recordSize, int... offsets) {
+		if (recordSize < 1) {
+			throw new IllegalArgumentException("Record size must be positive");
+		}
+		for (int i = 0; i < offsets.length; i++) {
+			if (offsets[i] < 0 || offsets[i] > recordSize - Double.BYTES) {
+				throw new IllegalArgumentException("Field " + (i + 1) + " at offset " + offsets[i] + " does not fit in a record of " + recordSize + " bytes");
+			}
+		}
+		return new RecordLayout(recordSize, offsets.clone(), ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private final int recordSize;
+	private final int[] offsets;
+	private final ByteOrder order;
+	
+	private RecordLayout(int recordSize, int[] offsets, ByteOrder order) {
+		this.recordSize = recordSize;
+		this.offsets = offsets;
+		this.order = order;
+	}
+	
+	/**
+	 * Creates a copy of this layout which reads values in a different byte order
+	 * @param order The byte order of the values
+	 * @return The new layout
+	 */
+	public RecordLayout withByteOrder(ByteOrder order) {
+		if (order == null) {
+			throw new IllegalArgumentException("Byte order cannot be null");
+		}
+		return new RecordLayout(recordSize, offsets, order);
+	}
+	
+	/**
+	 * @return The size of each record in bytes
+	 */
+	public int getRecordSize() {
+		return recordSize;
+	}
+	
+	/**
+	 * @return The number of variable values in each record
+	 */
+	public int getFieldCount() {
+		return offsets.length;
+	}
+	
+	/**
+	 * @param index The index of the field, where $1 has index 0
+	 * @return The byte offset of the field within each record
+	 */
+	public int getOffset(int index) {
+		return offsets[index];
+	}
+	
+	/**
+	 * @return The byte order values are stored in
+	 */
+	public ByteOrder getByteOrder() {
+		return order;
+	}
+	
+}
@@ -0,0 +1,610 @@
+package redempt.crunch.bytecode;
+
+import redempt.crunch.Variable;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.MemoizedVariable;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static redempt.crunch.bytecode.CodeBuilder.*;
+
+/**
+ * Compiles a Value tree into a JVM class with a single straight-line {@link Value#getValue(double[])} method.
+ * Arithmetic and comparisons are emitted as plain bytecode instructions, variables as array loads, and literals as
+ * constants. Shared subexpressions are computed once into local variables, and memoized lazy variables are sampled
+ * into local variables on first use. Functions, lazy variables and any other
+ * nodes are called through fields holding the original objects. Functions taking an argument array borrow it from a
+ * field for the duration of each call, so an instance can be evaluated from many threads at once.
+ * Generated classes target the Java 5 class file format so that no stack map frames are needed, and each is defined
+ * in its own class loader so it can be unloaded once it is no longer referenced.
+ * @author Redempt
+ */
+public final class BytecodeCompiler {
+	
+	private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_PRIVATE = 0x0002;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+	
+	private static final String SUPERCLASS = "redempt/crunch/bytecode/GeneratedValue";
+	private static final String VALUE = "redempt/crunch/token/Value";
+	private static final String LAZY_VARIABLE = "redempt/crunch/token/LazyVariable";
+	private static final String FUNCTION = "redempt/crunch/functional/Function";
+	private static final String UNARY_OPERATION = "java/util/function/DoubleUnaryOperator";
+	private static final String BINARY_OPERATION = "java/util/function/DoubleBinaryOperator";
+	private static final String TERNARY_OPERATION = "redempt/crunch/functional/DoubleTernaryOperator";
+	private static final String SUPPLIER = "java/util/function/DoubleSupplier";
+	private static final String ATOMIC_REFERENCE = "java/util/concurrent/atomic/AtomicReference";
+	private static final String MATH = "java/lang/Math";
+	private static final String NUMBER_PARSING = "redempt/crunch/data/FastNumberParsing";
+	private static final String POWER = "redempt/crunch/token/IntegerPower";
+	private static final String CONSTRUCTOR_DESCRIPTOR = "(L" + VALUE + ";[Ljava/lang/Object;)V";
+	
+	/**
+	 * Compiles a Value into a generated class and instantiates it
+	 * @param value The Value to compile
+	 * @return An instance of the generated class, which evaluates identically to the given Value
+	 */
+	public static GeneratedValue compile(Value value) {
+		BytecodeCompiler compiler = new BytecodeCompiler();
+		compiler.emit(value);
+		compiler.code.op(DRETURN, -2);
+		byte[] bytes = compiler.toClassFile();
+		Class<?> clazz = new GeneratedClassLoader(GeneratedValue.class.getClassLoader())
+				.define(compiler.className.replace('/', '.'), bytes);
+		try {
+			return (GeneratedValue) clazz.getConstructor(Value.class, Object[].class)
+					.newInstance(value, compiler.captures.toArray());
+		} catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Could not instantiate generated class", e);
+		}
+	}
+	
+	private final ConstantPool pool = new ConstantPool();
+	private final CodeBuilder code = new CodeBuilder(pool, 2);
+	private final String className = SUPERCLASS + "$" + CLASS_COUNTER.getAndIncrement();
+	private final List<Object> captures = new ArrayList<>();
+	private final List<String> captureTypes = new ArrayList<>();
+	private final Map<Integer, Integer> sharedLocals = new HashMap<>();
+	
+	private BytecodeCompiler() {}
+	
+	private void emit(Value value) {
+		switch (value.getType()) {
+			case LITERAL_VALUE:
+				code.pushDouble(value.getValue(NO_VARIABLES));
+				return;
+			case VARIABLE:
+				emitVariable(((Variable) value).getIndex());
+				return;
+			case BINARY_OPERATION:
+				emitBinaryOperation((BinaryOperation) value);
+				return;
+			case UNARY_OPERATION:
+				emitUnaryOperation((UnaryOperation) value);
+				return;
+			case FUNCTION_CALL:
+				emitFunctionCall((FunctionCall) value);
+				return;
+			case LOGICAL_OPERATION:
+				emitLogicalOperation((LogicalOperation) value);
+				return;
+			case INTEGER_POWER:
+				emitIntegerPower((IntegerPower) value);
+				return;
+			case CONDITIONAL:
+				emitConditional((Conditional) value);
+				return;
+			case SHARED_SCOPE:
+				emitSharedScope((SharedScope) value);
+				return;
+			case SHARED_VALUE:
+				emitSharedValue((SharedValue) value);
+				return;
+			case MEMOIZED_VARIABLE:
+				emitMemoizedVariable((MemoizedVariable) value);
+				return;
+			case LAZY_VARIABLE:
+				loadCapture(value, LAZY_VARIABLE);
+				code.loadReference(1);
+				code.invokeVirtual(LAZY_VARIABLE, "getValue", "([D)D");
+				return;
+			default:
+				loadCapture(value, VALUE);
+				code.loadReference(1);
+				code.invokeInterface(VALUE, "getValue", "([D)D");
+		}
+	}
+	
+	private void emitVariable(int index) {
+		code.loadReference(1);
+		code.pushInt(index);
+		code.op(DALOAD, 0);
+	}
+	
+	private void emitSharedScope(SharedScope scope) {
+		Value[] definitions = scope.getDefinitions();
+		for (int i = 0; i < definitions.length; i++) {
+			emit(definitions[i]);
+			int local = code.allocateLocal(2);
+			code.storeDouble(local);
+			sharedLocals.put(scope.getVariableCount() + i, local);
+		}
+		int firstMemoized = scope.getVariableCount() + definitions.length;
+		for (int i = 0; i < scope.getMemoizedCount(); i++) {
+			// The value and its flag are both initialized so that the verifier sees them assigned on every path
+			int local = code.allocateLocal(3);
+			code.pushDouble(0);
+			code.storeDouble(local);
+			code.pushInt(0);
+			code.storeInt(local + 2);
+			sharedLocals.put(firstMemoized + i * 2, local);
+		}
+		emit(scope.getChild());
+	}
+	
+	private void emitMemoizedVariable(MemoizedVariable value) {
+		Integer local = sharedLocals.get(value.getIndex());
+		if (local == null) {
+			// Not inside a scope being compiled, so the slots are in the variable values like the tree would use
+			loadCapture(value, VALUE);
+			code.loadReference(1);
+			code.invokeInterface(VALUE, "getValue", "([D)D");
+			return;
+		}
+		Label sampled = code.newLabel();
+		int base = code.getStackSize();
+		code.loadInt(local + 2);
+		code.jump(IFNE, sampled, -1);
+		loadCapture(value.getVariable(), LAZY_VARIABLE);
+		code.loadReference(1);
+		code.invokeVirtual(LAZY_VARIABLE, "getValue", "([D)D");
+		code.storeDouble(local);
+		code.pushInt(1);
+		code.storeInt(local + 2);
+		code.mark(sampled, base);
+		code.loadDouble(local);
+	}
+	
+	private void emitSharedValue(SharedValue value) {
+		Integer local = sharedLocals.get(value.getIndex());
+		if (local == null) {
+			// Not inside a scope being compiled, so the slot is read from the variable values like the tree would
+			emitVariable(value.getIndex());
+			return;
+		}
+		code.loadDouble(local);
+	}
+	
+	private void emitBinaryOperation(BinaryOperation operation) {
+		BinaryOperator operator = operation.getOperator();
+		Value[] values = operation.getValues();
+		switch (operator) {
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				emitEqualsOne(values[0]);
+				emitEqualsOne(values[1]);
+				code.op(IOR, -1);
+				emitBooleanResult(IFNE);
+				return;
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				emitEqualsOne(values[0]);
+				emitEqualsOne(values[1]);
+				code.op(IMUL, -1);
+				emitBooleanResult(IFNE);
+				return;
+			case SCIENTIFIC_NOTATION:
+				emit(values[0]);
+				emit(values[1]);
+				code.invokeStatic(NUMBER_PARSING, "powerOfTen", "(D)D");
+				code.op(DMUL, -2);
+				return;
+			default:
+				break;
+		}
+		int instruction = arithmeticInstruction(operator);
+		if (instruction != -1) {
+			emit(values[0]);
+			emit(values[1]);
+			code.op(instruction, -2);
+			return;
+		}
+		switch (operator) {
+			case EXPONENT:
+				emit(values[0]);
+				emit(values[1]);
+				code.invokeStatic(MATH, "pow", "(DD)D");
+				return;
+			case GREATER_THAN:
+				emitComparison(values, DCMPL, IFLE);
+				return;
+			case LESS_THAN:
+				emitComparison(values, DCMPG, IFGE);
+				return;
+			case GREATER_THAN_OR_EQUAL_TO:
+				emitComparison(values, DCMPL, IFLT);
+				return;
+			case LESS_THAN_OR_EQUAL_TO:
+				emitComparison(values, DCMPG, IFGT);
+				return;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				emitComparison(values, DCMPL, IFNE);
+				return;
+			case NOT_EQUAL_TO:
+				emitComparison(values, DCMPL, IFEQ);
+				return;
+			default:
+				loadCapture(operator.getOperation(), BINARY_OPERATION);
+				emit(values[0]);
+				emit(values[1]);
+				code.invokeInterface(BINARY_OPERATION, "applyAsDouble", "(DD)D");
+		}
+	}
+	
+	private void emitLogicalOperation(LogicalOperation operation) {
+		Value[] values = operation.getValues();
+		// For and, either operand not being 1 jumps to 0.0; for or, either operand being 1 jumps to 1.0
+		int shortCircuit = operation.isAnd() ? IFNE : IFEQ;
+		Label decided = code.newLabel();
+		Label end = code.newLabel();
+		int base = code.getStackSize();
+		emitEqualsOne(values[0]);
+		code.jump(shortCircuit, decided, -1);
+		emitEqualsOne(values[1]);
+		code.jump(shortCircuit, decided, -1);
+		code.op(operation.isAnd() ? DCONST_1 : DCONST_0, 2);
+		code.jump(GOTO, end, 0);
+		code.mark(decided, base);
+		code.op(operation.isAnd() ? DCONST_0 : DCONST_1, 2);
+		code.mark(end, base + 2);
+	}
+	
+	/**
+	 * Emits repeated squaring in the same order as {@link IntegerPower#pow(double, int)}, keeping the square in a local.
+	 * Negative powers call IntegerPower#pow itself, since they may need to fall back to Math#pow.
+	 */
+	private void emitIntegerPower(IntegerPower power) {
+		int exponent = power.getExponent();
+		emit(power.getBase());
+		if (exponent < 0) {
+			code.pushInt(exponent);
+			code.invokeStatic(POWER, "pow", "(DI)D");
+			return;
+		}
+		int square = code.allocateLocal(2);
+		code.storeDouble(square);
+		long remaining = exponent;
+		boolean first = true;
+		while (remaining != 0) {
+			if ((remaining & 1) != 0) {
+				code.loadDouble(square);
+				if (!first) {
+					code.op(DMUL, -2);
+				}
+				first = false;
+			}
+			remaining >>= 1;
+			if (remaining != 0) {
+				code.loadDouble(square);
+				code.loadDouble(square);
+				code.op(DMUL, -2);
+				code.storeDouble(square);
+			}
+		}
+		if (first) {
+			code.op(DCONST_1, 2);
+		}
+	}
+	
+	private void emitConditional(Conditional conditional) {
+		Label ifFalse = code.newLabel();
+		Label end = code.newLabel();
+		int base = code.getStackSize();
+		emitEqualsOne(conditional.getCondition());
+		code.jump(IFNE, ifFalse, -1);
+		emit(conditional.getIfTrue());
+		code.jump(GOTO, end, 0);
+		code.mark(ifFalse, base);
+		emit(conditional.getIfFalse());
+		code.mark(end, base + 2);
+	}
+	
+	private int arithmeticInstruction(BinaryOperator operator) {
+		switch (operator) {
+			case ADD:
+				return DADD;
+			case SUBTRACT:
+				return DSUB;
+			case MULTIPLY:
+				return DMUL;
+			case DIVIDE:
+				return DDIV;
+			case MODULUS:
+				return DREM;
+			default:
+				return -1;
+		}
+	}
+	
+	private void emitEqualsOne(Value value) {
+		emit(value);
+		code.op(DCONST_1, 2);
+		code.op(DCMPL, -3);
+	}
+	
+	private void emitComparison(Value[] values, int compareInstruction, int branchIfFalse) {
+		emit(values[0]);
+		emit(values[1]);
+		code.op(compareInstruction, -3);
+		emitBooleanResult(branchIfFalse);
+	}
+	
+	/**
+	 * Converts the int on top of the stack to 1.0 or 0.0
+	 * @param branchIfFalse The branch instruction which jumps when the result should be 0.0
+	 */
+	private void emitBooleanResult(int branchIfFalse) {
+		Label isFalse = code.newLabel();
+		Label end = code.newLabel();
+		code.jump(branchIfFalse, isFalse, -1);
+		int base = code.getStackSize();
+		code.op(DCONST_1, 2);
+		code.jump(GOTO, end, 0);
+		code.mark(isFalse, base);
+		code.op(DCONST_0, 2);
+		code.mark(end, base + 2);
+	}
+	
+	private void emitUnaryOperation(UnaryOperation operation) {
+		UnaryOperator operator = operation.getOperator();
+		String method = mathMethod(operator);
+		if (method != null) {
+			emit(operation.getChild());
+			code.invokeStatic(MATH, method, "(D)D");
+			return;
+		}
+		switch (operator) {
+			case NEGATE:
+				emit(operation.getChild());
+				code.op(DNEG, 0);
+				return;
+			case NOT:
+				emitEqualsOne(operation.getChild());
+				emitBooleanResult(IFEQ);
+				return;
+			case ROUND:
+				emit(operation.getChild());
+				code.invokeStatic(MATH, "round", "(D)J");
+				code.op(L2D, 0);
+				return;
+			default:
+				loadCapture(operator.getOperation(), UNARY_OPERATION);
+				emit(operation.getChild());
+				code.invokeInterface(UNARY_OPERATION, "applyAsDouble", "(D)D");
+		}
+	}
+	
+	private String mathMethod(UnaryOperator operator) {
+		switch (operator) {
+			case SIN:
+			case COS:
+			case TAN:
+			case SINH:
+			case COSH:
+			case TANH:
+			case ASIN:
+			case ACOS:
+			case ATAN:
+			case ABS:
+			case FLOOR:
+			case CEIL:
+			case LOG:
+			case SQRT:
+			case CBRT:
+				return operator.getSymbol();
+			default:
+				return null;
+		}
+	}
+	
+	private void emitFunctionCall(FunctionCall call) {
+		Function function = call.getFunction();
+		Value[] arguments = call.getArguments();
+		if (function.getSupplier() != null) {
+			loadCapture(function.getSupplier(), SUPPLIER);
+			code.invokeInterface(SUPPLIER, "getAsDouble", "()D");
+			return;
+		}
+		if (function.getUnaryOperator() != null) {
+			emitDirectCall(function.getUnaryOperator(), UNARY_OPERATION, arguments);
+			return;
+		}
+		if (function.getBinaryOperator() != null) {
+			emitDirectCall(function.getBinaryOperator(), BINARY_OPERATION, arguments);
+			return;
+		}
+		if (function.getTernaryOperator() != null) {
+			emitDirectCall(function.getTernaryOperator(), TERNARY_OPERATION, arguments);
+			return;
+		}
+		// Borrow the call's spare argument array, or allocate one if another call is already using it
+		String spare = capture(new AtomicReference<double[]>(), ATOMIC_REFERENCE);
+		int array = code.allocateLocal(1);
+		code.loadThis();
+		code.getField(className, spare, "L" + ATOMIC_REFERENCE + ";");
+		code.op(ACONST_NULL, 1);
+		code.invokeVirtual(ATOMIC_REFERENCE, "getAndSet", "(Ljava/lang/Object;)Ljava/lang/Object;");
+		code.checkCast("[D");
+		code.op(DUP, 1);
+		Label borrowed = code.newLabel();
+		code.jump(IFNONNULL, borrowed, -1);
+		int stackSize = code.getStackSize();
+		code.op(POP, -1);
+		code.pushInt(function.getArgCount());
+		code.newDoubleArray();
+		code.mark(borrowed, stackSize);
+		code.storeReference(array);
+		for (int i = 0; i < arguments.length; i++) {
+			code.loadReference(array);
+			code.pushInt(i);
+			emit(arguments[i]);
+			code.op(DASTORE, -4);
+		}
+		loadCapture(function, FUNCTION);
+		code.loadReference(array);
+		code.invokeVirtual(FUNCTION, "call", "([D)D");
+		code.loadThis();
+		code.getField(className, spare, "L" + ATOMIC_REFERENCE + ";");
+		code.loadReference(array);
+		code.invokeVirtual(ATOMIC_REFERENCE, "lazySet", "(Ljava/lang/Object;)V");
+	}
+	
+	private void emitDirectCall(Object lambda, String type, Value[] arguments) {
+		loadCapture(lambda, type);
+		StringBuilder descriptor = new StringBuilder("(");
+		for (Value argument : arguments) {
+			emit(argument);
+			descriptor.append('D');
+		}
+		code.invokeInterface(type, "applyAsDouble", descriptor.append(")D").toString());
+	}
+	
+	private void loadCapture(Object value, String type) {
+		code.loadThis();
+		code.getField(className, capture(value, type), "L" + type + ";");
+	}
+	
+	/**
+	 * Adds a field holding an object, set when the generated class is instantiated
+	 * @return The name of the field
+	 */
+	private String capture(Object value, String type) {
+		String field = "c" + captures.size();
+		captures.add(value);
+		captureTypes.add(type);
+		return field;
+	}
+	
+	private byte[] constructorCode() {
+		CodeBuilder init = new CodeBuilder(pool, 3);
+		init.loadThis();
+		init.loadReference(1);
+		init.loadReference(2);
+		init.invokeSpecial(SUPERCLASS, "<init>", CONSTRUCTOR_DESCRIPTOR);
+		for (int i = 0; i < captureTypes.size(); i++) {
+			init.loadThis();
+			init.loadReference(2);
+			init.pushInt(i);
+			init.op(AALOAD, -1);
+			init.checkCast(captureTypes.get(i));
+			init.putField(className, "c" + i, "L" + captureTypes.get(i) + ";");
+		}
+		init.op(RETURN, 0);
+		return methodCode(init);
+	}
+	
+	private byte[] methodCode(CodeBuilder builder) {
+		byte[] bytes = builder.toByteArray();
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytesOut);
+		try {
+			out.writeShort(builder.getMaxStack());
+			out.writeShort(builder.getMaxLocals());
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.writeShort(0);
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytesOut.toByteArray();
+	}
+	
+	private byte[] toClassFile() {
+		try {
+			ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+			DataOutputStream body = new DataOutputStream(bodyBytes);
+			body.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			body.writeShort(pool.classRef(className));
+			body.writeShort(pool.classRef(SUPERCLASS));
+			body.writeShort(0);
+			
+			body.writeShort(captureTypes.size());
+			for (int i = 0; i < captureTypes.size(); i++) {
+				writeField(body, "c" + i, "L" + captureTypes.get(i) + ";");
+			}
+			
+			body.writeShort(2);
+			writeMethod(body, "<init>", CONSTRUCTOR_DESCRIPTOR, constructorCode());
+			writeMethod(body, "getValue", "([D)D", methodCode(code));
+			body.writeShort(0);
+			
+			ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(classBytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			pool.write(out);
+			bodyBytes.writeTo(out);
+			return classBytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void writeField(DataOutputStream out, String name, String descriptor) throws IOException {
+		out.writeShort(ACC_PRIVATE | ACC_FINAL);
+		out.writeShort(pool.utf8(name));
+		out.writeShort(pool.utf8(descriptor));
+		out.writeShort(0);
+	}
+	
+	private void writeMethod(DataOutputStream out, String name, String descriptor, byte[] code) throws IOException {
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(pool.utf8(name));
+		out.writeShort(pool.utf8(descriptor));
+		out.writeShort(1);
+		out.writeShort(pool.utf8("Code"));
+		out.writeInt(code.length);
+		out.write(code);
+	}
+	
+	private static class GeneratedClassLoader extends ClassLoader {
+		
+		public GeneratedClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+		
+		public Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+		
+	}
+	
+}
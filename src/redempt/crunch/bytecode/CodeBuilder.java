@@ -0,0 +1,344 @@
+package redempt.crunch.bytecode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assembles the body of a single method, tracking operand stack depth and resolving branch targets
+ * @author Redempt
+ */
+class CodeBuilder {
+	
+	public static final int ACONST_NULL = 0x01;
+	public static final int DCONST_0 = 0x0e;
+	public static final int DCONST_1 = 0x0f;
+	public static final int BIPUSH = 0x10;
+	public static final int SIPUSH = 0x11;
+	public static final int LDC_W = 0x13;
+	public static final int LDC2_W = 0x14;
+	public static final int ILOAD = 0x15;
+	public static final int DLOAD = 0x18;
+	public static final int ALOAD = 0x19;
+	public static final int DALOAD = 0x31;
+	public static final int AALOAD = 0x32;
+	public static final int ISTORE = 0x36;
+	public static final int DSTORE = 0x39;
+	public static final int ASTORE = 0x3a;
+	public static final int DASTORE = 0x52;
+	public static final int POP = 0x57;
+	public static final int DUP = 0x59;
+	public static final int DADD = 0x63;
+	public static final int DSUB = 0x67;
+	public static final int IMUL = 0x68;
+	public static final int DMUL = 0x6b;
+	public static final int DDIV = 0x6f;
+	public static final int DREM = 0x73;
+	public static final int DNEG = 0x77;
+	public static final int IOR = 0x80;
+	public static final int L2D = 0x8a;
+	public static final int DCMPL = 0x97;
+	public static final int DCMPG = 0x98;
+	public static final int IFEQ = 0x99;
+	public static final int IFNE = 0x9a;
+	public static final int IFLT = 0x9b;
+	public static final int IFGE = 0x9c;
+	public static final int IFGT = 0x9d;
+	public static final int IFLE = 0x9e;
+	public static final int GOTO = 0xa7;
+	public static final int DRETURN = 0xaf;
+	public static final int RETURN = 0xb1;
+	public static final int GETFIELD = 0xb4;
+	public static final int PUTFIELD = 0xb5;
+	public static final int INVOKEVIRTUAL = 0xb6;
+	public static final int INVOKESPECIAL = 0xb7;
+	public static final int INVOKESTATIC = 0xb8;
+	public static final int INVOKEINTERFACE = 0xb9;
+	public static final int NEWARRAY = 0xbc;
+	public static final int CHECKCAST = 0xc0;
+	public static final int WIDE = 0xc4;
+	public static final int IFNONNULL = 0xc7;
+	
+	public static final int T_DOUBLE = 7;
+	
+	private final ConstantPool pool;
+	private final List<Jump> jumps = new ArrayList<>();
+	private byte[] code = new byte[64];
+	private int length;
+	private int stack;
+	private int maxStack;
+	private int maxLocals;
+	
+	public CodeBuilder(ConstantPool pool, int locals) {
+		this.pool = pool;
+		this.maxLocals = locals;
+	}
+	
+	/**
+	 * Emits an instruction with no operands
+	 * @param opcode The opcode
+	 * @param stackDelta The change in operand stack size, in slots, caused by the instruction
+	 */
+	public void op(int opcode, int stackDelta) {
+		put(opcode);
+		adjustStack(stackDelta);
+	}
+	
+	/**
+	 * Emits an instruction with a single two-byte operand, such as a constant pool index
+	 * @param opcode The opcode
+	 * @param operand The operand
+	 * @param stackDelta The change in operand stack size, in slots, caused by the instruction
+	 */
+	public void op2(int opcode, int operand, int stackDelta) {
+		put(opcode);
+		putShort(operand);
+		adjustStack(stackDelta);
+	}
+	
+	public void loadThis() {
+		loadReference(0);
+	}
+	
+	public void loadReference(int local) {
+		localOp(ALOAD, local, 1);
+	}
+	
+	public void storeReference(int local) {
+		localOp(ASTORE, local, -1);
+	}
+	
+	public void loadDouble(int local) {
+		localOp(DLOAD, local, 2);
+	}
+	
+	public void storeDouble(int local) {
+		localOp(DSTORE, local, -2);
+	}
+	
+	public void loadInt(int local) {
+		localOp(ILOAD, local, 1);
+	}
+	
+	public void storeInt(int local) {
+		localOp(ISTORE, local, -1);
+	}
+	
+	private void localOp(int opcode, int local, int stackDelta) {
+		if (local > 255) {
+			put(WIDE);
+			put(opcode);
+			putShort(local);
+		} else {
+			put(opcode);
+			put(local);
+		}
+		adjustStack(stackDelta);
+	}
+	
+	/**
+	 * Reserves local variable slots
+	 * @param slots The number of slots to reserve
+	 * @return The index of the first reserved slot
+	 */
+	public int allocateLocal(int slots) {
+		int local = maxLocals;
+		maxLocals += slots;
+		return local;
+	}
+	
+	public void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			op(0x03 + value, 1);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			put(BIPUSH);
+			put(value);
+			adjustStack(1);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op2(SIPUSH, value, 1);
+		} else {
+			op2(LDC_W, pool.integer(value), 1);
+		}
+	}
+	
+	public void pushDouble(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		if (bits == 0L) {
+			op(DCONST_0, 2);
+		} else if (bits == Double.doubleToRawLongBits(1d)) {
+			op(DCONST_1, 2);
+		} else {
+			op2(LDC2_W, pool.doubleValue(value), 2);
+		}
+	}
+	
+	public void getField(String owner, String name, String descriptor) {
+		op2(GETFIELD, pool.fieldRef(owner, name, descriptor), slots(descriptor) - 1);
+	}
+	
+	public void putField(String owner, String name, String descriptor) {
+		op2(PUTFIELD, pool.fieldRef(owner, name, descriptor), -slots(descriptor) - 1);
+	}
+	
+	public void invokeStatic(String owner, String name, String descriptor) {
+		op2(INVOKESTATIC, pool.methodRef(owner, name, descriptor), callDelta(descriptor, false));
+	}
+	
+	public void invokeVirtual(String owner, String name, String descriptor) {
+		op2(INVOKEVIRTUAL, pool.methodRef(owner, name, descriptor), callDelta(descriptor, true));
+	}
+	
+	public void invokeSpecial(String owner, String name, String descriptor) {
+		op2(INVOKESPECIAL, pool.methodRef(owner, name, descriptor), callDelta(descriptor, true));
+	}
+	
+	public void invokeInterface(String owner, String name, String descriptor) {
+		int argSlots = argumentSlots(descriptor) + 1;
+		put(INVOKEINTERFACE);
+		putShort(pool.interfaceMethodRef(owner, name, descriptor));
+		put(argSlots);
+		put(0);
+		adjustStack(callDelta(descriptor, true));
+	}
+	
+	public void checkCast(String internalName) {
+		op2(CHECKCAST, pool.classRef(internalName), 0);
+	}
+	
+	public void newDoubleArray() {
+		put(NEWARRAY);
+		put(T_DOUBLE);
+	}
+	
+	public Label newLabel() {
+		return new Label();
+	}
+	
+	/**
+	 * Emits a branch instruction to a label which may not have been placed yet
+	 * @param opcode The branch opcode
+	 * @param target The label to jump to
+	 * @param stackDelta The change in operand stack size caused by the instruction
+	 */
+	public void jump(int opcode, Label target, int stackDelta) {
+		jumps.add(new Jump(length, target));
+		put(opcode);
+		putShort(0);
+		adjustStack(stackDelta);
+	}
+	
+	/**
+	 * Places a label at the current position
+	 * @param label The label to place
+	 * @param stackSize The operand stack size at this position, in slots
+	 */
+	public void mark(Label label, int stackSize) {
+		label.position = length;
+		stack = stackSize;
+	}
+	
+	public int getStackSize() {
+		return stack;
+	}
+	
+	public int getMaxStack() {
+		return maxStack;
+	}
+	
+	public int getMaxLocals() {
+		return maxLocals;
+	}
+	
+	public byte[] toByteArray() {
+		for (Jump jump : jumps) {
+			if (jump.target.position < 0) {
+				throw new IllegalStateException("Unplaced label in generated method");
+			}
+			int offset = jump.target.position - jump.position;
+			if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+				throw new IllegalStateException("Generated method is too large");
+			}
+			code[jump.position + 1] = (byte) (offset >> 8);
+			code[jump.position + 2] = (byte) offset;
+		}
+		if (length > 65535) {
+			throw new IllegalStateException("Generated method is too large");
+		}
+		return Arrays.copyOf(code, length);
+	}
+	
+	private void adjustStack(int delta) {
+		stack += delta;
+		maxStack = Math.max(maxStack, stack);
+	}
+	
+	private void put(int b) {
+		if (length == code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[length++] = (byte) b;
+	}
+	
+	private void putShort(int s) {
+		put(s >> 8);
+		put(s);
+	}
+	
+	private static int callDelta(String descriptor, boolean hasReceiver) {
+		int returned = slots(descriptor.substring(descriptor.indexOf(')') + 1));
+		return returned - argumentSlots(descriptor) - (hasReceiver ? 1 : 0);
+	}
+	
+	private static int argumentSlots(String descriptor) {
+		int slots = 0;
+		int i = 1;
+		while (descriptor.charAt(i) != ')') {
+			char c = descriptor.charAt(i);
+			if (c == 'D' || c == 'J') {
+				slots += 2;
+				i++;
+				continue;
+			}
+			while (descriptor.charAt(i) == '[') {
+				i++;
+			}
+			if (descriptor.charAt(i) == 'L') {
+				i = descriptor.indexOf(';', i);
+			}
+			slots++;
+			i++;
+		}
+		return slots;
+	}
+	
+	private static int slots(String type) {
+		switch (type.charAt(0)) {
+			case 'V':
+				return 0;
+			case 'D':
+			case 'J':
+				return 2;
+			default:
+				return 1;
+		}
+	}
+	
+	public static class Label {
+		
+		private int position = -1;
+		
+	}
+	
+	private static class Jump {
+		
+		private final int position;
+		private final Label target;
+		
+		public Jump(int position, Label target) {
+			this.position = position;
+			this.target = target;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,115 @@
+package redempt.crunch.bytecode;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The constant pool of a class file being generated, deduplicating entries as they are added
+ * @author Redempt
+ */
+class ConstantPool {
+	
+	private static final int UTF8 = 1;
+	private static final int INTEGER = 3;
+	private static final int DOUBLE = 6;
+	private static final int CLASS = 7;
+	private static final int FIELD_REF = 9;
+	private static final int METHOD_REF = 10;
+	private static final int INTERFACE_METHOD_REF = 11;
+	private static final int NAME_AND_TYPE = 12;
+	
+	private final Map<String, Integer> indices = new HashMap<>();
+	private final List<Entry> entries = new ArrayList<>();
+	private int size = 1;
+	
+	public int utf8(String value) {
+		return add("U" + value, new Entry(UTF8, out -> out.writeUTF(value)), 1);
+	}
+	
+	public int integer(int value) {
+		return add("I" + value, new Entry(INTEGER, out -> out.writeInt(value)), 1);
+	}
+	
+	public int doubleValue(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		return add("D" + bits, new Entry(DOUBLE, out -> out.writeLong(bits)), 2);
+	}
+	
+	public int classRef(String internalName) {
+		int name = utf8(internalName);
+		return add("C" + internalName, new Entry(CLASS, out -> out.writeShort(name)), 1);
+	}
+	
+	public int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(FIELD_REF, owner, name, descriptor);
+	}
+	
+	public int methodRef(String owner, String name, String descriptor) {
+		return memberRef(METHOD_REF, owner, name, descriptor);
+	}
+	
+	public int interfaceMethodRef(String owner, String name, String descriptor) {
+		return memberRef(INTERFACE_METHOD_REF, owner, name, descriptor);
+	}
+	
+	private int memberRef(int tag, String owner, String name, String descriptor) {
+		int ownerIndex = classRef(owner);
+		int nameAndType = nameAndType(name, descriptor);
+		return add(tag + owner + "." + name + descriptor, new Entry(tag, out -> {
+			out.writeShort(ownerIndex);
+			out.writeShort(nameAndType);
+		}), 1);
+	}
+	
+	private int nameAndType(String name, String descriptor) {
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		return add("N" + name + descriptor, new Entry(NAME_AND_TYPE, out -> {
+			out.writeShort(nameIndex);
+			out.writeShort(descriptorIndex);
+		}), 1);
+	}
+	
+	private int add(String key, Entry entry, int slots) {
+		Integer existing = indices.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		int index = size;
+		size += slots;
+		indices.put(key, index);
+		entries.add(entry);
+		return index;
+	}
+	
+	public void write(DataOutputStream out) throws IOException {
+		out.writeShort(size);
+		for (Entry entry : entries) {
+			out.writeByte(entry.tag);
+			entry.body.write(out);
+		}
+	}
+	
+	private interface EntryWriter {
+		
+		void write(DataOutputStream out) throws IOException;
+		
+	}
+	
+	private static class Entry {
+		
+		private final int tag;
+		private final EntryWriter body;
+		
+		public Entry(int tag, EntryWriter body) {
+			this.tag = tag;
+			this.body = body;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,60 @@
+package redempt.crunch.bytecode;
+
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.Value;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The superclass of all classes generated by {@link BytecodeCompiler}. Subclasses implement
+ * {@link Value#getValue(double[])} as a single straight-line method, while this class keeps track of the Value tree
+ * the code was generated from.
+ * @author Redempt
+ */
+public abstract class GeneratedValue implements Value {
+	
+	private final Value source;
+	private final Object[] captures;
+	
+	protected GeneratedValue(Value source, Object[] captures) {
+		this.source = source;
+		this.captures = captures;
+	}
+	
+	/**
+	 * @return The Value tree this class was generated from
+	 */
+	public Value getSource() {
+		return source;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return source.getType();
+	}
+	
+	@Override
+	public Value getClone() {
+		Object[] clonedCaptures = captures.clone();
+		for (int i = 0; i < clonedCaptures.length; i++) {
+			if (clonedCaptures[i] instanceof Value) {
+				clonedCaptures[i] = ((Value) clonedCaptures[i]).getClone();
+			} else if (clonedCaptures[i] instanceof AtomicReference) {
+				// A spare argument array, which the clone should not share
+				clonedCaptures[i] = new AtomicReference<>();
+			}
+		}
+		try {
+			return getClass().getConstructor(Value.class, Object[].class).newInstance(source, clonedCaptures);
+		} catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Could not clone generated value", e);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+	
+}
@@ -2,26 +2,128 @@ package redempt.crunch.data;
 
 import redempt.crunch.ExpressionParser;
 
+import java.util.Arrays;
+
 /**
- * A simple implementation of a prefix tree for better parsing
- * Only supports ASCII characters
+ * A compact prefix tree for better parsing, supporting any char values.
+ * Each node keeps its children in an array indexed from its lowest child character when those characters are close
+ * together, falling back to sorted keys searched by binary search when they are spread out, and chains of characters with no
+ * branches or values are collapsed into a single node, so memory use grows with the number of distinct keys rather
+ * than with the size of the character set.
+ * A tree can be frozen to make it read-only and safe to share between threads, and derived to get a copy which shares
+ * all nodes with the original and only copies the ones along the path of each key set afterwards.
  * @param <T> The type stored in this CharTree
+ * @author Redempt
  */
 public class CharTree<T> {
 	
-	private final Node root = new Node();
+	private static final char[] EMPTY_CHARS = new char[0];
+	private static final Node[] EMPTY_NODES = new Node[0];
+	
+	// Nodes created by a different owner may be shared with another tree, and are copied before being modified
+	private Object owner = new Object();
+	private Node root;
+	private volatile boolean frozen;
+	
+	/**
+	 * Creates an empty CharTree
+	 */
+	public CharTree() {
+		root = new Node(EMPTY_CHARS, 256, owner);
+	}
+	
+	private CharTree(Node root) {
+		this.root = root;
+	}
+	
+	/**
+	 * Makes this CharTree read-only, so that it can be safely shared between threads
+	 * @return This CharTree
+	 */
+	public CharTree<T> freeze() {
+		frozen = true;
+		return this;
+	}
+	
+	/**
+	 * @return Whether this CharTree has been frozen
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	/**
+	 * Creates a mutable copy of this CharTree in constant time. The copy shares all nodes with this tree, and each
+	 * key set afterwards in either tree only copies the nodes along its path.
+	 * @return The derived CharTree
+	 */
+	public CharTree<T> derive() {
+		if (!frozen) {
+			// This tree can still be modified, so the nodes it shares must be copied by both trees from now on
+			owner = new Object();
+		}
+		return new CharTree<>(root);
+	}
 	
 	/**
 	 * Sets a String in this CharTree
 	 * @param str The String to use as the key
 	 * @param value The value to store
+	 * @throws IllegalStateException If this CharTree is frozen
 	 */
 	public void set(String str, T value) {
-		Node node = root;
-		for (char c : str.toCharArray()) {
-			node = node.getOrCreateNode(c);
+		if (frozen) {
+			throw new IllegalStateException("CharTree is frozen");
 		}
-		node.setValue(value);
+		Node node = root = own(root);
+		int i = 0;
+		while (i < str.length()) {
+			char c = str.charAt(i++);
+			Node child = node.getNode(c);
+			if (child == null) {
+				Node leaf = new Node(str.substring(i).toCharArray(), 0, owner);
+				leaf.value = value;
+				node.setNode(c, leaf);
+				return;
+			}
+			Node owned = own(child);
+			if (owned != child) {
+				node.setNode(c, owned);
+				child = owned;
+			}
+			char[] label = child.label;
+			int matched = 0;
+			while (matched < label.length && i < str.length() && label[matched] == str.charAt(i)) {
+				matched++;
+				i++;
+			}
+			if (matched < label.length) {
+				child = split(node, c, matched);
+			}
+			node = child;
+		}
+		node.value = value;
+	}
+	
+	/**
+	 * Splits the collapsed label of a child so that a node ends after the given number of label characters
+	 * @param parent The parent of the node to split
+	 * @param key The character leading from the parent to the node
+	 * @param length The number of label characters to keep before the split
+	 * @return The new node ending at the split point
+	 */
+	private Node split(Node parent, char key, int length) {
+		Node child = parent.getNode(key);
+		char[] label = child.label;
+		Node head = new Node(Arrays.copyOf(label, length), 0, owner);
+		child.label = Arrays.copyOfRange(label, length + 1, label.length);
+		head.setNode(label[length], child);
+		parent.setNode(key, head);
+		return head;
+	}
+	
+	private Node own(Node node) {
+		return node.owner == owner ? node : node.copy(owner);
 	}
 	
 	/**
@@ -31,13 +133,23 @@ public class CharTree<T> {
 	 */
 	public T get(String str) {
 		Node node = root;
-		for (char c : str.toCharArray()) {
-			node = node.getNode(c);
+		int i = 0;
+		while (i < str.length()) {
+			node = node.getNode(str.charAt(i++));
 			if (node == null) {
 				return null;
 			}
+			char[] label = node.label;
+			if (str.length() - i < label.length) {
+				return null;
+			}
+			for (char c : label) {
+				if (str.charAt(i++) != c) {
+					return null;
+				}
+			}
 		}
-		return (T) node.getValue();
+		return (T) node.value;
 	}
 	
 	/**
@@ -58,13 +170,21 @@ public class CharTree<T> {
 	public Pair<T, Integer> getFrom(String str, int index) {
 		Node node = root;
 		T val = null;
-		for (int i = index; i < str.length(); i++) {
+		int i = index;
+		while (i < str.length()) {
 			node = node.getNode(str.charAt(i));
 			if (node == null) {
 				return new Pair<>(val, i - index);
 			}
-			if (node.getValue() != null) {
-				val = (T) node.getValue();
+			i++;
+			for (char c : node.label) {
+				if (i >= str.length() || str.charAt(i) != c) {
+					return new Pair<>(val, i - index);
+				}
+				i++;
+			}
+			if (node.value != null) {
+				val = (T) node.value;
 			}
 		}
 		return new Pair<>(val, str.length() - index);
@@ -73,49 +193,148 @@ public class CharTree<T> {
 	public T getWith(ExpressionParser parser) {
 		Node node = root;
 		T val = null;
-		int lastParsed = parser.getCursor();
+		int end = parser.getCursor();
 		String input = parser.getInput();
-
-		for (int i = lastParsed; i < input.length(); i++) {
-			node = node.getNode(input.charAt(i));
+		int length = input.length();
+		
+		int i = end;
+		while (i < length) {
+			node = node.getNode(input.charAt(i++));
 			if (node == null) {
-				parser.setCursor(val == null ? parser.getCursor() : lastParsed + 1);
-				return val;
+				break;
 			}
-			T nodeValue = (T) node.getValue();
+			char[] label = node.label;
+			if (label.length != 0) {
+				if (!matches(input, i, label)) {
+					break;
+				}
+				i += label.length;
+			}
+			T nodeValue = (T) node.value;
 			if (nodeValue != null) {
-				lastParsed = i;
+				end = i;
 				val = nodeValue;
 			}
 		}
 		if (val != null) {
-			parser.setCursor(lastParsed + 1);
+			parser.setCursor(end);
 		}
 		return val;
 	}
 	
+	private static boolean matches(String str, int index, char[] label) {
+		if (str.length() - index < label.length) {
+			return false;
+		}
+		for (int i = 0; i < label.length; i++) {
+			if (str.charAt(index + i) != label[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	private static class Node {
 		
 		private Object value;
-		private final Node[] children = new Node[256];
+		private char[] label;
+		// Children are stored densely, indexed from the lowest key, when the keys are close together,
+		// and otherwise as sorted keys searched by binary search. The root, which every lookup starts from,
+		// stays dense over a wider span.
+		private char low;
+		private Node[] table = EMPTY_NODES;
+		private char[] keys;
+		private final int denseSpan;
+		private final Object owner;
 		
-		public Node getNode(char c) {
-			return children[c];
+		private Node(char[] label, int denseSpan, Object owner) {
+			this.label = label;
+			this.denseSpan = denseSpan;
+			this.owner = owner;
 		}
 		
-		public Node getOrCreateNode(char c) {
-			if (children[c] == null) {
-				children[c] = new Node();
+		private Node copy(Object owner) {
+			Node copy = new Node(label, denseSpan, owner);
+			copy.value = value;
+			copy.low = low;
+			copy.keys = keys;
+			copy.table = table.clone();
+			return copy;
+		}
+		
+		public Node getNode(char c) {
+			Node[] table = this.table;
+			if (keys == null) {
+				int index = c - low;
+				return index >= 0 && index < table.length ? table[index] : null;
 			}
-			return children[c];
+			int index = Arrays.binarySearch(keys, c);
+			return index < 0 ? null : table[index];
 		}
 		
-		public Object getValue() {
-			return value;
+		public void setNode(char c, Node child) {
+			if (keys == null) {
+				int index = c - low;
+				if (index >= 0 && index < table.length && table[index] != null) {
+					table[index] = child;
+					return;
+				}
+			} else {
+				int index = Arrays.binarySearch(keys, c);
+				if (index >= 0) {
+					table[index] = child;
+					return;
+				}
+			}
+			int size = 1;
+			char min = c;
+			char max = c;
+			for (int i = 0; i < table.length; i++) {
+				if (table[i] != null) {
+					char key = keyAt(i);
+					min = key < min ? key : min;
+					max = key > max ? key : max;
+					size++;
+				}
+			}
+			char[] newKeys = new char[size];
+			Node[] newChildren = new Node[size];
+			int count = 0;
+			boolean inserted = false;
+			for (int i = 0; i < table.length; i++) {
+				if (table[i] == null) {
+					continue;
+				}
+				char key = keyAt(i);
+				if (!inserted && c < key) {
+					newKeys[count] = c;
+					newChildren[count++] = child;
+					inserted = true;
+				}
+				newKeys[count] = key;
+				newChildren[count++] = table[i];
+			}
+			if (!inserted) {
+				newKeys[count] = c;
+				newChildren[count] = child;
+			}
+			int span = max - min + 1;
+			if (span > Math.max(size * 4 + 16, denseSpan)) {
+				keys = newKeys;
+				table = newChildren;
+				return;
+			}
+			Node[] dense = new Node[span];
+			for (int i = 0; i < size; i++) {
+				dense[newKeys[i] - min] = newChildren[i];
+			}
+			low = min;
+			keys = null;
+			table = dense;
 		}
 		
-		public void setValue(Object value) {
-			this.value = value;
+		private char keyAt(int index) {
+			return keys == null ? (char) (low + index) : keys[index];
 		}
 		
 	}
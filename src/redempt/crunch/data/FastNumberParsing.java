@@ -1,10 +1,39 @@
 package redempt.crunch.data;
 
+import java.math.BigInteger;
+
 /**
  * Utility class with some methods for parsing base 10 numbers (only ints and doubles for now) that are faster than the standard Java implementation
  */
 public class FastNumberParsing {
 	
+	private static final double[] POWERS_OF_TEN = new double[23];
+	private static final int MAX_MANTISSA_DIGITS = 19;
+	private static final long MAX_EXACT_INTEGER = 1L << 53;
+	
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+	
+	/**
+	 * Computes 10 raised to a power. Integer powers from 0 to 22 are exactly representable and are looked up from a table,
+	 * giving the same result as {@link Math#pow(double, double)} without calling it.
+	 * @param exponent The power to raise 10 to
+	 * @return 10 raised to the given power
+	 */
+	public static double powerOfTen(double exponent) {
+		if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+			int index = (int) exponent;
+			if (index == exponent) {
+				return POWERS_OF_TEN[index];
+			}
+		}
+		return Math.pow(10, exponent);
+	}
+	
 	/**
 	 * Parse an integer from base 10 string input
 	 * @param input The base 10 string input
@@ -53,7 +82,9 @@ public class FastNumberParsing {
 	}
 	
 	/**
-	 * Parse a double from base 10 string input, only real number values are supported (no NaN or Infinity)
+	 * Parse a double from base 10 string input, only real number values are supported (no NaN or Infinity).
+	 * The result is correctly rounded, the same as {@link Double#parseDouble(String)}. An exponent may follow the
+	 * digits, as in {@code 1.5E-3}.
 	 * @param input The base 10 string input
 	 * @param start The starting index to parse from, inclusive
 	 * @param end The ending index to parse to, exclusive
@@ -69,31 +100,181 @@ public class FastNumberParsing {
 			negative = true;
 			i++;
 		}
-		double output = 0;
-		double after = 0;
-		int decimal = -1;
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean decimal = false;
+		boolean anyDigits = false;
+		boolean truncated = false;
 		for (; i < end; i++) {
 			char c = input.charAt(i);
 			if (c == '.') {
-				if (decimal != -1) {
+				if (decimal) {
 					throw new NumberFormatException("Second period in double for input '" + input + "'");
 				}
-				decimal = i;
+				decimal = true;
 				continue;
 			}
+			if (c == 'E' || c == 'e') {
+				break;
+			}
 			if (c > '9' || c < '0') {
 				throw new NumberFormatException("Non-numeric character in input '" + input + "'");
 			}
-			if (decimal != -1) {
-				after *= 10;
-				after += c - '0';
+			anyDigits = true;
+			if (digits < MAX_MANTISSA_DIGITS) {
+				mantissa = mantissa * 10 + (c - '0');
+				// Leading zeros are not significant
+				if (mantissa != 0) {
+					digits++;
+				}
+				if (decimal) {
+					exponent--;
+				}
 			} else {
-				output *= 10;
-				output += c - '0';
+				truncated |= c != '0';
+				if (!decimal) {
+					exponent++;
+				}
 			}
 		}
-		after /= Math.pow(10, end - decimal - 1);
-		return negative ? (-output - after) : (output + after);
+		if (!anyDigits) {
+			throw new NumberFormatException("No digits in input '" + input + "'");
+		}
+		if (i < end) {
+			exponent += parseExponent(input, i + 1, end);
+		}
+		double result = toDouble(mantissa, exponent);
+		if (truncated && Double.doubleToRawLongBits(result) != Double.doubleToRawLongBits(toDouble(mantissa + 1, exponent))) {
+			// The dropped digits put the value between the two mantissas, which round differently
+			result = Double.NaN;
+		}
+		if (Double.isNaN(result)) {
+			return Double.parseDouble(input.substring(start, end));
+		}
+		return negative ? -result : result;
+	}
+	
+	private static int parseExponent(String input, int i, int end) {
+		boolean negative = false;
+		if (i < end && (input.charAt(i) == '-' || input.charAt(i) == '+')) {
+			negative = input.charAt(i) == '-';
+			i++;
+		}
+		if (i == end) {
+			throw new NumberFormatException("Missing exponent in input '" + input + "'");
+		}
+		int exponent = 0;
+		for (; i < end; i++) {
+			char c = input.charAt(i);
+			if (c > '9' || c < '0') {
+				throw new NumberFormatException("Non-numeric character in input '" + input + "'");
+			}
+			// Anything this large overflows or underflows regardless of the mantissa
+			exponent = Math.min(exponent * 10 + (c - '0'), 100_000);
+		}
+		return negative ? -exponent : exponent;
+	}
+	
+	/**
+	 * Computes the double nearest to mantissa * 10^exponent, using exact double arithmetic when both fit in a double
+	 * and the Eisel-Lemire algorithm otherwise
+	 * @param mantissa The decimal mantissa, with at most 19 digits
+	 * @param exponent The power of 10 to scale the mantissa by
+	 * @return The correctly rounded result, or NaN if it could not be determined and a slower method must be used
+	 */
+	private static double toDouble(long mantissa, int exponent) {
+		if (mantissa == 0) {
+			return 0;
+		}
+		if (Long.compareUnsigned(mantissa, MAX_EXACT_INTEGER) <= 0 && exponent >= -22 && exponent <= 22) {
+			// Both operands are exact, so the single rounding of the operation is the correct rounding
+			return exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		}
+		if (exponent < EiselLemire.MIN_EXPONENT || exponent > EiselLemire.MAX_EXPONENT) {
+			return Double.NaN;
+		}
+		return EiselLemire.toDouble(mantissa, exponent);
+	}
+	
+	/**
+	 * Eisel-Lemire conversion of a decimal mantissa and exponent to a double, as described in Daniel Lemire,
+	 * "Number Parsing at a Gigabyte per Second". The table of 128-bit powers of ten is only built once a literal
+	 * needs it.
+	 */
+	private static class EiselLemire {
+		
+		private static final int MIN_EXPONENT = -348;
+		private static final int MAX_EXPONENT = 347;
+		// The 128-bit mantissas of powers of ten, normalized so the highest bit is set and rounded down
+		private static final long[] HIGH = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+		private static final long[] LOW = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+		
+		static {
+			BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+			for (int exponent = MIN_EXPONENT; exponent <= MAX_EXPONENT; exponent++) {
+				BigInteger power = BigInteger.TEN.pow(Math.abs(exponent));
+				BigInteger normalized;
+				if (exponent >= 0) {
+					int shift = power.bitLength() - 128;
+					normalized = shift > 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+				} else {
+					normalized = BigInteger.ONE.shiftLeft(power.bitLength() + 127).divide(power);
+				}
+				HIGH[exponent - MIN_EXPONENT] = normalized.shiftRight(64).longValue();
+				LOW[exponent - MIN_EXPONENT] = normalized.and(mask).longValue();
+			}
+		}
+		
+		private static double toDouble(long mantissa, int exponent) {
+			int index = exponent - MIN_EXPONENT;
+			int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+			mantissa <<= leadingZeros;
+			long resultExponent = ((217706 * exponent) >> 16) + 64 + 1023 - leadingZeros;
+			long high = multiplyHigh(mantissa, HIGH[index]);
+			long low = mantissa * HIGH[index];
+			if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + mantissa, mantissa) < 0) {
+				// The truncated product may be off by one in the bits that decide rounding, so use the full 128 bits
+				long nextHigh = multiplyHigh(mantissa, LOW[index]);
+				long nextLow = mantissa * LOW[index];
+				long mergedLow = low + nextHigh;
+				long mergedHigh = Long.compareUnsigned(mergedLow, low) < 0 ? high + 1 : high;
+				if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow + 1 == 0 && Long.compareUnsigned(nextLow + mantissa, mantissa) < 0) {
+					return Double.NaN;
+				}
+				high = mergedHigh;
+				low = mergedLow;
+			}
+			int topBit = (int) (high >>> 63);
+			long resultMantissa = high >>> (topBit + 9);
+			resultExponent -= 1 ^ topBit;
+			if (low == 0 && (high & 0x1FF) == 0 && (resultMantissa & 3) == 1) {
+				// Exactly halfway between two doubles
+				return Double.NaN;
+			}
+			resultMantissa += resultMantissa & 1;
+			resultMantissa >>>= 1;
+			if ((resultMantissa >>> 53) > 0) {
+				resultMantissa >>>= 1;
+				resultExponent++;
+			}
+			if (resultExponent <= 0 || resultExponent >= 0x7FF) {
+				// Subnormal or infinite
+				return Double.NaN;
+			}
+			return Double.longBitsToDouble(resultExponent << 52 | resultMantissa & 0x000FFFFFFFFFFFFFL);
+		}
+		
+		private static long multiplyHigh(long x, long y) {
+			long x0 = x & 0xFFFFFFFFL;
+			long x1 = x >>> 32;
+			long y0 = y & 0xFFFFFFFFL;
+			long y1 = y >>> 32;
+			long carry = x1 * y0 + ((x0 * y0) >>> 32);
+			long middle = x0 * y1 + (carry & 0xFFFFFFFFL);
+			return x1 * y1 + (carry >>> 32) + (middle >>> 32);
+		}
+		
 	}
 	
 }
@@ -0,0 +1,11 @@
+package redempt.crunch.exceptions;
+
+public class ExpressionSerializationException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public ExpressionSerializationException(String message) {
+		super(message);
+	}
+	
+}
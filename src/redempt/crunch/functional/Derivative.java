@@ -0,0 +1,18 @@
+package redempt.crunch.functional;
+
+/**
+ * Computes the partial derivatives of a {@link Function} with respect to each of its arguments, so that expressions
+ * calling the function can be differentiated
+ * @author Redempt
+ */
+@FunctionalInterface
+public interface Derivative {
+	
+	/**
+	 * Computes the partial derivatives of the function at the given arguments
+	 * @param arguments The arguments the function was called with
+	 * @param partials The array to write the partial derivative with respect to each argument into, in order
+	 */
+	void apply(double[] arguments, double[] partials);
+	
+}
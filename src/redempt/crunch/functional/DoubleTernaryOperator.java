@@ -0,0 +1,19 @@
+package redempt.crunch.functional;
+
+/**
+ * Represents an operation on three double operands which produces a double result
+ * @author Redempt
+ */
+@FunctionalInterface
+public interface DoubleTernaryOperator {
+	
+	/**
+	 * Applies this operator to the given operands
+	 * @param first The first operand
+	 * @param second The second operand
+	 * @param third The third operand
+	 * @return The operator result
+	 */
+	double applyAsDouble(double first, double second, double third);
+	
+}
@@ -0,0 +1,52 @@
+package redempt.crunch.functional;
+
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the value of a DoubleSupplier until an epoch changes. The cached value and the epoch it was sampled in are
+ * published together, so readers on any thread see a consistent pair without locking, and the supplier is called only
+ * once per epoch even if several threads see the new epoch at the same time.
+ * @author Redempt
+ */
+final class EpochCachedSupplier implements DoubleSupplier {
+	
+	private final DoubleSupplier supplier;
+	private final LongSupplier epoch;
+	private volatile Sample sample;
+	
+	EpochCachedSupplier(DoubleSupplier supplier, LongSupplier epoch) {
+		this.supplier = supplier;
+		this.epoch = epoch;
+	}
+	
+	@Override
+	public double getAsDouble() {
+		long current = epoch.getAsLong();
+		Sample sample = this.sample;
+		if (sample != null && sample.epoch == current) {
+			return sample.value;
+		}
+		synchronized (this) {
+			sample = this.sample;
+			if (sample == null || sample.epoch != current) {
+				sample = new Sample(current, supplier.getAsDouble());
+				this.sample = sample;
+			}
+			return sample.value;
+		}
+	}
+	
+	private static final class Sample {
+		
+		private final long epoch;
+		private final double value;
+		
+		private Sample(long epoch, double value) {
+			this.epoch = epoch;
+			this.value = value;
+		}
+		
+	}
+	
+}
@@ -1,29 +1,34 @@
 package redempt.crunch.functional;
 
 import redempt.crunch.data.CharTree;
+import redempt.crunch.optimizer.Optimization;
 import redempt.crunch.token.*;
 import redempt.crunch.Variable;
 
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Locale;
+import java.util.Set;
+import java.util.function.DoubleBinaryOperator;
 import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.LongSupplier;
 import java.util.function.ToDoubleFunction;
 
 /**
- * Represents an environment containing functions that can be called in expressions
+ * Represents an environment containing functions that can be called in expressions.
+ * An environment can be frozen to make it read-only and safe to share between threads, and derived to get a mutable
+ * copy which shares its lookup tables with the original until names are added to it.
  * @author Redempt
  */
 public class ExpressionEnv {
-
-	private final CharTree<BinaryOperator> binaryOperators = new CharTree<>();
-	private final CharTree<Token> leadingOperators = new CharTree<>();
-	private final CharTree<Value> values = new CharTree<>();
-
-	private int varCount = 0;
 	
-	/**
-	 * Creates a new EvaluationEnvironment
-	 */
-	public ExpressionEnv() {
+	private static final ExpressionEnv BASE = createBase();
+	
+	private static ExpressionEnv createBase() {
+		CharTree<BinaryOperator> binaryOperators = new CharTree<>();
+		CharTree<Token> leadingOperators = new CharTree<>();
+		CharTree<Value> values = new CharTree<>();
 		for (BinaryOperator operator : BinaryOperator.values()) {
 			binaryOperators.set(operator.getSymbol(), operator);
 		}
@@ -33,6 +38,82 @@ public class ExpressionEnv {
 		for (Constant constant : Constant.values()) {
 			values.set(constant.toString().toLowerCase(Locale.ROOT), constant);
 		}
+		return new ExpressionEnv(binaryOperators, leadingOperators, values, EnumSet.noneOf(Optimization.class), 0).freeze();
+	}
+	
+	/**
+	 * Gets the shared, frozen environment containing only the built-in operators and constants. Deriving from it is
+	 * equivalent to creating a new environment.
+	 * @return The base environment
+	 */
+	public static ExpressionEnv base() {
+		return BASE;
+	}
+
+	private final CharTree<BinaryOperator> binaryOperators;
+	private final CharTree<Token> leadingOperators;
+	private final CharTree<Value> values;
+
+	private final Set<Optimization> optimizations;
+
+	private int varCount;
+	private int maxDepth = Integer.MAX_VALUE;
+	private int maxNodeCount = Integer.MAX_VALUE;
+	private volatile int version = 0;
+	private volatile boolean frozen;
+	
+	/**
+	 * Creates a new EvaluationEnvironment
+	 */
+	public ExpressionEnv() {
+		this(BASE.binaryOperators.derive(), BASE.leadingOperators.derive(), BASE.values.derive(), EnumSet.noneOf(Optimization.class), 0);
+	}
+	
+	private ExpressionEnv(CharTree<BinaryOperator> binaryOperators, CharTree<Token> leadingOperators, CharTree<Value> values,
+						  Set<Optimization> optimizations, int varCount) {
+		this.binaryOperators = binaryOperators;
+		this.leadingOperators = leadingOperators;
+		this.values = values;
+		this.optimizations = optimizations;
+		this.varCount = varCount;
+	}
+	
+	/**
+	 * Makes this environment read-only, so that it can be shared between threads and derived from without copying.
+	 * Any further attempt to modify it throws an {@link IllegalStateException}.
+	 * @return This environment
+	 */
+	public ExpressionEnv freeze() {
+		binaryOperators.freeze();
+		leadingOperators.freeze();
+		values.freeze();
+		frozen = true;
+		return this;
+	}
+	
+	/**
+	 * @return Whether this environment has been frozen
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	/**
+	 * Creates a mutable environment with the same functions, variables, lazy variables and optimizations as this one.
+	 * The lookup tables are shared with this environment, so deriving costs only as much as the names added afterwards.
+	 * @return The derived environment
+	 */
+	public ExpressionEnv derive() {
+		ExpressionEnv derived = new ExpressionEnv(binaryOperators.derive(), leadingOperators.derive(), values.derive(), EnumSet.copyOf(optimizations), varCount);
+		derived.maxDepth = maxDepth;
+		derived.maxNodeCount = maxNodeCount;
+		return derived;
+	}
+	
+	private void checkMutable() {
+		if (frozen) {
+			throw new IllegalStateException("ExpressionEnv is frozen");
+		}
 	}
 
 	private void checkName(String name) {
@@ -49,6 +130,7 @@ public class ExpressionEnv {
 	 * @param function The function
 	 */
 	public ExpressionEnv addFunction(Function function) {
+		checkMutable();
 		if (function == null) {
 			throw new IllegalArgumentException("Function cannot be null");
 		}
@@ -56,6 +138,7 @@ public class ExpressionEnv {
 		String name = function.getName();
 		this.checkName(name);
 		this.leadingOperators.set(name, function);
+		version++;
 		return this;
 	}
 	
@@ -80,16 +163,59 @@ public class ExpressionEnv {
 	 * @param supply A function to supply the value of the variable when needed
 	 */
 	public ExpressionEnv addLazyVariable(String name, DoubleSupplier supply) {
+		checkMutable();
 		if (supply == null) {
 			throw new IllegalArgumentException("Supply cannot be null");
 		}
 
 		checkName(name);
 		values.set(name, new LazyVariable(name, supply));
+		version++;
+		return this;
+	}
+	
+	/**
+	 * Adds a lazily-evaluated variable which is sampled at most once per evaluation of an expression using it, however
+	 * many times its name appears. The sampled value is kept in storage belonging to that evaluation, so evaluations
+	 * running at the same time on other threads sample the variable independently.
+	 * @param name The name of the lazy variable
+	 * @param supply A function to supply the value of the variable, called on its first use in each evaluation
+	 */
+	public ExpressionEnv addMemoizedLazyVariable(String name, DoubleSupplier supply) {
+		checkMutable();
+		if (supply == null) {
+			throw new IllegalArgumentException("Supply cannot be null");
+		}
+		checkName(name);
+		values.set(name, new LazyVariable(name, supply, true));
+		version++;
+		return this;
+	}
+	
+	/**
+	 * Adds a lazily-evaluated variable whose value is cached until an epoch chosen by the caller advances, such as a
+	 * tick counter. The supplier is called on the first use after the epoch changes, and every use until the next change
+	 * gets the same value, across all expressions and threads using the variable.
+	 * @param name The name of the lazy variable
+	 * @param supply A function to supply the value of the variable, called at most once per epoch
+	 * @param epoch A function to supply the current epoch
+	 */
+	public ExpressionEnv addLazyVariable(String name, DoubleSupplier supply, LongSupplier epoch) {
+		checkMutable();
+		if (supply == null) {
+			throw new IllegalArgumentException("Supply cannot be null");
+		}
+		if (epoch == null) {
+			throw new IllegalArgumentException("Epoch cannot be null");
+		}
+		checkName(name);
+		values.set(name, new LazyVariable(name, new EpochCachedSupplier(supply, epoch)));
+		version++;
 		return this;
 	}
 	
 	public ExpressionEnv setVariableNames(String... names) {
+		checkMutable();
 		if (names == null) {
 			throw new IllegalArgumentException("Names cannot be null");
 		}
@@ -99,6 +225,7 @@ public class ExpressionEnv {
 			checkName(names[i]);
 			values.set(names[i], new Variable(i));
 		}
+		version++;
 		return this;
 	}
 	
@@ -112,7 +239,142 @@ public class ExpressionEnv {
 		addFunction(new Function(name, argCount, func));
 		return this;
 	}
+	
+	/**
+	 * Adds a Function taking no arguments that can be called from expressions with this environment
+	 * @param name The function name
+	 * @param func The lambda to return a value
+	 */
+	public ExpressionEnv addFunction(String name, DoubleSupplier func) {
+		if (func == null) {
+			throw new IllegalArgumentException("Function cannot be null");
+		}
+		return addFunction(new Function(name, func));
+	}
+	
+	/**
+	 * Adds a Function taking one argument that can be called from expressions with this environment.
+	 * The argument is passed directly rather than through an array.
+	 * @param name The function name
+	 * @param func The lambda to accept the argument and return a value
+	 */
+	public ExpressionEnv addFunction(String name, DoubleUnaryOperator func) {
+		if (func == null) {
+			throw new IllegalArgumentException("Function cannot be null");
+		}
+		return addFunction(new Function(name, func));
+	}
+	
+	/**
+	 * Adds a Function taking two arguments that can be called from expressions with this environment.
+	 * The arguments are passed directly rather than through an array.
+	 * @param name The function name
+	 * @param func The lambda to accept the arguments and return a value
+	 */
+	public ExpressionEnv addFunction(String name, DoubleBinaryOperator func) {
+		if (func == null) {
+			throw new IllegalArgumentException("Function cannot be null");
+		}
+		return addFunction(new Function(name, func));
+	}
+	
+	/**
+	 * Adds a Function taking three arguments that can be called from expressions with this environment.
+	 * The arguments are passed directly rather than through an array.
+	 * @param name The function name
+	 * @param func The lambda to accept the arguments and return a value
+	 */
+	public ExpressionEnv addFunction(String name, DoubleTernaryOperator func) {
+		if (func == null) {
+			throw new IllegalArgumentException("Function cannot be null");
+		}
+		return addFunction(new Function(name, func));
+	}
+
+	/**
+	 * Enables optional compile passes for expressions compiled with this environment
+	 * @param optimizations The optimizations to enable
+	 */
+	public ExpressionEnv enableOptimizations(Optimization... optimizations) {
+		checkMutable();
+		if (optimizations == null) {
+			throw new IllegalArgumentException("Optimizations cannot be null");
+		}
+
+		Collections.addAll(this.optimizations, optimizations);
+		version++;
+		return this;
+	}
 
+	/**
+	 * Disables optional compile passes for expressions compiled with this environment
+	 * @param optimizations The optimizations to disable
+	 */
+	public ExpressionEnv disableOptimizations(Optimization... optimizations) {
+		checkMutable();
+		if (optimizations == null) {
+			throw new IllegalArgumentException("Optimizations cannot be null");
+		}
+
+		for (Optimization optimization : optimizations) {
+			this.optimizations.remove(optimization);
+		}
+		version++;
+		return this;
+	}
+
+	/**
+	 * @return The optional compile passes enabled for this environment
+	 */
+	public Set<Optimization> getOptimizations() {
+		return Collections.unmodifiableSet(this.optimizations);
+	}
+
+	/**
+	 * Limits how deeply expressions compiled with this environment may nest parentheses, function calls, unary
+	 * operators and conditionals. Expressions nested more deeply are rejected as soon as the parser reaches the limit.
+	 * @param maxDepth The maximum nesting depth
+	 */
+	public ExpressionEnv setMaxDepth(int maxDepth) {
+		checkMutable();
+		if (maxDepth < 1) {
+			throw new IllegalArgumentException("Max depth must be at least 1");
+		}
+		this.maxDepth = maxDepth;
+		version++;
+		return this;
+	}
+	
+	/**
+	 * @return The maximum nesting depth of expressions compiled with this environment, which is unlimited by default
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+	
+	/**
+	 * Limits how many values and operations expressions compiled with this environment may contain. Larger expressions
+	 * are rejected as soon as the parser reaches the limit.
+	 * @param maxNodeCount The maximum number of values and operations
+	 */
+	public ExpressionEnv setMaxNodeCount(int maxNodeCount) {
+		checkMutable();
+		if (maxNodeCount < 1) {
+			throw new IllegalArgumentException("Max node count must be at least 1");
+		}
+		this.maxNodeCount = maxNodeCount;
+		version++;
+		return this;
+	}
+	
+	/**
+	 * @return The maximum number of values and operations in expressions compiled with this environment, which is
+	 * unlimited by default
+	 */
+	public int getMaxNodeCount() {
+		return maxNodeCount;
+	}
+	
 	/**
 	 * @return The prefix tree of all leading operators, including unary operators and functions
 	 */
@@ -141,4 +403,13 @@ public class ExpressionEnv {
 		return this.varCount;
 	}
 	
+	/**
+	 * Gets a counter which changes whenever functions, lazy variables, variable names or optimizations change in this environment,
+	 * so that expressions compiled with an older version can be recognized as stale
+	 * @return The current version of this environment
+	 */
+	public int getVersion() {
+		return this.version;
+	}
+	
 }
@@ -3,6 +3,9 @@ package redempt.crunch.functional;
 import redempt.crunch.token.Token;
 import redempt.crunch.token.TokenType;
 
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.ToDoubleFunction;
 
 /**
@@ -14,6 +17,12 @@ public class Function implements Token {
 	private final String name;
 	private final int argCount;
 	private final ToDoubleFunction<double[]> function;
+	private final DoubleSupplier supplier;
+	private final DoubleUnaryOperator unaryOperator;
+	private final DoubleBinaryOperator binaryOperator;
+	private final DoubleTernaryOperator ternaryOperator;
+	private final boolean pure;
+	private final Derivative derivative;
 	
 	/**
 	 * Create a Function
@@ -22,9 +31,109 @@ public class Function implements Token {
 	 * @param function A lambda to take the arguments as a double array and return a value
 	 */
 	public Function(String name, int argCount, ToDoubleFunction<double[]> function) {
+		this(name, argCount, function, null, null, null, null, false, null);
+	}
+	
+	/**
+	 * Create a Function taking no arguments
+	 * @param name The function name
+	 * @param function A lambda to return a value
+	 */
+	public Function(String name, DoubleSupplier function) {
+		this(name, 0, values -> function.getAsDouble(), function, null, null, null, false, null);
+	}
+	
+	/**
+	 * Create a Function taking one argument, which is passed directly instead of through an array
+	 * @param name The function name
+	 * @param function A lambda to take the argument and return a value
+	 */
+	public Function(String name, DoubleUnaryOperator function) {
+		this(name, 1, values -> function.applyAsDouble(values[0]), null, function, null, null, false, null);
+	}
+	
+	/**
+	 * Create a Function taking two arguments, which are passed directly instead of through an array
+	 * @param name The function name
+	 * @param function A lambda to take the arguments and return a value
+	 */
+	public Function(String name, DoubleBinaryOperator function) {
+		this(name, 2, values -> function.applyAsDouble(values[0], values[1]), null, null, function, null, false, null);
+	}
+	
+	/**
+	 * Create a Function taking three arguments, which are passed directly instead of through an array
+	 * @param name The function name
+	 * @param function A lambda to take the arguments and return a value
+	 */
+	public Function(String name, DoubleTernaryOperator function) {
+		this(name, 3, values -> function.applyAsDouble(values[0], values[1], values[2]), null, null, null, function, false, null);
+	}
+	
+	private Function(String name, int argCount, ToDoubleFunction<double[]> function, DoubleSupplier supplier,
+					 DoubleUnaryOperator unaryOperator, DoubleBinaryOperator binaryOperator, DoubleTernaryOperator ternaryOperator,
+					 boolean pure, Derivative derivative) {
 		this.function = function;
 		this.name = name;
 		this.argCount = argCount;
+		this.supplier = supplier;
+		this.unaryOperator = unaryOperator;
+		this.binaryOperator = binaryOperator;
+		this.ternaryOperator = ternaryOperator;
+		this.pure = pure;
+		this.derivative = derivative;
+	}
+	
+	/**
+	 * Creates a copy of this function which is marked as pure, meaning it always returns the same result for the same
+	 * arguments and has no side effects. Pure functions let results be reused, such as by an
+	 * {@link redempt.crunch.incremental.IncrementalEvaluator}, instead of calling the function again.
+	 * @return A pure copy of this function
+	 */
+	public Function pure() {
+		return new Function(name, argCount, function, supplier, unaryOperator, binaryOperator, ternaryOperator, true, derivative);
+	}
+	
+	/**
+	 * Creates a copy of this function which can be differentiated, so that expressions calling it support
+	 * {@link redempt.crunch.CompiledExpression#gradient()}
+	 * @param derivative The partial derivatives of this function with respect to each of its arguments
+	 * @return A differentiable copy of this function
+	 */
+	public Function withDerivative(Derivative derivative) {
+		if (derivative == null) {
+			throw new IllegalArgumentException("Derivative cannot be null");
+		}
+		return new Function(name, argCount, function, supplier, unaryOperator, binaryOperator, ternaryOperator, pure, derivative);
+	}
+	
+	/**
+	 * Creates a copy of this function taking one argument which can be differentiated
+	 * @param derivative The derivative of this function at its argument
+	 * @return A differentiable copy of this function
+	 */
+	public Function withDerivative(DoubleUnaryOperator derivative) {
+		if (derivative == null) {
+			throw new IllegalArgumentException("Derivative cannot be null");
+		}
+		if (argCount != 1) {
+			throw new IllegalStateException("Function " + name + " takes " + argCount + " arguments, not 1");
+		}
+		return withDerivative((arguments, partials) -> partials[0] = derivative.applyAsDouble(arguments[0]));
+	}
+	
+	/**
+	 * @return The partial derivatives of this function, or null if it cannot be differentiated
+	 */
+	public Derivative getDerivative() {
+		return derivative;
+	}
+	
+	/**
+	 * @return Whether this function is marked as pure with {@link Function#pure()}
+	 */
+	public boolean isPure() {
+		return pure;
 	}
 	
 	/**
@@ -50,6 +159,34 @@ public class Function implements Token {
 		return function.applyAsDouble(values);
 	}
 	
+	/**
+	 * @return The lambda taking no arguments, or null if this function was not created from a DoubleSupplier
+	 */
+	public DoubleSupplier getSupplier() {
+		return supplier;
+	}
+	
+	/**
+	 * @return The lambda taking one argument, or null if this function was not created from a DoubleUnaryOperator
+	 */
+	public DoubleUnaryOperator getUnaryOperator() {
+		return unaryOperator;
+	}
+	
+	/**
+	 * @return The lambda taking two arguments, or null if this function was not created from a DoubleBinaryOperator
+	 */
+	public DoubleBinaryOperator getBinaryOperator() {
+		return binaryOperator;
+	}
+	
+	/**
+	 * @return The lambda taking three arguments, or null if this function was not created from a DoubleTernaryOperator
+	 */
+	public DoubleTernaryOperator getTernaryOperator() {
+		return ternaryOperator;
+	}
+	
 	@Override
 	public TokenType getType() {
 		return TokenType.FUNCTION;
@@ -3,20 +3,67 @@ package redempt.crunch.functional;
 import redempt.crunch.token.TokenType;
 import redempt.crunch.token.Value;
 
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+
 /**
  * Represents a lazy function call with other lazy values as function arguments
  * @author Redempt
  */
 public class FunctionCall implements Value {
 	
-	private final Value[] values;
-	private final Function function;
-	private final double[] numbers;
+	/**
+	 * Creates a call to a Function, passing the arguments directly to the function's lambda if it was created with a
+	 * fixed-arity interface, and through a double array otherwise. Fixed-arity calls hold no mutable state, and other
+	 * calls borrow their argument array for the duration of each call.
+	 * @param function The Function to call
+	 * @param values The Values to pass as arguments
+	 * @return The function call
+	 */
+	public static FunctionCall of(Function function, Value[] values) {
+		if (function.getSupplier() != null) {
+			return new NullaryCall(function, values);
+		}
+		if (function.getUnaryOperator() != null) {
+			return new UnaryCall(function, values);
+		}
+		if (function.getBinaryOperator() != null) {
+			return new BinaryCall(function, values);
+		}
+		if (function.getTernaryOperator() != null) {
+			return new TernaryCall(function, values);
+		}
+		return new FunctionCall(function, values);
+	}
+	
+	protected final Value[] values;
+	protected final Function function;
+	private final AtomicReference<double[]> spare;
 	
 	public FunctionCall(Function function, Value[] values) {
+		this(function, values, new AtomicReference<>());
+	}
+	
+	private FunctionCall(Function function, Value[] values, AtomicReference<double[]> spare) {
 		this.function = function;
 		this.values = values;
-		numbers = new double[function.getArgCount()];
+		this.spare = spare;
+	}
+	
+	/**
+	 * @return The Function being called
+	 */
+	public Function getFunction() {
+		return function;
+	}
+	
+	/**
+	 * @return The Values passed as arguments to the Function
+	 */
+	public Value[] getArguments() {
+		return values;
 	}
 	
 	@Override
@@ -26,17 +73,26 @@ public class FunctionCall implements Value {
 	
 	@Override
 	public double getValue(double[] variableValues) {
+		// Borrow the spare argument array, or allocate one if another call is already using it
+		double[] numbers = spare.getAndSet(null);
+		if (numbers == null) {
+			numbers = new double[function.getArgCount()];
+		}
 		for (int i = 0; i < values.length; i++) {
 			numbers[i] = values[i].getValue(variableValues);
 		}
-		return function.call(numbers);
+		double result = function.call(numbers);
+		spare.lazySet(numbers);
+		return result;
 	}
 	
 	@Override
 	public Value getClone() {
 		Value[] clone = new Value[values.length];
-		System.arraycopy(values, 0, clone, 0, values.length);
-		return new FunctionCall(function, values);
+		for (int i = 0; i < values.length; i++) {
+			clone[i] = values[i].getClone();
+		}
+		return of(function, clone);
 	}
 	
 	public String toString() {
@@ -51,4 +107,81 @@ public class FunctionCall implements Value {
 		return builder.append(')').toString();
 	}
 	
+	private static final class NullaryCall extends FunctionCall {
+		
+		private final DoubleSupplier supplier;
+		
+		private NullaryCall(Function function, Value[] values) {
+			super(function, values, null);
+			supplier = function.getSupplier();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return supplier.getAsDouble();
+		}
+		
+	}
+	
+	private static final class UnaryCall extends FunctionCall {
+		
+		private final DoubleUnaryOperator operator;
+		private final Value first;
+		
+		private UnaryCall(Function function, Value[] values) {
+			super(function, values, null);
+			operator = function.getUnaryOperator();
+			first = values[0];
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return operator.applyAsDouble(first.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class BinaryCall extends FunctionCall {
+		
+		private final DoubleBinaryOperator operator;
+		private final Value first;
+		private final Value second;
+		
+		private BinaryCall(Function function, Value[] values) {
+			super(function, values, null);
+			operator = function.getBinaryOperator();
+			first = values[0];
+			second = values[1];
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return operator.applyAsDouble(first.getValue(variableValues), second.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class TernaryCall extends FunctionCall {
+		
+		private final DoubleTernaryOperator operator;
+		private final Value first;
+		private final Value second;
+		private final Value third;
+		
+		private TernaryCall(Function function, Value[] values) {
+			super(function, values, null);
+			operator = function.getTernaryOperator();
+			first = values[0];
+			second = values[1];
+			third = values[2];
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return operator.applyAsDouble(first.getValue(variableValues), second.getValue(variableValues),
+					third.getValue(variableValues));
+		}
+		
+	}
+	
 }
@@ -0,0 +1,436 @@
+package redempt.crunch.gradient;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Variable;
+import redempt.crunch.data.FastNumberParsing;
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.Derivative;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.MemoizedVariable;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the value of an expression along with its partial derivative with respect to every variable, in a single
+ * forward pass and a single reverse pass over the nodes the forward pass computed. The forward pass evaluates the
+ * expression the same way the tree does, so conditionals and short-circuiting operations only evaluate the operands
+ * they would, and the reverse pass propagates derivatives only through the branches which were taken.
+ * <p>
+ * Every operator has a built-in derivative. Comparisons, logical operations, {@code round}, {@code floor} and
+ * {@code ceil} are treated as having a derivative of 0 everywhere, and lazy variables are treated as constants.
+ * Functions can only be differentiated if they have a {@link Derivative} registered with
+ * {@link Function#withDerivative(Derivative)}.
+ * <p>
+ * The tape, node values and adjoints are kept between calls rather than allocated per call, so unlike a
+ * {@link CompiledExpression}, a Gradient is used by one thread at a time, and each thread needs its own copy from
+ * {@link Gradient#clone()}.
+ * @author Redempt
+ */
+public class Gradient {
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	private static final double LN_10 = Math.log(10);
+	
+	private final CompiledExpression expression;
+	private final Value[] nodes;
+	private final TokenType[] types;
+	private final int[][] children;
+	private final double[][] arguments;
+	private final double[][] argumentPartials;
+	private final boolean[] active;
+	private final double[] results;
+	private final double[] adjoints;
+	private final long[] computed;
+	private final int[] tape;
+	private final int variableCount;
+	private final int root;
+	private double[] variables;
+	private int tapeSize;
+	private long stamp;
+	
+	/**
+	 * Creates a Gradient for an expression
+	 * @param expression The expression to differentiate
+	 * @throws IllegalStateException If the expression calls a function without a registered derivative, uses rand, or
+	 *                               is too tall to walk recursively, as reported by {@link CompiledExpression#isFlat()}
+	 */
+	public Gradient(CompiledExpression expression) {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression cannot be null");
+		}
+		if (expression.isFlat()) {
+			throw new IllegalStateException("Expression is too deep to differentiate");
+		}
+		this.expression = expression;
+		variableCount = expression.getVariableCount();
+		Flattener flattener = new Flattener();
+		root = flattener.add(expression.getValue());
+		nodes = flattener.nodes.toArray(new Value[0]);
+		children = flattener.children.toArray(new int[0][]);
+		int count = nodes.length;
+		types = new TokenType[count];
+		arguments = new double[count][];
+		argumentPartials = new double[count][];
+		// Nodes which do not depend on any variable have no derivatives worth propagating
+		active = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			types[i] = nodes[i].getType();
+			if (types[i] == TokenType.FUNCTION_CALL) {
+				arguments[i] = new double[children[i].length];
+				argumentPartials[i] = new double[children[i].length];
+			}
+			active[i] = types[i] == TokenType.VARIABLE;
+			for (int child : children[i]) {
+				// Children are always added before their parents
+				active[i] |= active[child];
+			}
+		}
+		results = new double[count];
+		adjoints = new double[count];
+		computed = new long[count];
+		tape = new int[count];
+	}
+	
+	/**
+	 * Evaluates the expression and its partial derivatives
+	 * @param values The values for variables used in the expression, in order starting with 1
+	 * @param partials The array to write the partial derivative with respect to each variable into, in order starting
+	 *                 with 1. Entries for variables the expression does not use are set to 0.
+	 * @return The value of the expression
+	 */
+	public double evaluate(double[] values, double[] partials) {
+		if (values.length < variableCount) {
+			throw new ExpressionEvaluationException("Too few variable values - expected " + variableCount + ", got " + values.length);
+		}
+		if (partials.length < variableCount) {
+			throw new ExpressionEvaluationException("Partials array too small - expected " + variableCount + ", got " + partials.length);
+		}
+		variables = values;
+		stamp++;
+		tapeSize = 0;
+		double result = forward(root);
+		Arrays.fill(partials, 0, variableCount, 0);
+		for (int i = 0; i < tapeSize; i++) {
+			adjoints[tape[i]] = 0;
+		}
+		adjoints[root] = 1;
+		// Nodes are on the tape after everything they depend on, so walking it backwards visits each node only once all
+		// of its uses have added to its adjoint
+		for (int i = tapeSize - 1; i >= 0; i--) {
+			int node = tape[i];
+			double adjoint = adjoints[node];
+			if (adjoint != 0 && active[node]) {
+				backward(node, adjoint, partials);
+			}
+		}
+		variables = null;
+		return result;
+	}
+	
+	/**
+	 * Evaluates the partial derivatives of the expression
+	 * @param values The values for variables used in the expression, in order starting with 1
+	 * @return The partial derivative with respect to each variable, in order starting with 1
+	 */
+	public double[] partials(double... values) {
+		double[] partials = new double[variableCount];
+		evaluate(values, partials);
+		return partials;
+	}
+	
+	/**
+	 * @return The number of variables the expression uses, which is also the number of partial derivatives
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+	
+	/**
+	 * Creates a copy of this Gradient which shares no mutable state with it, so that the copy can be evaluated on
+	 * another thread at the same time as this one
+	 * @return A clone of this Gradient
+	 */
+	public Gradient clone() {
+		return new Gradient(expression.clone());
+	}
+	
+	private double forward(int node) {
+		if (computed[node] == stamp) {
+			return results[node];
+		}
+		double result = compute(node);
+		results[node] = result;
+		computed[node] = stamp;
+		tape[tapeSize++] = node;
+		return result;
+	}
+	
+	private double compute(int node) {
+		Value value = nodes[node];
+		int[] operands = children[node];
+		switch (types[node]) {
+			case LITERAL_VALUE:
+				return value.getValue(NO_VARIABLES);
+			case VARIABLE:
+				return variables[((Variable) value).getIndex()];
+			case BINARY_OPERATION:
+				return computeBinaryOperation(((BinaryOperation) value).getOperator(), forward(operands[0]), forward(operands[1]));
+			case UNARY_OPERATION:
+				return ((UnaryOperation) value).getOperator().getOperation().applyAsDouble(forward(operands[0]));
+			case LOGICAL_OPERATION: {
+				boolean and = ((LogicalOperation) value).isAnd();
+				if ((forward(operands[0]) == 1) != and) {
+					return and ? 0 : 1;
+				}
+				return forward(operands[1]) == 1 ? 1 : 0;
+			}
+			case CONDITIONAL:
+				return forward(operands[0]) == 1 ? forward(operands[1]) : forward(operands[2]);
+			case INTEGER_POWER:
+				return IntegerPower.pow(forward(operands[0]), ((IntegerPower) value).getExponent());
+			case FUNCTION_CALL: {
+				double[] args = arguments[node];
+				for (int i = 0; i < operands.length; i++) {
+					args[i] = forward(operands[i]);
+				}
+				return ((FunctionCall) value).getFunction().call(args);
+			}
+			case SHARED_SCOPE:
+			case SHARED_VALUE:
+				return forward(operands[0]);
+			case MEMOIZED_VARIABLE:
+				return ((MemoizedVariable) value).getVariable().getValue(NO_VARIABLES);
+			default:
+				return value.getValue(variables);
+		}
+	}
+	
+	private static double computeBinaryOperation(BinaryOperator operator, double first, double second) {
+		// The most common operators are applied directly rather than through their lambdas
+		switch (operator) {
+			case ADD:
+				return first + second;
+			case SUBTRACT:
+				return first - second;
+			case MULTIPLY:
+				return first * second;
+			case DIVIDE:
+				return first / second;
+			default:
+				return operator.getOperation().applyAsDouble(first, second);
+		}
+	}
+	
+	/**
+	 * Adds the adjoint of a node, multiplied by the partial derivative of the node with respect to each operand, to the
+	 * adjoint of that operand
+	 */
+	private void backward(int node, double adjoint, double[] partials) {
+		Value value = nodes[node];
+		int[] operands = children[node];
+		double result = results[node];
+		switch (types[node]) {
+			case VARIABLE:
+				partials[((Variable) value).getIndex()] += adjoint;
+				return;
+			case BINARY_OPERATION: {
+				double first = results[operands[0]];
+				double second = results[operands[1]];
+				switch (((BinaryOperation) value).getOperator()) {
+					case ADD:
+						adjoints[operands[0]] += adjoint;
+						adjoints[operands[1]] += adjoint;
+						return;
+					case SUBTRACT:
+						adjoints[operands[0]] += adjoint;
+						adjoints[operands[1]] -= adjoint;
+						return;
+					case MULTIPLY:
+						adjoints[operands[0]] += adjoint * second;
+						adjoints[operands[1]] += adjoint * first;
+						return;
+					case DIVIDE:
+						adjoints[operands[0]] += adjoint / second;
+						adjoints[operands[1]] -= adjoint * result / second;
+						return;
+					case MODULUS:
+						adjoints[operands[0]] += adjoint;
+						adjoints[operands[1]] -= adjoint * ((first - result) / second);
+						return;
+					case EXPONENT:
+						adjoints[operands[0]] += second == 0 ? 0 : adjoint * second * Math.pow(first, second - 1);
+						// The limit of x^y * ln(x) as x^y approaches 0 is 0, rather than the NaN computing it would give
+						if (active[operands[1]]) {
+							adjoints[operands[1]] += result == 0 ? 0 : adjoint * result * Math.log(first);
+						}
+						return;
+					case SCIENTIFIC_NOTATION:
+						adjoints[operands[0]] += adjoint * FastNumberParsing.powerOfTen(second);
+						adjoints[operands[1]] += adjoint * result * LN_10;
+						return;
+					default:
+						// Comparisons and logical operators are piecewise constant
+						return;
+				}
+			}
+			case UNARY_OPERATION: {
+				int operand = operands[0];
+				adjoints[operand] += adjoint * derivative(((UnaryOperation) value).getOperator(), results[operand], result);
+				return;
+			}
+			case CONDITIONAL:
+				adjoints[results[operands[0]] == 1 ? operands[1] : operands[2]] += adjoint;
+				return;
+			case INTEGER_POWER: {
+				int exponent = ((IntegerPower) value).getExponent();
+				double base = results[operands[0]];
+				adjoints[operands[0]] += exponent == 0 ? 0 : adjoint * exponent * IntegerPower.pow(base, exponent - 1);
+				return;
+			}
+			case FUNCTION_CALL: {
+				double[] argumentPartials = this.argumentPartials[node];
+				((FunctionCall) value).getFunction().getDerivative().apply(arguments[node], argumentPartials);
+				for (int i = 0; i < operands.length; i++) {
+					adjoints[operands[i]] += adjoint * argumentPartials[i];
+				}
+				return;
+			}
+			case SHARED_SCOPE:
+			case SHARED_VALUE:
+				adjoints[operands[0]] += adjoint;
+				return;
+			default:
+				// Literals, lazy variables and logical operations have no operands to differentiate with respect to
+				return;
+		}
+	}
+	
+	private static double derivative(UnaryOperator operator, double operand, double result) {
+		switch (operator) {
+			case NEGATE:
+				return -1;
+			case SIN:
+				return Math.cos(operand);
+			case COS:
+				return -Math.sin(operand);
+			case TAN:
+				return 1 + result * result;
+			case SINH:
+				return Math.cosh(operand);
+			case COSH:
+				return Math.sinh(operand);
+			case TANH:
+				return 1 - result * result;
+			case ASIN:
+				return 1 / Math.sqrt(1 - operand * operand);
+			case ACOS:
+				return -1 / Math.sqrt(1 - operand * operand);
+			case ATAN:
+				return 1 / (1 + operand * operand);
+			case ABS:
+				return Math.signum(operand);
+			case LOG:
+				return 1 / operand;
+			case SQRT:
+				return 0.5 / result;
+			case CBRT:
+				return 1 / (3 * result * result);
+			default:
+				// NOT, round, floor and ceil are piecewise constant
+				return 0;
+		}
+	}
+	
+	/**
+	 * Flattens an expression into arrays of nodes and their operands in post-order. Nodes which appear more than once
+	 * are added once, except lazy variables, which are sampled at each place they are used just like the expression would.
+	 */
+	private static class Flattener {
+	
+		private final List<Value> nodes = new ArrayList<>();
+		private final List<int[]> children = new ArrayList<>();
+		private final Map<Value, Integer> indices = new IdentityHashMap<>();
+		
+		private int add(Value value) {
+			Integer existing = indices.get(value);
+			if (existing != null) {
+				return existing;
+			}
+			int[] operands;
+			switch (value.getType()) {
+				case BINARY_OPERATION:
+					operands = addAll(((BinaryOperation) value).getValues());
+					break;
+				case LOGICAL_OPERATION:
+					operands = addAll(((LogicalOperation) value).getValues());
+					break;
+				case UNARY_OPERATION: {
+					UnaryOperation operation = (UnaryOperation) value;
+					if (!operation.getOperator().isPure()) {
+						throw new IllegalStateException(operation.getOperator().getSymbol() + " cannot be differentiated");
+					}
+					operands = addAll(operation.getChild());
+					break;
+				}
+				case INTEGER_POWER:
+					operands = addAll(((IntegerPower) value).getBase());
+					break;
+				case CONDITIONAL: {
+					Conditional conditional = (Conditional) value;
+					operands = addAll(conditional.getCondition(), conditional.getIfTrue(), conditional.getIfFalse());
+					break;
+				}
+				case FUNCTION_CALL: {
+					FunctionCall call = (FunctionCall) value;
+					if (call.getFunction().getDerivative() == null) {
+						throw new IllegalStateException("Function " + call.getFunction().getName() + " has no derivative");
+					}
+					operands = addAll(call.getArguments());
+					break;
+				}
+				case SHARED_SCOPE:
+					operands = addAll(((SharedScope) value).getChild());
+					break;
+				case SHARED_VALUE:
+					operands = addAll(((SharedValue) value).getDefinition());
+					break;
+				default:
+					operands = new int[0];
+					break;
+			}
+			int index = nodes.size();
+			nodes.add(value);
+			children.add(operands);
+			if (value.getType() != TokenType.LAZY_VARIABLE) {
+				indices.put(value, index);
+			}
+			return index;
+		}
+		
+		private int[] addAll(Value... values) {
+			int[] operands = new int[values.length];
+			for (int i = 0; i < values.length; i++) {
+				operands[i] = add(values[i]);
+			}
+			return operands;
+		}
+	
+	}
+	
+}
@@ -0,0 +1,380 @@
+package redempt.crunch.incremental;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Variable;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.MemoizedVariable;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates an expression repeatedly while only some of its variables change between evaluations. The result of every
+ * node in the expression is cached, and setting a variable marks only the nodes which depend on it as dirty, so the
+ * next evaluation recomputes the path from that variable to the root and reuses everything else.
+ * <p>
+ * Nodes whose result can change without any variable changing are recomputed on every evaluation, along with every
+ * node above them. These are lazy variables, {@code rand}, and functions which are not marked with
+ * {@link Function#pure()}. Conditionals and short-circuiting operations only evaluate the operands the expression
+ * itself would, so the results and the calls made to impure nodes are the same as evaluating the expression directly.
+ * <p>
+ * An IncrementalEvaluator is not thread-safe, and each thread needs its own.
+ * @author Redempt
+ */
+public class IncrementalEvaluator {
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	private final List<Value> nodeList = new ArrayList<>();
+	private final List<int[]> childList = new ArrayList<>();
+	private final Map<Value, Integer> indices = new IdentityHashMap<>();
+	
+	private final Value[] nodes;
+	private final TokenType[] types;
+	private final int[][] children;
+	private final int[][] parents;
+	private final int[][] dependents;
+	private final int[] alwaysDirty;
+	private final double[][] arguments;
+	private final double[] results;
+	private final boolean[] dirty;
+	private final long[] marks;
+	private final double[] variables;
+	private final int root;
+	private long mark;
+	private int recomputed;
+	
+	/**
+	 * Creates an IncrementalEvaluator for an expression, with every variable initially set to 0
+	 * @param expression The expression to evaluate
+	 * @throws IllegalStateException If the expression is too tall to walk recursively, as reported by
+	 *                               {@link CompiledExpression#isFlat()}
+	 */
+	public IncrementalEvaluator(CompiledExpression expression) {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression cannot be null");
+		}
+		if (expression.isFlat()) {
+			throw new IllegalStateException("Expression is too deep to evaluate incrementally");
+		}
+		variables = new double[expression.getVariableCount()];
+		root = add(expression.getValue());
+		nodes = nodeList.toArray(new Value[0]);
+		children = childList.toArray(new int[0][]);
+		int count = nodes.length;
+		types = new TokenType[count];
+		for (int i = 0; i < count; i++) {
+			types[i] = nodes[i].getType();
+		}
+		results = new double[count];
+		dirty = new boolean[count];
+		marks = new long[count];
+		arguments = new double[count][];
+		Arrays.fill(dirty, true);
+		
+		int[] parentCounts = new int[count];
+		int[] dependentCounts = new int[variables.length];
+		boolean[] impure = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			for (int child : children[i]) {
+				parentCounts[child]++;
+				// Children are always added before their parents
+				impure[i] |= impure[child];
+			}
+			impure[i] |= isImpure(nodes[i]);
+			if (nodes[i].getType() == TokenType.VARIABLE) {
+				dependentCounts[((Variable) nodes[i]).getIndex()]++;
+			} else if (nodes[i].getType() == TokenType.FUNCTION_CALL) {
+				arguments[i] = new double[children[i].length];
+			}
+		}
+		parents = new int[count][];
+		for (int i = 0; i < count; i++) {
+			parents[i] = new int[parentCounts[i]];
+			parentCounts[i] = 0;
+		}
+		dependents = new int[variables.length][];
+		for (int i = 0; i < variables.length; i++) {
+			dependents[i] = new int[dependentCounts[i]];
+			dependentCounts[i] = 0;
+		}
+		int impureCount = 0;
+		for (int i = 0; i < count; i++) {
+			for (int child : children[i]) {
+				parents[child][parentCounts[child]++] = i;
+			}
+			if (nodes[i].getType() == TokenType.VARIABLE) {
+				int index = ((Variable) nodes[i]).getIndex();
+				dependents[index][dependentCounts[index]++] = i;
+			}
+			if (impure[i]) {
+				impureCount++;
+			}
+		}
+		alwaysDirty = new int[impureCount];
+		for (int i = 0, j = 0; i < count; i++) {
+			if (impure[i]) {
+				alwaysDirty[j++] = i;
+			}
+		}
+	}
+	
+	/**
+	 * Sets the value of a variable. Nodes which depend on it are recomputed on the next evaluation, unless the value is
+	 * the same as its current value.
+	 * @param index The index of the variable, where $1 has index 0
+	 * @param value The new value of the variable
+	 */
+	public void set(int index, double value) {
+		if (index < 0 || index >= variables.length) {
+			throw new IllegalArgumentException("Variable index " + index + " out of range for " + variables.length + " variables");
+		}
+		mark++;
+		update(index, value);
+	}
+	
+	/**
+	 * Sets the values of all variables, only marking nodes dirty for the values which changed
+	 * @param values The new values of the variables, in order
+	 */
+	public void setAll(double... values) {
+		if (values.length != variables.length) {
+			throw new IllegalArgumentException("Expected " + variables.length + " values, got " + values.length);
+		}
+		mark++;
+		for (int i = 0; i < values.length; i++) {
+			update(i, values[i]);
+		}
+	}
+	
+	private void update(int index, double value) {
+		if (Double.doubleToRawLongBits(variables[index]) == Double.doubleToRawLongBits(value)) {
+			return;
+		}
+		variables[index] = value;
+		for (int dependent : dependents[index]) {
+			markDirty(dependent);
+		}
+	}
+	
+	/**
+	 * Gets the current value of a variable
+	 * @param index The index of the variable, where $1 has index 0
+	 * @return The value of the variable
+	 */
+	public double get(int index) {
+		if (index < 0 || index >= variables.length) {
+			throw new IllegalArgumentException("Variable index " + index + " out of range for " + variables.length + " variables");
+		}
+		return variables[index];
+	}
+	
+	/**
+	 * Evaluates the expression with the current variable values, recomputing only the nodes which may have changed
+	 * @return The result of the expression
+	 */
+	public double evaluate() {
+		for (int node : alwaysDirty) {
+			dirty[node] = true;
+		}
+		recomputed = 0;
+		return pull(root);
+	}
+	
+	/**
+	 * @return The number of variables the expression uses
+	 */
+	public int getVariableCount() {
+		return variables.length;
+	}
+	
+	/**
+	 * @return The number of distinct nodes in the expression
+	 */
+	public int getNodeCount() {
+		return nodes.length;
+	}
+	
+	/**
+	 * @return The number of nodes recomputed by the last call to {@link IncrementalEvaluator#evaluate()}
+	 */
+	public int getRecomputedCount() {
+		return recomputed;
+	}
+	
+	/**
+	 * Marks a node and every node above it dirty. Each node is visited at most once per call to set or setAll, but the
+	 * walk does not stop at nodes which are already dirty, since an untaken branch can stay dirty below a node which was
+	 * recomputed without it.
+	 */
+	private void markDirty(int node) {
+		if (marks[node] == mark) {
+			return;
+		}
+		marks[node] = mark;
+		dirty[node] = true;
+		for (int parent : parents[node]) {
+			markDirty(parent);
+		}
+	}
+	
+	private double pull(int node) {
+		if (!dirty[node]) {
+			return results[node];
+		}
+		double result = compute(node);
+		results[node] = result;
+		dirty[node] = false;
+		recomputed++;
+		return result;
+	}
+	
+	private double compute(int node) {
+		Value value = nodes[node];
+		int[] operands = children[node];
+		switch (types[node]) {
+			case LITERAL_VALUE:
+				return value.getValue(NO_VARIABLES);
+			case VARIABLE:
+				return variables[((Variable) value).getIndex()];
+			case BINARY_OPERATION:
+				return computeBinaryOperation(((BinaryOperation) value).getOperator(), pull(operands[0]), pull(operands[1]));
+			case UNARY_OPERATION:
+				return ((UnaryOperation) value).getOperator().getOperation().applyAsDouble(pull(operands[0]));
+			case LOGICAL_OPERATION: {
+				boolean and = ((LogicalOperation) value).isAnd();
+				if ((pull(operands[0]) == 1) != and) {
+					return and ? 0 : 1;
+				}
+				return pull(operands[1]) == 1 ? 1 : 0;
+			}
+			case CONDITIONAL:
+				return pull(operands[0]) == 1 ? pull(operands[1]) : pull(operands[2]);
+			case INTEGER_POWER:
+				return IntegerPower.pow(pull(operands[0]), ((IntegerPower) value).getExponent());
+			case FUNCTION_CALL: {
+				double[] args = arguments[node];
+				for (int i = 0; i < operands.length; i++) {
+					args[i] = pull(operands[i]);
+				}
+				return ((FunctionCall) value).getFunction().call(args);
+			}
+			case SHARED_SCOPE:
+			case SHARED_VALUE:
+				return pull(operands[0]);
+			case MEMOIZED_VARIABLE:
+				return ((MemoizedVariable) value).getVariable().getValue(NO_VARIABLES);
+			default:
+				return value.getValue(variables);
+		}
+	}
+	
+	private static double computeBinaryOperation(BinaryOperator operator, double first, double second) {
+		// The most common operators are applied directly rather than through their lambdas
+		switch (operator) {
+			case ADD:
+				return first + second;
+			case SUBTRACT:
+				return first - second;
+			case MULTIPLY:
+				return first * second;
+			case DIVIDE:
+				return first / second;
+			default:
+				return operator.getOperation().applyAsDouble(first, second);
+		}
+	}
+	
+	/**
+	 * Adds a node and its children in post-order. Nodes which appear more than once are added once, except impure
+	 * leaves like lazy variables, which are sampled at each place they are used just like the expression would.
+	 */
+	private int add(Value value) {
+		Integer existing = indices.get(value);
+		if (existing != null) {
+			return existing;
+		}
+		int[] operands;
+		switch (value.getType()) {
+			case BINARY_OPERATION:
+				operands = addAll(((BinaryOperation) value).getValues());
+				break;
+			case LOGICAL_OPERATION:
+				operands = addAll(((LogicalOperation) value).getValues());
+				break;
+			case UNARY_OPERATION:
+				operands = addAll(((UnaryOperation) value).getChild());
+				break;
+			case INTEGER_POWER:
+				operands = addAll(((IntegerPower) value).getBase());
+				break;
+			case CONDITIONAL: {
+				Conditional conditional = (Conditional) value;
+				operands = addAll(conditional.getCondition(), conditional.getIfTrue(), conditional.getIfFalse());
+				break;
+			}
+			case FUNCTION_CALL:
+				operands = addAll(((FunctionCall) value).getArguments());
+				break;
+			case SHARED_SCOPE:
+				operands = addAll(((SharedScope) value).getChild());
+				break;
+			case SHARED_VALUE:
+				operands = addAll(((SharedValue) value).getDefinition());
+				break;
+			default:
+				operands = new int[0];
+				break;
+		}
+		int index = nodeList.size();
+		nodeList.add(value);
+		childList.add(operands);
+		if (value.getType() != TokenType.LAZY_VARIABLE) {
+			indices.put(value, index);
+		}
+		return index;
+	}
+	
+	private int[] addAll(Value... values) {
+		int[] operands = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			operands[i] = add(values[i]);
+		}
+		return operands;
+	}
+	
+	private static boolean isImpure(Value value) {
+		switch (value.getType()) {
+			case VARIABLE:
+			case LITERAL_VALUE:
+			case BINARY_OPERATION:
+			case LOGICAL_OPERATION:
+			case INTEGER_POWER:
+			case CONDITIONAL:
+			case SHARED_SCOPE:
+			case SHARED_VALUE:
+				return false;
+			case UNARY_OPERATION:
+				return !((UnaryOperation) value).getOperator().isPure();
+			case FUNCTION_CALL:
+				return !((FunctionCall) value).getFunction().isPure();
+			default:
+				return true;
+		}
+	}
+	
+}
@@ -0,0 +1,358 @@
+package redempt.crunch.linear;
+
+import redempt.crunch.batch.BatchEvaluator;
+import redempt.crunch.data.FastNumberParsing;
+import redempt.crunch.functional.Function;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.Value;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static redempt.crunch.linear.LinearProgram.*;
+
+/**
+ * A Value tree lowered by {@link LinearCompiler} into the same opcodes as a {@link LinearProgram}, evaluated with float
+ * arithmetic. Every operation is rounded to float as it is computed, including functions and lazy variables, which are
+ * called with arguments widened to double and whose results are narrowed back to float.
+ * <p>
+ * Programs without jumps, calls or lazy variables are evaluated over columns a block of rows at a time, with every
+ * opcode applied to the whole block in a tight loop. Others are evaluated one row at a time.
+ * The blocks, stack and registers are kept between calls, so unlike a {@link LinearProgram}, a program is used by one
+ * thread at a time, and each thread needs its own copy from {@link #getClone()}.
+ * @author Redempt
+ */
+public final class FloatProgram {
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	private final Value source;
+	private final int[] code;
+	private final float[] constants;
+	private final Function[] functions;
+	private final Value[] externals;
+	private final float[] stack;
+	private final float[] registers;
+	private final double[][] arguments;
+	private final boolean straightLine;
+	private float[][] blocks;
+	private final float[] row;
+	
+	FloatProgram(Value source, int[] code, float[] constants, Function[] functions, Value[] externals, int maxStack, int registerCount, int variableCount) {
+		this.source = source;
+		this.code = code;
+		this.constants = constants;
+		this.functions = functions;
+		this.externals = externals;
+		stack = new float[Math.max(maxStack, 1)];
+		registers = new float[registerCount];
+		arguments = new double[functions.length][];
+		for (int i = 0; i < functions.length; i++) {
+			arguments[i] = new double[functions[i].getArgCount()];
+		}
+		straightLine = isStraightLine(code);
+		row = new float[variableCount];
+	}
+	
+	/**
+	 * @return The Value tree this program was compiled from
+	 */
+	public Value getSource() {
+		return source;
+	}
+	
+	/**
+	 * @return The number of ints in the opcode stream
+	 */
+	public int getCodeLength() {
+		return code.length;
+	}
+	
+	/**
+	 * Evaluates this program
+	 * @param variableValues The values of the variables, where $1 has index 0
+	 * @return The result
+	 */
+	public float evaluate(float[] variableValues) {
+		int[] code = this.code;
+		float[] stack = this.stack;
+		int pc = 0;
+		int sp = 0;
+		while (true) {
+			int opcode = code[pc++];
+			switch (opcode) {
+				case RETURN:
+					return stack[sp - 1];
+				case CONSTANT:
+					stack[sp++] = constants[code[pc++]];
+					break;
+				case VARIABLE:
+					stack[sp++] = variableValues[code[pc++]];
+					break;
+				case LOAD:
+					stack[sp++] = registers[code[pc++]];
+					break;
+				case STORE:
+					registers[code[pc++]] = stack[--sp];
+					break;
+				case JUMP:
+					pc = code[pc];
+					break;
+				case JUMP_IF_ONE:
+					pc = stack[--sp] == 1 ? code[pc] : pc + 1;
+					break;
+				case JUMP_UNLESS_ONE:
+					pc = stack[--sp] != 1 ? code[pc] : pc + 1;
+					break;
+				case TRUTH:
+					stack[sp - 1] = stack[sp - 1] == 1 ? 1 : 0;
+					break;
+				case CALL: {
+					int site = code[pc++];
+					double[] args = arguments[site];
+					sp -= args.length;
+					for (int i = 0; i < args.length; i++) {
+						args[i] = stack[sp + i];
+					}
+					stack[sp++] = (float) functions[site].call(args);
+					break;
+				}
+				case EXTERNAL:
+					stack[sp++] = (float) externals[code[pc++]].getValue(NO_VARIABLES);
+					break;
+				case INTEGER_POWER:
+					stack[sp - 1] = (float) IntegerPower.pow(stack[sp - 1], code[pc++]);
+					break;
+				case ADD:
+					sp--;
+					stack[sp - 1] += stack[sp];
+					break;
+				case SUBTRACT:
+					sp--;
+					stack[sp - 1] -= stack[sp];
+					break;
+				case MULTIPLY:
+					sp--;
+					stack[sp - 1] *= stack[sp];
+					break;
+				case DIVIDE:
+					sp--;
+					stack[sp - 1] /= stack[sp];
+					break;
+				default:
+					if (opcode >= NEGATE) {
+						stack[sp - 1] = unary(opcode, stack[sp - 1]);
+					} else {
+						sp--;
+						stack[sp - 1] = binary(opcode, stack[sp - 1], stack[sp]);
+					}
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates this program for a range of rows of columnar data
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of the variable with index i
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 */
+	public void evaluateBatch(float[][] columns, float[] out, int from, int to) {
+		if (straightLine) {
+			for (int start = from; start < to; start += BatchEvaluator.BLOCK_SIZE) {
+				evaluateBlock(columns, out, start, Math.min(to, start + BatchEvaluator.BLOCK_SIZE));
+			}
+			return;
+		}
+		float[] row = this.row;
+		for (int r = from; r < to; r++) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = columns[i][r];
+			}
+			out[r] = evaluate(row);
+		}
+	}
+	
+	private void evaluateBlock(float[][] columns, float[] out, int from, int to) {
+		if (blocks == null) {
+			blocks = new float[stack.length][BatchEvaluator.BLOCK_SIZE];
+		}
+		int[] code = this.code;
+		float[][] blocks = this.blocks;
+		int n = to - from;
+		int pc = 0;
+		int sp = 0;
+		while (true) {
+			int opcode = code[pc++];
+			switch (opcode) {
+				case RETURN:
+					System.arraycopy(blocks[sp - 1], 0, out, from, n);
+					return;
+				case CONSTANT:
+					Arrays.fill(blocks[sp++], 0, n, constants[code[pc++]]);
+					break;
+				case VARIABLE:
+					System.arraycopy(columns[code[pc++]], from, blocks[sp++], 0, n);
+					break;
+				case INTEGER_POWER: {
+					float[] block = blocks[sp - 1];
+					int exponent = code[pc++];
+					for (int i = 0; i < n; i++) {
+						block[i] = (float) IntegerPower.pow(block[i], exponent);
+					}
+					break;
+				}
+				case ADD: {
+					sp--;
+					float[] first = blocks[sp - 1];
+					float[] second = blocks[sp];
+					for (int i = 0; i < n; i++) {
+						first[i] += second[i];
+					}
+					break;
+				}
+				case SUBTRACT: {
+					sp--;
+					float[] first = blocks[sp - 1];
+					float[] second = blocks[sp];
+					for (int i = 0; i < n; i++) {
+						first[i] -= second[i];
+					}
+					break;
+				}
+				case MULTIPLY: {
+					sp--;
+					float[] first = blocks[sp - 1];
+					float[] second = blocks[sp];
+					for (int i = 0; i < n; i++) {
+						first[i] *= second[i];
+					}
+					break;
+				}
+				case DIVIDE: {
+					sp--;
+					float[] first = blocks[sp - 1];
+					float[] second = blocks[sp];
+					for (int i = 0; i < n; i++) {
+						first[i] /= second[i];
+					}
+					break;
+				}
+				default:
+					if (opcode >= NEGATE) {
+						float[] block = blocks[sp - 1];
+						for (int i = 0; i < n; i++) {
+							block[i] = unary(opcode, block[i]);
+						}
+					} else {
+						sp--;
+						float[] first = blocks[sp - 1];
+						float[] second = blocks[sp];
+						for (int i = 0; i < n; i++) {
+							first[i] = binary(opcode, first[i], second[i]);
+						}
+					}
+			}
+		}
+	}
+	
+	private static float binary(int opcode, float first, float second) {
+		switch (opcode) {
+			case ADD:
+				return first + second;
+			case SUBTRACT:
+				return first - second;
+			case MULTIPLY:
+				return first * second;
+			case DIVIDE:
+				return first / second;
+			case MODULUS:
+				return first % second;
+			case EXPONENT:
+				return (float) Math.pow(first, second);
+			case SCIENTIFIC_NOTATION:
+				return (float) (first * FastNumberParsing.powerOfTen(second));
+			case GREATER_THAN:
+				return first > second ? 1 : 0;
+			case LESS_THAN:
+				return first < second ? 1 : 0;
+			case GREATER_THAN_OR_EQUAL_TO:
+				return first >= second ? 1 : 0;
+			case LESS_THAN_OR_EQUAL_TO:
+				return first <= second ? 1 : 0;
+			case EQUAL_TO:
+				return first == second ? 1 : 0;
+			case NOT_EQUAL_TO:
+				return first != second ? 1 : 0;
+			case AND:
+				return first == 1 && second == 1 ? 1 : 0;
+			case OR:
+				return first == 1 || second == 1 ? 1 : 0;
+			default:
+				throw new IllegalStateException("Invalid opcode " + opcode);
+		}
+	}
+	
+	private static float unary(int opcode, float value) {
+		switch (opcode) {
+			case NEGATE:
+				return -value;
+			case NOT:
+				return value == 1 ? 0 : 1;
+			case SIN:
+				return (float) Math.sin(value);
+			case COS:
+				return (float) Math.cos(value);
+			case TAN:
+				return (float) Math.tan(value);
+			case SINH:
+				return (float) Math.sinh(value);
+			case COSH:
+				return (float) Math.cosh(value);
+			case TANH:
+				return (float) Math.tanh(value);
+			case ASIN:
+				return (float) Math.asin(value);
+			case ACOS:
+				return (float) Math.acos(value);
+			case ATAN:
+				return (float) Math.atan(value);
+			case ABS:
+				return Math.abs(value);
+			case ROUND:
+				return (float) Math.round((double) value);
+			case FLOOR:
+				return (float) Math.floor(value);
+			case CEIL:
+				return (float) Math.ceil(value);
+			case LOG:
+				return (float) Math.log(value);
+			case SQRT:
+				return (float) Math.sqrt(value);
+			case CBRT:
+				return (float) Math.cbrt(value);
+			case RAND:
+				return ThreadLocalRandom.current().nextFloat() * value;
+			default:
+				throw new IllegalStateException("Invalid opcode " + opcode);
+		}
+	}
+	
+	/**
+	 * Creates a copy of this program with its own scratch storage, for use on another thread
+	 * @return A clone of this program
+	 */
+	public FloatProgram getClone() {
+		Value[] clonedExternals = new Value[externals.length];
+		for (int i = 0; i < externals.length; i++) {
+			clonedExternals[i] = externals[i].getClone();
+		}
+		return new FloatProgram(source, code, constants, functions, clonedExternals, stack.length, registers.length, row.length);
+	}
+	
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+	
+}
@@ -0,0 +1,565 @@
+package redempt.crunch.linear;
+
+import redempt.crunch.Variable;
+import redempt.crunch.exceptions.ExpressionCompilationException;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.DecimalLiteral;
+import redempt.crunch.token.IntegerLiteral;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.MemoizedVariable;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static redempt.crunch.linear.LinearProgram.*;
+
+/**
+ * Lowers a Value tree into a {@link LinearProgram}, or into a {@link FloatProgram} or {@link LongProgram} running the
+ * same opcodes with other arithmetic. Nodes are emitted in post-order, so each opcode finds its operands
+ * on top of the operand stack. Short-circuiting operations and conditionals become jumps, shared subexpressions
+ * are computed once into registers, and memoized lazy variables are sampled into registers on first use. Function calls, lazy variables and any other nodes are called through the
+ * original objects.
+ * @author Redempt
+ */
+public final class LinearCompiler {
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	/**
+	 * Compiles a Value tree into a LinearProgram
+	 * @param value The Value tree to compile
+	 * @return The compiled program
+	 */
+	public static LinearProgram compile(Value value) {
+		LinearCompiler compiler = lower(value);
+		double[] constants = new double[compiler.constants.size()];
+		for (int i = 0; i < constants.length; i++) {
+			constants[i] = compiler.constants.get(i);
+		}
+		return new LinearProgram(value, compiler.getCode(), constants, compiler.getFunctions(), compiler.getExternals(),
+				compiler.maxStack, compiler.registerCount);
+	}
+	
+	/**
+	 * Compiles a Value tree into a FloatProgram, which evaluates the same opcodes with float arithmetic
+	 * @param value The Value tree to compile
+	 * @return The compiled program
+	 */
+	public static FloatProgram compileFloat(Value value) {
+		LinearCompiler compiler = lower(value);
+		float[] constants = new float[compiler.constants.size()];
+		for (int i = 0; i < constants.length; i++) {
+			Long integer = compiler.integers.get(i);
+			Float decimal = compiler.decimals.get(i);
+			// Rounding a literal through a double first could round it twice
+			if (integer != null) {
+				constants[i] = (float) integer;
+			} else if (decimal != null) {
+				constants[i] = decimal;
+			} else {
+				constants[i] = (float) (double) compiler.constants.get(i);
+			}
+		}
+		return new FloatProgram(value, compiler.getCode(), constants, compiler.getFunctions(), compiler.getExternals(),
+				compiler.maxStack, compiler.registerCount, compiler.variableCount);
+	}
+	
+	/**
+	 * Compiles a Value tree into a LongProgram, which evaluates the same opcodes with long arithmetic
+	 * @param value The Value tree to compile
+	 * @return The compiled program
+	 * @throws ExpressionCompilationException If the tree contains a constant which is not an integer, or a constant other
+	 * than an {@link IntegerLiteral} beyond 2^53
+	 */
+	public static LongProgram compileLong(Value value) {
+		LinearCompiler compiler = lower(value);
+		long[] constants = new long[compiler.constants.size()];
+		for (int i = 0; i < constants.length; i++) {
+			Long integer = compiler.integers.get(i);
+			if (integer != null) {
+				constants[i] = integer;
+				continue;
+			}
+			double constant = compiler.constants.get(i);
+			if (constant != Math.rint(constant)) {
+				throw new ExpressionCompilationException(null, "Constant " + constant + " is not an integer");
+			}
+			// From 2^53 on the double may already have been rounded from the integer that was written, as 2^53 + 1 rounds to 2^53
+			if (Math.abs(constant) >= 0x1p53) {
+				throw new ExpressionCompilationException(null, "Constant " + constant + " is out of range");
+			}
+			constants[i] = (long) constant;
+		}
+		return new LongProgram(value, compiler.getCode(), constants, compiler.getFunctions(), compiler.getExternals(),
+				compiler.maxStack, compiler.registerCount, compiler.variableCount);
+	}
+	
+	private static LinearCompiler lower(Value value) {
+		LinearCompiler compiler = new LinearCompiler();
+		compiler.emit(value);
+		compiler.op(RETURN);
+		return compiler;
+	}
+	
+	private int[] code = new int[32];
+	private int length;
+	private int stack;
+	private int maxStack;
+	private int registerCount;
+	private int variableCount;
+	private final List<Double> constants = new ArrayList<>();
+	private final Map<Long, Integer> constantIndices = new HashMap<>();
+	// The exact value of each constant which came from an IntegerLiteral, or null
+	private final List<Long> integers = new ArrayList<>();
+	private final Map<Long, Integer> integerIndices = new HashMap<>();
+	// The nearest float to each constant which came from a DecimalLiteral, or null
+	private final List<Float> decimals = new ArrayList<>();
+	private final Map<String, Integer> decimalIndices = new HashMap<>();
+	private final List<Function> functions = new ArrayList<>();
+	private final List<Value> externals = new ArrayList<>();
+	private final Map<Integer, Integer> sharedRegisters = new HashMap<>();
+	private Task[] tasks = new Task[16];
+	private int taskCount;
+	
+	private LinearCompiler() {}
+	
+	private int[] getCode() {
+		return Arrays.copyOf(code, length);
+	}
+	
+	private Function[] getFunctions() {
+		return functions.toArray(new Function[0]);
+	}
+	
+	private Value[] getExternals() {
+		return externals.toArray(new Value[0]);
+	}
+	
+	/**
+	 * Emits a tree without recursing, so that trees of any height can be compiled in bounded stack space. Nodes whose
+	 * operands are still being emitted are kept on an explicit stack of tasks, along with how far through emitting
+	 * them the compiler is.
+	 */
+	private void emit(Value root) {
+		pushTask(root);
+		while (taskCount > 0) {
+			Task task = tasks[taskCount - 1];
+			Value value = task.value;
+			int stage = task.stage++;
+			switch (value.getType()) {
+				case BINARY_OPERATION: {
+					Value[] operands = ((BinaryOperation) value).getValues();
+					if (stage < 2) {
+						pushTask(operands[stage]);
+						continue;
+					}
+					op(binaryOpcode(((BinaryOperation) value).getOperator()));
+					push(-1);
+					break;
+				}
+				case UNARY_OPERATION:
+					if (stage == 0) {
+						pushTask(((UnaryOperation) value).getChild());
+						continue;
+					}
+					op(unaryOpcode(((UnaryOperation) value).getOperator()));
+					break;
+				case LOGICAL_OPERATION:
+					if (emitLogicalOperation((LogicalOperation) value, task, stage)) {
+						continue;
+					}
+					break;
+				case CONDITIONAL:
+					if (emitConditional((Conditional) value, task, stage)) {
+						continue;
+					}
+					break;
+				case INTEGER_POWER:
+					if (stage == 0) {
+						pushTask(((IntegerPower) value).getBase());
+						continue;
+					}
+					op(INTEGER_POWER, ((IntegerPower) value).getExponent());
+					break;
+				case FUNCTION_CALL: {
+					FunctionCall call = (FunctionCall) value;
+					Value[] arguments = call.getArguments();
+					if (stage < arguments.length) {
+						pushTask(arguments[stage]);
+						continue;
+					}
+					op(CALL, functions.size());
+					functions.add(call.getFunction());
+					push(1 - arguments.length);
+					break;
+				}
+				case SHARED_SCOPE:
+					if (emitSharedScope((SharedScope) value, stage)) {
+						continue;
+					}
+					break;
+				default:
+					emitLeaf(value);
+					break;
+			}
+			tasks[--taskCount].value = null;
+		}
+	}
+	
+	private void emitLeaf(Value value) {
+		switch (value.getType()) {
+			case LITERAL_VALUE:
+				if (value instanceof IntegerLiteral) {
+					emitInteger(((IntegerLiteral) value).getInteger());
+				} else if (value instanceof DecimalLiteral) {
+					emitDecimal((DecimalLiteral) value);
+				} else {
+					emitConstant(value.getValue(NO_VARIABLES));
+				}
+				return;
+			case VARIABLE:
+				variable(((Variable) value).getIndex());
+				return;
+			case SHARED_VALUE: {
+				Integer register = sharedRegisters.get(((SharedValue) value).getIndex());
+				if (register == null) {
+					// Not inside a scope being compiled, so the slot is read from the variable values like the tree would
+					variable(((SharedValue) value).getIndex());
+				} else {
+					op(LOAD, register);
+					push(1);
+				}
+				return;
+			}
+			case MEMOIZED_VARIABLE:
+				emitMemoizedVariable((MemoizedVariable) value);
+				return;
+			default:
+				op(EXTERNAL, externals.size());
+				externals.add(value);
+				push(1);
+		}
+	}
+	
+	private void variable(int index) {
+		op(VARIABLE, index);
+		push(1);
+		variableCount = Math.max(variableCount, index + 1);
+	}
+	
+	private void pushTask(Value value) {
+		if (taskCount == tasks.length) {
+			tasks = Arrays.copyOf(tasks, taskCount * 2);
+		}
+		Task task = tasks[taskCount];
+		if (task == null) {
+			task = new Task();
+			tasks[taskCount] = task;
+		}
+		taskCount++;
+		task.value = value;
+		task.stage = 0;
+	}
+	
+	private void emitConstant(double constant) {
+		Integer index = constantIndices.get(Double.doubleToRawLongBits(constant));
+		if (index == null) {
+			index = constants.size();
+			constants.add(constant);
+			integers.add(null);
+			decimals.add(null);
+			constantIndices.put(Double.doubleToRawLongBits(constant), index);
+		}
+		op(CONSTANT, index);
+		push(1);
+	}
+	
+	private void emitInteger(long integer) {
+		Integer index = integerIndices.get(integer);
+		if (index == null) {
+			index = constants.size();
+			constants.add((double) integer);
+			integers.add(integer);
+			decimals.add(null);
+			integerIndices.put(integer, index);
+		}
+		op(CONSTANT, index);
+		push(1);
+	}
+	
+	private void emitDecimal(DecimalLiteral decimal) {
+		// Literals which round to the same double may still round to different floats, so they are told apart by text
+		Integer index = decimalIndices.get(decimal.getText());
+		if (index == null) {
+			index = constants.size();
+			constants.add(decimal.getValue(NO_VARIABLES));
+			integers.add(null);
+			decimals.add(decimal.getFloat());
+			decimalIndices.put(decimal.getText(), index);
+		}
+		op(CONSTANT, index);
+		push(1);
+	}
+	
+	/**
+	 * Emits the next step of a short-circuiting operation
+	 * @return Whether an operand was pushed to be emitted before the next step
+	 */
+	private boolean emitLogicalOperation(LogicalOperation operation, Task task, int stage) {
+		Value[] operands = operation.getValues();
+		switch (stage) {
+			case 0:
+				pushTask(operands[0]);
+				return true;
+			case 1:
+				task.jump = jump(operation.isAnd() ? JUMP_UNLESS_ONE : JUMP_IF_ONE);
+				push(-1);
+				pushTask(operands[1]);
+				return true;
+			default:
+				op(TRUTH);
+				int end = jump(JUMP);
+				int base = stack - 1;
+				place(task.jump);
+				stack = base;
+				emitConstant(operation.isAnd() ? 0 : 1);
+				place(end);
+				return false;
+		}
+	}
+	
+	/**
+	 * Emits the next step of a conditional
+	 * @return Whether an operand was pushed to be emitted before the next step
+	 */
+	private boolean emitConditional(Conditional conditional, Task task, int stage) {
+		switch (stage) {
+			case 0:
+				pushTask(conditional.getCondition());
+				return true;
+			case 1:
+				task.jump = jump(JUMP_UNLESS_ONE);
+				push(-1);
+				task.base = stack;
+				pushTask(conditional.getIfTrue());
+				return true;
+			case 2: {
+				int ifFalse = task.jump;
+				task.jump = jump(JUMP);
+				place(ifFalse);
+				stack = task.base;
+				pushTask(conditional.getIfFalse());
+				return true;
+			}
+			default:
+				place(task.jump);
+				return false;
+		}
+	}
+	
+	/**
+	 * Emits the next step of a shared scope, where each of the first stages emits one definition
+	 * @return Whether a definition or the child was pushed to be emitted before the next step
+	 */
+	private boolean emitSharedScope(SharedScope scope, int stage) {
+		Value[] definitions = scope.getDefinitions();
+		if (stage > 0 && stage <= definitions.length) {
+			int register = registerCount++;
+			op(STORE, register);
+			push(-1);
+			sharedRegisters.put(scope.getVariableCount() + stage - 1, register);
+		}
+		if (stage < definitions.length) {
+			pushTask(definitions[stage]);
+			return true;
+		}
+		if (stage > definitions.length) {
+			return false;
+		}
+		int firstMemoized = scope.getVariableCount() + definitions.length;
+		for (int i = 0; i < scope.getMemoizedCount(); i++) {
+			int register = registerCount;
+			registerCount += 2;
+			emitConstant(0);
+			op(STORE, register + 1);
+			push(-1);
+			sharedRegisters.put(firstMemoized + i * 2, register);
+		}
+		pushTask(scope.getChild());
+		return true;
+	}
+	
+	private void emitMemoizedVariable(MemoizedVariable value) {
+		Integer register = sharedRegisters.get(value.getIndex());
+		if (register == null) {
+			// Not inside a scope being compiled, so the slots are in the variable values like the tree would use
+			op(EXTERNAL, externals.size());
+			externals.add(value);
+			push(1);
+			return;
+		}
+		op(LOAD, register + 1);
+		push(1);
+		int sampled = jump(JUMP_IF_ONE);
+		push(-1);
+		op(EXTERNAL, externals.size());
+		externals.add(value.getVariable());
+		push(1);
+		op(STORE, register);
+		push(-1);
+		emitConstant(1);
+		op(STORE, register + 1);
+		push(-1);
+		place(sampled);
+		op(LOAD, register);
+		push(1);
+	}
+	
+	private int binaryOpcode(BinaryOperator operator) {
+		switch (operator) {
+			case ADD:
+				return ADD;
+			case SUBTRACT:
+				return SUBTRACT;
+			case MULTIPLY:
+				return MULTIPLY;
+			case DIVIDE:
+				return DIVIDE;
+			case MODULUS:
+				return MODULUS;
+			case EXPONENT:
+				return EXPONENT;
+			case SCIENTIFIC_NOTATION:
+				return SCIENTIFIC_NOTATION;
+			case GREATER_THAN:
+				return GREATER_THAN;
+			case LESS_THAN:
+				return LESS_THAN;
+			case GREATER_THAN_OR_EQUAL_TO:
+				return GREATER_THAN_OR_EQUAL_TO;
+			case LESS_THAN_OR_EQUAL_TO:
+				return LESS_THAN_OR_EQUAL_TO;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				return EQUAL_TO;
+			case NOT_EQUAL_TO:
+				return NOT_EQUAL_TO;
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				return AND;
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				return OR;
+			default:
+				throw new IllegalArgumentException("Unsupported binary operator " + operator);
+		}
+	}
+	
+	private int unaryOpcode(UnaryOperator operator) {
+		switch (operator) {
+			case NEGATE:
+				return NEGATE;
+			case NOT:
+				return NOT;
+			case SIN:
+				return SIN;
+			case COS:
+				return COS;
+			case TAN:
+				return TAN;
+			case SINH:
+				return SINH;
+			case COSH:
+				return COSH;
+			case TANH:
+				return TANH;
+			case ASIN:
+				return ASIN;
+			case ACOS:
+				return ACOS;
+			case ATAN:
+				return ATAN;
+			case ABS:
+				return ABS;
+			case ROUND:
+				return ROUND;
+			case FLOOR:
+				return FLOOR;
+			case CEIL:
+				return CEIL;
+			case LOG:
+				return LOG;
+			case SQRT:
+				return SQRT;
+			case CBRT:
+				return CBRT;
+			case RAND:
+				return RAND;
+			default:
+				throw new IllegalArgumentException("Unsupported unary operator " + operator);
+		}
+	}
+	
+	/**
+	 * Emits a jump whose target is set later with {@link #place(int)}
+	 * @return The position of the jump's target operand
+	 */
+	private int jump(int opcode) {
+		op(opcode, -1);
+		return length - 1;
+	}
+	
+	/**
+	 * Points a jump emitted by {@link #jump(int)} at the current position
+	 */
+	private void place(int jump) {
+		code[jump] = length;
+	}
+	
+	private void op(int opcode) {
+		put(opcode);
+	}
+	
+	private void op(int opcode, int operand) {
+		put(opcode);
+		put(operand);
+	}
+	
+	private void put(int value) {
+		if (length == code.length) {
+			code = Arrays.copyOf(code, length * 2);
+		}
+		code[length++] = value;
+	}
+	
+	private void push(int slots) {
+		stack += slots;
+		maxStack = Math.max(maxStack, stack);
+	}
+	
+	/**
+	 * A node whose operands are being emitted
+	 */
+	private static final class Task {
+	
+		private Value value;
+		private int stage;
+		private int jump;
+		private int base;
+	
+	}
+	
+}
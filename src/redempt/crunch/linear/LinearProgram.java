@@ -0,0 +1,410 @@
+package redempt.crunch.linear;
+
+import redempt.crunch.data.FastNumberParsing;
+import redempt.crunch.functional.Function;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.MemoizedVariable;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.Value;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Value tree lowered by {@link LinearCompiler} into a flat program: an {@code int[]} stream of opcodes and operands,
+ * a {@code double[]} constant pool, and an operand stack. It is evaluated by a single loop over the opcodes, without
+ * recursion or a virtual call per node, and gives the same results as the tree it was compiled from.
+ * The operand stack, registers and argument arrays are borrowed for the duration of each call, so one program can be
+ * evaluated from many threads at once.
+ * @author Redempt
+ */
+public final class LinearProgram implements Value {
+	
+	static final int RETURN = 0;
+	static final int CONSTANT = 1;
+	static final int VARIABLE = 2;
+	static final int LOAD = 3;
+	static final int STORE = 4;
+	static final int JUMP = 5;
+	static final int JUMP_IF_ONE = 6;
+	static final int JUMP_UNLESS_ONE = 7;
+	static final int TRUTH = 8;
+	static final int CALL = 9;
+	static final int EXTERNAL = 10;
+	static final int INTEGER_POWER = 11;
+	
+	static final int ADD = 20;
+	static final int SUBTRACT = 21;
+	static final int MULTIPLY = 22;
+	static final int DIVIDE = 23;
+	static final int MODULUS = 24;
+	static final int EXPONENT = 25;
+	static final int SCIENTIFIC_NOTATION = 26;
+	static final int GREATER_THAN = 27;
+	static final int LESS_THAN = 28;
+	static final int GREATER_THAN_OR_EQUAL_TO = 29;
+	static final int LESS_THAN_OR_EQUAL_TO = 30;
+	static final int EQUAL_TO = 31;
+	static final int NOT_EQUAL_TO = 32;
+	static final int AND = 33;
+	static final int OR = 34;
+	
+	static final int NEGATE = 40;
+	static final int NOT = 41;
+	static final int SIN = 42;
+	static final int COS = 43;
+	static final int TAN = 44;
+	static final int SINH = 45;
+	static final int COSH = 46;
+	static final int TANH = 47;
+	static final int ASIN = 48;
+	static final int ACOS = 49;
+	static final int ATAN = 50;
+	static final int ABS = 51;
+	static final int ROUND = 52;
+	static final int FLOOR = 53;
+	static final int CEIL = 54;
+	static final int LOG = 55;
+	static final int SQRT = 56;
+	static final int CBRT = 57;
+	static final int RAND = 58;
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	private final Value source;
+	private final int[] code;
+	private final double[] constants;
+	private final Function[] functions;
+	private final Value[] externals;
+	private final int maxStack;
+	private final int registerCount;
+	private final AtomicReference<Scratch> spare = new AtomicReference<>();
+	
+	LinearProgram(Value source, int[] code, double[] constants, Function[] functions, Value[] externals, int maxStack, int registerCount) {
+		this.source = source;
+		this.code = code;
+		this.constants = constants;
+		this.functions = functions;
+		this.externals = externals;
+		this.maxStack = maxStack;
+		this.registerCount = registerCount;
+	}
+	
+	/**
+	 * @return The Value tree this program was compiled from
+	 */
+	public Value getSource() {
+		return source;
+	}
+	
+	/**
+	 * @return The number of ints in the opcode stream
+	 */
+	public int getCodeLength() {
+		return code.length;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		// Borrow the spare scratch storage, or allocate it if another call is already using it
+		Scratch scratch = spare.getAndSet(null);
+		if (scratch == null) {
+			scratch = new Scratch();
+		}
+		int[] code = this.code;
+		double[] stack = scratch.stack;
+		double[] registers = scratch.registers;
+		double[][] arguments = scratch.arguments;
+		int pc = 0;
+		int sp = 0;
+		while (true) {
+			switch (code[pc++]) {
+				case RETURN: {
+					double result = stack[sp - 1];
+					spare.lazySet(scratch);
+					return result;
+				}
+				case CONSTANT:
+					stack[sp++] = constants[code[pc++]];
+					break;
+				case VARIABLE:
+					stack[sp++] = variableValues[code[pc++]];
+					break;
+				case LOAD:
+					stack[sp++] = registers[code[pc++]];
+					break;
+				case STORE:
+					registers[code[pc++]] = stack[--sp];
+					break;
+				case JUMP:
+					pc = code[pc];
+					break;
+				case JUMP_IF_ONE:
+					pc = stack[--sp] == 1 ? code[pc] : pc + 1;
+					break;
+				case JUMP_UNLESS_ONE:
+					pc = stack[--sp] != 1 ? code[pc] : pc + 1;
+					break;
+				case TRUTH:
+					stack[sp - 1] = stack[sp - 1] == 1 ? 1 : 0;
+					break;
+				case CALL: {
+					int site = code[pc++];
+					double[] args = arguments[site];
+					sp -= args.length;
+					System.arraycopy(stack, sp, args, 0, args.length);
+					stack[sp++] = functions[site].call(args);
+					break;
+				}
+				case EXTERNAL:
+					stack[sp++] = externals[code[pc++]].getValue(variableValues);
+					break;
+				case INTEGER_POWER:
+					stack[sp - 1] = IntegerPower.pow(stack[sp - 1], code[pc++]);
+					break;
+				case ADD:
+					sp--;
+					stack[sp - 1] += stack[sp];
+					break;
+				case SUBTRACT:
+					sp--;
+					stack[sp - 1] -= stack[sp];
+					break;
+				case MULTIPLY:
+					sp--;
+					stack[sp - 1] *= stack[sp];
+					break;
+				case DIVIDE:
+					sp--;
+					stack[sp - 1] /= stack[sp];
+					break;
+				case MODULUS:
+					sp--;
+					stack[sp - 1] %= stack[sp];
+					break;
+				case EXPONENT:
+					sp--;
+					stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+					break;
+				case SCIENTIFIC_NOTATION:
+					sp--;
+					stack[sp - 1] *= FastNumberParsing.powerOfTen(stack[sp]);
+					break;
+				case GREATER_THAN:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0;
+					break;
+				case LESS_THAN:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+					break;
+				case GREATER_THAN_OR_EQUAL_TO:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] >= stack[sp] ? 1 : 0;
+					break;
+				case LESS_THAN_OR_EQUAL_TO:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0;
+					break;
+				case EQUAL_TO:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+					break;
+				case NOT_EQUAL_TO:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] != stack[sp] ? 1 : 0;
+					break;
+				case AND:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] == 1 && stack[sp] == 1 ? 1 : 0;
+					break;
+				case OR:
+					sp--;
+					stack[sp - 1] = stack[sp - 1] == 1 || stack[sp] == 1 ? 1 : 0;
+					break;
+				case NEGATE:
+					stack[sp - 1] = -stack[sp - 1];
+					break;
+				case NOT:
+					stack[sp - 1] = stack[sp - 1] == 1 ? 0 : 1;
+					break;
+				case SIN:
+					stack[sp - 1] = Math.sin(stack[sp - 1]);
+					break;
+				case COS:
+					stack[sp - 1] = Math.cos(stack[sp - 1]);
+					break;
+				case TAN:
+					stack[sp - 1] = Math.tan(stack[sp - 1]);
+					break;
+				case SINH:
+					stack[sp - 1] = Math.sinh(stack[sp - 1]);
+					break;
+				case COSH:
+					stack[sp - 1] = Math.cosh(stack[sp - 1]);
+					break;
+				case TANH:
+					stack[sp - 1] = Math.tanh(stack[sp - 1]);
+					break;
+				case ASIN:
+					stack[sp - 1] = Math.asin(stack[sp - 1]);
+					break;
+				case ACOS:
+					stack[sp - 1] = Math.acos(stack[sp - 1]);
+					break;
+				case ATAN:
+					stack[sp - 1] = Math.atan(stack[sp - 1]);
+					break;
+				case ABS:
+					stack[sp - 1] = Math.abs(stack[sp - 1]);
+					break;
+				case ROUND:
+					stack[sp - 1] = Math.round(stack[sp - 1]);
+					break;
+				case FLOOR:
+					stack[sp - 1] = Math.floor(stack[sp - 1]);
+					break;
+				case CEIL:
+					stack[sp - 1] = Math.ceil(stack[sp - 1]);
+					break;
+				case LOG:
+					stack[sp - 1] = Math.log(stack[sp - 1]);
+					break;
+				case SQRT:
+					stack[sp - 1] = Math.sqrt(stack[sp - 1]);
+					break;
+				case CBRT:
+					stack[sp - 1] = Math.cbrt(stack[sp - 1]);
+					break;
+				case RAND:
+					stack[sp - 1] = ThreadLocalRandom.current().nextDouble() * stack[sp - 1];
+					break;
+				default:
+					throw new IllegalStateException("Invalid opcode " + code[pc - 1] + " at " + (pc - 1));
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether an opcode stream has no jumps, registers, calls or external values, so that it can be evaluated
+	 * for a block of rows by applying each opcode to the whole block in turn
+	 */
+	static boolean isStraightLine(int[] code) {
+		for (int pc = 0; pc < code.length; pc++) {
+			switch (code[pc]) {
+				case CONSTANT:
+				case VARIABLE:
+				case INTEGER_POWER:
+					pc++;
+					break;
+				case RETURN:
+					break;
+				default:
+					if (code[pc] < ADD) {
+						return false;
+					}
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return source.getType();
+	}
+	
+	@Override
+	public LinearProgram getClone() {
+		Value[] clonedExternals = new Value[externals.length];
+		for (int i = 0; i < externals.length; i++) {
+			clonedExternals[i] = externals[i].getClone();
+		}
+		return new LinearProgram(source, code, constants, functions, clonedExternals, maxStack, registerCount);
+	}
+	
+	/**
+	 * Creates a copy of this program in which every lazy variable is sampled at most once, the first time it is used,
+	 * so that each evaluation of the copy uses the same value for it. This is how batch evaluation samples lazy
+	 * variables once per batch, without sampling those in branches no row takes.
+	 * @param samples The samples taken so far, keyed by lazy variable, which new samples are added to. It may be shared
+	 *                with other copies, and must be thread-safe if they are evaluated from other threads.
+	 * @return A copy of this program which samples its lazy variables through the map, or this program if it has none
+	 */
+	public LinearProgram sampleLazyVariables(Map<Value, Double> samples) {
+		Value[] sampledExternals = externals.clone();
+		boolean sampled = false;
+		for (int i = 0; i < externals.length; i++) {
+			Value external = externals[i];
+			if (external.getType() == TokenType.MEMOIZED_VARIABLE) {
+				external = ((MemoizedVariable) external).getVariable();
+			}
+			if (external.getType() == TokenType.LAZY_VARIABLE) {
+				sampledExternals[i] = new Sample(external, samples);
+				sampled = true;
+			}
+		}
+		if (!sampled) {
+			return this;
+		}
+		return new LinearProgram(source, code, constants, functions, sampledExternals, maxStack, registerCount);
+	}
+	
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+	
+	/**
+	 * A lazy variable which is sampled the first time it is used, and takes the same value every time after that
+	 */
+	private static final class Sample implements Value {
+		
+		private final Value variable;
+		private final Map<Value, Double> samples;
+		
+		private Sample(Value variable, Map<Value, Double> samples) {
+			this.variable = variable;
+			this.samples = samples;
+		}
+		
+		@Override
+		public TokenType getType() {
+			return TokenType.LAZY_VARIABLE;
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return samples.computeIfAbsent(variable, v -> v.getValue(NO_VARIABLES));
+		}
+		
+		@Override
+		public Value getClone() {
+			return this;
+		}
+		
+		@Override
+		public String toString() {
+			return variable.toString();
+		}
+		
+	}
+	
+	/**
+	 * The storage a single evaluation writes to
+	 */
+	private final class Scratch {
+		
+		private final double[] stack = new double[Math.max(maxStack, 1)];
+		private final double[] registers = new double[registerCount];
+		private final double[][] arguments = new double[functions.length][];
+		
+		private Scratch() {
+			for (int i = 0; i < functions.length; i++) {
+				arguments[i] = new double[functions[i].getArgCount()];
+			}
+		}
+		
+	}
+	
+}
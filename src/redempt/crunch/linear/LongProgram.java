@@ -0,0 +1,420 @@
+package redempt.crunch.linear;
+
+import redempt.crunch.batch.BatchEvaluator;
+import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.functional.Function;
+import redempt.crunch.token.Value;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static redempt.crunch.linear.LinearProgram.*;
+
+/**
+ * A Value tree lowered by {@link LinearCompiler} into the same opcodes as a {@link LinearProgram}, evaluated with long
+ * arithmetic. Addition, subtraction, multiplication, negation and powers are exact and fail on overflow rather than
+ * wrapping, division truncates toward zero, and division or modulus by zero fails. Rounding operations leave values
+ * unchanged, and other math operations, functions and lazy variables are computed with doubles and truncated toward
+ * zero like a cast to long.
+ * <p>
+ * Programs without jumps, calls or lazy variables are evaluated over columns a block of rows at a time, with every
+ * opcode applied to the whole block in a tight loop. Others are evaluated one row at a time.
+ * Its scratch storage is kept between calls like a {@link FloatProgram}'s, with the same threading rules.
+ * @author Redempt
+ */
+public final class LongProgram {
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	private final Value source;
+	private final int[] code;
+	private final long[] constants;
+	private final Function[] functions;
+	private final Value[] externals;
+	private final long[] stack;
+	private final long[] registers;
+	private final double[][] arguments;
+	private final boolean straightLine;
+	private long[][] blocks;
+	private final long[] row;
+	
+	LongProgram(Value source, int[] code, long[] constants, Function[] functions, Value[] externals, int maxStack, int registerCount, int variableCount) {
+		this.source = source;
+		this.code = code;
+		this.constants = constants;
+		this.functions = functions;
+		this.externals = externals;
+		stack = new long[Math.max(maxStack, 1)];
+		registers = new long[registerCount];
+		arguments = new double[functions.length][];
+		for (int i = 0; i < functions.length; i++) {
+			arguments[i] = new double[functions[i].getArgCount()];
+		}
+		straightLine = isStraightLine(code);
+		row = new long[variableCount];
+	}
+	
+	/**
+	 * @return The Value tree this program was compiled from
+	 */
+	public Value getSource() {
+		return source;
+	}
+	
+	/**
+	 * @return The number of ints in the opcode stream
+	 */
+	public int getCodeLength() {
+		return code.length;
+	}
+	
+	/**
+	 * Evaluates this program
+	 * @param variableValues The values of the variables, where $1 has index 0
+	 * @return The result
+	 * @throws ExpressionEvaluationException If an operation overflows, or divides or takes a modulus by zero
+	 */
+	public long evaluate(long[] variableValues) {
+		try {
+			return run(variableValues);
+		} catch (ArithmeticException e) {
+			throw new ExpressionEvaluationException("Long arithmetic failed: " + e.getMessage());
+		}
+	}
+	
+	private long run(long[] variableValues) {
+		int[] code = this.code;
+		long[] stack = this.stack;
+		int pc = 0;
+		int sp = 0;
+		while (true) {
+			int opcode = code[pc++];
+			switch (opcode) {
+				case RETURN:
+					return stack[sp - 1];
+				case CONSTANT:
+					stack[sp++] = constants[code[pc++]];
+					break;
+				case VARIABLE:
+					stack[sp++] = variableValues[code[pc++]];
+					break;
+				case LOAD:
+					stack[sp++] = registers[code[pc++]];
+					break;
+				case STORE:
+					registers[code[pc++]] = stack[--sp];
+					break;
+				case JUMP:
+					pc = code[pc];
+					break;
+				case JUMP_IF_ONE:
+					pc = stack[--sp] == 1 ? code[pc] : pc + 1;
+					break;
+				case JUMP_UNLESS_ONE:
+					pc = stack[--sp] != 1 ? code[pc] : pc + 1;
+					break;
+				case TRUTH:
+					stack[sp - 1] = stack[sp - 1] == 1 ? 1 : 0;
+					break;
+				case CALL: {
+					int site = code[pc++];
+					double[] args = arguments[site];
+					sp -= args.length;
+					for (int i = 0; i < args.length; i++) {
+						args[i] = stack[sp + i];
+					}
+					stack[sp++] = (long) functions[site].call(args);
+					break;
+				}
+				case EXTERNAL:
+					stack[sp++] = (long) externals[code[pc++]].getValue(NO_VARIABLES);
+					break;
+				case INTEGER_POWER:
+					stack[sp - 1] = pow(stack[sp - 1], code[pc++]);
+					break;
+				case ADD:
+					sp--;
+					stack[sp - 1] = Math.addExact(stack[sp - 1], stack[sp]);
+					break;
+				case SUBTRACT:
+					sp--;
+					stack[sp - 1] = Math.subtractExact(stack[sp - 1], stack[sp]);
+					break;
+				case MULTIPLY:
+					sp--;
+					stack[sp - 1] = Math.multiplyExact(stack[sp - 1], stack[sp]);
+					break;
+				case DIVIDE:
+					sp--;
+					stack[sp - 1] = divide(stack[sp - 1], stack[sp]);
+					break;
+				default:
+					if (opcode >= NEGATE) {
+						stack[sp - 1] = unary(opcode, stack[sp - 1]);
+					} else {
+						sp--;
+						stack[sp - 1] = binary(opcode, stack[sp - 1], stack[sp]);
+					}
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates this program for a range of rows of columnar data
+	 * @param columns The variable values, where {@code columns[i][row]} is the value of the variable with index i
+	 * @param out The array to write results into, at the same index as the row they belong to
+	 * @param from The first row to evaluate, inclusive
+	 * @param to The last row to evaluate, exclusive
+	 * @throws ExpressionEvaluationException If an operation overflows, or divides or takes a modulus by zero, in which
+	 *                                       case some of the rows may have been written
+	 */
+	public void evaluateBatch(long[][] columns, long[] out, int from, int to) {
+		try {
+			if (straightLine) {
+				for (int start = from; start < to; start += BatchEvaluator.BLOCK_SIZE) {
+					evaluateBlock(columns, out, start, Math.min(to, start + BatchEvaluator.BLOCK_SIZE));
+				}
+				return;
+			}
+			long[] row = this.row;
+			for (int r = from; r < to; r++) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = columns[i][r];
+				}
+				out[r] = run(row);
+			}
+		} catch (ArithmeticException e) {
+			throw new ExpressionEvaluationException("Long arithmetic failed: " + e.getMessage());
+		}
+	}
+	
+	private void evaluateBlock(long[][] columns, long[] out, int from, int to) {
+		if (blocks == null) {
+			blocks = new long[stack.length][BatchEvaluator.BLOCK_SIZE];
+		}
+		int[] code = this.code;
+		long[][] blocks = this.blocks;
+		int n = to - from;
+		int pc = 0;
+		int sp = 0;
+		while (true) {
+			int opcode = code[pc++];
+			switch (opcode) {
+				case RETURN:
+					System.arraycopy(blocks[sp - 1], 0, out, from, n);
+					return;
+				case CONSTANT:
+					Arrays.fill(blocks[sp++], 0, n, constants[code[pc++]]);
+					break;
+				case VARIABLE:
+					System.arraycopy(columns[code[pc++]], from, blocks[sp++], 0, n);
+					break;
+				case INTEGER_POWER: {
+					long[] block = blocks[sp - 1];
+					int exponent = code[pc++];
+					for (int i = 0; i < n; i++) {
+						block[i] = pow(block[i], exponent);
+					}
+					break;
+				}
+				case ADD: {
+					sp--;
+					long[] first = blocks[sp - 1];
+					long[] second = blocks[sp];
+					for (int i = 0; i < n; i++) {
+						first[i] = Math.addExact(first[i], second[i]);
+					}
+					break;
+				}
+				case SUBTRACT: {
+					sp--;
+					long[] first = blocks[sp - 1];
+					long[] second = blocks[sp];
+					for (int i = 0; i < n; i++) {
+						first[i] = Math.subtractExact(first[i], second[i]);
+					}
+					break;
+				}
+				case MULTIPLY: {
+					sp--;
+					long[] first = blocks[sp - 1];
+					long[] second = blocks[sp];
+					for (int i = 0; i < n; i++) {
+						first[i] = Math.multiplyExact(first[i], second[i]);
+					}
+					break;
+				}
+				case DIVIDE: {
+					sp--;
+					long[] first = blocks[sp - 1];
+					long[] second = blocks[sp];
+					for (int i = 0; i < n; i++) {
+						first[i] = divide(first[i], second[i]);
+					}
+					break;
+				}
+				default:
+					if (opcode >= NEGATE) {
+						long[] block = blocks[sp - 1];
+						for (int i = 0; i < n; i++) {
+							block[i] = unary(opcode, block[i]);
+						}
+					} else {
+						sp--;
+						long[] first = blocks[sp - 1];
+						long[] second = blocks[sp];
+						for (int i = 0; i < n; i++) {
+							first[i] = binary(opcode, first[i], second[i]);
+						}
+					}
+			}
+		}
+	}
+	
+	private static long binary(int opcode, long first, long second) {
+		switch (opcode) {
+			case ADD:
+				return Math.addExact(first, second);
+			case SUBTRACT:
+				return Math.subtractExact(first, second);
+			case MULTIPLY:
+				return Math.multiplyExact(first, second);
+			case DIVIDE:
+				return divide(first, second);
+			case MODULUS:
+				return first % second;
+			case EXPONENT:
+				return pow(first, second);
+			case SCIENTIFIC_NOTATION:
+				return scale(first, second);
+			case GREATER_THAN:
+				return first > second ? 1 : 0;
+			case LESS_THAN:
+				return first < second ? 1 : 0;
+			case GREATER_THAN_OR_EQUAL_TO:
+				return first >= second ? 1 : 0;
+			case LESS_THAN_OR_EQUAL_TO:
+				return first <= second ? 1 : 0;
+			case EQUAL_TO:
+				return first == second ? 1 : 0;
+			case NOT_EQUAL_TO:
+				return first != second ? 1 : 0;
+			case AND:
+				return first == 1 && second == 1 ? 1 : 0;
+			case OR:
+				return first == 1 || second == 1 ? 1 : 0;
+			default:
+				throw new IllegalStateException("Invalid opcode " + opcode);
+		}
+	}
+	
+	private static long unary(int opcode, long value) {
+		switch (opcode) {
+			case NEGATE:
+				return Math.negateExact(value);
+			case NOT:
+				return value == 1 ? 0 : 1;
+			case SIN:
+				return (long) Math.sin(value);
+			case COS:
+				return (long) Math.cos(value);
+			case TAN:
+				return (long) Math.tan(value);
+			case SINH:
+				return (long) Math.sinh(value);
+			case COSH:
+				return (long) Math.cosh(value);
+			case TANH:
+				return (long) Math.tanh(value);
+			case ASIN:
+				return (long) Math.asin(value);
+			case ACOS:
+				return (long) Math.acos(value);
+			case ATAN:
+				return (long) Math.atan(value);
+			case ABS:
+				return value < 0 ? Math.negateExact(value) : value;
+			case ROUND:
+			case FLOOR:
+			case CEIL:
+				// Every long is already an integer
+				return value;
+			case LOG:
+				return (long) Math.log(value);
+			case SQRT:
+				return (long) Math.sqrt(value);
+			case CBRT:
+				return (long) Math.cbrt(value);
+			case RAND:
+				return (long) (ThreadLocalRandom.current().nextDouble() * value);
+			default:
+				throw new IllegalStateException("Invalid opcode " + opcode);
+		}
+	}
+	
+	private static long divide(long dividend, long divisor) {
+		if (dividend == Long.MIN_VALUE && divisor == -1) {
+			throw new ArithmeticException("long overflow");
+		}
+		return dividend / divisor;
+	}
+	
+	/**
+	 * Raises a base to an exponent by squaring. A negative exponent gives the reciprocal of the power truncated toward
+	 * zero, which is only nonzero for bases of 1 and -1.
+	 */
+	private static long pow(long base, long exponent) {
+		if (exponent < 0) {
+			if (base == 0) {
+				throw new ArithmeticException("/ by zero");
+			}
+			if (base == 1 || base == -1) {
+				return (exponent & 1) == 0 ? 1 : base;
+			}
+			return 0;
+		}
+		long result = 1;
+		while (true) {
+			if ((exponent & 1) != 0) {
+				result = Math.multiplyExact(result, base);
+			}
+			exponent >>= 1;
+			if (exponent == 0) {
+				return result;
+			}
+			base = Math.multiplyExact(base, base);
+		}
+	}
+	
+	/**
+	 * Multiplies a value by a power of ten, or divides it by one when the exponent is negative
+	 */
+	private static long scale(long value, long exponent) {
+		if (value == 0) {
+			return 0;
+		}
+		if (exponent >= 0) {
+			return Math.multiplyExact(value, pow(10, exponent));
+		}
+		// 10^19 is past the range of long, so any smaller power divides every long to 0
+		return exponent < -18 ? 0 : value / pow(10, -exponent);
+	}
+	
+	/**
+	 * Creates a copy of this program with its own scratch storage, for use on another thread
+	 * @return A clone of this program
+	 */
+	public LongProgram getClone() {
+		Value[] clonedExternals = new Value[externals.length];
+		for (int i = 0; i < externals.length; i++) {
+			clonedExternals[i] = externals[i].getClone();
+		}
+		return new LongProgram(source, code, constants, functions, clonedExternals, stack.length, registers.length, row.length);
+	}
+	
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+	
+}
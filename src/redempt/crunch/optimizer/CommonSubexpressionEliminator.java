@@ -0,0 +1,256 @@
+package redempt.crunch.optimizer;
+
+import redempt.crunch.Variable;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges structurally identical pure subexpressions into a single node, then moves every merged operation that is used
+ * more than once into a {@link SharedScope} so it is evaluated only once. Impure operations, function calls, lazy
+ * variables and anything containing them are never merged, though pure subexpressions inside them are.
+ * @author Redempt
+ */
+public class CommonSubexpressionEliminator {
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	/**
+	 * Eliminates common subexpressions from an expression
+	 * @param value The expression
+	 * @param variableCount The number of variables the expression uses
+	 * @return The expression wrapped in a SharedScope, or the original expression if nothing is used more than once
+	 */
+	public static Value eliminate(Value value, int variableCount) {
+		CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator(variableCount);
+		Value canonical = eliminator.canonicalize(value);
+		eliminator.countUse(canonical);
+		Value rewritten = eliminator.rewrite(canonical);
+		if (eliminator.definitions.isEmpty()) {
+			return value;
+		}
+		return new SharedScope(rewritten, eliminator.definitions.toArray(new Value[0]), variableCount);
+	}
+	
+	/**
+	 * Eliminates common subexpressions across expressions which are evaluated together, so that a subexpression used
+	 * more than once in any of them is computed only once for all of them
+	 * @param values The expressions, which are replaced in place with their rewritten forms
+	 * @param variableCount The number of variables the expressions use
+	 * @return The shared subexpressions, to be evaluated in order into the slots directly after the variables
+	 */
+	public static Value[] eliminateAll(Value[] values, int variableCount) {
+		CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator(variableCount);
+		Value[] canonical = new Value[values.length];
+		for (int i = 0; i < values.length; i++) {
+			canonical[i] = eliminator.canonicalize(values[i]);
+			eliminator.countUse(canonical[i]);
+		}
+		for (int i = 0; i < values.length; i++) {
+			values[i] = eliminator.rewrite(canonical[i]);
+		}
+		return eliminator.definitions.toArray(new Value[0]);
+	}
+	
+	private final int variableCount;
+	private final Map<Object, Value> canonical = new HashMap<>();
+	private final Set<Value> impure = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final Map<Value, Integer> uses = new IdentityHashMap<>();
+	private final Map<Value, Value> rewritten = new IdentityHashMap<>();
+	private final List<Value> definitions = new ArrayList<>();
+	
+	private CommonSubexpressionEliminator(int variableCount) {
+		this.variableCount = variableCount;
+	}
+	
+	/**
+	 * Rebuilds an expression so that structurally identical pure subexpressions are the same object
+	 */
+	private Value canonicalize(Value value) {
+		return PostOrder.rebuild(value, null, this::canonicalize);
+	}
+	
+	private Value canonicalize(Value value, Value[] children) {
+		switch (value.getType()) {
+			case LITERAL_VALUE:
+				if (value instanceof LiteralValue) {
+					return intern(Double.doubleToLongBits(value.getValue(NO_VARIABLES)), value);
+				}
+				if (value instanceof Constant) {
+					// Each constant is a single enum instance, so it is its own key
+					return intern(value, value);
+				}
+				return impure(value);
+			case VARIABLE:
+				return intern("$" + ((Variable) value).getIndex(), value);
+			case BINARY_OPERATION: {
+				BinaryOperation operation = (BinaryOperation) value;
+				Value[] operands = operation.getValues();
+				Value first = children[0];
+				Value second = children[1];
+				Value node = first == operands[0] && second == operands[1] ? value : BinaryOperation.of(operation.getOperator(), first, second);
+				return intern(new NodeKey(operation.getOperator(), first, second), node);
+			}
+			case UNARY_OPERATION: {
+				UnaryOperation operation = (UnaryOperation) value;
+				Value child = children[0];
+				Value node = child == operation.getChild() ? value : UnaryOperation.of(operation.getOperator(), child);
+				return operation.getOperator().isPure() ? intern(new NodeKey(operation.getOperator(), child), node) : impure(node);
+			}
+			case LOGICAL_OPERATION: {
+				LogicalOperation operation = (LogicalOperation) value;
+				return intern(new NodeKey(operation.getOperator(), children[0], children[1]), new LogicalOperation(operation.getOperator(), children[0], children[1]));
+			}
+			case INTEGER_POWER: {
+				IntegerPower power = (IntegerPower) value;
+				return intern(new NodeKey("^" + power.getExponent(), children[0]), new IntegerPower(children[0], power.getExponent()));
+			}
+			case CONDITIONAL:
+				return intern(new NodeKey(TokenType.CONDITIONAL, children), new Conditional(children[0], children[1], children[2]));
+			case FUNCTION_CALL:
+				return impure(FunctionCall.of(((FunctionCall) value).getFunction(), children));
+			default:
+				return impure(value);
+		}
+	}
+	
+	/**
+	 * Looks up the canonical node for a key. Nodes with an impure descendant are never merged, so that shared definitions,
+	 * which are evaluated eagerly, never call user code or skip a call the expression would make.
+	 */
+	private Value intern(Object key, Value value) {
+		if (key instanceof NodeKey) {
+			for (Value child : ((NodeKey) key).children) {
+				if (impure.contains(child)) {
+					return impure(value);
+				}
+			}
+		}
+		Value existing = canonical.putIfAbsent(key, value);
+		return existing == null ? value : existing;
+	}
+	
+	private Value impure(Value value) {
+		impure.add(value);
+		return value;
+	}
+	
+	/**
+	 * Counts how many times each node is referenced, visiting the children of each node only on its first use
+	 */
+	private void countUse(Value value) {
+		PostOrder.visit(value, node -> {
+			Integer count = uses.get(node);
+			uses.put(node, count == null ? 1 : count + 1);
+			return count == null;
+		});
+	}
+	
+	/**
+	 * Rebuilds the canonical expression, replacing operations used more than once with SharedValues
+	 */
+	private Value rewrite(Value value) {
+		return PostOrder.rebuild(value, rewritten, this::rewrite);
+	}
+	
+	private Value rewrite(Value value, Value[] children) {
+		Value result;
+		switch (value.getType()) {
+			case BINARY_OPERATION:
+				result = BinaryOperation.of(((BinaryOperation) value).getOperator(), children[0], children[1]);
+				break;
+			case UNARY_OPERATION:
+				result = UnaryOperation.of(((UnaryOperation) value).getOperator(), children[0]);
+				break;
+			case LOGICAL_OPERATION:
+				result = new LogicalOperation(((LogicalOperation) value).getOperator(), children[0], children[1]);
+				break;
+			case INTEGER_POWER:
+				result = new IntegerPower(children[0], ((IntegerPower) value).getExponent());
+				break;
+			case CONDITIONAL:
+				result = new Conditional(children[0], children[1], children[2]);
+				break;
+			case FUNCTION_CALL:
+				result = FunctionCall.of(((FunctionCall) value).getFunction(), children);
+				break;
+			default:
+				return value;
+		}
+		if (uses.get(value) > 1 && isShareable(value)) {
+			definitions.add(result);
+			result = new SharedValue(variableCount + definitions.size() - 1, result);
+		}
+		rewritten.put(value, result);
+		return result;
+	}
+	
+	private boolean isShareable(Value value) {
+		switch (value.getType()) {
+			case BINARY_OPERATION:
+			case UNARY_OPERATION:
+			case LOGICAL_OPERATION:
+			case CONDITIONAL:
+			case INTEGER_POWER:
+				return !impure.contains(value);
+			default:
+				return false;
+		}
+	}
+	
+	private static class NodeKey {
+		
+		private final Object operator;
+		private final Value[] children;
+		
+		public NodeKey(Object operator, Value... children) {
+			this.operator = operator;
+			this.children = children;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof NodeKey)) {
+				return false;
+			}
+			NodeKey other = (NodeKey) o;
+			if (!operator.equals(other.operator) || children.length != other.children.length) {
+				return false;
+			}
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] != other.children[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		public int hashCode() {
+			int hash = operator.hashCode();
+			for (Value child : children) {
+				hash = hash * 31 + System.identityHashCode(child);
+			}
+			return hash;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,89 @@
+package redempt.crunch.optimizer;
+
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists the rewrites the optimizer applied while compiling an expression
+ * @author Redempt
+ */
+public class CompileReport {
+	
+	/**
+	 * A report with no rewrites, for expressions compiled without optimizations
+	 */
+	public static final CompileReport EMPTY = new CompileReport();
+	
+	private final List<Rewrite> rewrites = new ArrayList<>();
+	
+	/**
+	 * Creates an empty CompileReport
+	 */
+	public CompileReport() {}
+	
+	void record(String rule, Value before, Value after) {
+		rewrites.add(new Rewrite(rule, before, after));
+	}
+	
+	/**
+	 * @return The rewrites which were applied, in the order they were applied
+	 */
+	public List<Rewrite> getRewrites() {
+		return Collections.unmodifiableList(rewrites);
+	}
+	
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Rewrite rewrite : rewrites) {
+			builder.append(rewrite).append('\n');
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * A single rewrite of one subexpression into another. The subexpressions are only printed when asked for, since
+	 * printing every rewrite of a deep chain as it is applied would take time quadratic in its height.
+	 */
+	public static class Rewrite {
+		
+		private final String rule;
+		private final Value before;
+		private final Value after;
+		
+		private Rewrite(String rule, Value before, Value after) {
+			this.rule = rule;
+			this.before = before;
+			this.after = after;
+		}
+		
+		/**
+		 * @return The name of the rule which was applied
+		 */
+		public String getRule() {
+			return rule;
+		}
+		
+		/**
+		 * @return The subexpression before the rewrite
+		 */
+		public String getBefore() {
+			return PostOrder.print(before);
+		}
+		
+		/**
+		 * @return The subexpression after the rewrite
+		 */
+		public String getAfter() {
+			return PostOrder.print(after);
+		}
+		
+		public String toString() {
+			return rule + ": " + getBefore() + " -> " + getAfter();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,127 @@
+package redempt.crunch.optimizer;
+
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.MemoizedVariable;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Replaces every use of a memoized {@link LazyVariable} with a {@link MemoizedVariable}, so that each one is sampled at
+ * most once per evaluation. The slots the MemoizedVariables store their values in are added to the root
+ * {@link SharedScope}, which is created if the expression does not already have one.
+ * @author Redempt
+ */
+public final class LazyMemoizer {
+	
+	/**
+	 * Memoizes the lazy variables in an expression which are marked as memoized
+	 * @param value The expression
+	 * @param variableCount The number of variables the expression uses
+	 * @return The expression wrapped in a SharedScope, or the original expression if it uses no memoized lazy variables
+	 */
+	public static Value memoize(Value value, int variableCount) {
+		Value[] definitions = new Value[0];
+		Value child = value;
+		if (value.getType() == TokenType.SHARED_SCOPE) {
+			SharedScope scope = (SharedScope) value;
+			if (scope.getMemoizedCount() != 0) {
+				return value;
+			}
+			definitions = scope.getDefinitions();
+			child = scope.getChild();
+		}
+		LazyMemoizer memoizer = new LazyMemoizer(variableCount + definitions.length, false);
+		Value rewritten = memoizer.rewrite(child);
+		if (memoizer.slots.isEmpty()) {
+			return value;
+		}
+		return new SharedScope(rewritten, definitions, variableCount, memoizer.slots.size());
+	}
+	
+	/**
+	 * Memoizes every lazy variable in expressions which are evaluated together, whether or not it is marked as memoized,
+	 * so that each is sampled at most once for all of them
+	 * @param values The expressions, which are replaced in place with their rewritten forms
+	 * @param firstSlot The index of the first slot to store memoized values in
+	 * @return The number of memoized lazy variables, each of which takes two slots
+	 */
+	public static int memoizeAll(Value[] values, int firstSlot) {
+		LazyMemoizer memoizer = new LazyMemoizer(firstSlot, true);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = memoizer.rewrite(values[i]);
+		}
+		return memoizer.slots.size();
+	}
+	
+	private final int firstSlot;
+	private final boolean all;
+	private final Map<LazyVariable, MemoizedVariable> slots = new IdentityHashMap<>();
+	
+	private LazyMemoizer(int firstSlot, boolean all) {
+		this.firstSlot = firstSlot;
+		this.all = all;
+	}
+	
+	private Value rewrite(Value value) {
+		return PostOrder.rebuild(value, null, this::rewrite);
+	}
+	
+	private Value rewrite(Value value, Value[] children) {
+		switch (value.getType()) {
+			case LAZY_VARIABLE: {
+				LazyVariable variable = (LazyVariable) value;
+				if (!all && !variable.isMemoized()) {
+					return value;
+				}
+				return slots.computeIfAbsent(variable, v -> new MemoizedVariable(firstSlot + slots.size() * 2, v));
+			}
+			case BINARY_OPERATION: {
+				BinaryOperation operation = (BinaryOperation) value;
+				return unchanged(operation.getValues(), children) ? value : BinaryOperation.of(operation.getOperator(), children[0], children[1]);
+			}
+			case UNARY_OPERATION: {
+				UnaryOperation operation = (UnaryOperation) value;
+				return children[0] == operation.getChild() ? value : UnaryOperation.of(operation.getOperator(), children[0]);
+			}
+			case LOGICAL_OPERATION: {
+				LogicalOperation operation = (LogicalOperation) value;
+				return unchanged(operation.getValues(), children) ? value : new LogicalOperation(operation.getOperator(), children[0], children[1]);
+			}
+			case INTEGER_POWER: {
+				IntegerPower power = (IntegerPower) value;
+				return children[0] == power.getBase() ? value : new IntegerPower(children[0], power.getExponent());
+			}
+			case CONDITIONAL: {
+				Conditional conditional = (Conditional) value;
+				Value[] original = {conditional.getCondition(), conditional.getIfTrue(), conditional.getIfFalse()};
+				return unchanged(original, children) ? value : new Conditional(children[0], children[1], children[2]);
+			}
+			case FUNCTION_CALL: {
+				FunctionCall call = (FunctionCall) value;
+				return unchanged(call.getArguments(), children) ? value : FunctionCall.of(call.getFunction(), children);
+			}
+			default:
+				return value;
+		}
+	}
+	
+	private static boolean unchanged(Value[] original, Value[] rewritten) {
+		for (int i = 0; i < original.length; i++) {
+			if (original[i] != rewritten[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+}
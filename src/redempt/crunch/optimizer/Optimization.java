@@ -0,0 +1,37 @@
+package redempt.crunch.optimizer;
+
+import redempt.crunch.functional.ExpressionEnv;
+
+/**
+ * Optional compile passes which can be enabled for an {@link ExpressionEnv}. None are enabled by default.
+ * @author Redempt
+ */
+public enum Optimization {
+	
+	/**
+	 * Removes identity operations such as {@code $1 * 1}, double negations, and comparisons whose result is known ahead
+	 * of time, such as {@code abs($1) < 0}. Only rewrites which give the same result for every input are applied unless
+	 * {@link #FAST_MATH} is also enabled.
+	 */
+	SIMPLIFY,
+	/**
+	 * Replaces {@code ^} with a literal exponent by cheaper operations: small integer exponents become repeated
+	 * multiplication, {@code ^0.5} becomes {@code sqrt} and {@code ^-1} becomes a reciprocal. Repeated multiplication
+	 * can differ from {@link Math#pow(double, double)} by about one ulp per unit of exponent, so by up to about 16 ulps,
+	 * and {@code sqrt} differs for -0 and negative infinity. Also folds {@code E} with a literal exponent into a
+	 * multiplication, and turns division by a power of two into multiplication by its reciprocal, or division by any
+	 * literal if {@link #FAST_MATH} is also enabled. Every rewrite is listed in the expression's {@link CompileReport}.
+	 */
+	STRENGTH_REDUCTION,
+	/**
+	 * Allows other passes to apply rewrites which may change rounding or the handling of NaN, infinities and signed zeroes,
+	 * such as folding {@code $1 + 2 + 3} into {@code $1 + 5} or {@code $1 - $1} into {@code 0}. Has no effect on its own.
+	 */
+	FAST_MATH,
+	/**
+	 * Evaluates structurally identical pure subexpressions only once per evaluation. For example, in
+	 * {@code sin($1*$2)^2 + cos($1*$2)^2}, {@code $1*$2} is computed once and reused.
+	 */
+	COMMON_SUBEXPRESSIONS
+	
+}
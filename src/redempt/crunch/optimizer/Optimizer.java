@@ -0,0 +1,50 @@
+package redempt.crunch.optimizer;
+
+import redempt.crunch.token.Value;
+
+import java.util.Set;
+
+/**
+ * Runs the enabled optional compile passes over a parsed expression
+ * @author Redempt
+ */
+public final class Optimizer {
+	
+	private Optimizer() {
+		// Prevent instantiation
+	}
+	
+	/**
+	 * Optimizes a parsed expression
+	 * @param value The parsed expression
+	 * @param variableCount The number of variables the expression uses
+	 * @param optimizations The passes to run
+	 * @return The optimized expression, which evaluates to the same result
+	 */
+	public static Value optimize(Value value, int variableCount, Set<Optimization> optimizations) {
+		return optimize(value, variableCount, optimizations, new CompileReport());
+	}
+	
+	/**
+	 * Optimizes a parsed expression
+	 * @param value The parsed expression
+	 * @param variableCount The number of variables the expression uses
+	 * @param optimizations The passes to run
+	 * @param report The report to record rewrites in
+	 * @return The optimized expression, which evaluates to the same result
+	 */
+	public static Value optimize(Value value, int variableCount, Set<Optimization> optimizations, CompileReport report) {
+		boolean fastMath = optimizations.contains(Optimization.FAST_MATH);
+		if (optimizations.contains(Optimization.SIMPLIFY)) {
+			value = Simplifier.simplify(value, fastMath);
+		}
+		if (optimizations.contains(Optimization.STRENGTH_REDUCTION)) {
+			value = StrengthReducer.reduce(value, fastMath, report);
+		}
+		if (optimizations.contains(Optimization.COMMON_SUBEXPRESSIONS)) {
+			value = CommonSubexpressionEliminator.eliminate(value, variableCount);
+		}
+		return value;
+	}
+	
+}
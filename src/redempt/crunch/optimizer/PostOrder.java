@@ -0,0 +1,226 @@
+package redempt.crunch.optimizer;
+
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Rebuilds, measures and prints expression trees without recursing, so that compile passes, serialization and
+ * {@link redempt.crunch.CompiledProgram} handle trees of any height in bounded stack space
+ * @author Redempt
+ */
+public final class PostOrder {
+	
+	private static final Value[] NO_CHILDREN = new Value[0];
+	
+	private PostOrder() {
+		// Prevent instantiation
+	}
+	
+	/**
+	 * Rebuilds a tree, visiting children in order before their parent
+	 * @param root The root of the tree
+	 * @param done Results of nodes which have already been rebuilt, which are reused instead of visiting the node again,
+	 *             or null to visit every occurrence of a node
+	 * @param rebuild Builds the result for a node from the node and the results for its children
+	 * @return The result for the root
+	 */
+	public static Value rebuild(Value root, Map<Value, Value> done, BiFunction<Value, Value[], Value> rebuild) {
+		// Nodes waiting for their children are followed on the stack by the number of children they are waiting for
+		List<Object> stack = new ArrayList<>();
+		List<Value> results = new ArrayList<>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			Object top = stack.remove(stack.size() - 1);
+			if (top instanceof Integer) {
+				int count = (Integer) top;
+				Value node = (Value) stack.remove(stack.size() - 1);
+				List<Value> tail = results.subList(results.size() - count, results.size());
+				Value[] children = tail.toArray(new Value[0]);
+				tail.clear();
+				results.add(rebuild.apply(node, children));
+				continue;
+			}
+			Value node = (Value) top;
+			Value existing = done == null ? null : done.get(node);
+			if (existing != null) {
+				results.add(existing);
+				continue;
+			}
+			Value[] children = children(node);
+			stack.add(node);
+			stack.add(children.length);
+			for (int i = children.length - 1; i >= 0; i--) {
+				stack.add(children[i]);
+			}
+		}
+		return results.get(0);
+	}
+	
+	/**
+	 * Visits every node of a tree before its children, without recursing
+	 * @param root The root of the tree
+	 * @param visit Called for each node, returning whether its children should be visited
+	 */
+	static void visit(Value root, Predicate<Value> visit) {
+		List<Value> stack = new ArrayList<>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			Value node = stack.remove(stack.size() - 1);
+			if (!visit.test(node)) {
+				continue;
+			}
+			Value[] children = children(node);
+			for (int i = children.length - 1; i >= 0; i--) {
+				stack.add(children[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Measures the height of a tree without recursing. The definitions and body of a {@link SharedScope} count as its
+	 * children, since evaluating the scope evaluates all of them.
+	 * @param root The root of the tree
+	 * @param limit The height at which measuring stops early
+	 * @return The height of the tree, or the limit if the tree is at least that tall
+	 */
+	public static int height(Value root, int limit) {
+		List<Value> stack = new ArrayList<>();
+		List<Integer> depths = new ArrayList<>();
+		stack.add(root);
+		depths.add(1);
+		int height = 0;
+		while (!stack.isEmpty()) {
+			Value node = stack.remove(stack.size() - 1);
+			int depth = depths.remove(depths.size() - 1);
+			if (depth >= limit) {
+				return limit;
+			}
+			height = Math.max(height, depth);
+			Value[] children = children(node);
+			if (node.getType() == TokenType.SHARED_SCOPE) {
+				SharedScope scope = (SharedScope) node;
+				children = Arrays.copyOf(scope.getDefinitions(), scope.getDefinitions().length + 1);
+				children[children.length - 1] = scope.getChild();
+			}
+			for (Value child : children) {
+				stack.add(child);
+				depths.add(depth + 1);
+			}
+		}
+		return height;
+	}
+	
+	/**
+	 * Builds the same String as {@link Value#toString()} without recursing
+	 * @param root The root of the tree
+	 * @return The String representation of the tree
+	 */
+	public static String print(Value root) {
+		StringBuilder builder = new StringBuilder();
+		// The Values still to be written and the text between them, with the next one to write at the end
+		List<Object> stack = new ArrayList<>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			Object top = stack.remove(stack.size() - 1);
+			if (!(top instanceof Value)) {
+				builder.append(top);
+				continue;
+			}
+			Value value = (Value) top;
+			switch (value.getType()) {
+				case BINARY_OPERATION: {
+					BinaryOperation operation = (BinaryOperation) value;
+					Value[] operands = operation.getValues();
+					push(stack, "(", operands[0], operation.getOperator().getSymbol(), operands[1], ")");
+					break;
+				}
+				case LOGICAL_OPERATION: {
+					LogicalOperation operation = (LogicalOperation) value;
+					Value[] operands = operation.getValues();
+					push(stack, "(", operands[0], operation.getOperator().getSymbol(), operands[1], ")");
+					break;
+				}
+				case UNARY_OPERATION: {
+					UnaryOperation operation = (UnaryOperation) value;
+					push(stack, "(" + operation.getOperator().getSymbol(), operation.getChild(), ")");
+					break;
+				}
+				case INTEGER_POWER: {
+					IntegerPower power = (IntegerPower) value;
+					push(stack, "(", power.getBase(), "^" + (double) power.getExponent() + ")");
+					break;
+				}
+				case CONDITIONAL: {
+					Conditional conditional = (Conditional) value;
+					push(stack, "(", conditional.getCondition(), "?", conditional.getIfTrue(), ":", conditional.getIfFalse(), ")");
+					break;
+				}
+				case FUNCTION_CALL: {
+					FunctionCall call = (FunctionCall) value;
+					Value[] arguments = call.getArguments();
+					stack.add(")");
+					for (int i = arguments.length - 1; i >= 0; i--) {
+						stack.add(arguments[i]);
+						stack.add(i == 0 ? call.getFunction().getName() + "(" : ", ");
+					}
+					if (arguments.length == 0) {
+						stack.add(call.getFunction().getName() + "(");
+					}
+					break;
+				}
+				case SHARED_SCOPE:
+					stack.add(((SharedScope) value).getChild());
+					break;
+				case SHARED_VALUE:
+					stack.add(((SharedValue) value).getDefinition());
+					break;
+				default:
+					builder.append(value);
+			}
+		}
+		return builder.toString();
+	}
+	
+	private static void push(List<Object> stack, Object... parts) {
+		for (int i = parts.length - 1; i >= 0; i--) {
+			stack.add(parts[i]);
+		}
+	}
+	
+	static Value[] children(Value value) {
+		switch (value.getType()) {
+			case BINARY_OPERATION:
+				return ((BinaryOperation) value).getValues();
+			case UNARY_OPERATION:
+				return new Value[] {((UnaryOperation) value).getChild()};
+			case LOGICAL_OPERATION:
+				return ((LogicalOperation) value).getValues();
+			case INTEGER_POWER:
+				return new Value[] {((IntegerPower) value).getBase()};
+			case CONDITIONAL: {
+				Conditional conditional = (Conditional) value;
+				return new Value[] {conditional.getCondition(), conditional.getIfTrue(), conditional.getIfFalse()};
+			}
+			case FUNCTION_CALL:
+				return ((FunctionCall) value).getArguments();
+			default:
+				return NO_CHILDREN;
+		}
+	}
+	
+}
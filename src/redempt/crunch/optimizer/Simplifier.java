@@ -0,0 +1,743 @@
+package redempt.crunch.optimizer;
+
+import redempt.crunch.Variable;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites an expression into a cheaper one which evaluates to the same result. By default only rewrites which are
+ * exact for every input, including NaN, infinities and signed zeroes, are applied: identity elimination, double
+ * negation removal, literal folding and folding of comparisons whose result is known from the ranges of their operands.
+ * With fast math, rewrites which may change rounding or special values are applied as well, such as reassociating
+ * chains of constants ({@code $1 + 2 + 3} to {@code $1 + 5}) and {@code $1 * 0} to {@code 0}.
+ * @author Redempt
+ */
+public class Simplifier {
+
+	private static final double[] NO_VARIABLES = new double[0];
+	/**
+	 * The number of levels below a comparison which ranges are tracked through, which bounds the stack used to compute
+	 * them. Deeper subexpressions are assumed to take any value.
+	 */
+	private static final int MAX_RANGE_DEPTH = 64;
+
+	/**
+	 * Simplifies an expression
+	 * @param value The expression
+	 * @param fastMath Whether rewrites which are not exact for every floating point input may be applied
+	 * @return The simplified expression
+	 */
+	public static Value simplify(Value value, boolean fastMath) {
+		return new Simplifier(fastMath).simplify(value);
+	}
+
+	private final boolean fastMath;
+
+	private Simplifier(boolean fastMath) {
+		this.fastMath = fastMath;
+	}
+
+	private Value simplify(Value value) {
+		return PostOrder.rebuild(value, null, this::simplify);
+	}
+	
+	private Value simplify(Value value, Value[] children) {
+		switch (value.getType()) {
+			case BINARY_OPERATION:
+				return simplifyBinary(((BinaryOperation) value).getOperator(), children[0], children[1]);
+			case UNARY_OPERATION:
+				return simplifyUnary(((UnaryOperation) value).getOperator(), children[0]);
+			case LOGICAL_OPERATION:
+				return simplifyLogical(((LogicalOperation) value).getOperator(), children[0], children[1]);
+			case CONDITIONAL:
+				return simplifyConditional(children[0], children[1], children[2]);
+			case FUNCTION_CALL:
+				return FunctionCall.of(((FunctionCall) value).getFunction(), children);
+			default:
+				return value;
+		}
+	}
+
+	private Value simplifyUnary(UnaryOperator op, Value child) {
+		if (isLiteral(child) && op.isPure()) {
+			return new LiteralValue(op.getOperation().applyAsDouble(literal(child)));
+		}
+		UnaryOperator inner = child.getType() == TokenType.UNARY_OPERATION ? ((UnaryOperation) child).getOperator() : null;
+		switch (op) {
+			case NEGATE:
+				if (inner == UnaryOperator.NEGATE) {
+					return ((UnaryOperation) child).getChild();
+				}
+				break;
+			case NOT:
+				if (inner == UnaryOperator.NOT && isBoolean(((UnaryOperation) child).getChild())) {
+					return ((UnaryOperation) child).getChild();
+				}
+				break;
+			case ABS:
+				if (inner == UnaryOperator.ABS || inner == UnaryOperator.NEGATE) {
+					return simplifyUnary(UnaryOperator.ABS, ((UnaryOperation) child).getChild());
+				}
+				break;
+			case FLOOR:
+			case CEIL:
+				if (inner == UnaryOperator.FLOOR || inner == UnaryOperator.CEIL) {
+					return child;
+				}
+				break;
+		}
+		return UnaryOperation.of(op, child);
+	}
+
+	private Value simplifyBinary(BinaryOperator op, Value first, Value second) {
+		if (isLiteral(first) && isLiteral(second)) {
+			return new LiteralValue(op.getOperation().applyAsDouble(literal(first), literal(second)));
+		}
+		if (isCommutative(op) && isLiteral(first)) {
+			Value swap = first;
+			first = second;
+			second = swap;
+		}
+		Value folded;
+		switch (op) {
+			case ADD:
+				folded = simplifyAdd(first, second);
+				break;
+			case SUBTRACT:
+				folded = simplifySubtract(first, second);
+				break;
+			case MULTIPLY:
+				folded = simplifyMultiply(first, second);
+				break;
+			case DIVIDE:
+				folded = simplifyDivide(first, second);
+				break;
+			case EXPONENT:
+				folded = simplifyExponent(first, second);
+				break;
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+				folded = simplifyAnd(first, second);
+				break;
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				folded = simplifyOr(first, second);
+				break;
+			case LESS_THAN:
+			case GREATER_THAN:
+			case LESS_THAN_OR_EQUAL_TO:
+			case GREATER_THAN_OR_EQUAL_TO:
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+			case NOT_EQUAL_TO:
+				folded = simplifyComparison(op, first, second);
+				break;
+			default:
+				folded = null;
+		}
+		return folded == null ? BinaryOperation.of(op, first, second) : folded;
+	}
+
+	private Value simplifyLogical(BinaryOperator op, Value first, Value second) {
+		boolean and = op == BinaryOperator.BOOLEAN_AND || op == BinaryOperator.BOOLEAN_AND_ALT;
+		if (isLiteral(first)) {
+			// The second operand is only evaluated if the first does not decide the result
+			if ((literal(first) == 1) != and) {
+				return new LiteralValue(and ? 0 : 1);
+			}
+			return isBoolean(second) ? second : BinaryOperation.of(BinaryOperator.EQUAL_TO, second, new LiteralValue(1));
+		}
+		if (isSame(first, second) && isBoolean(first)) {
+			return first;
+		}
+		if (isLiteral(second)) {
+			if ((literal(second) == 1) != and) {
+				if (isDroppable(first)) {
+					return new LiteralValue(and ? 0 : 1);
+				}
+			} else if (isBoolean(first)) {
+				return first;
+			}
+		}
+		return new LogicalOperation(op, first, second);
+	}
+	
+	private Value simplifyConditional(Value condition, Value ifTrue, Value ifFalse) {
+		if (isLiteral(condition)) {
+			return literal(condition) == 1 ? ifTrue : ifFalse;
+		}
+		if (isSame(ifTrue, ifFalse) && isDroppable(condition)) {
+			return ifTrue;
+		}
+		if (condition.getType() == TokenType.UNARY_OPERATION && ((UnaryOperation) condition).getOperator() == UnaryOperator.NOT) {
+			// !c is 1 exactly when c is not 1
+			return simplifyConditional(((UnaryOperation) condition).getChild(), ifFalse, ifTrue);
+		}
+		if (isBoolean(condition) && isLiteral(ifTrue) && isLiteral(ifFalse)) {
+			if (literal(ifTrue) == 1 && isPositiveZero(literal(ifFalse))) {
+				return condition;
+			}
+			if (isPositiveZero(literal(ifTrue)) && literal(ifFalse) == 1) {
+				return simplifyUnary(UnaryOperator.NOT, condition);
+			}
+		}
+		return new Conditional(condition, ifTrue, ifFalse);
+	}
+	
+	private Value simplifyAdd(Value first, Value second) {
+		if (isLiteral(second)) {
+			double constant = literal(second);
+			if (isNegativeZero(constant) || (fastMath && constant == 0)) {
+				return first;
+			}
+			if (constant < 0) {
+				return simplifyBinary(BinaryOperator.SUBTRACT, first, new LiteralValue(-constant));
+			}
+			if (fastMath) {
+				return reassociateAdditive(first, constant);
+			}
+			return null;
+		}
+		if (isNegation(second)) {
+			return simplifyBinary(BinaryOperator.SUBTRACT, first, negated(second));
+		}
+		if (isNegation(first)) {
+			return simplifyBinary(BinaryOperator.SUBTRACT, second, negated(first));
+		}
+		return null;
+	}
+
+	private Value simplifySubtract(Value first, Value second) {
+		if (isLiteral(second)) {
+			double constant = literal(second);
+			if (isPositiveZero(constant) || (fastMath && constant == 0)) {
+				return first;
+			}
+			if (constant < 0) {
+				return simplifyBinary(BinaryOperator.ADD, first, new LiteralValue(-constant));
+			}
+			if (fastMath) {
+				return reassociateAdditive(first, -constant);
+			}
+			return null;
+		}
+		if (isNegation(second)) {
+			return simplifyBinary(BinaryOperator.ADD, first, negated(second));
+		}
+		if (isLiteral(first) && (isNegativeZero(literal(first)) || (fastMath && literal(first) == 0))) {
+			return simplifyUnary(UnaryOperator.NEGATE, second);
+		}
+		if (fastMath && isSame(first, second)) {
+			return new LiteralValue(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Folds a constant offset into an addition or subtraction of a constant, if the given value is one
+	 */
+	private Value reassociateAdditive(Value value, double offset) {
+		if (value.getType() == TokenType.BINARY_OPERATION) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] operands = operation.getValues();
+			BinaryOperator op = operation.getOperator();
+			if (op == BinaryOperator.ADD && isFiniteLiteral(operands[1])) {
+				return foldedAdditive(operands[0], literal(operands[1]) + offset);
+			}
+			if (op == BinaryOperator.SUBTRACT && isFiniteLiteral(operands[1])) {
+				return foldedAdditive(operands[0], offset - literal(operands[1]));
+			}
+			if (op == BinaryOperator.SUBTRACT && isFiniteLiteral(operands[0]) && Double.isFinite(literal(operands[0]) + offset)) {
+				return simplifyBinary(BinaryOperator.SUBTRACT, new LiteralValue(literal(operands[0]) + offset), operands[1]);
+			}
+		}
+		return null;
+	}
+
+	private Value foldedAdditive(Value value, double constant) {
+		if (!Double.isFinite(constant)) {
+			return null;
+		}
+		return simplifyBinary(BinaryOperator.ADD, value, new LiteralValue(constant));
+	}
+
+	private Value simplifyMultiply(Value first, Value second) {
+		if (isNegation(first) && isNegation(second)) {
+			return simplifyBinary(BinaryOperator.MULTIPLY, negated(first), negated(second));
+		}
+		if (!isLiteral(second)) {
+			return null;
+		}
+		double constant = literal(second);
+		if (constant == 1) {
+			return first;
+		}
+		if (constant == -1) {
+			return simplifyUnary(UnaryOperator.NEGATE, first);
+		}
+		if (isNegation(first)) {
+			return simplifyBinary(BinaryOperator.MULTIPLY, negated(first), new LiteralValue(-constant));
+		}
+		if (fastMath && constant == 0 && isDroppable(first)) {
+			return new LiteralValue(0);
+		}
+		if (first.getType() != TokenType.BINARY_OPERATION) {
+			return null;
+		}
+		BinaryOperation operation = (BinaryOperation) first;
+		Value[] operands = operation.getValues();
+		if (operation.getOperator() == BinaryOperator.MULTIPLY && isLiteral(operands[1])) {
+			double inner = literal(operands[1]);
+			if (isFiniteNonZero(inner * constant) && (fastMath || isExactScale(inner) && isExactScale(constant))) {
+				return simplifyBinary(BinaryOperator.MULTIPLY, operands[0], new LiteralValue(inner * constant));
+			}
+		}
+		if (!fastMath) {
+			return null;
+		}
+		if (operation.getOperator() == BinaryOperator.DIVIDE && isLiteral(operands[1]) && isFiniteNonZero(constant / literal(operands[1]))) {
+			return simplifyBinary(BinaryOperator.MULTIPLY, operands[0], new LiteralValue(constant / literal(operands[1])));
+		}
+		if (operation.getOperator() == BinaryOperator.DIVIDE && isLiteral(operands[0]) && Double.isFinite(literal(operands[0]) * constant)) {
+			return simplifyBinary(BinaryOperator.DIVIDE, new LiteralValue(literal(operands[0]) * constant), operands[1]);
+		}
+		return null;
+	}
+
+	private Value simplifyDivide(Value first, Value second) {
+		if (isNegation(first) && isNegation(second)) {
+			return simplifyBinary(BinaryOperator.DIVIDE, negated(first), negated(second));
+		}
+		if (fastMath && isSame(first, second)) {
+			return new LiteralValue(1);
+		}
+		if (fastMath && isLiteral(first) && literal(first) == 0 && isDroppable(second)) {
+			return new LiteralValue(0);
+		}
+		if (!isLiteral(second)) {
+			return null;
+		}
+		double constant = literal(second);
+		if (constant == 1) {
+			return first;
+		}
+		if (constant == -1) {
+			return simplifyUnary(UnaryOperator.NEGATE, first);
+		}
+		if (isNegation(first)) {
+			return simplifyBinary(BinaryOperator.DIVIDE, negated(first), new LiteralValue(-constant));
+		}
+		if (!fastMath || first.getType() != TokenType.BINARY_OPERATION) {
+			return null;
+		}
+		BinaryOperation operation = (BinaryOperation) first;
+		Value[] operands = operation.getValues();
+		if (operation.getOperator() == BinaryOperator.MULTIPLY && isLiteral(operands[1]) && isFiniteNonZero(literal(operands[1]) / constant)) {
+			return simplifyBinary(BinaryOperator.MULTIPLY, operands[0], new LiteralValue(literal(operands[1]) / constant));
+		}
+		if (operation.getOperator() == BinaryOperator.DIVIDE && isLiteral(operands[1]) && isFiniteNonZero(literal(operands[1]) * constant)) {
+			return simplifyBinary(BinaryOperator.DIVIDE, operands[0], new LiteralValue(literal(operands[1]) * constant));
+		}
+		if (operation.getOperator() == BinaryOperator.DIVIDE && isLiteral(operands[0]) && Double.isFinite(literal(operands[0]) / constant)) {
+			return simplifyBinary(BinaryOperator.DIVIDE, new LiteralValue(literal(operands[0]) / constant), operands[1]);
+		}
+		return null;
+	}
+
+	private Value simplifyExponent(Value first, Value second) {
+		if (!isLiteral(second)) {
+			return null;
+		}
+		// Math.pow is specified to return exactly these for every base, including NaN
+		if (literal(second) == 1) {
+			return first;
+		}
+		if (literal(second) == 0 && isDroppable(first)) {
+			return new LiteralValue(1);
+		}
+		return null;
+	}
+
+	private Value simplifyAnd(Value first, Value second) {
+		if (isSame(first, second) && isBoolean(first)) {
+			return first;
+		}
+		if (!isLiteral(second)) {
+			return null;
+		}
+		if (literal(second) != 1) {
+			return isDroppable(first) ? new LiteralValue(0) : null;
+		}
+		return isBoolean(first) ? first : null;
+	}
+
+	private Value simplifyOr(Value first, Value second) {
+		if (isSame(first, second) && isBoolean(first)) {
+			return first;
+		}
+		if (!isLiteral(second)) {
+			return null;
+		}
+		if (literal(second) == 1) {
+			return isDroppable(first) ? new LiteralValue(1) : null;
+		}
+		return isBoolean(first) ? first : null;
+	}
+
+	private Value simplifyComparison(BinaryOperator op, Value first, Value second) {
+		if (isBoolean(first) && isLiteral(second) && (literal(second) == 0 || literal(second) == 1)) {
+			boolean equality = op == BinaryOperator.EQUAL_TO || op == BinaryOperator.EQUAL_TO_ALT;
+			if (equality || op == BinaryOperator.NOT_EQUAL_TO) {
+				return equality == (literal(second) == 1) ? first : simplifyUnary(UnaryOperator.NOT, first);
+			}
+		}
+		if (!isDroppable(first) || !isDroppable(second)) {
+			return null;
+		}
+		Range a = range(first, 0);
+		Range b = range(second, 0);
+		boolean same = isSame(first, second);
+		Boolean result = null;
+		switch (op) {
+			case LESS_THAN:
+				result = same || a.min >= b.max ? Boolean.FALSE : a.max < b.min ? Boolean.TRUE : null;
+				break;
+			case GREATER_THAN:
+				result = same || a.max <= b.min ? Boolean.FALSE : a.min > b.max ? Boolean.TRUE : null;
+				break;
+			case LESS_THAN_OR_EQUAL_TO:
+				result = a.min > b.max ? Boolean.FALSE : same || a.max <= b.min ? Boolean.TRUE : null;
+				break;
+			case GREATER_THAN_OR_EQUAL_TO:
+				result = a.max < b.min ? Boolean.FALSE : same || a.min >= b.max ? Boolean.TRUE : null;
+				break;
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				result = a.max < b.min || b.max < a.min ? Boolean.FALSE : same ? Boolean.TRUE : null;
+				break;
+			case NOT_EQUAL_TO:
+				result = a.max < b.min || b.max < a.min ? Boolean.TRUE : same ? Boolean.FALSE : null;
+				break;
+		}
+		if (result == null) {
+			return null;
+		}
+		// Every comparison except != is false when either side is NaN
+		boolean nanResult = op == BinaryOperator.NOT_EQUAL_TO;
+		if (result != nanResult && (a.nan || b.nan) && !fastMath) {
+			return null;
+		}
+		return new LiteralValue(result ? 1 : 0);
+	}
+
+	/**
+	 * Computes bounds which every result of the given value falls within, not counting NaN
+	 */
+	private static Range range(Value value, int depth) {
+		if (depth > MAX_RANGE_DEPTH) {
+			return Range.ANY;
+		}
+		if (isLiteral(value)) {
+			double literal = literal(value);
+			return Double.isNaN(literal) ? Range.ANY : new Range(literal, literal, false);
+		}
+		if (isBoolean(value)) {
+			return new Range(0, 1, false);
+		}
+		if (value.getType() == TokenType.CONDITIONAL) {
+			Range ifTrue = range(((Conditional) value).getIfTrue(), depth + 1);
+			Range ifFalse = range(((Conditional) value).getIfFalse(), depth + 1);
+			return new Range(Math.min(ifTrue.min, ifFalse.min), Math.max(ifTrue.max, ifFalse.max), ifTrue.nan || ifFalse.nan);
+		}
+		if (value.getType() == TokenType.UNARY_OPERATION) {
+			UnaryOperation operation = (UnaryOperation) value;
+			Range child = range(operation.getChild(), depth + 1);
+			boolean infinite = child.isInfinite();
+			switch (operation.getOperator()) {
+				case NEGATE:
+					return new Range(-child.max, -child.min, child.nan);
+				case ABS:
+					if (child.min >= 0) {
+						return child;
+					}
+					return new Range(child.max <= 0 ? -child.max : 0, Math.max(-child.min, child.max), child.nan);
+				case SQRT:
+					return new Range(Math.sqrt(Math.max(child.min, 0)), Math.sqrt(Math.max(child.max, 0)), child.nan || child.min < 0);
+				case FLOOR:
+					return new Range(Math.floor(child.min), Math.floor(child.max), child.nan);
+				case CEIL:
+					return new Range(Math.ceil(child.min), Math.ceil(child.max), child.nan);
+				case SIN:
+				case COS:
+					return new Range(-1, 1, child.nan || infinite);
+				case TANH:
+					return new Range(-1, 1, child.nan);
+				case RAND:
+					if (child.min >= 0) {
+						return new Range(0, child.max, child.nan || infinite);
+					}
+					break;
+			}
+			return Range.ANY;
+		}
+		if (value.getType() == TokenType.BINARY_OPERATION) {
+			BinaryOperation operation = (BinaryOperation) value;
+			Value[] operands = operation.getValues();
+			Range a = range(operands[0], depth + 1);
+			Range b = range(operands[1], depth + 1);
+			switch (operation.getOperator()) {
+				case ADD:
+					return Range.of(a.nan || b.nan || a.isInfinite() && b.isInfinite(), a.min + b.min, a.max + b.max);
+				case SUBTRACT:
+					return Range.of(a.nan || b.nan || a.isInfinite() && b.isInfinite(), a.min - b.max, a.max - b.min);
+				case MULTIPLY:
+					boolean zeroTimesInfinity = a.containsZero() && b.isInfinite() || b.containsZero() && a.isInfinite();
+					return Range.of(a.nan || b.nan || zeroTimesInfinity, a.min * b.min, a.min * b.max, a.max * b.min, a.max * b.max);
+			}
+		}
+		return Range.ANY;
+	}
+
+	/**
+	 * Checks whether two values are structurally identical and always evaluate to the same result
+	 */
+	private static boolean isSame(Value first, Value second) {
+		// Pairs of values still to be compared, each first value followed by the one it is compared to
+		List<Value> pending = new ArrayList<>();
+		pending.add(first);
+		pending.add(second);
+		while (!pending.isEmpty()) {
+			Value b = pending.remove(pending.size() - 1);
+			Value a = pending.remove(pending.size() - 1);
+			if (a.getType() != b.getType()) {
+				return false;
+			}
+			switch (a.getType()) {
+				case LITERAL_VALUE:
+					if (!isLiteral(a) || !isLiteral(b) || Double.doubleToLongBits(literal(a)) != Double.doubleToLongBits(literal(b))) {
+						return false;
+					}
+					continue;
+				case VARIABLE:
+					if (((Variable) a).getIndex() != ((Variable) b).getIndex()) {
+						return false;
+					}
+					continue;
+				case UNARY_OPERATION: {
+					UnaryOperator operator = ((UnaryOperation) a).getOperator();
+					if (operator != ((UnaryOperation) b).getOperator() || !operator.isPure()) {
+						return false;
+					}
+					break;
+				}
+				case BINARY_OPERATION:
+					if (((BinaryOperation) a).getOperator() != ((BinaryOperation) b).getOperator()) {
+						return false;
+					}
+					break;
+				case LOGICAL_OPERATION:
+					if (((LogicalOperation) a).getOperator() != ((LogicalOperation) b).getOperator()) {
+						return false;
+					}
+					break;
+				case CONDITIONAL:
+					break;
+				default:
+					return false;
+			}
+			Value[] left = PostOrder.children(a);
+			Value[] right = PostOrder.children(b);
+			for (int i = 0; i < left.length; i++) {
+				pending.add(left[i]);
+				pending.add(right[i]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a value can be removed from the expression without skipping a call to user code
+	 */
+	private static boolean isDroppable(Value value) {
+		boolean[] droppable = {true};
+		PostOrder.visit(value, node -> {
+			switch (node.getType()) {
+				case LITERAL_VALUE:
+				case VARIABLE:
+					return false;
+				case UNARY_OPERATION:
+				case BINARY_OPERATION:
+				case LOGICAL_OPERATION:
+				case CONDITIONAL:
+					return droppable[0];
+				default:
+					droppable[0] = false;
+					return false;
+			}
+		});
+		return droppable[0];
+	}
+
+	/**
+	 * Checks whether a value always evaluates to exactly 0 or 1
+	 */
+	private static boolean isBoolean(Value value) {
+		// A conditional is boolean if every branch it can end up in is
+		List<Value> pending = new ArrayList<>();
+		pending.add(value);
+		while (!pending.isEmpty()) {
+			Value node = pending.remove(pending.size() - 1);
+			if (node.getType() == TokenType.CONDITIONAL) {
+				pending.add(((Conditional) node).getIfTrue());
+				pending.add(((Conditional) node).getIfFalse());
+			} else if (!isBooleanResult(node)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a value other than a conditional always evaluates to exactly 0 or 1
+	 */
+	private static boolean isBooleanResult(Value value) {
+		if (isLiteral(value)) {
+			long bits = Double.doubleToLongBits(literal(value));
+			return bits == Double.doubleToLongBits(0) || bits == Double.doubleToLongBits(1);
+		}
+		if (value.getType() == TokenType.LOGICAL_OPERATION) {
+			return true;
+		}
+		if (value.getType() == TokenType.UNARY_OPERATION) {
+			return ((UnaryOperation) value).getOperator() == UnaryOperator.NOT;
+		}
+		if (value.getType() == TokenType.BINARY_OPERATION) {
+			switch (((BinaryOperation) value).getOperator()) {
+				case BOOLEAN_AND:
+				case BOOLEAN_AND_ALT:
+				case BOOLEAN_OR:
+				case BOOLEAN_OR_ALT:
+				case LESS_THAN:
+				case GREATER_THAN:
+				case LESS_THAN_OR_EQUAL_TO:
+				case GREATER_THAN_OR_EQUAL_TO:
+				case EQUAL_TO:
+				case EQUAL_TO_ALT:
+				case NOT_EQUAL_TO:
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isCommutative(BinaryOperator op) {
+		switch (op) {
+			case ADD:
+			case MULTIPLY:
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+			case NOT_EQUAL_TO:
+			case BOOLEAN_AND:
+			case BOOLEAN_AND_ALT:
+			case BOOLEAN_OR:
+			case BOOLEAN_OR_ALT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Checks whether multiplying by a constant is exact for every input that does not overflow, which holds for powers of
+	 * two no smaller than 1 in magnitude
+	 */
+	private static boolean isExactScale(double constant) {
+		double magnitude = Math.abs(constant);
+		return magnitude >= 1 && Double.isFinite(magnitude) && magnitude == Math.scalb(1d, Math.getExponent(magnitude));
+	}
+
+	private static boolean isFiniteNonZero(double value) {
+		return Double.isFinite(value) && value != 0;
+	}
+
+	private static boolean isPositiveZero(double value) {
+		return Double.doubleToLongBits(value) == Double.doubleToLongBits(0d);
+	}
+
+	private static boolean isNegativeZero(double value) {
+		return Double.doubleToLongBits(value) == Double.doubleToLongBits(-0d);
+	}
+
+	private static boolean isLiteral(Value value) {
+		return value instanceof LiteralValue;
+	}
+
+	private static boolean isFiniteLiteral(Value value) {
+		return isLiteral(value) && Double.isFinite(literal(value));
+	}
+
+	private static double literal(Value value) {
+		return value.getValue(NO_VARIABLES);
+	}
+
+	private static boolean isNegation(Value value) {
+		return value.getType() == TokenType.UNARY_OPERATION && ((UnaryOperation) value).getOperator() == UnaryOperator.NEGATE;
+	}
+
+	private static Value negated(Value value) {
+		return ((UnaryOperation) value).getChild();
+	}
+
+	private static class Range {
+
+		public static final Range ANY = new Range(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+
+		public final double min;
+		public final double max;
+		public final boolean nan;
+
+		public Range(double min, double max, boolean nan) {
+			this.min = min;
+			this.max = max;
+			this.nan = nan;
+		}
+
+		public boolean isInfinite() {
+			return min == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY;
+		}
+
+		public boolean containsZero() {
+			return min <= 0 && max >= 0;
+		}
+
+		/**
+		 * Creates the smallest range containing all the given bounds. Rounding is monotonic, so an operation applied to the
+		 * corners of its operand ranges bounds every result of that operation.
+		 */
+		public static Range of(boolean nan, double... bounds) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (double bound : bounds) {
+				if (Double.isNaN(bound)) {
+					return ANY;
+				}
+				min = Math.min(min, bound);
+				max = Math.max(max, bound);
+			}
+			return new Range(min, max, nan);
+		}
+
+	}
+
+}
@@ -0,0 +1,131 @@
+package redempt.crunch.optimizer;
+
+import redempt.crunch.data.FastNumberParsing;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+/**
+ * Replaces calls to {@link Math#pow(double, double)} with cheaper operations where the exponent is a literal, and
+ * division by a literal with multiplication by its reciprocal where that gives the same result
+ * @author Redempt
+ */
+public class StrengthReducer {
+	
+	/**
+	 * The largest magnitude of integer exponent which is turned into repeated multiplication
+	 */
+	public static final int MAX_INTEGER_EXPONENT = 16;
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	/**
+	 * Applies strength reduction to an expression
+	 * @param value The expression
+	 * @param fastMath Whether division by any literal may become multiplication, rather than only powers of two
+	 * @param report The report to record every rewrite in
+	 * @return The rewritten expression
+	 */
+	public static Value reduce(Value value, boolean fastMath, CompileReport report) {
+		return new StrengthReducer(fastMath, report).reduce(value);
+	}
+	
+	private final boolean fastMath;
+	private final CompileReport report;
+	
+	private StrengthReducer(boolean fastMath, CompileReport report) {
+		this.fastMath = fastMath;
+		this.report = report;
+	}
+	
+	private Value reduce(Value value) {
+		return PostOrder.rebuild(value, null, this::reduce);
+	}
+	
+	private Value reduce(Value value, Value[] children) {
+		switch (value.getType()) {
+			case BINARY_OPERATION: {
+				BinaryOperation operation = (BinaryOperation) value;
+				Value[] operands = operation.getValues();
+				Value first = children[0];
+				Value second = children[1];
+				Value reduced = second instanceof LiteralValue ? reduceBinary(operation.getOperator(), first, second.getValue(NO_VARIABLES)) : null;
+				if (reduced == null) {
+					return first == operands[0] && second == operands[1] ? value : BinaryOperation.of(operation.getOperator(), first, second);
+				}
+				report.record(rule(operation.getOperator(), reduced), value, reduced);
+				return reduced;
+			}
+			case UNARY_OPERATION: {
+				UnaryOperation operation = (UnaryOperation) value;
+				return UnaryOperation.of(operation.getOperator(), children[0]);
+			}
+			case LOGICAL_OPERATION:
+				return new LogicalOperation(((LogicalOperation) value).getOperator(), children[0], children[1]);
+			case CONDITIONAL:
+				return new Conditional(children[0], children[1], children[2]);
+			case FUNCTION_CALL:
+				return FunctionCall.of(((FunctionCall) value).getFunction(), children);
+			default:
+				return value;
+		}
+	}
+	
+	private Value reduceBinary(BinaryOperator operator, Value first, double constant) {
+		switch (operator) {
+			case EXPONENT:
+				if (constant == 0.5) {
+					return UnaryOperation.of(UnaryOperator.SQRT, first);
+				}
+				if (constant == -1) {
+					return BinaryOperation.of(BinaryOperator.DIVIDE, new LiteralValue(1), first);
+				}
+				if (constant == (int) constant && Math.abs(constant) >= 2 && Math.abs(constant) <= MAX_INTEGER_EXPONENT) {
+					return new IntegerPower(first, (int) constant);
+				}
+				return null;
+			case SCIENTIFIC_NOTATION:
+				return BinaryOperation.of(BinaryOperator.MULTIPLY, first, new LiteralValue(FastNumberParsing.powerOfTen(constant)));
+			case DIVIDE:
+				double reciprocal = 1 / constant;
+				if (fastMath ? Double.isFinite(reciprocal) && reciprocal != 0 : isPowerOfTwo(constant) && isPowerOfTwo(reciprocal)) {
+					return BinaryOperation.of(BinaryOperator.MULTIPLY, first, new LiteralValue(reciprocal));
+				}
+				return null;
+			default:
+				return null;
+		}
+	}
+	
+	private static String rule(BinaryOperator operator, Value reduced) {
+		switch (operator) {
+			case EXPONENT:
+				if (reduced instanceof IntegerPower) {
+					return "integer power";
+				}
+				return reduced instanceof UnaryOperation ? "square root" : "reciprocal";
+			case SCIENTIFIC_NOTATION:
+				return "scientific notation";
+			default:
+				return "reciprocal multiplication";
+		}
+	}
+	
+	/**
+	 * Checks whether a number is a normal power of two, so that dividing by it and multiplying by its reciprocal both
+	 * round the same exact result
+	 */
+	private static boolean isPowerOfTwo(double value) {
+		double magnitude = Math.abs(value);
+		return magnitude >= Double.MIN_NORMAL && Double.isFinite(magnitude)
+				&& (Double.doubleToRawLongBits(magnitude) & 0xFFFFFFFFFFFFFL) == 0;
+	}
+	
+}
@@ -0,0 +1,598 @@
+package redempt.crunch.serial;
+
+import redempt.crunch.CompiledExpression;
+import redempt.crunch.Variable;
+import redempt.crunch.exceptions.ExpressionSerializationException;
+import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.functional.Function;
+import redempt.crunch.functional.FunctionCall;
+import redempt.crunch.optimizer.LazyMemoizer;
+import redempt.crunch.optimizer.PostOrder;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.Conditional;
+import redempt.crunch.token.Constant;
+import redempt.crunch.token.IntegerPower;
+import redempt.crunch.token.LazyVariable;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.LogicalOperation;
+import redempt.crunch.token.MemoizedVariable;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.SharedValue;
+import redempt.crunch.token.Token;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes CompiledExpressions to a compact binary format and reads them back, so that expressions can be stored once
+ * and loaded later without parsing them again. The optimized tree of the expression is stored, so optimizations do not
+ * need to run again either.
+ * <p>
+ * Each expression is stored as a record made of a header, with a magic number, the format version and the length of the
+ * record, followed by a table of the names it uses and its nodes in post-order. Functions and lazy variables are stored
+ * by name and resolved against the {@link ExpressionEnv} given when reading, which must provide a function with the
+ * same name and argument count, or a lazy variable with the same name. Records can be concatenated to form a catalog,
+ * which can be read back in one call, for example from a memory-mapped file.
+ * @author Redempt
+ */
+public final class ExpressionSerializer {
+	
+	/**
+	 * The magic number every record starts with, the ASCII characters {@code CRNX}
+	 */
+	public static final int MAGIC = 0x43524E58;
+	/**
+	 * The current version of the format, which is the only version that can be read
+	 */
+	public static final short VERSION = 1;
+	
+	private static final int HEADER_SIZE = 10;
+	// The most bytes of a record read from a stream at once
+	private static final int READ_STEP = 1 << 16;
+	
+	private static final byte LITERAL = 0;
+	private static final byte VARIABLE = 1;
+	private static final byte CONSTANT = 2;
+	private static final byte BINARY_OPERATION = 3;
+	private static final byte UNARY_OPERATION = 4;
+	private static final byte LOGICAL_OPERATION = 5;
+	private static final byte CONDITIONAL = 6;
+	private static final byte INTEGER_POWER = 7;
+	private static final byte FUNCTION_CALL = 8;
+	private static final byte LAZY_VARIABLE = 9;
+	private static final byte SHARED_VALUE = 10;
+	private static final byte SHARED_DEFINITION = 11;
+	private static final byte SHARED_SCOPE = 12;
+	
+	private ExpressionSerializer() {
+		// Prevent instantiation
+	}
+	
+	/**
+	 * Serializes a CompiledExpression into a single record
+	 * @param expression The expression to serialize
+	 * @return The serialized record
+	 */
+	public static byte[] serialize(CompiledExpression expression) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			write(expression, bytes);
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Writes a CompiledExpression as a single record
+	 * @param expression The expression to write
+	 * @param out The stream to write to
+	 * @throws IOException If the stream cannot be written to
+	 */
+	public static void write(CompiledExpression expression, OutputStream out) throws IOException {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression cannot be null");
+		}
+		byte[] payload = new Writer().write(expression);
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeInt(payload.length);
+		data.write(payload);
+		data.flush();
+	}
+	
+	/**
+	 * Writes CompiledExpressions as consecutive records, which can be read back with
+	 * {@link ExpressionSerializer#readAll(ByteBuffer, ExpressionEnv)}
+	 * @param expressions The expressions to write
+	 * @param out The stream to write to
+	 * @throws IOException If the stream cannot be written to
+	 */
+	public static void writeAll(Collection<CompiledExpression> expressions, OutputStream out) throws IOException {
+		if (expressions == null) {
+			throw new IllegalArgumentException("Expressions cannot be null");
+		}
+		for (CompiledExpression expression : expressions) {
+			write(expression, out);
+		}
+	}
+	
+	/**
+	 * Deserializes a single record
+	 * @param bytes The serialized record
+	 * @param env The environment to resolve functions and lazy variables in
+	 * @return The CompiledExpression
+	 * @throws ExpressionSerializationException If the data is not a valid record, or refers to names the environment does not provide
+	 */
+	public static CompiledExpression deserialize(byte[] bytes, ExpressionEnv env) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		CompiledExpression expression = read(buffer, env);
+		if (buffer.hasRemaining()) {
+			throw new ExpressionSerializationException("Trailing data after record");
+		}
+		return expression;
+	}
+	
+	/**
+	 * Reads a single record from a stream
+	 * @param in The stream to read from
+	 * @param env The environment to resolve functions and lazy variables in
+	 * @return The CompiledExpression
+	 * @throws IOException If the stream cannot be read from
+	 * @throws ExpressionSerializationException If the data is not a valid record, the stream ends before the record does,
+	 *                                          or the record refers to names the environment does not provide
+	 */
+	public static CompiledExpression read(InputStream in, ExpressionEnv env) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] header = new byte[HEADER_SIZE];
+		try {
+			data.readFully(header);
+		} catch (EOFException e) {
+			throw new ExpressionSerializationException("Truncated record header");
+		}
+		int length = readHeader(ByteBuffer.wrap(header));
+		// The length is not trusted until that many bytes have arrived, so a corrupt length cannot cause a huge allocation
+		byte[] step = new byte[Math.min(length, READ_STEP)];
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(step.length);
+		for (int read = 0; read < length; read += step.length) {
+			int size = Math.min(step.length, length - read);
+			try {
+				data.readFully(step, 0, size);
+			} catch (EOFException e) {
+				throw new ExpressionSerializationException("Truncated record, expected " + length + " bytes but the stream ended first");
+			}
+			payload.write(step, 0, size);
+		}
+		return new Reader(ByteBuffer.wrap(payload.toByteArray()), env).read();
+	}
+	
+	/**
+	 * Reads a single record from a buffer, starting at its position and leaving the position at the end of the record
+	 * @param buffer The buffer to read from
+	 * @param env The environment to resolve functions and lazy variables in
+	 * @return The CompiledExpression
+	 * @throws ExpressionSerializationException If the data is not a valid record, or refers to names the environment does not provide
+	 */
+	public static CompiledExpression read(ByteBuffer buffer, ExpressionEnv env) {
+		if (buffer == null) {
+			throw new IllegalArgumentException("Buffer cannot be null");
+		}
+		ByteBuffer view = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+		int length;
+		try {
+			length = readHeader(view);
+		} catch (BufferUnderflowException e) {
+			throw new ExpressionSerializationException("Truncated record header");
+		}
+		if (length > view.remaining()) {
+			throw new ExpressionSerializationException("Truncated record, expected " + length + " bytes but only " + view.remaining() + " remain");
+		}
+		view.limit(view.position() + length);
+		CompiledExpression expression = new Reader(view.slice(), env).read();
+		buffer.position(buffer.position() + HEADER_SIZE + length);
+		return expression;
+	}
+	
+	/**
+	 * Reads consecutive records from a buffer until it has no bytes remaining
+	 * @param buffer The buffer to read from
+	 * @param env The environment to resolve functions and lazy variables in
+	 * @return The CompiledExpressions, in the order they were written
+	 * @throws ExpressionSerializationException If the data is not a valid record, or refers to names the environment does not provide
+	 */
+	public static List<CompiledExpression> readAll(ByteBuffer buffer, ExpressionEnv env) {
+		List<CompiledExpression> expressions = new ArrayList<>();
+		while (buffer.hasRemaining()) {
+			expressions.add(read(buffer, env));
+		}
+		return expressions;
+	}
+	
+	private static int readHeader(ByteBuffer buffer) {
+		int magic = buffer.getInt();
+		if (magic != MAGIC) {
+			throw new ExpressionSerializationException("Not a serialized expression, bad magic number 0x" + Integer.toHexString(magic));
+		}
+		short version = buffer.getShort();
+		if (version != VERSION) {
+			throw new ExpressionSerializationException("Unsupported format version " + version + ", expected " + VERSION);
+		}
+		int length = buffer.getInt();
+		if (length < 0) {
+			throw new ExpressionSerializationException("Negative record length");
+		}
+		return length;
+	}
+	
+	private static class Writer {
+	
+		private final Map<String, Integer> names = new LinkedHashMap<>();
+		private final ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+		private final DataOutputStream nodes = new DataOutputStream(nodeBytes);
+		private int nodeCount;
+		
+		private byte[] write(CompiledExpression expression) throws IOException {
+			writeTree(expression.getValue());
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(nodeBytes.size() + 64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(expression.getVariableCount());
+			out.writeInt(names.size());
+			for (String name : names.keySet()) {
+				byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(encoded.length);
+				out.write(encoded);
+			}
+			out.writeInt(nodeCount);
+			nodeBytes.writeTo(out);
+			return bytes.toByteArray();
+		}
+		
+		/**
+		 * Writes a tree in post-order without recursing, so that trees of any height can be written
+		 */
+		private void writeTree(Value root) throws IOException {
+			try {
+				PostOrder.rebuild(root, null, (node, children) -> {
+					try {
+						writeNode(node);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return node;
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+		
+		/**
+		 * Writes a single node, after its children have been written
+		 */
+		private void writeNode(Value value) throws IOException {
+			switch (value.getType()) {
+				case LITERAL_VALUE:
+					if (value instanceof Constant) {
+						tag(CONSTANT);
+						name(((Constant) value).name());
+						return;
+					}
+					tag(LITERAL);
+					nodes.writeDouble(value.getValue(new double[0]));
+					return;
+				case VARIABLE:
+					tag(VARIABLE);
+					nodes.writeInt(((Variable) value).getIndex());
+					return;
+				case SHARED_VALUE:
+					tag(SHARED_VALUE);
+					nodes.writeInt(((SharedValue) value).getIndex());
+					return;
+				case LAZY_VARIABLE:
+					tag(LAZY_VARIABLE);
+					name(((LazyVariable) value).getName());
+					return;
+				case MEMOIZED_VARIABLE:
+					// Stored like any other lazy variable, and memoized again on load if the environment's variable is
+					tag(LAZY_VARIABLE);
+					name(((MemoizedVariable) value).getVariable().getName());
+					return;
+				case BINARY_OPERATION: {
+					BinaryOperation operation = (BinaryOperation) value;
+					tag(BINARY_OPERATION);
+					name(operation.getOperator().name());
+					return;
+				}
+				case LOGICAL_OPERATION: {
+					LogicalOperation operation = (LogicalOperation) value;
+					tag(LOGICAL_OPERATION);
+					name(operation.getOperator().name());
+					return;
+				}
+				case UNARY_OPERATION: {
+					UnaryOperation operation = (UnaryOperation) value;
+					tag(UNARY_OPERATION);
+					name(operation.getOperator().name());
+					return;
+				}
+				case CONDITIONAL:
+					tag(CONDITIONAL);
+					return;
+				case INTEGER_POWER: {
+					IntegerPower power = (IntegerPower) value;
+					tag(INTEGER_POWER);
+					nodes.writeInt(power.getExponent());
+					return;
+				}
+				case FUNCTION_CALL: {
+					FunctionCall call = (FunctionCall) value;
+					tag(FUNCTION_CALL);
+					name(call.getFunction().getName());
+					nodes.writeInt(call.getArguments().length);
+					return;
+				}
+				case SHARED_SCOPE: {
+					SharedScope scope = (SharedScope) value;
+					Value[] definitions = scope.getDefinitions();
+					if (definitions.length == 0) {
+						// Only holds memoized lazy variables, which are memoized again on load
+						writeTree(scope.getChild());
+						return;
+					}
+					// The post-order walk does not descend into scopes, so each scope writes its own definitions and body
+					for (int i = 0; i < definitions.length; i++) {
+						writeTree(definitions[i]);
+						tag(SHARED_DEFINITION);
+						nodes.writeInt(scope.getVariableCount() + i);
+					}
+					writeTree(scope.getChild());
+					tag(SHARED_SCOPE);
+					nodes.writeInt(scope.getVariableCount());
+					nodes.writeInt(definitions.length);
+					return;
+				}
+				default:
+					throw new ExpressionSerializationException("Cannot serialize node of type " + value.getType() + ": " + value);
+			}
+		}
+		
+		private void tag(byte tag) throws IOException {
+			nodes.writeByte(tag);
+			nodeCount++;
+		}
+		
+		private void name(String name) throws IOException {
+			Integer index = names.get(name);
+			if (index == null) {
+				index = names.size();
+				names.put(name, index);
+			}
+			nodes.writeInt(index);
+		}
+	
+	}
+	
+	private static class Reader {
+	
+		private final ByteBuffer buffer;
+		private final ExpressionEnv env;
+		private final Deque<Value> stack = new ArrayDeque<>();
+		private final Map<Integer, Value> definitions = new HashMap<>();
+		private String[] names;
+		private int variableCount;
+		private boolean memoized;
+		
+		private Reader(ByteBuffer buffer, ExpressionEnv env) {
+			if (env == null) {
+				throw new IllegalArgumentException("Environment cannot be null");
+			}
+			this.buffer = buffer;
+			this.env = env;
+		}
+		
+		private CompiledExpression read() {
+			try {
+				variableCount = buffer.getInt();
+				if (variableCount < 0) {
+					throw new ExpressionSerializationException("Negative variable count");
+				}
+				names = new String[count("name")];
+				for (int i = 0; i < names.length; i++) {
+					byte[] encoded = new byte[count("name length")];
+					buffer.get(encoded);
+					names[i] = new String(encoded, StandardCharsets.UTF_8);
+				}
+				int nodeCount = count("node");
+				for (int i = 0; i < nodeCount; i++) {
+					readNode(buffer.get());
+				}
+			} catch (BufferUnderflowException e) {
+				throw new ExpressionSerializationException("Truncated record");
+			}
+			if (buffer.hasRemaining()) {
+				throw new ExpressionSerializationException("Trailing data in record");
+			}
+			if (stack.size() != 1) {
+				throw new ExpressionSerializationException("Record contains " + stack.size() + " root nodes, expected 1");
+			}
+			Value value = stack.pop();
+			if (memoized) {
+				value = LazyMemoizer.memoize(value, variableCount);
+			}
+			return new CompiledExpression(value, variableCount);
+		}
+		
+		private int count(String kind) {
+			int count = buffer.getInt();
+			// Every counted item takes at least one byte, so larger counts can only come from corrupt data
+			if (count < 0 || count > buffer.remaining()) {
+				throw new ExpressionSerializationException("Invalid " + kind + " count " + count);
+			}
+			return count;
+		}
+		
+		private void readNode(byte tag) {
+			switch (tag) {
+				case LITERAL:
+					stack.push(new LiteralValue(buffer.getDouble()));
+					return;
+				case VARIABLE: {
+					int index = buffer.getInt();
+					if (index < 0 || index >= variableCount) {
+						throw new ExpressionSerializationException("Variable index " + index + " out of range for " + variableCount + " variables");
+					}
+					stack.push(new Variable(index));
+					return;
+				}
+				case CONSTANT:
+					stack.push(lookup(Constant.class, name()));
+					return;
+				case BINARY_OPERATION: {
+					BinaryOperator operator = lookup(BinaryOperator.class, name());
+					Value second = pop();
+					stack.push(BinaryOperation.of(operator, pop(), second));
+					return;
+				}
+				case LOGICAL_OPERATION: {
+					BinaryOperator operator = lookup(BinaryOperator.class, name());
+					if (!operator.isLogical()) {
+						throw new ExpressionSerializationException("Operator " + operator + " is not logical");
+					}
+					Value second = pop();
+					stack.push(new LogicalOperation(operator, pop(), second));
+					return;
+				}
+				case UNARY_OPERATION:
+					stack.push(UnaryOperation.of(lookup(UnaryOperator.class, name()), pop()));
+					return;
+				case CONDITIONAL: {
+					Value ifFalse = pop();
+					Value ifTrue = pop();
+					stack.push(new Conditional(pop(), ifTrue, ifFalse));
+					return;
+				}
+				case INTEGER_POWER:
+					stack.push(new IntegerPower(pop(), buffer.getInt()));
+					return;
+				case FUNCTION_CALL:
+					readFunctionCall();
+					return;
+				case LAZY_VARIABLE: {
+					String name = name();
+					Value value = env.getValues().get(name);
+					if (value == null || value.getType() != TokenType.LAZY_VARIABLE) {
+						throw new ExpressionSerializationException("Environment has no lazy variable named '" + name + "'");
+					}
+					memoized |= ((LazyVariable) value).isMemoized();
+					stack.push(value);
+					return;
+				}
+				case SHARED_VALUE: {
+					int index = buffer.getInt();
+					Value definition = definitions.get(index);
+					if (definition == null) {
+						throw new ExpressionSerializationException("Shared value " + index + " is used before it is defined");
+					}
+					stack.push(new SharedValue(index, definition));
+					return;
+				}
+				case SHARED_DEFINITION: {
+					int index = buffer.getInt();
+					if (stack.isEmpty() || definitions.put(index, stack.peek()) != null) {
+						throw new ExpressionSerializationException("Invalid definition of shared value " + index);
+					}
+					return;
+				}
+				case SHARED_SCOPE:
+					readSharedScope();
+					return;
+				default:
+					throw new ExpressionSerializationException("Unknown node tag " + tag);
+			}
+		}
+		
+		private void readFunctionCall() {
+			String name = name();
+			int argCount = buffer.getInt();
+			Token token = env.getLeadingOperators().get(name);
+			if (token == null || token.getType() != TokenType.FUNCTION) {
+				throw new ExpressionSerializationException("Environment has no function named '" + name + "'");
+			}
+			Function function = (Function) token;
+			if (function.getArgCount() != argCount) {
+				throw new ExpressionSerializationException("Function '" + name + "' takes " + function.getArgCount() + " arguments, but was stored with " + argCount);
+			}
+			Value[] arguments = new Value[argCount];
+			for (int i = argCount - 1; i >= 0; i--) {
+				arguments[i] = pop();
+			}
+			stack.push(FunctionCall.of(function, arguments));
+		}
+		
+		private void readSharedScope() {
+			int scopeVariables = buffer.getInt();
+			int definitionCount = buffer.getInt();
+			if (scopeVariables < 0 || definitionCount < 0 || definitionCount >= stack.size()) {
+				throw new ExpressionSerializationException("Invalid shared scope");
+			}
+			Value body = pop();
+			Value[] scopeDefinitions = new Value[definitionCount];
+			for (int i = definitionCount - 1; i >= 0; i--) {
+				scopeDefinitions[i] = pop();
+				if (definitions.get(scopeVariables + i) != scopeDefinitions[i]) {
+					throw new ExpressionSerializationException("Shared scope does not match its definitions");
+				}
+			}
+			stack.push(new SharedScope(body, scopeDefinitions, scopeVariables));
+		}
+		
+		private Value pop() {
+			if (stack.isEmpty()) {
+				throw new ExpressionSerializationException("Node is missing operands");
+			}
+			return stack.pop();
+		}
+		
+		private String name() {
+			int index = buffer.getInt();
+			if (index < 0 || index >= names.length) {
+				throw new ExpressionSerializationException("Name index " + index + " out of range");
+			}
+			return names[index];
+		}
+		
+		private static <T extends Enum<T>> T lookup(Class<T> type, String name) {
+			try {
+				return Enum.valueOf(type, name);
+			} catch (IllegalArgumentException e) {
+				throw new ExpressionSerializationException("Unknown " + type.getSimpleName() + " '" + name + "'");
+			}
+		}
+	
+	}
+	
+}
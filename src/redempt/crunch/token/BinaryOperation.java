@@ -2,9 +2,21 @@ package redempt.crunch.token;
 
 public class BinaryOperation implements Value {
 	
-	private final BinaryOperator operator;
-	private final Value first;
-	private final Value second;
+	/**
+	 * Creates a BinaryOperation specialized for its operator and the shape of its operands, whose
+	 * {@link Value#getValue(double[])} can be inlined by the JIT instead of calling through the operator's lambda
+	 * @param operator The operator
+	 * @param first The first operand
+	 * @param second The second operand
+	 * @return The BinaryOperation, which is a subclass specialized for the operator where one exists
+	 */
+	public static BinaryOperation of(BinaryOperator operator, Value first, Value second) {
+		return SpecializedOperations.binary(operator, first, second);
+	}
+	
+	protected final BinaryOperator operator;
+	protected final Value first;
+	protected final Value second;
 	
 	public BinaryOperation(BinaryOperator operator, Value first, Value second) {
 		this.operator = operator;
@@ -35,7 +47,7 @@ public class BinaryOperation implements Value {
 	}
 	
 	public BinaryOperation getClone() {
-		return new BinaryOperation(operator, first.getClone(), second.getClone());
+		return of(operator, first.getClone(), second.getClone());
 	}
 	
 }
@@ -1,5 +1,7 @@
 package redempt.crunch.token;
 
+import redempt.crunch.data.FastNumberParsing;
+
 import java.util.function.DoubleBinaryOperator;
 
 /**
@@ -26,7 +28,7 @@ public enum BinaryOperator implements Token {
     MODULUS("%", 4, (a, b) -> a % b),
     ADD("+", 3, (a, b) -> a + b),
     SUBTRACT("-", 3, (a, b) -> a - b),
-    SCIENTIFIC_NOTATION("E", 5, (a, b) -> a * Math.pow(10, b));
+    SCIENTIFIC_NOTATION("E", 5, (a, b) -> a * FastNumberParsing.powerOfTen(b));
 
     private final String symbol;
     private final DoubleBinaryOperator operation;
@@ -58,4 +60,11 @@ public enum BinaryOperator implements Token {
     public int getPriority() {
         return priority;
     }
+
+    /**
+     * @return Whether this is a boolean and/or operator, which is parsed into a short-circuiting {@link LogicalOperation}
+     */
+    public boolean isLogical() {
+        return this == BOOLEAN_AND || this == BOOLEAN_AND_ALT || this == BOOLEAN_OR || this == BOOLEAN_OR_ALT;
+    }
 }
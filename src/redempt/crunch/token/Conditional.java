@@ -0,0 +1,56 @@
+package redempt.crunch.token;
+
+/**
+ * A conditional of the form {@code condition ? ifTrue : ifFalse}, which only evaluates the selected branch. Like every
+ * boolean operation, the condition is considered true only if it is exactly 1.
+ * @author Redempt
+ */
+public class Conditional implements Value {
+	
+	private final Value condition;
+	private final Value ifTrue;
+	private final Value ifFalse;
+	
+	/**
+	 * Creates a Conditional
+	 * @param condition The condition which selects the branch to evaluate
+	 * @param ifTrue The value of the conditional if the condition is 1
+	 * @param ifFalse The value of the conditional otherwise
+	 */
+	public Conditional(Value condition, Value ifTrue, Value ifFalse) {
+		this.condition = condition;
+		this.ifTrue = ifTrue;
+		this.ifFalse = ifFalse;
+	}
+	
+	public Value getCondition() {
+		return condition;
+	}
+	
+	public Value getIfTrue() {
+		return ifTrue;
+	}
+	
+	public Value getIfFalse() {
+		return ifFalse;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return condition.getValue(variableValues) == 1 ? ifTrue.getValue(variableValues) : ifFalse.getValue(variableValues);
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.CONDITIONAL;
+	}
+	
+	public String toString() {
+		return "(" + condition.toString() + "?" + ifTrue.toString() + ":" + ifFalse.toString() + ")";
+	}
+	
+	public Conditional getClone() {
+		return new Conditional(condition.getClone(), ifTrue.getClone(), ifFalse.getClone());
+	}
+	
+}
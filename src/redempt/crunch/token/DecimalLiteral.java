@@ -0,0 +1,41 @@
+package redempt.crunch.token;
+
+/**
+ * A literal with a decimal point or exponent which keeps the text it was written as, for evaluation with float
+ * arithmetic where rounding the literal to a double first could round it twice. Everywhere else it behaves like the
+ * nearest double.
+ * @author Redempt
+ */
+public class DecimalLiteral extends LiteralValue {
+	
+	private final String text;
+	
+	/**
+	 * Creates a DecimalLiteral
+	 * @param value The nearest double to the literal
+	 * @param text The literal as it was written
+	 */
+	public DecimalLiteral(double value, String text) {
+		super(value);
+		this.text = text;
+	}
+	
+	/**
+	 * @return The literal as it was written
+	 */
+	public String getText() {
+		return text;
+	}
+	
+	/**
+	 * @return The nearest float to the literal, rounded once from its exact decimal value
+	 */
+	public float getFloat() {
+		return Float.parseFloat(text);
+	}
+	
+	public DecimalLiteral getClone() {
+		return new DecimalLiteral(getValue(null), text);
+	}
+	
+}
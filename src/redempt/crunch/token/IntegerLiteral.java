@@ -0,0 +1,36 @@
+package redempt.crunch.token;
+
+/**
+ * An integer literal which keeps its exact value, for evaluation with long arithmetic where literals beyond 2^53
+ * cannot be represented by a double. Everywhere else it behaves like the nearest double.
+ * @author Redempt
+ */
+public class IntegerLiteral extends LiteralValue {
+	
+	private final long integer;
+	
+	/**
+	 * Creates an IntegerLiteral
+	 * @param integer The exact value of the literal
+	 */
+	public IntegerLiteral(long integer) {
+		super(integer);
+		this.integer = integer;
+	}
+	
+	/**
+	 * @return The exact value of the literal
+	 */
+	public long getInteger() {
+		return integer;
+	}
+	
+	public String toString() {
+		return integer + "";
+	}
+	
+	public IntegerLiteral getClone() {
+		return new IntegerLiteral(integer);
+	}
+	
+}
@@ -0,0 +1,80 @@
+package redempt.crunch.token;
+
+/**
+ * Raises a value to a constant integer power by repeated squaring, evaluating the base only once. This is what
+ * strength reduction turns {@code $1^3} into. Each multiplication can round, so the result is within about one ulp of
+ * {@link Math#pow(double, double)} per unit of exponent.
+ * @author Redempt
+ */
+public class IntegerPower implements Value {
+	
+	private final Value base;
+	private final int exponent;
+	
+	/**
+	 * Creates an IntegerPower
+	 * @param base The value to raise to a power
+	 * @param exponent The power, which may be negative
+	 */
+	public IntegerPower(Value base, int exponent) {
+		this.base = base;
+		this.exponent = exponent;
+	}
+	
+	public Value getBase() {
+		return base;
+	}
+	
+	public int getExponent() {
+		return exponent;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return pow(base.getValue(variableValues), exponent);
+	}
+	
+	/**
+	 * Raises a number to an integer power by repeated squaring. A negative power is the reciprocal of the positive
+	 * power, unless the positive power overflows or loses precision below the normal range while its reciprocal
+	 * would not, in which case it falls back to {@link Math#pow(double, double)}.
+	 * @param base The number
+	 * @param exponent The power, which may be negative
+	 * @return The result
+	 */
+	public static double pow(double base, int exponent) {
+		long remaining = Math.abs((long) exponent);
+		double result = 1;
+		double square = base;
+		while (remaining != 0) {
+			if ((remaining & 1) != 0) {
+				result *= square;
+			}
+			remaining >>= 1;
+			if (remaining != 0) {
+				square *= square;
+			}
+		}
+		if (exponent >= 0) {
+			return result;
+		}
+		if (Double.isInfinite(result) || Math.abs(result) < Double.MIN_NORMAL) {
+			return Math.pow(base, exponent);
+		}
+		return 1 / result;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.INTEGER_POWER;
+	}
+	
+	public String toString() {
+		return "(" + base.toString() + "^" + (double) exponent + ")";
+	}
+	
+	public IntegerPower getClone() {
+		return new IntegerPower(base.getClone(), exponent);
+	}
+	
+}
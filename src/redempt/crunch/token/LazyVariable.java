@@ -6,10 +6,36 @@ public class LazyVariable implements Value {
 	
 	private final String name;
 	private final DoubleSupplier supplier;
+	private final boolean memoized;
 	
 	public LazyVariable(String name, DoubleSupplier supplier) {
+		this(name, supplier, false);
+	}
+	
+	/**
+	 * Creates a LazyVariable
+	 * @param name The name of the lazy variable
+	 * @param supplier The function to supply the value of the variable
+	 * @param memoized Whether the variable should be sampled at most once per evaluation of an expression using it
+	 */
+	public LazyVariable(String name, DoubleSupplier supplier, boolean memoized) {
 		this.name = name;
 		this.supplier = supplier;
+		this.memoized = memoized;
+	}
+	
+	/**
+	 * @return The name of this lazy variable
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return Whether this variable is sampled at most once per evaluation, through a {@link MemoizedVariable}
+	 */
+	public boolean isMemoized() {
+		return memoized;
 	}
 	
 	@Override
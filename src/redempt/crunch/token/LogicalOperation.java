@@ -0,0 +1,67 @@
+package redempt.crunch.token;
+
+/**
+ * A boolean and/or operation which only evaluates its second operand when the first does not already decide the
+ * result. Like every boolean operation, a value is considered true only if it is exactly 1.
+ * @author Redempt
+ */
+public class LogicalOperation implements Value {
+	
+	private final BinaryOperator operator;
+	private final Value first;
+	private final Value second;
+	private final boolean and;
+	
+	/**
+	 * Creates a LogicalOperation
+	 * @param operator The operator, which must be one of the boolean and/or operators
+	 * @param first The operand which is always evaluated
+	 * @param second The operand which is only evaluated if needed
+	 */
+	public LogicalOperation(BinaryOperator operator, Value first, Value second) {
+		if (!operator.isLogical()) {
+			throw new IllegalArgumentException("Operator " + operator + " is not a boolean and/or operator");
+		}
+		this.operator = operator;
+		this.first = first;
+		this.second = second;
+		this.and = operator == BinaryOperator.BOOLEAN_AND || operator == BinaryOperator.BOOLEAN_AND_ALT;
+	}
+	
+	public BinaryOperator getOperator() {
+		return operator;
+	}
+	
+	/**
+	 * @return Whether this is an and operation, as opposed to an or operation
+	 */
+	public boolean isAnd() {
+		return and;
+	}
+	
+	public Value[] getValues() {
+		return new Value[] {first, second};
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		if ((first.getValue(variableValues) == 1) != and) {
+			return and ? 0 : 1;
+		}
+		return second.getValue(variableValues) == 1 ? 1 : 0;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.LOGICAL_OPERATION;
+	}
+	
+	public String toString() {
+		return "(" + first.toString() + operator.getSymbol() + second.toString() + ")";
+	}
+	
+	public LogicalOperation getClone() {
+		return new LogicalOperation(operator, first.getClone(), second.getClone());
+	}
+	
+}
@@ -0,0 +1,63 @@
+package redempt.crunch.token;
+
+/**
+ * A use of a memoized {@link LazyVariable} inside a {@link SharedScope}. The first use in each evaluation samples the
+ * variable and stores its value in the scope's frame along with a flag, and any later use in the same evaluation only
+ * loads the stored value. Since the variable is sampled on first use, branches which are not taken never sample it.
+ * @author Redempt
+ */
+public class MemoizedVariable implements Value {
+	
+	private final int index;
+	private final LazyVariable variable;
+	
+	/**
+	 * Creates a MemoizedVariable
+	 * @param index The index in the variable values passed by the enclosing SharedScope where the value is stored. The
+	 *              flag recording whether it has been sampled is stored at the next index.
+	 * @param variable The lazy variable to sample
+	 */
+	public MemoizedVariable(int index, LazyVariable variable) {
+		this.index = index;
+		this.variable = variable;
+	}
+	
+	/**
+	 * @return The index in the variable values passed by the enclosing SharedScope where the value is stored
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * @return The lazy variable this samples
+	 */
+	public LazyVariable getVariable() {
+		return variable;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.MEMOIZED_VARIABLE;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		if (variableValues[index + 1] == 0) {
+			variableValues[index] = variable.getValue(variableValues);
+			variableValues[index + 1] = 1;
+		}
+		return variableValues[index];
+	}
+	
+	@Override
+	public Value getClone() {
+		return this;
+	}
+	
+	@Override
+	public String toString() {
+		return variable.toString();
+	}
+	
+}
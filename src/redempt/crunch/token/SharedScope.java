@@ -0,0 +1,114 @@
+package redempt.crunch.token;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The root of an expression containing {@link SharedValue}s. Each evaluation first copies the variable values into a
+ * frame, then evaluates every shared subexpression once, in order, storing each result in the frame directly after the
+ * variables. The expression itself is then evaluated against the frame, where SharedValues simply read their slot.
+ * The frame may also hold slots for {@link MemoizedVariable}s after the shared subexpressions, which are cleared at the
+ * start of each evaluation and filled on first use. Each evaluation has a frame of its own, so calls from multiple
+ * threads at once never see each other's shared values or samples.
+ * @author Redempt
+ */
+public class SharedScope implements Value {
+	
+	private final Value value;
+	private final Value[] definitions;
+	private final int variableCount;
+	private final int memoizedCount;
+	private final int frameSize;
+	private final AtomicReference<double[]> spare = new AtomicReference<>();
+	
+	/**
+	 * Creates a SharedScope
+	 * @param value The expression to evaluate once all shared subexpressions are computed
+	 * @param definitions The shared subexpressions, where each may only refer to those before it
+	 * @param variableCount The number of variables, which is also the index of the first shared subexpression's slot
+	 */
+	public SharedScope(Value value, Value[] definitions, int variableCount) {
+		this(value, definitions, variableCount, 0);
+	}
+	
+	/**
+	 * Creates a SharedScope
+	 * @param value The expression to evaluate once all shared subexpressions are computed
+	 * @param definitions The shared subexpressions, where each may only refer to those before it
+	 * @param variableCount The number of variables, which is also the index of the first shared subexpression's slot
+	 * @param memoizedCount The number of memoized lazy variables, each of which takes two slots after the shared subexpressions
+	 */
+	public SharedScope(Value value, Value[] definitions, int variableCount, int memoizedCount) {
+		this.value = value;
+		this.definitions = definitions;
+		this.variableCount = variableCount;
+		this.memoizedCount = memoizedCount;
+		frameSize = variableCount + definitions.length + memoizedCount * 2;
+	}
+	
+	/**
+	 * @return The expression evaluated once all shared subexpressions are computed
+	 */
+	public Value getChild() {
+		return value;
+	}
+	
+	/**
+	 * @return The shared subexpressions, in the order they are evaluated
+	 */
+	public Value[] getDefinitions() {
+		return definitions;
+	}
+	
+	/**
+	 * @return The number of variables, which is also the index of the first shared subexpression's slot
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+	
+	/**
+	 * @return The number of memoized lazy variables, whose slots start directly after the shared subexpressions
+	 */
+	public int getMemoizedCount() {
+		return memoizedCount;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.SHARED_SCOPE;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		// Borrow the spare frame, or allocate one if another call is already using it
+		double[] frame = spare.getAndSet(null);
+		if (frame == null) {
+			frame = new double[frameSize];
+		} else if (memoizedCount != 0) {
+			Arrays.fill(frame, variableCount + definitions.length, frameSize, 0);
+		}
+		System.arraycopy(variableValues, 0, frame, 0, variableCount);
+		for (int i = 0; i < definitions.length; i++) {
+			frame[variableCount + i] = definitions[i].getValue(frame);
+		}
+		double result = value.getValue(frame);
+		spare.lazySet(frame);
+		return result;
+	}
+	
+	@Override
+	public Value getClone() {
+		Value[] clone = new Value[definitions.length];
+		for (int i = 0; i < definitions.length; i++) {
+			clone[i] = definitions[i].getClone();
+		}
+		return new SharedScope(value.getClone(), clone, variableCount, memoizedCount);
+	}
+	
+	@Override
+	public String toString() {
+		return value.toString();
+	}
+	
+}
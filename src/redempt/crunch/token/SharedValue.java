@@ -0,0 +1,57 @@
+package redempt.crunch.token;
+
+/**
+ * A reference to a subexpression which occurs more than once in an expression, and is evaluated once per evaluation
+ * by the enclosing {@link SharedScope}. Reading it only loads the value the scope already computed.
+ * @author Redempt
+ */
+public class SharedValue implements Value {
+	
+	private final int index;
+	private final Value definition;
+	
+	/**
+	 * Creates a SharedValue
+	 * @param index The index in the variable values passed by the enclosing SharedScope where the value is stored
+	 * @param definition The subexpression whose value this refers to
+	 */
+	public SharedValue(int index, Value definition) {
+		this.index = index;
+		this.definition = definition;
+	}
+	
+	/**
+	 * @return The index in the variable values passed by the enclosing SharedScope where the value is stored
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * @return The subexpression whose value this refers to
+	 */
+	public Value getDefinition() {
+		return definition;
+	}
+	
+	@Override
+	public TokenType getType() {
+		return TokenType.SHARED_VALUE;
+	}
+	
+	@Override
+	public double getValue(double[] variableValues) {
+		return variableValues[index];
+	}
+	
+	@Override
+	public Value getClone() {
+		return this;
+	}
+	
+	@Override
+	public String toString() {
+		return definition.toString();
+	}
+	
+}
@@ -0,0 +1,1037 @@
+package redempt.crunch.token;
+
+import redempt.crunch.Variable;
+
+/**
+ * Subclasses of {@link BinaryOperation} and {@link UnaryOperation} specialized for a single operator, and for the most
+ * common operand shapes: a variable and a literal, two variables, and a unary operator applied to a variable. Each
+ * getValue is a small body with no call through the operator's lambda, so HotSpot can inline it into the caller.
+ * @author Redempt
+ */
+final class SpecializedOperations {
+	
+	private static final double[] NO_VARIABLES = new double[0];
+	
+	private SpecializedOperations() {
+		// Prevent instantiation
+	}
+	
+	static BinaryOperation binary(BinaryOperator operator, Value first, Value second) {
+		if (first instanceof Variable && second.getType() == TokenType.LITERAL_VALUE) {
+			switch (operator) {
+				case ADD:
+					return new AddVarLitNode(operator, (Variable) first, second);
+				case SUBTRACT:
+					return new SubtractVarLitNode(operator, (Variable) first, second);
+				case MULTIPLY:
+					return new MultiplyVarLitNode(operator, (Variable) first, second);
+				case DIVIDE:
+					return new DivideVarLitNode(operator, (Variable) first, second);
+				case EXPONENT:
+					return new ExponentVarLitNode(operator, (Variable) first, second);
+				case GREATER_THAN:
+					return new GreaterThanVarLitNode(operator, (Variable) first, second);
+				case LESS_THAN:
+					return new LessThanVarLitNode(operator, (Variable) first, second);
+				case GREATER_THAN_OR_EQUAL_TO:
+					return new GreaterThanOrEqualToVarLitNode(operator, (Variable) first, second);
+				case LESS_THAN_OR_EQUAL_TO:
+					return new LessThanOrEqualToVarLitNode(operator, (Variable) first, second);
+				case EQUAL_TO:
+				case EQUAL_TO_ALT:
+					return new EqualToVarLitNode(operator, (Variable) first, second);
+				case NOT_EQUAL_TO:
+					return new NotEqualToVarLitNode(operator, (Variable) first, second);
+				default:
+					break;
+			}
+		}
+		if (first instanceof Variable && second instanceof Variable) {
+			switch (operator) {
+				case ADD:
+					return new AddVarVarNode(operator, (Variable) first, (Variable) second);
+				case SUBTRACT:
+					return new SubtractVarVarNode(operator, (Variable) first, (Variable) second);
+				case MULTIPLY:
+					return new MultiplyVarVarNode(operator, (Variable) first, (Variable) second);
+				case DIVIDE:
+					return new DivideVarVarNode(operator, (Variable) first, (Variable) second);
+				case EXPONENT:
+					return new ExponentVarVarNode(operator, (Variable) first, (Variable) second);
+				case GREATER_THAN:
+					return new GreaterThanVarVarNode(operator, (Variable) first, (Variable) second);
+				case LESS_THAN:
+					return new LessThanVarVarNode(operator, (Variable) first, (Variable) second);
+				case GREATER_THAN_OR_EQUAL_TO:
+					return new GreaterThanOrEqualToVarVarNode(operator, (Variable) first, (Variable) second);
+				case LESS_THAN_OR_EQUAL_TO:
+					return new LessThanOrEqualToVarVarNode(operator, (Variable) first, (Variable) second);
+				case EQUAL_TO:
+				case EQUAL_TO_ALT:
+					return new EqualToVarVarNode(operator, (Variable) first, (Variable) second);
+				case NOT_EQUAL_TO:
+					return new NotEqualToVarVarNode(operator, (Variable) first, (Variable) second);
+				default:
+					break;
+			}
+		}
+		switch (operator) {
+			case ADD:
+				return new AddNode(operator, first, second);
+			case SUBTRACT:
+				return new SubtractNode(operator, first, second);
+			case MULTIPLY:
+				return new MultiplyNode(operator, first, second);
+			case DIVIDE:
+				return new DivideNode(operator, first, second);
+			case MODULUS:
+				return new ModulusNode(operator, first, second);
+			case EXPONENT:
+				return new ExponentNode(operator, first, second);
+			case GREATER_THAN:
+				return new GreaterThanNode(operator, first, second);
+			case LESS_THAN:
+				return new LessThanNode(operator, first, second);
+			case GREATER_THAN_OR_EQUAL_TO:
+				return new GreaterThanOrEqualToNode(operator, first, second);
+			case LESS_THAN_OR_EQUAL_TO:
+				return new LessThanOrEqualToNode(operator, first, second);
+			case EQUAL_TO:
+			case EQUAL_TO_ALT:
+				return new EqualToNode(operator, first, second);
+			case NOT_EQUAL_TO:
+				return new NotEqualToNode(operator, first, second);
+			default:
+				return new BinaryOperation(operator, first, second);
+		}
+	}
+	
+	static UnaryOperation unary(UnaryOperator operator, Value child) {
+		if (child instanceof Variable) {
+			switch (operator) {
+				case NEGATE:
+					return new NegateVarNode((Variable) child);
+				case NOT:
+					return new NotVarNode((Variable) child);
+				case ABS:
+					return new AbsVarNode((Variable) child);
+				case SQRT:
+					return new SqrtVarNode((Variable) child);
+				case SIN:
+					return new SinVarNode((Variable) child);
+				case COS:
+					return new CosVarNode((Variable) child);
+				case TAN:
+					return new TanVarNode((Variable) child);
+				case LOG:
+					return new LogVarNode((Variable) child);
+				case FLOOR:
+					return new FloorVarNode((Variable) child);
+				case CEIL:
+					return new CeilVarNode((Variable) child);
+				case ROUND:
+					return new RoundVarNode((Variable) child);
+				default:
+					break;
+			}
+		}
+		switch (operator) {
+			case NEGATE:
+				return new NegateNode(child);
+			case NOT:
+				return new NotNode(child);
+			case ABS:
+				return new AbsNode(child);
+			case SQRT:
+				return new SqrtNode(child);
+			case SIN:
+				return new SinNode(child);
+			case COS:
+				return new CosNode(child);
+			case TAN:
+				return new TanNode(child);
+			case LOG:
+				return new LogNode(child);
+			case FLOOR:
+				return new FloorNode(child);
+			case CEIL:
+				return new CeilNode(child);
+			case ROUND:
+				return new RoundNode(child);
+			default:
+				return new UnaryOperation(operator, child);
+		}
+	}
+	
+	private static final class AddNode extends BinaryOperation {
+		
+		public AddNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) + second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class AddVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public AddVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] + constant;
+		}
+		
+	}
+	
+	private static final class AddVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public AddVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] + variableValues[secondIndex];
+		}
+		
+	}
+	
+	private static final class SubtractNode extends BinaryOperation {
+		
+		public SubtractNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) - second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class SubtractVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public SubtractVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] - constant;
+		}
+		
+	}
+	
+	private static final class SubtractVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public SubtractVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] - variableValues[secondIndex];
+		}
+		
+	}
+	
+	private static final class MultiplyNode extends BinaryOperation {
+		
+		public MultiplyNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) * second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class MultiplyVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public MultiplyVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] * constant;
+		}
+		
+	}
+	
+	private static final class MultiplyVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public MultiplyVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] * variableValues[secondIndex];
+		}
+		
+	}
+	
+	private static final class DivideNode extends BinaryOperation {
+		
+		public DivideNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) / second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class DivideVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public DivideVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] / constant;
+		}
+		
+	}
+	
+	private static final class DivideVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public DivideVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] / variableValues[secondIndex];
+		}
+		
+	}
+	
+	private static final class ModulusNode extends BinaryOperation {
+		
+		public ModulusNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) % second.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class ExponentNode extends BinaryOperation {
+		
+		public ExponentNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.pow(first.getValue(variableValues), second.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class ExponentVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public ExponentVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.pow(variableValues[index], constant);
+		}
+		
+	}
+	
+	private static final class ExponentVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public ExponentVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.pow(variableValues[firstIndex], variableValues[secondIndex]);
+		}
+		
+	}
+	
+	private static final class GreaterThanNode extends BinaryOperation {
+		
+		public GreaterThanNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) > second.getValue(variableValues) ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class GreaterThanVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public GreaterThanVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] > constant ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class GreaterThanVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public GreaterThanVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] > variableValues[secondIndex] ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class LessThanNode extends BinaryOperation {
+		
+		public LessThanNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) < second.getValue(variableValues) ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class LessThanVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public LessThanVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] < constant ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class LessThanVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public LessThanVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] < variableValues[secondIndex] ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class GreaterThanOrEqualToNode extends BinaryOperation {
+		
+		public GreaterThanOrEqualToNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) >= second.getValue(variableValues) ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class GreaterThanOrEqualToVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public GreaterThanOrEqualToVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] >= constant ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class GreaterThanOrEqualToVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public GreaterThanOrEqualToVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] >= variableValues[secondIndex] ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class LessThanOrEqualToNode extends BinaryOperation {
+		
+		public LessThanOrEqualToNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) <= second.getValue(variableValues) ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class LessThanOrEqualToVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public LessThanOrEqualToVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] <= constant ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class LessThanOrEqualToVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public LessThanOrEqualToVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] <= variableValues[secondIndex] ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class EqualToNode extends BinaryOperation {
+		
+		public EqualToNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) == second.getValue(variableValues) ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class EqualToVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public EqualToVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] == constant ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class EqualToVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public EqualToVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] == variableValues[secondIndex] ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class NotEqualToNode extends BinaryOperation {
+		
+		public NotEqualToNode(BinaryOperator operator, Value first, Value second) {
+			super(operator, first, second);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return first.getValue(variableValues) != second.getValue(variableValues) ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class NotEqualToVarLitNode extends BinaryOperation {
+		
+		private final int index;
+		private final double constant;
+		
+		public NotEqualToVarLitNode(BinaryOperator operator, Variable first, Value second) {
+			super(operator, first, second);
+			index = first.getIndex();
+			constant = second.getValue(NO_VARIABLES);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] != constant ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class NotEqualToVarVarNode extends BinaryOperation {
+		
+		private final int firstIndex;
+		private final int secondIndex;
+		
+		public NotEqualToVarVarNode(BinaryOperator operator, Variable first, Variable second) {
+			super(operator, first, second);
+			firstIndex = first.getIndex();
+			secondIndex = second.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[firstIndex] != variableValues[secondIndex] ? 1 : 0;
+		}
+		
+	}
+	
+	private static final class NegateNode extends UnaryOperation {
+		
+		public NegateNode(Value child) {
+			super(UnaryOperator.NEGATE, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return -child.getValue(variableValues);
+		}
+		
+	}
+	
+	private static final class NegateVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public NegateVarNode(Variable child) {
+			super(UnaryOperator.NEGATE, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return -variableValues[index];
+		}
+		
+	}
+	
+	private static final class NotNode extends UnaryOperation {
+		
+		public NotNode(Value child) {
+			super(UnaryOperator.NOT, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return child.getValue(variableValues) == 1 ? 0 : 1;
+		}
+		
+	}
+	
+	private static final class NotVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public NotVarNode(Variable child) {
+			super(UnaryOperator.NOT, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return variableValues[index] == 1 ? 0 : 1;
+		}
+		
+	}
+	
+	private static final class AbsNode extends UnaryOperation {
+		
+		public AbsNode(Value child) {
+			super(UnaryOperator.ABS, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.abs(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class AbsVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public AbsVarNode(Variable child) {
+			super(UnaryOperator.ABS, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.abs(variableValues[index]);
+		}
+		
+	}
+	
+	private static final class SqrtNode extends UnaryOperation {
+		
+		public SqrtNode(Value child) {
+			super(UnaryOperator.SQRT, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.sqrt(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class SqrtVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public SqrtVarNode(Variable child) {
+			super(UnaryOperator.SQRT, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.sqrt(variableValues[index]);
+		}
+		
+	}
+	
+	private static final class SinNode extends UnaryOperation {
+		
+		public SinNode(Value child) {
+			super(UnaryOperator.SIN, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.sin(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class SinVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public SinVarNode(Variable child) {
+			super(UnaryOperator.SIN, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.sin(variableValues[index]);
+		}
+		
+	}
+	
+	private static final class CosNode extends UnaryOperation {
+		
+		public CosNode(Value child) {
+			super(UnaryOperator.COS, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.cos(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class CosVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public CosVarNode(Variable child) {
+			super(UnaryOperator.COS, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.cos(variableValues[index]);
+		}
+		
+	}
+	
+	private static final class TanNode extends UnaryOperation {
+		
+		public TanNode(Value child) {
+			super(UnaryOperator.TAN, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.tan(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class TanVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public TanVarNode(Variable child) {
+			super(UnaryOperator.TAN, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.tan(variableValues[index]);
+		}
+		
+	}
+	
+	private static final class LogNode extends UnaryOperation {
+		
+		public LogNode(Value child) {
+			super(UnaryOperator.LOG, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.log(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class LogVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public LogVarNode(Variable child) {
+			super(UnaryOperator.LOG, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.log(variableValues[index]);
+		}
+		
+	}
+	
+	private static final class FloorNode extends UnaryOperation {
+		
+		public FloorNode(Value child) {
+			super(UnaryOperator.FLOOR, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.floor(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class FloorVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public FloorVarNode(Variable child) {
+			super(UnaryOperator.FLOOR, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.floor(variableValues[index]);
+		}
+		
+	}
+	
+	private static final class CeilNode extends UnaryOperation {
+		
+		public CeilNode(Value child) {
+			super(UnaryOperator.CEIL, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.ceil(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class CeilVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public CeilVarNode(Variable child) {
+			super(UnaryOperator.CEIL, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.ceil(variableValues[index]);
+		}
+		
+	}
+	
+	private static final class RoundNode extends UnaryOperation {
+		
+		public RoundNode(Value child) {
+			super(UnaryOperator.ROUND, child);
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.round(child.getValue(variableValues));
+		}
+		
+	}
+	
+	private static final class RoundVarNode extends UnaryOperation {
+		
+		private final int index;
+		
+		public RoundVarNode(Variable child) {
+			super(UnaryOperator.ROUND, child);
+			index = child.getIndex();
+		}
+		
+		@Override
+		public double getValue(double[] variableValues) {
+			return Math.round(variableValues[index]);
+		}
+		
+	}
+	
+}
@@ -14,6 +14,12 @@ public enum TokenType {
 	ARGUMENT_LIST,
 	FUNCTION,
 	FUNCTION_CALL,
-	LAZY_VARIABLE;
+	LAZY_VARIABLE,
+	SHARED_SCOPE,
+	SHARED_VALUE,
+	LOGICAL_OPERATION,
+	CONDITIONAL,
+	INTEGER_POWER,
+	MEMOIZED_VARIABLE;
 	
 }
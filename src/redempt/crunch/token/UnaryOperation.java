@@ -1,12 +1,24 @@
 package redempt.crunch.token;
 
 public class UnaryOperation implements Value {
-    private final UnaryOperator operator;
-    private final Value first;
+
+    /**
+     * Creates a UnaryOperation specialized for its operator and the shape of its operand, whose
+     * {@link Value#getValue(double[])} can be inlined by the JIT instead of calling through the operator's lambda
+     * @param operator The operator
+     * @param child The operand
+     * @return The UnaryOperation, which is a subclass specialized for the operator where one exists
+     */
+    public static UnaryOperation of(UnaryOperator operator, Value child) {
+        return SpecializedOperations.unary(operator, child);
+    }
+
+    protected final UnaryOperator operator;
+    protected final Value child;
 
     public UnaryOperation(UnaryOperator operator, Value value) {
         this.operator = operator;
-        this.first = value;
+        this.child = value;
     }
 
     public UnaryOperator getOperator() {
@@ -14,24 +26,24 @@ public class UnaryOperation implements Value {
     }
 
     public Value getChild() {
-        return first;
+        return child;
     }
     
     @Override
     public double getValue(double[] variableValues) {
-        return operator.getOperation().applyAsDouble(first.getValue(variableValues));
+        return operator.getOperation().applyAsDouble(child.getValue(variableValues));
     }
 
     @Override
 	public TokenType getType() {
-        return TokenType.UNARY_OPERATOR;
+        return TokenType.UNARY_OPERATION;
     }
 
     public String toString() {
-        return "(" + operator.getSymbol() +  first.toString() + ")";
+        return "(" + operator.getSymbol() +  child.toString() + ")";
     }
 
     public UnaryOperation getClone() {
-        return new UnaryOperation(operator, first.getClone());
+        return of(operator, child.getClone());
     }
 }
\ No newline at end of file
@@ -7,6 +7,10 @@ package redempt.crunch.token;
 public interface Value extends Token, Cloneable {
 	
 	double getValue(double[] variableValues);
+	
+	/**
+	 * @return A copy of this Value which shares no mutable evaluation state with it, such as scratch arrays
+	 */
 	Value getClone();
 	
 }
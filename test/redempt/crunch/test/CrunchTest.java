@@ -1,11 +1,53 @@
 package redempt.crunch.test;
 
 import org.junit.jupiter.api.Test;
+import redempt.crunch.CompilationResults;
 import redempt.crunch.CompiledExpression;
+import redempt.crunch.CompiledProgram;
 import redempt.crunch.Crunch;
+import redempt.crunch.ExpressionCache;
+import redempt.crunch.FloatExpression;
+import redempt.crunch.LongExpression;
+import redempt.crunch.data.CharTree;
+import redempt.crunch.data.FastNumberParsing;
+import redempt.crunch.batch.FileEvaluator;
+import redempt.crunch.batch.LazySampling;
+import redempt.crunch.batch.RecordLayout;
 import redempt.crunch.exceptions.ExpressionCompilationException;
 import redempt.crunch.exceptions.ExpressionEvaluationException;
+import redempt.crunch.exceptions.ExpressionSerializationException;
 import redempt.crunch.functional.ExpressionEnv;
+import redempt.crunch.gradient.Gradient;
+import redempt.crunch.incremental.IncrementalEvaluator;
+import redempt.crunch.Variable;
+import redempt.crunch.optimizer.Optimization;
+import redempt.crunch.serial.ExpressionSerializer;
+import redempt.crunch.token.BinaryOperation;
+import redempt.crunch.token.BinaryOperator;
+import redempt.crunch.token.LiteralValue;
+import redempt.crunch.token.SharedScope;
+import redempt.crunch.token.TokenType;
+import redempt.crunch.token.UnaryOperation;
+import redempt.crunch.token.UnaryOperator;
+import redempt.crunch.token.Value;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -94,6 +136,105 @@ class CrunchTest {
 		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("mult(1, 2, 3)", env), "Too many arguments");
 	}
 
+	@Test
+	void fixedArityFunctionTest() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x", "y");
+		env.addFunction("five", () -> 5);
+		env.addFunction("twice", x -> x * 2);
+		env.addFunction("diff", (a, b) -> a - b);
+		env.addFunction("clamp", (x, min, max) -> Math.max(min, Math.min(max, x)));
+		env.addFunction("clampArray", 3, d -> Math.max(d[1], Math.min(d[2], d[0])));
+		String expression = "five() + twice(x) - diff(y, 2) * clamp(x * y, -1, 3) + clampArray(diff(x, y), 0, 1)";
+		CompiledExpression compiled = Crunch.compileExpression(expression, env);
+		assertEquals(3, Crunch.compileExpression("diff(5, 2)", env).evaluate(0, 0), "Binary function argument order");
+		assertEquals(3, Crunch.compileExpression("clamp(10, 0, 3)", env).evaluate(0, 0), "Ternary function argument order");
+		double[][] inputs = {{0, 0}, {1, 2}, {-3, 0.5}, {2.5, -4}};
+		for (double[] input : inputs) {
+			double x = input[0], y = input[1];
+			double expected = 5 + x * 2 - (y - 2) * Math.max(-1, Math.min(3, x * y)) + Math.max(0, Math.min(1, x - y));
+			assertEquals(expected, compiled.evaluate(input), "Tree walker");
+			assertEquals(expected, compiled.clone().evaluate(input), "Clone");
+			assertEquals(expected, compiled.toBytecode().evaluate(input), "Bytecode");
+			assertEquals(expected, compiled.toLinearProgram().evaluate(input), "Linear program");
+		}
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("diff(1)", env), "Not enough arguments");
+		assertThrows(IllegalArgumentException.class, () -> env.addFunction("bad", (java.util.function.DoubleUnaryOperator) null), "Null function");
+	}
+
+	@Test
+	void charTreeTest() {
+		CharTree<String> tree = new CharTree<>();
+		String[] keys = {"a", "ab", "abc", "abd", "b", "bcd", "bcde", "x\u00e9", "\u03b1\u03b2", "\u03b1", "\u4e2d\u6587", "sin", "sinh", "s"};
+		for (String key : keys) {
+			tree.set(key, key);
+		}
+		for (String key : keys) {
+			assertEquals(key, tree.get(key), "Exact lookup");
+		}
+		assertNull(tree.get("bc"), "Prefix inside a collapsed node");
+		assertNull(tree.get("abcd"), "Key past a leaf");
+		assertNull(tree.get("\u03b1\u03b3"), "Diverging Unicode key");
+		assertTrue(tree.containsFirstChar('\u4e2d'));
+		assertFalse(tree.containsFirstChar('z'));
+		assertEquals("bcd", tree.getFrom("1bcdx", 1).getFirst(), "Longest match");
+		assertEquals("b", tree.getFrom("bcx", 0).getFirst(), "Longest match ending before a collapsed node");
+		assertEquals("sinh", tree.getFrom("sinh(1)", 0).getFirst());
+		tree.set("bc", "bc");
+		assertEquals("bc", tree.get("bc"), "Value on a split node");
+		assertEquals("bcde", tree.get("bcde"));
+		
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("\u03b1", "\u03b1\u03b2", "x\u00e9");
+		env.addFunction("\u5e73\u65b9", x -> x * x);
+		assertEquals(2 + 9 + 2 * 4, Crunch.compileExpression("\u03b1 + \u5e73\u65b9(\u03b1\u03b2) + 2 * x\u00e9", env).evaluate(2, 3, 4), "Unicode identifiers");
+		
+		ExpressionEnv large = new ExpressionEnv();
+		String[] names = new String[4000];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "var" + i;
+		}
+		large.setVariableNames(names);
+		double[] values = new double[names.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+		}
+		assertEquals(3999 + 12 + 100, Crunch.compileExpression("var3999 + var12 + var100", large).evaluate(values), "Large namespace");
+	}
+
+	@Test
+	void deriveTest() {
+		ExpressionEnv base = ExpressionEnv.base();
+		assertTrue(base.isFrozen());
+		assertThrows(IllegalStateException.class, () -> base.addLazyVariable("x", () -> 1), "Frozen base environment");
+		assertThrows(IllegalStateException.class, () -> base.getValues().set("x", new LiteralValue(1)), "Frozen lookup table");
+		
+		ExpressionEnv shared = base.derive()
+				.setVariableNames("x")
+				.addFunction("twice", x -> x * 2)
+				.enableOptimizations(Optimization.SIMPLIFY)
+				.freeze();
+		ExpressionEnv tenant = shared.derive().addLazyVariable("tick", () -> 10);
+		ExpressionEnv other = shared.derive().addLazyVariable("tock", () -> 20);
+		assertFalse(tenant.isFrozen());
+		assertEquals(1, tenant.getVariableCount());
+		assertEquals(shared.getOptimizations(), tenant.getOptimizations());
+		assertEquals(16, Crunch.compileExpression("twice(x) + tick", tenant).evaluate(3), "Derived environment");
+		assertEquals(26, Crunch.compileExpression("twice(x) + tock", other).evaluate(3), "Sibling environment");
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("tock", tenant), "Siblings are isolated");
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("tick", shared), "Parent is unchanged");
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("twice(1)"), "Base is unchanged");
+		
+		ExpressionEnv mutable = new ExpressionEnv().addFunction("f", x -> x + 1);
+		ExpressionEnv child = mutable.derive();
+		mutable.addFunction("f", x -> x + 2).addFunction("g", x -> x);
+		child.addFunction("h", x -> x);
+		assertEquals(2, Crunch.compileExpression("f(1)", child).evaluate(), "Changes to an unfrozen parent do not reach the child");
+		assertEquals(3, Crunch.compileExpression("f(1)", mutable).evaluate());
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("g(1)", child));
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("h(1)", mutable));
+	}
+
 	@Test
 	void rootingTest() {
 		assertEquals(2, Crunch.evaluateExpression("sqrt(4)"), "Square Rooting");
@@ -109,9 +250,136 @@ class CrunchTest {
         assertEquals(3, Crunch.compileExpression("x + 1", env).evaluate());
 	}
 	
+	@Test
+	void incrementalTest() {
+		AtomicInteger calls = new AtomicInteger();
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("a", "b", "c", "d");
+		env.addFunction(new redempt.crunch.functional.Function("hyp", (x, y) -> {
+			calls.incrementAndGet();
+			return Math.hypot(x, y);
+		}).pure());
+		env.addFunction("impure", x -> x + 1);
+		env.addLazyVariable("z", () -> 3);
+		String source = "hyp(a, b) * sin(c) + (d > 0 ? impure(d) : a ^ 2) + z";
+		CompiledExpression expression = Crunch.compileExpression(source, env);
+		IncrementalEvaluator incremental = new IncrementalEvaluator(expression);
+		double[] values = new double[4];
+		assertEquals(expression.evaluate(values), incremental.evaluate());
+		
+		incremental.set(2, 1.5);
+		values[2] = 1.5;
+		double expected = expression.evaluate(values);
+		calls.set(0);
+		assertEquals(expected, incremental.evaluate());
+		assertEquals(0, calls.get(), "Pure function with unchanged arguments is not called");
+		int recomputed = incremental.getRecomputedCount();
+		assertTrue(recomputed < incremental.getNodeCount() / 2, "Only the dirty path is recomputed, got " + recomputed);
+		
+		incremental.set(2, 1.5);
+		incremental.evaluate();
+		assertTrue(incremental.getRecomputedCount() < recomputed, "Setting the same value changes nothing");
+		
+		Random random = new Random(0);
+		for (int i = 0; i < 200; i++) {
+			int index = random.nextInt(4);
+			values[index] = random.nextInt(5) - 2;
+			incremental.set(index, values[index]);
+			assertEquals(expression.evaluate(values), incremental.evaluate(), Arrays.toString(values));
+		}
+		incremental.setAll(1, 2, 3, 4);
+		assertEquals(expression.evaluate(1, 2, 3, 4), incremental.evaluate());
+		assertEquals(3, incremental.get(2));
+		
+		AtomicInteger samples = new AtomicInteger();
+		env.addLazyVariable("sampled", samples::incrementAndGet);
+		IncrementalEvaluator lazy = new IncrementalEvaluator(Crunch.compileExpression("sampled + sampled * a", env));
+		lazy.evaluate();
+		lazy.evaluate();
+		assertEquals(4, samples.get(), "Lazy variables are sampled at every use in every evaluation");
+		assertThrows(IllegalArgumentException.class, () -> incremental.set(4, 0), "Out of range variable");
+		assertThrows(IllegalArgumentException.class, () -> incremental.setAll(1, 2), "Wrong number of values");
+	}
+	
+	@Test
+	void memoizedLazyVariableTest() {
+		AtomicInteger samples = new AtomicInteger();
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x");
+		env.addMemoizedLazyVariable("price", () -> {
+			samples.incrementAndGet();
+			return 5;
+		});
+		CompiledExpression expression = Crunch.compileExpression("price * 2 + price * 3 + (x > 0 ? price : 1)", env);
+		List<CompiledExpression> backends = Arrays.asList(expression, expression.clone(), expression.toBytecode(), expression.toLinearProgram(),
+				Crunch.compileExpression("price * 2 + price * 3 + (x > 0 ? price : 1)", env.derive().enableOptimizations(Optimization.values())));
+		for (CompiledExpression backend : backends) {
+			samples.set(0);
+			assertEquals(30, backend.evaluate(1));
+			assertEquals(1, samples.get(), "Sampled once per evaluation");
+			assertEquals(26, backend.evaluate(-1));
+			assertEquals(2, samples.get(), "Sampled again in the next evaluation");
+		}
+		samples.set(0);
+		assertEquals(1, Crunch.compileExpression("x > 0 ? price * price : 1", env).evaluate(-1));
+		assertEquals(0, samples.get(), "Not sampled in a branch which is not taken");
+		
+		samples.set(0);
+		double[] out = new double[4];
+		expression.evaluateBatch(new double[][] {{1, -1, 2, -2}}, out, 0, 4);
+		assertArrayEquals(new double[] {30, 26, 30, 26}, out);
+		assertEquals(4, samples.get(), "Sampled once per row");
+		samples.set(0);
+		expression.evaluateBatch(new double[][] {{1, -1, 2, -2}}, out, 0, 4, LazySampling.PER_BATCH);
+		assertEquals(1, samples.get(), "Sampled once per batch");
+		
+		samples.set(0);
+		CompiledExpression restored = ExpressionSerializer.deserialize(ExpressionSerializer.serialize(expression), env);
+		assertEquals(30, restored.evaluate(1));
+		assertEquals(1, samples.get(), "Still memoized after serialization");
+		
+		long[] tick = {0};
+		AtomicInteger epochSamples = new AtomicInteger();
+		ExpressionEnv epochEnv = new ExpressionEnv();
+		epochEnv.addLazyVariable("temperature", epochSamples::incrementAndGet, () -> tick[0]);
+		CompiledExpression first = Crunch.compileExpression("temperature * 2", epochEnv);
+		CompiledExpression second = Crunch.compileExpression("temperature + temperature", epochEnv).toBytecode();
+		assertEquals(2, first.evaluate());
+		assertEquals(2, second.evaluate());
+		assertEquals(2, first.evaluate());
+		assertEquals(1, epochSamples.get(), "Sampled once per epoch across expressions");
+		tick[0]++;
+		assertEquals(4, second.evaluate());
+		assertEquals(4, first.evaluate());
+		assertEquals(2, epochSamples.get(), "Sampled again once the epoch advances");
+		assertThrows(IllegalArgumentException.class, () -> epochEnv.addLazyVariable("bad", () -> 0, null), "Null epoch");
+	}
+	
     @Test
     void scientificNotationTest() {
         assertEquals(2E7, Crunch.evaluateExpression("2E7"), DELTA);
+        assertEquals(TokenType.LITERAL_VALUE, Crunch.compileExpression("1.5E3").getValue().getType(), "Scientific literal is a single value");
+        assertEquals(1.5E-3, Crunch.evaluateExpression("1.5E-3"));
+        assertEquals(1.5E3, Crunch.evaluateExpression("1.5E+3"));
+        assertEquals(1E20, Crunch.evaluateExpression("10^2E1"), "Exponent binds to the literal");
+        assertEquals(Math.pow(10, 2.5), Crunch.evaluateExpression("1E2.5"), DELTA, "Decimal exponents use the operator");
+        assertEquals(3000, Crunch.evaluateExpression("$1E3", 3), "Variables use the operator");
+        assertEquals(TokenType.BINARY_OPERATION, Crunch.compileExpression("$1E3").getValue().getType());
+    }
+
+    @Test
+    void numberParsingTest() {
+        String[] inputs = {"0", "-0", "0.1", "0.3", ".5", "5.", "123456789.123456789", "3.141592653589793238462643383279",
+                "9007199254740993", "1E23", "1.7976931348623157E308", "4.9E-324", "2.2250738585072011E-308",
+                "1e400", "-1e-400", "7.2057594037927933e16", "0.000000000000000000000000000001"};
+        for (String input : inputs) {
+            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(input)), Double.doubleToRawLongBits(FastNumberParsing.parseDouble(input)), input);
+        }
+        assertThrows(NumberFormatException.class, () -> FastNumberParsing.parseDouble("1E"));
+        assertThrows(NumberFormatException.class, () -> FastNumberParsing.parseDouble("."));
+        assertThrows(NumberFormatException.class, () -> FastNumberParsing.parseDouble("1.2.3"));
+        assertEquals(Math.PI, Crunch.evaluateExpression("3.141592653589793238462643383279"), "Long literals are correctly rounded");
+        assertEquals(0.3, Crunch.evaluateExpression("0.3"));
     }
 
     @Test
@@ -143,4 +411,851 @@ class CrunchTest {
 		assertEquals(2, expr.clone().evaluate(2));
 	}
 
+	@Test
+	void bytecodeTest() {
+		assertBackendMatches(CompiledExpression::toBytecode);
+		CompiledExpression random = Crunch.compileExpression("rand1000000").toBytecode();
+		assertNotEquals(random.evaluate(), random.evaluate());
+	}
+	
+	@Test
+	void linearProgramTest() {
+		assertBackendMatches(CompiledExpression::toLinearProgram);
+		CompiledExpression random = Crunch.compileExpression("rand1000000").toLinearProgram();
+		assertNotEquals(random.evaluate(), random.evaluate());
+		CompiledExpression deep = Crunch.compileExpression("$1 > 0 ? ($2 > 0 ? 1 : 2) : ($1 = 0 & $2 = 0 ? 3 : 4)");
+		CompiledExpression linear = deep.toLinearProgram();
+		for (double[] input : new double[][] {{1, 1}, {1, -1}, {0, 0}, {-1, 0}}) {
+			assertEquals(deep.evaluate(input), linear.evaluate(input));
+			assertEquals(deep.evaluate(input), linear.clone().evaluate(input));
+		}
+	}
+	
+	/**
+	 * Checks that an alternative evaluation backend gives the same results as the tree for every kind of node
+	 */
+	private void assertBackendMatches(Function<CompiledExpression, CompiledExpression> backend) {
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x", "y");
+		env.addFunction("max", 2, d -> Math.max(d[0], d[1]));
+		env.addLazyVariable("z", () -> 3);
+		String[] expressions = {"x + y * 2", "x / y - x % y", "x ^ y", "x E 2", "x E y", "sin(x) + cos(y) + round(x / y)",
+				"-x", "!(x > y)", "x >= y | y = 2", "x != y & x < y", "x <= y", "max(x, y * z) + max(1, 2)", "abs(x - y) + sqrt(y)",
+				"x > 0 ? y : -y", "x = 1 || y = 2 ? x ^ 3 : cbrt(y)", "tanh(x) - asin(y) * acos(x) / atan(y) + floor(x) * ceil(y) + log(y)"};
+		ExpressionEnv optimizing = new ExpressionEnv();
+		optimizing.setVariableNames("x", "y");
+		optimizing.addFunction("max", 2, d -> Math.max(d[0], d[1]));
+		optimizing.addLazyVariable("z", () -> 3);
+		optimizing.enableOptimizations(Optimization.STRENGTH_REDUCTION, Optimization.COMMON_SUBEXPRESSIONS);
+		double[][] inputs = {{1, 2}, {-3.5, 0}, {2, 2}, {Double.NaN, 1}, {7, -2}, {0.5, 0.25}};
+		for (ExpressionEnv environment : new ExpressionEnv[] {env, optimizing}) {
+			for (String expression : expressions) {
+				CompiledExpression tree = Crunch.compileExpression(expression + " + (" + expression + ") * x", environment);
+				CompiledExpression compiled = backend.apply(tree);
+				assertEquals(tree.toString(), compiled.toString());
+				for (double[] input : inputs) {
+					assertEquals(tree.evaluate(input), compiled.evaluate(input), expression);
+				}
+			}
+		}
+	}
+
+	@Test
+	void concurrentCloneTest() throws Exception {
+		ExpressionEnv env = new ExpressionEnv();
+		env.addFunction("mult", 2, d -> d[0] * d[1]);
+		CompiledExpression expr = Crunch.compileExpression("mult($1, mult($2, 2)) + mult($1, 1)", env);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int thread = 0; thread < 8; thread++) {
+				CompiledExpression clone = thread % 2 == 0 ? expr.clone() : expr.toBytecode().clone();
+				int offset = thread;
+				results.add(executor.submit(() -> {
+					for (int i = 0; i < 100000; i++) {
+						double x = i + offset;
+						if (clone.evaluate(x, 3) != x * 6 + x) {
+							return false;
+						}
+					}
+					return true;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get(), "Clones evaluated concurrently");
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		CompiledExpression single = Crunch.compileExpression("$1 * 2");
+		assertEquals(2, single.evaluate(1));
+		assertEquals(4, single.evaluate(2, 5), "Switching evaluate overloads");
+		assertEquals(6, single.evaluate(new double[] {3}));
+		assertEquals(2, single.evaluate(1));
+	}
+
+	@Test
+	void concurrentSharedTest() throws Exception {
+		ExpressionEnv env = new ExpressionEnv();
+		env.addFunction("mult", 2, d -> d[0] * d[1]);
+		CompiledExpression tree = Crunch.compileExpression("mult($1, mult($2, 2)) + mult($1, 1)", env);
+		List<CompiledExpression> shared = Arrays.asList(tree, tree.toBytecode(), tree.toLinearProgram());
+		CompiledProgram program = Crunch.compileProgram(Arrays.asList("mult($1, $2)", "mult($1, $2) + $1"), env);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int thread = 0; thread < 8; thread++) {
+				int offset = thread;
+				results.add(executor.submit(() -> {
+					double[] out = new double[2];
+					for (int i = 0; i < 100000; i++) {
+						double x = i + offset;
+						for (CompiledExpression expr : shared) {
+							if (expr.evaluate(x, 3) != x * 6 + x || expr.evaluate(new double[] {x, 2}) != x * 4 + x) {
+								return false;
+							}
+						}
+						program.evaluate(new double[] {x, 3}, out);
+						if (out[0] != x * 3 || out[1] != x * 4) {
+							return false;
+						}
+					}
+					return true;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get(), "One instance evaluated concurrently");
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	void batchTest() {
+		AtomicInteger samples = new AtomicInteger();
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x", "y");
+		env.addFunction("max", 2, d -> Math.max(d[0], d[1]));
+		env.addLazyVariable("z", () -> samples.incrementAndGet() > 0 ? 2 : 0);
+		String[] expressions = {"x * 2 + y", "2 - x / y", "x ^ 2 % 3", "-abs(x - y) + sqrt(y)", "max(x, y * z) > 4 | x = y", "x", "5"};
+		int rows = 1000;
+		double[][] columns = new double[2][rows];
+		for (int i = 0; i < rows; i++) {
+			columns[0][i] = i * 0.5 - 100;
+			columns[1][i] = i % 7;
+		}
+		for (String expression : expressions) {
+			CompiledExpression expr = Crunch.compileExpression(expression, env);
+			double[] out = new double[rows];
+			expr.evaluateBatch(columns, out, 10, rows);
+			assertEquals(0, out[9], expression);
+			for (int i = 10; i < rows; i++) {
+				assertEquals(expr.evaluate(columns[0][i], columns[1][i]), out[i], expression);
+			}
+		}
+		CompiledExpression lazy = Crunch.compileExpression("x + z * z", env);
+		double[] out = new double[rows];
+		samples.set(0);
+		lazy.evaluateBatch(columns, out, 0, rows, LazySampling.PER_BATCH);
+		assertEquals(1, samples.get(), "Lazy variable sampled once per batch");
+		lazy.evaluateBatch(columns, out, 0, rows, LazySampling.PER_ROW);
+		assertEquals(1 + rows * 2, samples.get(), "Lazy variable sampled for every row");
+		assertThrows(ExpressionEvaluationException.class, () -> lazy.evaluateBatch(new double[1][rows], out, 0, rows), "Too few columns");
+	}
+
+	@Test
+	void parallelBatchTest() {
+		AtomicInteger samples = new AtomicInteger();
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x", "y");
+		env.addFunction("mult", 2, d -> d[0] * d[1]);
+		env.addLazyVariable("z", () -> samples.incrementAndGet() > 0 ? 3 : 0);
+		CompiledExpression expr = Crunch.compileExpression("mult(x, y) + z * x - y ^ 2", env);
+		int rows = 100_000;
+		double[][] columns = new double[2][rows];
+		for (int i = 0; i < rows; i++) {
+			columns[0][i] = i;
+			columns[1][i] = i % 13;
+		}
+		double[] expected = new double[rows];
+		expr.evaluateBatch(columns, expected, 0, rows);
+		double[] out = new double[rows];
+		expr.evaluateBatchParallel(columns, out, 0, rows);
+		assertArrayEquals(expected, out, "Parallel with default settings");
+		out = new double[rows];
+		samples.set(0);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			expr.evaluateBatchParallel(columns, out, 0, rows, LazySampling.PER_BATCH, pool, 1000);
+			assertArrayEquals(expected, out, "Parallel with small chunks");
+			assertEquals(1, samples.get(), "Lazy variable sampled once for all chunks");
+			
+			// Deep enough to be evaluated by a LinearProgram
+			StringBuilder deep = new StringBuilder("(x < 0 ? z : 1)");
+			for (int i = 0; i < 300; i++) {
+				deep.insert(0, '(').append(" + 1)");
+			}
+			for (String untaken : new String[] {"x < 0 ? z : 1", "x < 0 & z > 1", deep.toString()}) {
+				samples.set(0);
+				Crunch.compileExpression(untaken, env).evaluateBatchParallel(columns, out, 0, rows, LazySampling.PER_BATCH, pool, 1000);
+				assertEquals(0, samples.get(), "Lazy variable in a branch no row takes is not sampled: " + untaken);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void cacheTest() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x");
+		ExpressionCache cache = Crunch.cached(env, 2);
+		CompiledExpression first = cache.compile("x + 1");
+		CompiledExpression second = cache.compile("x + 1");
+		assertSame(first, second, "Hits return the cached expression");
+		assertEquals(3, second.evaluate(2));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		cache.compile("x + 2");
+		cache.compile("x + 1");
+		cache.compile("x + 3");
+		assertEquals(2, cache.size(), "Size is bounded");
+		assertEquals(1, cache.getEvictions(), "Least recently used entry evicted");
+		cache.compile("x + 1");
+		assertEquals(3, cache.getHits(), "Recently used entry kept");
+		assertThrows(ExpressionCompilationException.class, () -> cache.compile("double(x)"));
+		env.addFunction("double", 1, d -> d[0] * 2);
+		assertEquals(8, cache.compile("double(x)").evaluate(4), "Cache sees functions added later");
+		env.addLazyVariable("y", () -> 10);
+		long misses = cache.getMisses();
+		cache.compile("x + 1");
+		assertEquals(misses + 1, cache.getMisses(), "Entries invalidated when environment changes");
+		assertThrows(IllegalArgumentException.class, () -> Crunch.cached(env, 0));
+	}
+
+	@Test
+	void compileAllTest() {
+		ExpressionEnv env = new ExpressionEnv().setVariableNames("x", "y").addFunction("max", Math::max);
+		List<String> expressions = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			switch (i % 5) {
+				case 0:
+					expressions.add("x * " + i + " + y");
+					break;
+				case 1:
+					expressions.add("max(x, $3) - (y + " + (i % 7) + ") ^ 2");
+					break;
+				case 2:
+					expressions.add("sin(x) + (1 + 2) * $3");
+					break;
+				case 3:
+					expressions.add(i % 2 == 0 ? "x +" : "max(1)");
+					break;
+				default:
+					expressions.add("x > " + i + " ? 1 : -(y * 2)");
+			}
+		}
+		CompilationResults results = Crunch.compileAll(expressions, env);
+		assertEquals(expressions.size(), results.size());
+		assertEquals(400, results.getFailureCount(), "Failures are reported without aborting the batch");
+		assertTrue(results.hasFailures());
+		for (int i = 0; i < expressions.size(); i++) {
+			if (i % 5 == 3) {
+				assertNull(results.get(i));
+				assertNotNull(results.getFailure(i));
+				String failed = expressions.get(i);
+				assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression(failed, env));
+				continue;
+			}
+			assertNull(results.getFailure(i));
+			CompiledExpression single = Crunch.compileExpression(expressions.get(i), env);
+			assertEquals(single.toString(), results.get(i).toString(), "Same tree as single compilation");
+			assertEquals(single.getVariableCount(), results.get(i).getVariableCount());
+			assertEquals(single.evaluate(1.5, -2, 3), results.get(i).evaluate(1.5, -2, 3));
+		}
+		assertEquals(results.getFailureCount(), results.getFailures().size());
+		assertSame(results.getFailure(3), results.getFailures().get(3));
+		
+		CompilationResults leaves = Crunch.compileAll(Arrays.asList("$1", "$1", "2.5", "2.5", "1 + 1.5"), env);
+		assertSame(leaves.get(0).getValue(), leaves.get(1).getValue(), "Variables are interned");
+		assertSame(leaves.get(2).getValue(), leaves.get(3).getValue(), "Literals are interned");
+		assertSame(leaves.get(2).getValue(), leaves.get(4).getValue(), "Folded literals are interned");
+		assertEquals(0, Crunch.compileAll(new ArrayList<>(), env).size());
+	}
+
+	@Test
+	void serializationTest() throws Exception {
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x", "y");
+		env.addFunction("mul", 2, args -> args[0] * args[1]);
+		env.addFunction("half", v -> v / 2);
+		env.addLazyVariable("z", () -> 3);
+		env.enableOptimizations(Optimization.values());
+		String[] expressions = {"x + y * 2", "pi * e - x", "mul(x, y) + half(x)", "z * x ^ 3", "x > 1 & y < 2 | true",
+			"sin(x * y)^2 + cos(x * y)^2 + (x * y)", "-x + abs(y) % 3", "(x + 1) * (x + 1) + ((x + 1) * (x + 1)) / 2"};
+		List<CompiledExpression> compiled = new ArrayList<>();
+		for (String expression : expressions) {
+			CompiledExpression original = Crunch.compileExpression(expression, env);
+			CompiledExpression restored = ExpressionSerializer.deserialize(ExpressionSerializer.serialize(original), env);
+			assertEquals(original.toString(), restored.toString(), expression);
+			assertEquals(original.getVariableCount(), restored.getVariableCount());
+			assertEquals(original.getValue().getType(), restored.getValue().getType());
+			for (double x = -2; x <= 2; x += 0.5) {
+				assertEquals(original.evaluate(x, 1.5), restored.evaluate(x, 1.5), expression);
+				assertEquals(original.evaluate(x, 1.5), restored.toBytecode().evaluate(x, 1.5), expression);
+			}
+			compiled.add(original);
+		}
+		
+		ByteArrayOutputStream catalog = new ByteArrayOutputStream();
+		ExpressionSerializer.writeAll(compiled, catalog);
+		List<CompiledExpression> restored = ExpressionSerializer.readAll(ByteBuffer.wrap(catalog.toByteArray()), env);
+		assertEquals(compiled.size(), restored.size());
+		for (int i = 0; i < compiled.size(); i++) {
+			assertEquals(compiled.get(i).evaluate(1, 2), restored.get(i).evaluate(1, 2));
+		}
+		ByteArrayInputStream stream = new ByteArrayInputStream(catalog.toByteArray());
+		assertEquals(compiled.get(0).evaluate(1, 2), ExpressionSerializer.read(stream, env).evaluate(1, 2));
+		assertEquals(compiled.get(1).evaluate(1, 2), ExpressionSerializer.read(stream, env).evaluate(1, 2));
+		
+		byte[] bytes = ExpressionSerializer.serialize(compiled.get(2));
+		byte[] badMagic = bytes.clone();
+		badMagic[0] = 0;
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.deserialize(badMagic, env), "Bad magic number");
+		byte[] badVersion = bytes.clone();
+		badVersion[5]++;
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.deserialize(badVersion, env), "Unsupported version");
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.deserialize(Arrays.copyOf(bytes, bytes.length - 1), env), "Truncated");
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)), env), "Truncated stream");
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.read(new ByteArrayInputStream(Arrays.copyOf(bytes, 4)), env), "Truncated stream header");
+		byte[] hugeLength = bytes.clone();
+		ByteBuffer.wrap(hugeLength).putInt(6, Integer.MAX_VALUE);
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.read(new ByteArrayInputStream(hugeLength), env), "Corrupt length in stream");
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.deserialize(bytes, new ExpressionEnv()), "Missing function");
+		ExpressionEnv wrongArity = new ExpressionEnv();
+		wrongArity.addFunction("mul", 3, args -> 0);
+		wrongArity.addFunction("half", 1, args -> 0);
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.deserialize(bytes, wrongArity), "Wrong argument count");
+		assertThrows(ExpressionSerializationException.class, () -> ExpressionSerializer.deserialize(ExpressionSerializer.serialize(compiled.get(3)), new ExpressionEnv()), "Missing lazy variable");
+	}
+	
+	@Test
+	void commonSubexpressionTest() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.enableOptimizations(Optimization.COMMON_SUBEXPRESSIONS);
+		String expression = "sin($1*$2)^2 + cos($1*$2)^2 + sqrt($1*$2)";
+		CompiledExpression plain = Crunch.compileExpression(expression);
+		CompiledExpression shared = Crunch.compileExpression(expression, env);
+		assertEquals(TokenType.SHARED_SCOPE, shared.getValue().getType());
+		assertEquals(1, ((SharedScope) shared.getValue()).getDefinitions().length, "$1*$2 computed once");
+		assertEquals(plain.toString(), shared.toString());
+		for (double x = -2; x <= 2; x += 0.5) {
+			assertEquals(plain.evaluate(x, 3), shared.evaluate(x, 3));
+			assertEquals(plain.evaluate(x, 3), shared.toBytecode().evaluate(x, 3));
+			assertEquals(plain.evaluate(x, 3), shared.clone().evaluate(x, 3));
+		}
+		double[] out = new double[3];
+		shared.evaluateBatch(new double[][] {{1, 2, 3}, {4, 5, 6}}, out, 0, 3);
+		assertArrayEquals(new double[] {plain.evaluate(1, 4), plain.evaluate(2, 5), plain.evaluate(3, 6)}, out);
+		
+		CompiledExpression nested = Crunch.compileExpression("($1 + 1) * ($1 + 1) + (($1 + 1) * ($1 + 1)) / 2", env);
+		assertEquals(2, ((SharedScope) nested.getValue()).getDefinitions().length, "Nested shared subexpressions");
+		assertEquals(13.5, nested.evaluate(2));
+
+		CompiledExpression constants = Crunch.compileExpression("sin($1*pi)^2 + cos($1*pi)^2 + ($1+e)*($1+e)", env);
+		assertEquals(2, ((SharedScope) constants.getValue()).getDefinitions().length, "Subexpressions with constants are merged");
+		CompiledExpression unshared = Crunch.compileExpression("sin($1*pi)^2 + cos($1*pi)^2 + ($1+e)*($1+e)");
+		assertEquals(unshared.evaluate(0.3), constants.evaluate(0.3));
+
+		CompiledExpression random = Crunch.compileExpression("rand(1000000) - rand(1000000)", env);
+		assertEquals(TokenType.BINARY_OPERATION, random.getValue().getType(), "Impure operations are not merged");
+		assertNotEquals(0, random.evaluate());
+		env.addLazyVariable("z", () -> 2);
+		assertEquals(TokenType.BINARY_OPERATION, Crunch.compileExpression("z * 2 + z * 2", env).getValue().getType(), "Lazy variables are not merged");
+		AtomicInteger samples = new AtomicInteger();
+		env.addLazyVariable("w", samples::incrementAndGet);
+		assertEquals(-1, Crunch.compileExpression("(w + 1) - (w + 1)", env).evaluate(), "Each use samples the lazy variable");
+		assertEquals(2, samples.get());
+	}
+
+	@Test
+	void simplifyTest() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.enableOptimizations(Optimization.SIMPLIFY);
+		assertEquals("$1", Crunch.compileExpression("($1 * 1) - 0", env).toString(), "Identity elimination");
+		assertEquals("$1", Crunch.compileExpression("--$1", env).toString(), "Double negation");
+		assertEquals("($1*8.0)", Crunch.compileExpression("2 * $1 * 4", env).toString(), "Exact power of two scaling");
+		assertEquals("($1-$2)", Crunch.compileExpression("$1 + -$2", env).toString());
+		assertEquals("0.0", Crunch.compileExpression("abs($1) < 0", env).toString(), "Comparison with known result");
+		assertEquals("1.0", Crunch.compileExpression("($1 > 2) <= 1", env).toString());
+		assertEquals("($1>2.0)", Crunch.compileExpression("($1 > 2) = 1 & 1", env).toString());
+		assertEquals("(($1+2.0)+3.0)", Crunch.compileExpression("$1 + 2 + 3", env).toString(), "Reassociation needs fast math");
+		assertEquals("($1+0.0)", Crunch.compileExpression("$1 + 0", env).toString(), "-0 + 0 is not -0");
+		assertEquals("((sqrt$1)>=0.0)", Crunch.compileExpression("sqrt($1) >= 0", env).toString(), "sqrt can be NaN");
+		CompiledExpression tree = Crunch.compileExpression("(-$1 * -$2) / 1 + ($3 ^ 1) * -1");
+		CompiledExpression simplified = Crunch.compileExpression("(-$1 * -$2) / 1 + ($3 ^ 1) * -1", env);
+		for (double x : new double[] {-0d, 0d, 1.5, Double.NaN, Double.POSITIVE_INFINITY}) {
+			assertEquals(tree.evaluate(x, -0d, x), simplified.evaluate(x, -0d, x));
+		}
+		
+		env.enableOptimizations(Optimization.FAST_MATH);
+		assertEquals("($1+5.0)", Crunch.compileExpression("$1 + 2 + 3", env).toString());
+		assertEquals("($1*6.0)", Crunch.compileExpression("2 * $1 * 3", env).toString());
+		assertEquals("$1", Crunch.compileExpression("($1 * 1) + 0", env).toString());
+		assertEquals("($1-1.0)", Crunch.compileExpression("($1 + 2) - 3", env).toString());
+		assertEquals("0.0", Crunch.compileExpression("$1 * 0 + $2 - $2", env).toString());
+		assertEquals(6, Crunch.compileExpression("$1 + 2 + 3", env).evaluate(1));
+	}
+
+	@Test
+	void shortCircuitTest() {
+		AtomicInteger calls = new AtomicInteger();
+		ExpressionEnv env = new ExpressionEnv();
+		env.addFunction("count", 1, d -> {
+			calls.incrementAndGet();
+			return d[0];
+		});
+		CompiledExpression and = Crunch.compileExpression("$1 > 0 & count($1) > 1", env);
+		assertEquals(TokenType.LOGICAL_OPERATION, and.getValue().getType());
+		assertEquals(0, and.evaluate(-1));
+		assertEquals(0, calls.get(), "And skips its right side");
+		assertEquals(1, and.evaluate(2));
+		assertEquals(1, calls.get());
+		CompiledExpression or = Crunch.compileExpression("$1 = 1 || count($1) = 3", env);
+		assertEquals(1, or.toBytecode().evaluate(1));
+		assertEquals(1, calls.get(), "Or skips its right side");
+		assertEquals(1, or.toBytecode().evaluate(3));
+		assertEquals(2, calls.get());
+		
+		CompiledExpression conditional = Crunch.compileExpression("$1 > 0 ? count($1) : -count(-$1) * 2", env);
+		assertEquals(TokenType.CONDITIONAL, conditional.getValue().getType());
+		assertEquals(3, conditional.evaluate(3));
+		assertEquals(-6, conditional.evaluate(-3));
+		assertEquals(4, calls.get(), "Only the selected branch is evaluated");
+		assertEquals(4, Crunch.evaluateExpression("1 ? (2 > 1) ? 4 : 5 : 6"));
+		assertEquals(3, Crunch.evaluateExpression("0 ? 2 : 0 ? 4 : 3"));
+		assertEquals(8, Crunch.evaluateExpression("(1 > 2 ? 4 : 5) + 3"));
+		assertEquals(conditional.toString(), Crunch.compileExpression(conditional.toString(), env).toString());
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression("1 ? 2"));
+		
+		calls.set(0);
+		double[] out = new double[4];
+		conditional.evaluateBatch(new double[][] {{1, -2, 3, -4}}, out, 0, 4);
+		assertArrayEquals(new double[] {1, -4, 3, -8}, out);
+		assertEquals(4, calls.get(), "Batches evaluate each branch only for the rows that select it");
+		and.evaluateBatch(new double[][] {{-1, 2, -3, 4}}, out, 0, 4);
+		assertArrayEquals(new double[] {0, 1, 0, 1}, out);
+		assertEquals(6, calls.get());
+	}
+
+	@Test
+	void strengthReductionTest() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.enableOptimizations(Optimization.STRENGTH_REDUCTION);
+		CompiledExpression cube = Crunch.compileExpression("$1^3 + $1^-2", env);
+		assertEquals(2, cube.getCompileReport().getRewrites().size());
+		assertEquals("integer power", cube.getCompileReport().getRewrites().get(0).getRule());
+		for (double x : new double[] {-3, -0.5, 0, 1.25, 7}) {
+			double expected = Math.pow(x, 3) + Math.pow(x, -2);
+			assertEquals(expected, cube.evaluate(x), Math.ulp(expected) * 4);
+			assertEquals(cube.evaluate(x), cube.toBytecode().evaluate(x));
+		}
+		// The positive power overflows, but its reciprocal is a subnormal
+		CompiledExpression tiny = Crunch.compileExpression("$1^-16", env);
+		for (CompiledExpression backend : Arrays.asList(tiny, tiny.toBytecode(), tiny.toLinearProgram())) {
+			assertEquals(Math.pow(1e20, -16), backend.evaluate(1e20), Math.ulp(Math.pow(1e20, -16)) * 16);
+			assertEquals(Math.pow(-1e-19, -16), backend.evaluate(-1e-19), Math.ulp(Math.pow(-1e-19, -16)) * 16);
+		}
+		assertEquals("(sqrt$1)", Crunch.compileExpression("$1^0.5", env).toString());
+		assertEquals("(1.0/$1)", Crunch.compileExpression("$1^-1", env).toString());
+		assertEquals("($1*1000.0)", Crunch.compileExpression("$1E3", env).toString());
+		assertEquals("($1*0.25)", Crunch.compileExpression("$1 / 4", env).toString(), "Powers of two have exact reciprocals");
+		assertEquals("($1/3.0)", Crunch.compileExpression("$1 / 3", env).toString());
+		assertEquals("($1^2.5)", Crunch.compileExpression("$1^2.5", env).toString());
+		assertTrue(Crunch.compileExpression("$1^2.5", env).getCompileReport().getRewrites().isEmpty());
+		assertTrue(Crunch.compileExpression("$1^2").getCompileReport().getRewrites().isEmpty());
+		
+		env.enableOptimizations(Optimization.FAST_MATH);
+		CompiledExpression division = Crunch.compileExpression("$1 / 3", env);
+		assertEquals("reciprocal multiplication", division.getCompileReport().getRewrites().get(0).getRule());
+		assertEquals(1, division.evaluate(3), 1e-15);
+		assertEquals(1000, Crunch.evaluateExpression("10E$1", 2));
+	}
+
+	@Test
+	void specializedOperationTest() {
+		Value x = new Variable(0);
+		Value y = new Variable(1);
+		Value literal = new LiteralValue(2.5);
+		Value nested = new BinaryOperation(BinaryOperator.ADD, x, literal);
+		double[][] inputs = {{1, 2}, {-3.5, 0}, {2.5, 2.5}, {Double.NaN, 1}, {1, 1}, {-0d, 0d}};
+		for (BinaryOperator operator : BinaryOperator.values()) {
+			Value[][] shapes = {{x, literal}, {x, y}, {nested, y}, {literal, x}};
+			for (Value[] shape : shapes) {
+				BinaryOperation generic = new BinaryOperation(operator, shape[0], shape[1]);
+				BinaryOperation specialized = BinaryOperation.of(operator, shape[0], shape[1]);
+				assertEquals(operator, specialized.getOperator());
+				assertArrayEquals(shape, specialized.getValues());
+				assertEquals(generic.toString(), specialized.toString());
+				assertEquals(specialized.getClass(), specialized.getClone().getClass());
+				for (double[] input : inputs) {
+					assertEquals(generic.getValue(input), specialized.getValue(input), operator + " " + specialized.getClass());
+				}
+			}
+		}
+		for (UnaryOperator operator : UnaryOperator.values()) {
+			if (!operator.isPure()) {
+				continue;
+			}
+			for (Value child : new Value[] {x, nested}) {
+				UnaryOperation generic = new UnaryOperation(operator, child);
+				UnaryOperation specialized = UnaryOperation.of(operator, child);
+				assertEquals(operator, specialized.getOperator());
+				assertSame(child, specialized.getChild());
+				for (double[] input : inputs) {
+					assertEquals(generic.getValue(input), specialized.getValue(input), operator + " " + specialized.getClass());
+				}
+			}
+		}
+		assertNotEquals(BinaryOperation.class, Crunch.compileExpression("$1 * 2").getValue().getClass(), "Parser creates specialized nodes");
+	}
+
+	@Test
+	void programTest() {
+		AtomicInteger samples = new AtomicInteger();
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("a", "b", "c");
+		env.addLazyVariable("t", () -> samples.incrementAndGet());
+		env.addFunction("f", x -> x * 2);
+		List<String> sources = Arrays.asList(
+				"sqrt(a^2 + b^2) * c",
+				"sqrt(a^2 + b^2) + t",
+				"(a^2 + b^2) / (c + 1)",
+				"t * t + f(c)",
+				"c > 1 ? a - b : t",
+				"sqrt(a^2 + b^2) * c"
+		);
+		CompiledProgram program = Crunch.compileProgram(sources, env);
+		assertEquals(6, program.getOutputCount());
+		assertEquals(3, program.getVariableCount());
+		assertEquals(3, program.getSharedCount(), "a^2 + b^2, its root, and the repeated expression are shared");
+		
+		double[] sample = new double[1];
+		ExpressionEnv reference = new ExpressionEnv();
+		reference.setVariableNames("a", "b", "c");
+		reference.addLazyVariable("t", () -> sample[0]);
+		reference.addFunction("f", x -> x * 2);
+		Random random = new Random(0);
+		double[] out = new double[sources.size()];
+		for (int i = 0; i < 100; i++) {
+			double[] values = {random.nextInt(9) - 4, random.nextInt(9) - 4, random.nextInt(5)};
+			program.evaluate(values, out);
+			assertEquals(i + 1, samples.get(), "Lazy variables are sampled once per evaluation");
+			sample[0] = samples.get();
+			for (int j = 0; j < sources.size(); j++) {
+				assertEquals(Crunch.compileExpression(sources.get(j), reference).evaluate(values), out[j], sources.get(j));
+			}
+		}
+		CompiledProgram clone = program.clone();
+		assertEquals(program.evaluate(1, 2, 3)[2], clone.evaluate(1, 2, 3)[2]);
+		assertEquals(102, samples.get(), "Clones sample lazy variables independently");
+		assertThrows(ExpressionEvaluationException.class, () -> program.evaluate(1, 2), "Too few variables");
+		assertThrows(ExpressionEvaluationException.class, () -> program.evaluate(new double[3], new double[2]), "Output array too small");
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileProgram(Arrays.asList("a +", "b"), env));
+	}
+
+	@Test
+	void gradientTest() {
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("x", "y", "z");
+		env.addFunction(new redempt.crunch.functional.Function("hyp", Math::hypot).withDerivative((args, partials) -> {
+			double hypot = Math.hypot(args[0], args[1]);
+			partials[0] = args[0] / hypot;
+			partials[1] = args[1] / hypot;
+		}));
+		env.addFunction("opaque", x -> x);
+		String source = "x^2 * sin(y) + hyp(x, z) / (1 + y^2) + (z > 0 ? log(z) : x * z) + sqrt(x^2 + y^2) * sqrt(x^2 + y^2)";
+		for (int i = 0; i < 2; i++) {
+			CompiledExpression expression = Crunch.compileExpression(source, env);
+			Gradient gradient = expression.gradient();
+			assertEquals(3, gradient.getVariableCount());
+			double[][] points = {{1, 2, 3}, {-0.5, 0.25, -2}, {2, -1, 0.5}};
+			for (double[] point : points) {
+				double[] partials = new double[3];
+				assertEquals(expression.evaluate(point), gradient.evaluate(point, partials));
+				for (int j = 0; j < 3; j++) {
+					double[] up = point.clone();
+					double[] down = point.clone();
+					up[j] += 1e-6;
+					down[j] -= 1e-6;
+					double difference = (expression.evaluate(up) - expression.evaluate(down)) / 2e-6;
+					assertEquals(difference, partials[j], 1e-6, "Partial " + j + " at " + Arrays.toString(point));
+				}
+			}
+			env.enableOptimizations(Optimization.COMMON_SUBEXPRESSIONS, Optimization.STRENGTH_REDUCTION);
+		}
+		assertArrayEquals(new double[] {3, 0}, Crunch.compileExpression("$1 * 3 + floor($2)").gradient().partials(1, 1.5));
+		assertThrows(IllegalStateException.class, () -> Crunch.compileExpression("opaque(x)", env).gradient(), "No derivative registered");
+		assertThrows(IllegalStateException.class, () -> Crunch.compileExpression("rand($1)").gradient(), "rand is not differentiable");
+	}
+
+	@Test
+	void deepExpressionTest() throws InterruptedException {
+		int depth = 20000;
+		StringBuilder parentheses = new StringBuilder();
+		StringBuilder functions = new StringBuilder();
+		StringBuilder negations = new StringBuilder();
+		StringBuilder sum = new StringBuilder("0");
+		StringBuilder chain = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			parentheses.append('(');
+			chain.append('(');
+			functions.append("max($1, ");
+			negations.append('-');
+			sum.append(" + $1");
+		}
+		parentheses.append("$1");
+		functions.append('0');
+		negations.append("$1");
+		chain.append("$1");
+		for (int i = 0; i < depth; i++) {
+			parentheses.append(')');
+			functions.append(')');
+			chain.append(" + 1)");
+		}
+		ExpressionEnv env = new ExpressionEnv();
+		env.addFunction("max", (a, b) -> Math.max(a, b));
+		double[] results = new double[6];
+		// A small stack makes sure nothing recurses once per level
+		Thread thread = new Thread(null, () -> {
+			results[0] = Crunch.compileExpression(parentheses.toString(), env).evaluate(3);
+			results[1] = Crunch.compileExpression(functions.toString(), env).evaluate(3);
+			results[2] = Crunch.compileExpression(negations.toString(), env).clone().evaluate(3);
+			results[3] = Crunch.compileExpression(sum.toString(), env).evaluate(3);
+			// The whole chain is shared between both expressions of the program
+			double[] program = Crunch.compileProgram(Arrays.asList(chain.toString(), chain + " * 2"), env).clone().evaluate(3);
+			results[4] = program[0];
+			results[5] = program[1];
+		}, "deep", 256 * 1024);
+		thread.start();
+		thread.join();
+		assertArrayEquals(new double[] {3, 3, 3, depth * 3, depth + 3, (depth + 3) * 2}, results);
+		
+		double[][] columns = {{1, 2, 3, 4, 5}};
+		double[][] batches = new double[2][5];
+		String[] strings = new String[2];
+		double[] reloaded = new double[2];
+		List<Class<?>> rejected = new ArrayList<>();
+		Thread features = new Thread(null, () -> {
+			CompiledExpression expression = Crunch.compileExpression(chain.toString(), env);
+			expression.evaluateBatch(columns, batches[0], 0, 5);
+			expression.evaluateBatchParallel(columns, batches[1], 0, 5, LazySampling.PER_BATCH, ForkJoinPool.commonPool(), 2);
+			CompiledExpression deserialized = ExpressionSerializer.deserialize(ExpressionSerializer.serialize(expression), env);
+			reloaded[0] = deserialized.evaluate(3);
+			strings[0] = expression.toString();
+			strings[1] = deserialized.toString();
+			reloaded[1] = Crunch.compileExpression(strings[0], env).evaluate(3);
+			for (Runnable feature : new Runnable[] {expression::gradient, () -> new IncrementalEvaluator(expression), expression::toBytecode}) {
+				try {
+					feature.run();
+				} catch (IllegalStateException e) {
+					rejected.add(e.getClass());
+				}
+			}
+		}, "deep features", 256 * 1024);
+		features.start();
+		features.join();
+		double[] expected = {depth + 1, depth + 2, depth + 3, depth + 4, depth + 5};
+		assertArrayEquals(expected, batches[0], "Batch evaluation of a deep expression");
+		assertArrayEquals(expected, batches[1], "Parallel batch evaluation of a deep expression");
+		assertArrayEquals(new double[] {depth + 3, depth + 3}, reloaded, "Serialized and printed deep expressions");
+		assertEquals(strings[0], strings[1]);
+		assertTrue(strings[0].startsWith("((((") && strings[0].contains("$1"));
+		assertEquals(3, rejected.size(), "Features which walk the tree are rejected for deep expressions");
+		
+		StringBuilder sines = new StringBuilder();
+		StringBuilder roots = new StringBuilder();
+		StringBuilder halves = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			sines.append("sin(");
+			roots.append('(');
+			halves.append('(');
+		}
+		sines.append("$1");
+		roots.append("$1");
+		halves.append("$1");
+		for (int i = 0; i < depth; i++) {
+			sines.append(')');
+			roots.append(")^0.5");
+			halves.append(i % 2 == 0 ? " / 2)" : " * 2)");
+		}
+		ExpressionEnv optimized = new ExpressionEnv();
+		optimized.addFunction("max", (a, b) -> Math.max(a, b));
+		optimized.enableOptimizations(Optimization.SIMPLIFY, Optimization.STRENGTH_REDUCTION, Optimization.COMMON_SUBEXPRESSIONS);
+		String[] inputs = {parentheses.toString(), functions.toString(), negations.toString(), sum.toString(), chain.toString(),
+				sines.toString(), roots.toString(), halves.toString()};
+		double[] optimizedResults = new double[inputs.length];
+		String[] rewrite = new String[1];
+		Thread optimizing = new Thread(null, () -> {
+			for (int i = 0; i < inputs.length; i++) {
+				CompiledExpression expression = Crunch.compileExpression(inputs[i], optimized);
+				optimizedResults[i] = expression.evaluate(3);
+				if (i == inputs.length - 1) {
+					rewrite[0] = expression.getCompileReport().getRewrites().get(depth / 2 - 1).getAfter();
+				}
+			}
+		}, "deep optimized", 256 * 1024);
+		optimizing.start();
+		optimizing.join();
+		double sine = Crunch.compileExpression(sines.toString()).evaluate(3);
+		assertArrayEquals(new double[] {3, 3, 3, depth * 3, depth + 3, sine, 1, 3}, optimizedResults, "Optimized deep expressions");
+		assertTrue(rewrite[0] != null && rewrite[0].endsWith("*0.5)"), "Rewrites of deep expressions can be printed");
+		
+		ExpressionEnv limited = new ExpressionEnv().setMaxDepth(100).setMaxNodeCount(1000);
+		assertEquals(3, Crunch.compileExpression("((((($1)))))", limited).evaluate(3));
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression(parentheses.toString(), limited), "Too deep");
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileExpression(sum.toString(), limited), "Too many nodes");
+		assertThrows(IllegalArgumentException.class, () -> limited.setMaxDepth(0));
+	}
+	
+	@Test
+	void typedExpressionTest() {
+		FloatExpression floats = Crunch.compileFloatExpression("0.1 + $1 * 3");
+		assertEquals(0.1f + 0.2f * 3, floats.evaluate(0.2f), "Float arithmetic");
+		float[][] floatColumns = {{1, 2, 3}};
+		float[] floatOut = new float[3];
+		floats.clone().evaluateBatch(floatColumns, floatOut, 1, 3);
+		assertArrayEquals(new float[] {0, 0.1f + 2 * 3, 0.1f + 3 * 3}, floatOut);
+		// Halfway between two floats once rounded to a double, so rounding through a double would round down to 1
+		assertEquals(1.0000000596046447754f, Crunch.compileFloatExpression("1.0000000596046447754").evaluate(), "Decimal literal rounded once");
+		assertEquals(-1.0000000596046447754f * 3, Crunch.compileFloatExpression("-1.0000000596046447754 * $1").evaluate(3), "Negated decimal literal");
+		assertEquals(1.0000000596046447754E1f, Crunch.compileFloatExpression("1.0000000596046447754E1").evaluate(), "Decimal literal with exponent");
+		
+		assertEquals(-3, Crunch.compileLongExpression("-7 / 2").evaluate(), "Truncating division");
+		assertEquals(-1, Crunch.compileLongExpression("-7 % 3").evaluate(), "Modulus");
+		assertEquals(1L << 62, Crunch.compileLongExpression("2^62").evaluate(), "Exact power");
+		assertEquals(9007199254740993L, Crunch.compileLongExpression("$1 + 1").evaluate(9007199254740992L), "Beyond double precision");
+		assertEquals(300, Crunch.compileLongExpression("3 E 2").evaluate(), "Scientific notation");
+		assertEquals(10, Crunch.compileLongExpression("$1 > 3 ? 10 : 20").evaluate(4), "Conditional");
+		assertThrows(ExpressionEvaluationException.class, () -> Crunch.compileLongExpression("$1 * 2").evaluate(Long.MAX_VALUE), "Overflow");
+		assertThrows(ExpressionEvaluationException.class, () -> Crunch.compileLongExpression("1 / $1").evaluate(0), "Division by zero");
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileLongExpression("pi * 2"), "Non-integer constant");
+		assertEquals(1, Crunch.compileLongExpression("9007199254740993 - 9007199254740992").evaluate(), "Literals beyond double precision");
+		assertEquals(Long.MIN_VALUE, Crunch.compileLongExpression("-9223372036854775808").evaluate(), "Most negative literal");
+		assertEquals(Long.MAX_VALUE, Crunch.compileLongExpression("9223372036854775807").evaluate(), "Most positive literal");
+		ExpressionCompilationException outOfRange = assertThrows(ExpressionCompilationException.class,
+				() -> Crunch.compileLongExpression("99999999999999999999"), "Literal out of range");
+		assertTrue(outOfRange.getMessage().contains("out of range"), "Out of range message");
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileLongExpression("1E20"), "Exponent literal out of range");
+		assertThrows(ExpressionCompilationException.class, () -> Crunch.compileLongExpression("9007199254740993.0"), "Decimal literal rounded to 2^53");
+		LongExpression longs = Crunch.compileLongExpression("$1 * $2 - 1");
+		long[][] longColumns = {{1, 2, 3}, {4, 5, 6}};
+		long[] longOut = new long[3];
+		longs.evaluateBatch(longColumns, longOut, 0, 3);
+		assertArrayEquals(new long[] {3, 9, 17}, longOut);
+	}
+
+	
+	@Test
+	void fileEvaluationTest() throws Exception {
+		CompiledExpression expression = Crunch.compileExpression("$1 * $2 - $3");
+		// Records of 28 bytes leave padding around the fields, so reads cannot line up with double boundaries by accident
+		RecordLayout layout = RecordLayout.of(28, 4, 12, 20);
+		int records = 1000;
+		ByteBuffer data = ByteBuffer.allocate(records * 28).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < records; i++) {
+			data.putDouble(i * 28 + 4, i);
+			data.putDouble(i * 28 + 12, i % 7);
+			data.putDouble(i * 28 + 20, 0.5);
+		}
+		Path in = Files.createTempFile("crunch", ".in");
+		Path out = Files.createTempFile("crunch", ".out");
+		try {
+			Files.write(in, data.array());
+			// A small chunk size splits the file into many parallel tasks
+			FileEvaluator.evaluate(expression.getValue(), expression.getVariableCount(), in, layout, out, ForkJoinPool.commonPool(), 28 * 100);
+			ByteBuffer results = ByteBuffer.wrap(Files.readAllBytes(out)).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(records * 8, results.capacity());
+			for (int i = 0; i < records; i++) {
+				assertEquals(expression.evaluate(i, i % 7, 0.5), results.getDouble(i * 8), "Record " + i);
+			}
+			
+			Files.write(in, new byte[24 * 3]);
+			expression.evaluateFile(in, RecordLayout.packed(3).withByteOrder(ByteOrder.BIG_ENDIAN), out);
+			assertEquals(24, Files.size(out));
+			assertThrows(ExpressionEvaluationException.class, () -> expression.evaluateFile(in, RecordLayout.packed(2), out), "Too few fields");
+			assertThrows(ExpressionEvaluationException.class, () -> expression.evaluateFile(in, RecordLayout.packed(5), out), "Partial record");
+			assertEquals(24, Files.size(out), "Output is left alone when the input is rejected");
+			Files.write(in, new byte[0]);
+			expression.evaluateFile(in, RecordLayout.packed(3), out);
+			assertEquals(0, Files.size(out), "Empty input");
+			assertThrows(IllegalArgumentException.class, () -> RecordLayout.of(16, 10));
+			
+			// Deep enough to overflow the stacks of pool threads if the tree were walked recursively
+			int depth = 100000;
+			StringBuilder chain = new StringBuilder();
+			for (int i = 0; i < depth; i++) {
+				chain.append('(');
+			}
+			chain.append("$1");
+			for (int i = 0; i < depth; i++) {
+				chain.append(" + 1)");
+			}
+			CompiledExpression deep = Crunch.compileExpression(chain.toString());
+			ByteBuffer deepData = ByteBuffer.allocate(records * 8).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < records; i++) {
+				deepData.putDouble(i * 8, i);
+			}
+			Files.write(in, deepData.array());
+			deep.evaluateFile(in, RecordLayout.packed(1), out);
+			ByteBuffer deepResults = ByteBuffer.wrap(Files.readAllBytes(out)).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < records; i++) {
+				assertEquals(i + depth, deepResults.getDouble(i * 8), "Deep record " + i);
+			}
+		} finally {
+			Files.delete(in);
+			Files.delete(out);
+		}
+	}
+	
+	@Test
+	void sharedMemoizedConcurrencyTest() throws Exception {
+		ThreadLocal<Double> prices = new ThreadLocal<>();
+		ExpressionEnv env = new ExpressionEnv();
+		env.setVariableNames("qty", "tax");
+		env.addMemoizedLazyVariable("price", prices::get);
+		env.enableOptimizations(Optimization.COMMON_SUBEXPRESSIONS);
+		// One instance evaluated from every thread, each with its own price
+		CompiledExpression shared = Crunch.compileExpression("price * qty + price * tax", env);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (int thread = 0; thread < 8; thread++) {
+				double price = thread + 1;
+				results.add(executor.submit(() -> {
+					prices.set(price);
+					int wrong = 0;
+					double[] values = new double[2];
+					for (int i = 0; i < 200000; i++) {
+						values[0] = i;
+						values[1] = i % 5;
+						if (shared.evaluate(values) != price * i + price * (i % 5)) {
+							wrong++;
+						}
+					}
+					return wrong;
+				}));
+			}
+			for (Future<Integer> result : results) {
+				assertEquals(0, (int) result.get(), "Shared instance evaluated concurrently");
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
 }